@@ -0,0 +1,102 @@
+package ssjsjs.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ssjsjs.JSONable;
+import ssjsjs.SSJSJS;
+
+/**
+ * Benchmarks for encoding, decoding and round tripping one object, through
+ * a JSONObject and through JSON text.  Subclasses supply the object.
+ *
+ * Throughput mode measures operations per microsecond, and sample time mode
+ * reports latency percentiles.  Run with -prof gc (the default for the jmh
+ * Gradle task) to report the allocation rate.
+ * */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public abstract class CodecBenchmark {
+	private JSONable obj;
+	private Class<? extends JSONable> clazz;
+	private JSONObject json;
+	private String text;
+	private byte[] utf8;
+
+	/**
+	 * @return the object to encode and decode.  Called once per fork and
+	 * parameter combination.
+	 * */
+	protected abstract JSONable sample();
+
+	@Setup
+	public void setup() throws Exception {
+		obj = sample();
+		clazz = obj.getClass();
+		json = SSJSJS.encode(obj);
+		text = SSJSJS.encodeToString(obj);
+		utf8 = text.getBytes(StandardCharsets.UTF_8);
+
+		// make sure the object really round trips, so that we aren't
+		// benchmarking an exception
+		final String again = SSJSJS.encodeToString(SSJSJS.decode(new StringReader(text), clazz));
+		if (!again.equals(text)) throw new IllegalStateException(
+			clazz + " does not round trip:\n" + text + "\n" + again);
+	}
+
+	@Benchmark
+	public JSONObject encodeTree() throws Exception {
+		return SSJSJS.encode(obj);
+	}
+
+	@Benchmark
+	public JSONable decodeTree() throws Exception {
+		return SSJSJS.decode(json, clazz);
+	}
+
+	@Benchmark
+	public JSONable roundTripTree() throws Exception {
+		return SSJSJS.decode(SSJSJS.encode(obj), clazz);
+	}
+
+	@Benchmark
+	public String encodeText() throws Exception {
+		return SSJSJS.encodeToString(obj);
+	}
+
+	@Benchmark
+	public JSONable decodeText() throws Exception {
+		return SSJSJS.decode(new StringReader(text), clazz);
+	}
+
+	@Benchmark
+	public JSONable roundTripText() throws Exception {
+		return SSJSJS.decode(new StringReader(SSJSJS.encodeToString(obj)), clazz);
+	}
+
+	@Benchmark
+	public byte[] encodeUTF8() throws Exception {
+		return SSJSJS.encodeToBytes(obj);
+	}
+
+	@Benchmark
+	public JSONable decodeUTF8() throws Exception {
+		return SSJSJS.decode(new ByteArrayInputStream(utf8), clazz);
+	}
+}
@@ -0,0 +1,53 @@
+package ssjsjs.bench;
+
+import ssjsjs.JSONable;
+import ssjsjs.test.NestedCollections;
+import ssjsjs.test.Primitives;
+import ssjsjs.test.WithArrays;
+import ssjsjs.test.WithCollections;
+import ssjsjs.test.WithMaps;
+import ssjsjs.test.WithOptionals;
+
+/**
+ * The objects that are encoded and decoded by the benchmarks.
+ * */
+final class Corpus {
+	private Corpus() {
+	}
+
+	/**
+	 * The names of the fixture classes from the test suite.
+	 * */
+	static final String[] FIXTURES = {
+		"Primitives",
+		"WithCollections",
+		"NestedCollections",
+		"WithMaps",
+		"WithArrays",
+		"WithOptionals"
+	};
+
+	/**
+	 * Make an object of a named shape.
+	 * @param shape the name of a fixture class, or one of "Wide", "Deep" and
+	 * "LargeArray"
+	 * @param size the depth of a Deep object, or the length of a LargeArray.
+	 * Ignored for other shapes.
+	 * @return the object
+	 * @throws IllegalArgumentException if there is no such shape
+	 * */
+	static JSONable sample(final String shape, final int size) {
+		switch (shape) {
+			case "Primitives": return new Primitives((byte) 0);
+			case "WithCollections": return new WithCollections(0);
+			case "NestedCollections": return new NestedCollections();
+			case "WithMaps": return new WithMaps(0);
+			case "WithArrays": return new WithArrays();
+			case "WithOptionals": return new WithOptionals(true);
+			case "Wide": return new Wide(1);
+			case "Deep": return Deep.ofDepth(size);
+			case "LargeArray": return new LargeArray(size);
+			default: throw new IllegalArgumentException("Unknown shape " + shape);
+		}
+	}
+}
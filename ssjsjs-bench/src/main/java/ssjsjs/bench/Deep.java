@@ -0,0 +1,38 @@
+package ssjsjs.bench;
+
+import java.util.Optional;
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.JSONable;
+
+/**
+ * A chain of nested objects.
+ * */
+public class Deep implements JSONable {
+	private final int level;
+	private final String name;
+	private final Optional<Deep> child;
+
+	@JSON
+	public Deep(
+		@Field("level") final int level,
+		@Field("name") final String name,
+		@Field("child") final Optional<Deep> child
+	) {
+		this.level = level;
+		this.name = name;
+		this.child = child;
+	}
+
+	/**
+	 * @param depth the number of objects in the chain
+	 * @return the outermost object
+	 * */
+	public static Deep ofDepth(final int depth) {
+		Deep out = null;
+		for (int i = depth - 1; i >= 0; i--) {
+			out = new Deep(i, "level " + i, Optional.ofNullable(out));
+		}
+		return out;
+	}
+}
@@ -0,0 +1,17 @@
+package ssjsjs.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import ssjsjs.JSONable;
+
+/**
+ * Objects nested inside each other.
+ * */
+public class DeepBenchmark extends CodecBenchmark {
+	@Param({"8", "64"})
+	public int depth;
+
+	@Override
+	protected JSONable sample() {
+		return Deep.ofDepth(depth);
+	}
+}
@@ -0,0 +1,24 @@
+package ssjsjs.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import ssjsjs.JSONable;
+
+/**
+ * The fixture classes from the test suite, which are small objects that
+ * between them cover every kind of field.
+ * */
+public class FixtureBenchmark extends CodecBenchmark {
+	@Param({
+		"Primitives",
+		"WithCollections",
+		"NestedCollections",
+		"WithMaps",
+		"WithArrays",
+		"WithOptionals"})
+	public String shape;
+
+	@Override
+	protected JSONable sample() {
+		return Corpus.sample(shape, 0);
+	}
+}
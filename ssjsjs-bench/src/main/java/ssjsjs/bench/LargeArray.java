@@ -0,0 +1,40 @@
+package ssjsjs.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.JSONable;
+import ssjsjs.test.Primitives;
+
+/**
+ * An object with large collection and array fields.
+ * */
+public class LargeArray implements JSONable {
+	private final List<Primitives> objects;
+	private final int[] numbers;
+	private final String[] strings;
+
+	public LargeArray(final int length) {
+		this.objects = new ArrayList<>(length);
+		this.numbers = new int[length];
+		this.strings = new String[length];
+
+		for (int i = 0; i < length; i++) {
+			objects.add(new Primitives((byte) i));
+			numbers[i] = i * 31;
+			strings[i] = "element " + i;
+		}
+	}
+
+	@JSON
+	public LargeArray(
+		@Field("objects") final List<Primitives> objects,
+		@Field("numbers") final int[] numbers,
+		@Field("strings") final String[] strings
+	) {
+		this.objects = objects;
+		this.numbers = numbers;
+		this.strings = strings;
+	}
+}
@@ -0,0 +1,17 @@
+package ssjsjs.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import ssjsjs.JSONable;
+
+/**
+ * An object with very large collection and array fields.
+ * */
+public class LargeArrayBenchmark extends CodecBenchmark {
+	@Param({"1000", "100000"})
+	public int length;
+
+	@Override
+	protected JSONable sample() {
+		return new LargeArray(length);
+	}
+}
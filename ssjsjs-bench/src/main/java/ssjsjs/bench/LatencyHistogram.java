@@ -0,0 +1,58 @@
+package ssjsjs.bench;
+
+/**
+ * A histogram of latencies in nanoseconds, with a relative error of about
+ * 3%.  Each power of two is divided into 32 equal buckets, so recording a
+ * value is just a few shifts and an increment.  Not thread safe: each thread
+ * records into its own histogram, and they are added together afterwards.
+ * */
+final class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final long[] counts = new long[64 * SUB_BUCKETS];
+	private long total = 0;
+
+	void record(final long nanos) {
+		counts[index(Math.max(nanos, 0))] += 1;
+		total += 1;
+	}
+
+	void add(final LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+		total += other.total;
+	}
+
+	long count() {
+		return total;
+	}
+
+	/**
+	 * @param p the percentile, between 0 and 1
+	 * @return the smallest value that is at least p of the recorded values,
+	 * rounded down to the start of its bucket, or 0 if nothing was recorded
+	 * */
+	long percentile(final double p) {
+		final long rank = Math.max(1, (long) Math.ceil(p * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return lowerBound(i);
+		}
+		return 0;
+	}
+
+	private static int index(final long v) {
+		if (v < SUB_BUCKETS) return (int) v;
+		final int exp = 63 - Long.numberOfLeadingZeros(v);
+		final int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	private static long lowerBound(final int i) {
+		if (i < SUB_BUCKETS) return i;
+		final int exp = (i >>> SUB_BITS) + SUB_BITS - 1;
+		final long sub = i & (SUB_BUCKETS - 1);
+		return (1L << exp) | (sub << (exp - SUB_BITS));
+	}
+}
@@ -0,0 +1,372 @@
+package ssjsjs.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import org.json.JSONObject;
+import ssjsjs.JSONable;
+import ssjsjs.SSJSJS;
+
+/**
+ * Measures how encoding and decoding scale with the number of threads.
+ *
+ * For each kind of thread (platform and, on Java 21 and later, virtual) and
+ * each thread count, every thread encodes and/or decodes the objects of a
+ * corpus as fast as it can for a fixed time.  The harness reports the total
+ * throughput, latency percentiles, bytes allocated per operation and time
+ * spent in garbage collection, so that contention and allocation pressure
+ * show up as a drop in scaling as threads are added.
+ *
+ * Options (all optional):
+ * <pre>
+ * --shapes    Primitives,WithMaps,...  the objects in the corpus (see Corpus)
+ * --size      64                       the size of Deep and LargeArray objects
+ * --threads   1,2,4,8                  the thread counts to measure
+ * --kinds     platform,virtual         the kinds of thread to use
+ * --op        roundtrip                encode, decode or roundtrip
+ * --format    text                     tree, text or utf8
+ * --warmup    5                        seconds of warm-up for each step
+ * --duration  10                       seconds of measurement for each step
+ * </pre>
+ * */
+public final class ScalingHarness {
+	private ScalingHarness() {
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> options = parseOptions(args);
+
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		final List<String> shapes = Arrays.asList(options.getOrDefault("shapes",
+			String.join(",", Corpus.FIXTURES) + ",Wide").split(","));
+		final int size = Integer.parseInt(options.getOrDefault("size", "64"));
+		final int[] threads = parseThreads(options.get("threads"), cpus);
+		final List<String> kinds = Arrays.asList(
+			options.getOrDefault("kinds", "platform,virtual").split(","));
+		final String op = options.getOrDefault("op", "roundtrip");
+		final String format = options.getOrDefault("format", "text");
+		final long warmup = Long.parseLong(options.getOrDefault("warmup", "5")) * 1000000000L;
+		final long duration = Long.parseLong(options.getOrDefault("duration", "10")) * 1000000000L;
+
+		final Item[] items = new Item[shapes.size()];
+		for (int i = 0; i < items.length; i++) items[i] = new Item(Corpus.sample(shapes.get(i), size));
+		final Operation operation = operation(items, op, format);
+
+		System.out.printf("# %s %s, %d CPUs, max heap %d MB%n",
+			System.getProperty("java.vm.name"), System.getProperty("java.version"),
+			cpus, Runtime.getRuntime().maxMemory() >> 20);
+		System.out.printf("# %s %s of %s%n", op, format, shapes);
+		System.out.printf("%-9s %7s %14s %10s %10s %10s %10s %6s %8s %8s%n",
+			"kind", "threads", "ops/s", "p50 us", "p99 us", "p99.9 us", "B/op", "GCs", "GC ms", "scaling");
+
+		for (final String kind : kinds) {
+			final ThreadFactory factory = threadFactory(kind);
+			if (factory == null) {
+				System.out.printf("# %s threads are not supported by this JVM%n", kind);
+				continue;
+			}
+
+			double single = 0;
+			for (final int n : threads) {
+				final Result r = run(factory, n, operation, items.length, warmup, duration);
+				if (single == 0) single = r.opsPerSecond() / n;
+
+				System.out.printf("%-9s %7d %,14.0f %10.2f %10.2f %10.2f %10s %6d %8d %8.2f%n",
+					kind, n, r.opsPerSecond(),
+					r.latency.percentile(0.5) / 1000.0,
+					r.latency.percentile(0.99) / 1000.0,
+					r.latency.percentile(0.999) / 1000.0,
+					r.allocated < 0? "n/a" : String.format("%,d", r.allocated / Math.max(1, r.latency.count())),
+					r.gcCount, r.gcMillis,
+					r.opsPerSecond() / (single * n));
+			}
+		}
+	}
+
+	/**
+	 * One object of the corpus, in every form that the operations need.
+	 * */
+	private static final class Item {
+		final JSONable obj;
+		final Class<? extends JSONable> clazz;
+		final JSONObject json;
+		final String text;
+		final byte[] utf8;
+
+		Item(final JSONable obj) throws Exception {
+			this.obj = obj;
+			this.clazz = obj.getClass();
+			this.json = SSJSJS.encode(obj);
+			this.text = SSJSJS.encodeToString(obj);
+			this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Operation {
+		Object apply(int i) throws Exception;
+	}
+
+	private static Operation operation(
+		final Item[] items, final String op, final String format
+	) {
+		final Operation encode;
+		final Operation decode;
+		switch (format) {
+			case "tree":
+				encode = i -> SSJSJS.encode(items[i].obj);
+				decode = i -> SSJSJS.decode(items[i].json, items[i].clazz);
+				break;
+			case "text":
+				encode = i -> SSJSJS.encodeToString(items[i].obj);
+				decode = i -> SSJSJS.decode(new StringReader(items[i].text), items[i].clazz);
+				break;
+			case "utf8":
+				encode = i -> SSJSJS.encodeToBytes(items[i].obj);
+				decode = i -> SSJSJS.decode(new ByteArrayInputStream(items[i].utf8), items[i].clazz);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown format " + format);
+		}
+
+		switch (op) {
+			case "encode": return encode;
+			case "decode": return decode;
+			case "roundtrip": return i -> {
+				encode.apply(i);
+				return decode.apply(i);
+			};
+			default: throw new IllegalArgumentException("Unknown operation " + op);
+		}
+	}
+
+	/**
+	 * The measurements from one step.
+	 * */
+	private static final class Result {
+		final LatencyHistogram latency = new LatencyHistogram();
+		long nanos;
+		long allocated;
+		long gcCount;
+		long gcMillis;
+
+		double opsPerSecond() {
+			return latency.count() * 1e9 / nanos;
+		}
+	}
+
+	/**
+	 * Run one step: n threads, each performing the operation in a loop.
+	 * */
+	private static Result run(
+		final ThreadFactory factory,
+		final int n,
+		final Operation operation,
+		final int items,
+		final long warmup,
+		final long duration
+	) throws Exception {
+		final CountDownLatch started = new CountDownLatch(n);
+		final CountDownLatch done = new CountDownLatch(n);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final Worker[] workers = new Worker[n];
+
+		for (int t = 0; t < n; t++) {
+			workers[t] = new Worker(operation, t % items, items, started, done, release, failure);
+			factory.newThread(workers[t]).start();
+		}
+
+		started.await();
+		Thread.sleep(warmup / 1000000L);
+
+		final long allocated0 = allocatedBytes();
+		final long[] gc0 = gc();
+		final long start = System.nanoTime();
+		for (final Worker w : workers) w.measuring = true;
+
+		Thread.sleep(duration / 1000000L);
+
+		for (final Worker w : workers) w.stop = true;
+		done.await();
+		final long end = System.nanoTime();
+		final long allocated1 = allocatedBytes();
+		final long[] gc1 = gc();
+		release.countDown();
+
+		if (failure.get() != null) throw failure.get();
+
+		final Result r = new Result();
+		for (final Worker w : workers) r.latency.add(w.latency);
+		r.nanos = end - start;
+		r.allocated = allocated0 < 0 || allocated1 < 0? -1 : allocated1 - allocated0;
+		r.gcCount = gc1[0] - gc0[0];
+		r.gcMillis = gc1[1] - gc0[1];
+		return r;
+	}
+
+	private static final class Worker implements Runnable {
+		private final Operation operation;
+		private final int first;
+		private final int items;
+		private final CountDownLatch started;
+		private final CountDownLatch done;
+		private final CountDownLatch release;
+		private final AtomicReference<Exception> failure;
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		volatile boolean measuring = false;
+		volatile boolean stop = false;
+
+		/**
+		 * Somewhere to put the results, so that the JIT can't optimize the
+		 * operation away.
+		 * */
+		volatile int sink;
+
+		Worker(
+			final Operation operation,
+			final int first,
+			final int items,
+			final CountDownLatch started,
+			final CountDownLatch done,
+			final CountDownLatch release,
+			final AtomicReference<Exception> failure
+		) {
+			this.operation = operation;
+			this.first = first;
+			this.items = items;
+			this.started = started;
+			this.done = done;
+			this.release = release;
+			this.failure = failure;
+		}
+
+		@Override
+		public void run() {
+			started.countDown();
+			int hash = 0;
+			int i = first;
+
+			try {
+				while (!stop) {
+					final long t0 = System.nanoTime();
+					final Object r = operation.apply(i);
+					final long t1 = System.nanoTime();
+
+					hash += System.identityHashCode(r);
+					if (measuring) latency.record(t1 - t0);
+					i = i + 1 == items? 0 : i + 1;
+				}
+			} catch (final Exception e) {
+				failure.compareAndSet(null, e);
+			}
+
+			sink = hash;
+			done.countDown();
+
+			// stay alive until the allocation counters have been read
+			try {
+				release.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the total number of bytes allocated by all live platform
+	 * threads (including the carrier threads of virtual threads), or -1 if
+	 * the JVM can't measure it
+	 * */
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+
+		long total = 0;
+		for (final long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) total += bytes;
+		}
+		return total;
+	}
+
+	/**
+	 * @return the total number of collections, and the total time spent in
+	 * them in milliseconds
+	 * */
+	private static long[] gc() {
+		final long[] out = new long[2];
+		for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			out[0] += Math.max(0, bean.getCollectionCount());
+			out[1] += Math.max(0, bean.getCollectionTime());
+		}
+		return out;
+	}
+
+	/**
+	 * @param kind "platform" or "virtual"
+	 * @return a factory for threads of that kind, or null if this JVM does not
+	 * support them.  Virtual threads are created through reflection, so that
+	 * the harness still builds and runs on Java 11.
+	 * */
+	private static ThreadFactory threadFactory(final String kind) {
+		switch (kind) {
+			case "platform":
+				return r -> {
+					final Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				};
+
+			case "virtual":
+				try {
+					final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+					final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+					return (ThreadFactory) factory.invoke(builder);
+				} catch (final ReflectiveOperationException | RuntimeException e) {
+					return null;
+				}
+
+			default:
+				throw new IllegalArgumentException("Unknown kind of thread " + kind);
+		}
+	}
+
+	private static int[] parseThreads(final String threads, final int cpus) {
+		if (threads != null) {
+			return Arrays.stream(threads.split(",")).mapToInt(Integer::parseInt).toArray();
+		}
+
+		// powers of two up to twice the number of CPUs
+		final List<Integer> out = new ArrayList<>();
+		for (int n = 1; n < 2 * cpus; n *= 2) out.add(n);
+		out.add(2 * cpus);
+		return out.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static Map<String, String> parseOptions(final String[] args) {
+		final Map<String, String> out = new HashMap<>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length) throw new IllegalArgumentException(
+				"Expected --option value, but got " + args[i]);
+			out.put(args[i].substring(2), args[i + 1]);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,147 @@
+package ssjsjs.bench;
+
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.JSONable;
+
+/**
+ * An object with a lot of fields.
+ * */
+public class Wide implements JSONable {
+	private final int i0;
+	private final int i1;
+	private final int i2;
+	private final int i3;
+	private final int i4;
+	private final int i5;
+	private final int i6;
+	private final int i7;
+	private final long l0;
+	private final long l1;
+	private final long l2;
+	private final long l3;
+	private final double d0;
+	private final double d1;
+	private final double d2;
+	private final double d3;
+	private final boolean b0;
+	private final boolean b1;
+	private final boolean b2;
+	private final boolean b3;
+	private final String s0;
+	private final String s1;
+	private final String s2;
+	private final String s3;
+	private final String s4;
+	private final String s5;
+	private final String s6;
+	private final String s7;
+	private final Integer n0;
+	private final Integer n1;
+	private final Integer n2;
+	private final Integer n3;
+
+	public Wide(final int x) {
+		this.i0 = x;
+		this.i1 = x + 1;
+		this.i2 = x + 2;
+		this.i3 = x + 3;
+		this.i4 = x + 4;
+		this.i5 = x + 5;
+		this.i6 = x + 6;
+		this.i7 = x + 7;
+		this.l0 = (long) x << 32;
+		this.l1 = (long) x << 33;
+		this.l2 = (long) x << 34;
+		this.l3 = (long) x << 35;
+		this.d0 = x / 3.0;
+		this.d1 = x / 4.0;
+		this.d2 = x / 5.0;
+		this.d3 = x / 6.0;
+		this.b0 = x % 2 == 0;
+		this.b1 = (x + 1) % 2 == 0;
+		this.b2 = (x + 2) % 2 == 0;
+		this.b3 = (x + 3) % 2 == 0;
+		this.s0 = "value " + x;
+		this.s1 = "value " + (x + 1);
+		this.s2 = "value " + (x + 2);
+		this.s3 = "value " + (x + 3);
+		this.s4 = "value " + (x + 4);
+		this.s5 = "value " + (x + 5);
+		this.s6 = "value " + (x + 6);
+		this.s7 = "value " + (x + 7);
+		this.n0 = x * 2;
+		this.n1 = x * 3;
+		this.n2 = x * 4;
+		this.n3 = x * 5;
+	}
+
+	@JSON
+	public Wide(
+		@Field("i0") final int i0,
+		@Field("i1") final int i1,
+		@Field("i2") final int i2,
+		@Field("i3") final int i3,
+		@Field("i4") final int i4,
+		@Field("i5") final int i5,
+		@Field("i6") final int i6,
+		@Field("i7") final int i7,
+		@Field("l0") final long l0,
+		@Field("l1") final long l1,
+		@Field("l2") final long l2,
+		@Field("l3") final long l3,
+		@Field("d0") final double d0,
+		@Field("d1") final double d1,
+		@Field("d2") final double d2,
+		@Field("d3") final double d3,
+		@Field("b0") final boolean b0,
+		@Field("b1") final boolean b1,
+		@Field("b2") final boolean b2,
+		@Field("b3") final boolean b3,
+		@Field("s0") final String s0,
+		@Field("s1") final String s1,
+		@Field("s2") final String s2,
+		@Field("s3") final String s3,
+		@Field("s4") final String s4,
+		@Field("s5") final String s5,
+		@Field("s6") final String s6,
+		@Field("s7") final String s7,
+		@Field("n0") final Integer n0,
+		@Field("n1") final Integer n1,
+		@Field("n2") final Integer n2,
+		@Field("n3") final Integer n3
+	) {
+		this.i0 = i0;
+		this.i1 = i1;
+		this.i2 = i2;
+		this.i3 = i3;
+		this.i4 = i4;
+		this.i5 = i5;
+		this.i6 = i6;
+		this.i7 = i7;
+		this.l0 = l0;
+		this.l1 = l1;
+		this.l2 = l2;
+		this.l3 = l3;
+		this.d0 = d0;
+		this.d1 = d1;
+		this.d2 = d2;
+		this.d3 = d3;
+		this.b0 = b0;
+		this.b1 = b1;
+		this.b2 = b2;
+		this.b3 = b3;
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+		this.s4 = s4;
+		this.s5 = s5;
+		this.s6 = s6;
+		this.s7 = s7;
+		this.n0 = n0;
+		this.n1 = n1;
+		this.n2 = n2;
+		this.n3 = n3;
+	}
+}
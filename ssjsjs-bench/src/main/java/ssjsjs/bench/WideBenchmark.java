@@ -0,0 +1,13 @@
+package ssjsjs.bench;
+
+import ssjsjs.JSONable;
+
+/**
+ * An object with many fields.
+ * */
+public class WideBenchmark extends CodecBenchmark {
+	@Override
+	protected JSONable sample() {
+		return new Wide(1);
+	}
+}
@@ -0,0 +1,6 @@
+module ssjsjs.processor {
+	requires java.compiler;
+
+	provides javax.annotation.processing.Processor
+		with ssjsjs.processor.CodecProcessor;
+}
@@ -0,0 +1,579 @@
+package ssjsjs.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Checks the use of the SSJSJS annotations at compile time, and generates
+ * straight-line codecs for JSONable classes.
+ *
+ * For a JSONable class Foo, the generated codec is called Foo_JSONcodec and is
+ * placed in the same package as Foo.  Fields that are not accessible from the
+ * package of Foo (such as private fields) are read with the runtime's
+ * accessors.  A codec is only generated when the class and the types of its
+ * constructor parameters are accessible from the package of Foo.  Otherwise a
+ * note is reported, and SSJSJS falls back to reflection for that class.
+ * */
+@SupportedAnnotationTypes("ssjsjs.annotations.JSON")
+public class CodecProcessor extends AbstractProcessor {
+	private static final String JSONABLE = "ssjsjs.JSONable";
+	private static final String JSON = "ssjsjs.annotations.JSON";
+	private static final String FIELD = "ssjsjs.annotations.Field";
+	private static final String AS = "ssjsjs.annotations.As";
+	private static final String IMPLICIT = "ssjsjs.annotations.Implicit";
+	private static final String NULLABLE = "ssjsjs.annotations.Nullable";
+
+	/**
+	 * Must agree with Codec.GENERATED_SUFFIX in the runtime.
+	 * */
+	private static final String SUFFIX = "_JSONcodec";
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(
+		final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv
+	) {
+		final TypeElement json = processingEnv.getElementUtils().getTypeElement(JSON);
+		if (json == null) return false;
+
+		final Map<TypeElement, List<ExecutableElement>> constructors = new LinkedHashMap<>();
+		for (final Element e : roundEnv.getElementsAnnotatedWith(json)) {
+			if (e.getKind() != ElementKind.CONSTRUCTOR) continue;
+			constructors.computeIfAbsent((TypeElement) e.getEnclosingElement(),
+				k -> new ArrayList<>()).add((ExecutableElement) e);
+		}
+
+		for (final Map.Entry<TypeElement, List<ExecutableElement>> e : constructors.entrySet()) {
+			processClass(e.getKey(), e.getValue());
+		}
+
+		return false;
+	}
+
+	/**
+	 * A parameter of the @JSON constructor.
+	 * */
+	private static final class Param {
+		final int index;
+		final VariableElement parameter;
+		final String implicitKey;
+		final String outputName;
+		final boolean nullable;
+		final VariableElement field;
+
+		Param(
+			final int index,
+			final VariableElement parameter,
+			final String implicitKey,
+			final String outputName,
+			final boolean nullable,
+			final VariableElement field
+		) {
+			this.index = index;
+			this.parameter = parameter;
+			this.implicitKey = implicitKey;
+			this.outputName = outputName;
+			this.nullable = nullable;
+			this.field = field;
+		}
+	}
+
+	private void processClass(final TypeElement clazz, final List<ExecutableElement> constructors) {
+		if (constructors.size() > 1) {
+			error(constructors.get(1), "Only one constructor may have the @JSON annotation");
+			return;
+		}
+
+		final ExecutableElement constructor = constructors.get(0);
+		boolean ok = true;
+
+		final TypeElement jsonable = processingEnv.getElementUtils().getTypeElement(JSONABLE);
+		if (jsonable == null || !processingEnv.getTypeUtils().isAssignable(
+			clazz.asType(), processingEnv.getTypeUtils().erasure(jsonable.asType())))
+		{
+			error(constructor, "The @JSON annotation may only be used in JSONable classes");
+			ok = false;
+		}
+
+		if (!constructor.getModifiers().contains(Modifier.PUBLIC)) {
+			error(constructor, "The @JSON constructor must be public");
+			ok = false;
+		}
+
+		final List<Param> params = new ArrayList<>();
+		final Set<String> seen = new HashSet<>();
+		final List<? extends VariableElement> ps = constructor.getParameters();
+
+		for (int i = 0; i < ps.size(); i++) {
+			final VariableElement p = ps.get(i);
+			final String fieldName = annotationValue(p, FIELD);
+			final String implicitKey = annotationValue(p, IMPLICIT);
+			final boolean nullable = hasAnnotation(p, NULLABLE);
+
+			if (fieldName == null) {
+				if (implicitKey == null) {
+					error(p, "Missing required @Field or @Implicit annotation");
+					ok = false;
+				} else {
+					params.add(new Param(i, p, implicitKey, null, nullable, null));
+				}
+				continue;
+			}
+
+			final String as = annotationValue(p, AS);
+			final String outputName = as == null? fieldName : as;
+			if (!seen.add(outputName)) {
+				error(p, "Duplicate field name: " + outputName);
+				ok = false;
+			}
+
+			final VariableElement field = findField(clazz, fieldName);
+			if (field == null) {
+				error(p, "No field called '" + fieldName + "' in " + clazz.getQualifiedName());
+				ok = false;
+			}
+
+			params.add(new Param(i, p, null, outputName, nullable, field));
+		}
+
+		if (!ok) return;
+
+		final String reason = cannotGenerate(clazz, params);
+		if (reason == null) {
+			generate(clazz, params);
+		} else {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+				"No codec generated for " + clazz.getQualifiedName() + " because " + reason +
+				", so it will be encoded and decoded with reflection", clazz);
+		}
+	}
+
+	/**
+	 * Determine if a codec for a class can be generated.  A codec can be
+	 * generated if the class and the types of its constructor parameters are
+	 * accessible from the package of the class.
+	 * @return the reason why a codec can't be generated, or null if it can be
+	 * */
+	private String cannotGenerate(final TypeElement clazz, final List<Param> params) {
+		if (!clazz.getTypeParameters().isEmpty()) return "it is generic";
+		if (!isAccessible(clazz, clazz)) return "it is not accessible from its package";
+
+		for (final Param p : params) {
+			if (!isAccessible(p.parameter.asType(), clazz)) {
+				return "the type of parameter '" + p.parameter.getSimpleName() +
+					"' is not accessible from its package";
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Determine if the generated code can read a field directly.
+	 * */
+	private static boolean isReadable(final VariableElement field, final TypeElement clazz) {
+		final Set<Modifier> modifiers = field.getModifiers();
+		if (modifiers.contains(Modifier.PRIVATE)) return false;
+		return modifiers.contains(Modifier.PUBLIC) || packageOf(field).equals(packageOf(clazz));
+	}
+
+	private boolean isAccessible(final TypeElement type, final TypeElement from) {
+		final boolean samePackage = packageOf(type).equals(packageOf(from));
+
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			final TypeElement t = (TypeElement) e;
+			final Set<Modifier> modifiers = t.getModifiers();
+
+			if (t.getNestingKind() != NestingKind.TOP_LEVEL &&
+				t.getNestingKind() != NestingKind.MEMBER) return false;
+			if (t.getNestingKind() == NestingKind.MEMBER &&
+				t.getKind().isClass() && !modifiers.contains(Modifier.STATIC)) return false;
+			if (modifiers.contains(Modifier.PRIVATE)) return false;
+			if (!samePackage && !modifiers.contains(Modifier.PUBLIC)) return false;
+		}
+
+		return true;
+	}
+
+	private boolean isAccessible(final TypeMirror type, final TypeElement from) {
+		switch (type.getKind()) {
+			case BOOLEAN: case BYTE: case SHORT: case INT:
+			case LONG: case CHAR: case FLOAT: case DOUBLE:
+				return true;
+
+			case ARRAY:
+				return isAccessible(((ArrayType) type).getComponentType(), from);
+
+			case WILDCARD:
+				final WildcardType w = (WildcardType) type;
+				return (w.getExtendsBound() == null || isAccessible(w.getExtendsBound(), from)) &&
+					(w.getSuperBound() == null || isAccessible(w.getSuperBound(), from));
+
+			case DECLARED:
+				final DeclaredType d = (DeclaredType) type;
+				if (!isAccessible((TypeElement) d.asElement(), from)) return false;
+				for (final TypeMirror arg : d.getTypeArguments()) {
+					if (!isAccessible(arg, from)) return false;
+				}
+				return true;
+
+			default:
+				return false;
+		}
+	}
+
+	private void generate(final TypeElement clazz, final List<Param> params) {
+		final String pkg = packageOf(clazz);
+		final String binaryName = processingEnv.getElementUtils().getBinaryName(clazz).toString();
+		final String simpleName =
+			(pkg.isEmpty()? binaryName : binaryName.substring(pkg.length() + 1)) + SUFFIX;
+		final String qualifiedName = pkg.isEmpty()? simpleName : pkg + "." + simpleName;
+		final String className = clazz.getQualifiedName().toString();
+
+		final StringBuilder out = new StringBuilder();
+		if (!pkg.isEmpty()) out.append("package ").append(pkg).append(";\n\n");
+
+		out.append("/**\n");
+		out.append(" * JSON codec for ").append(className).append(".\n");
+		out.append(" * Generated by ").append(CodecProcessor.class.getName())
+			.append(", do not edit.\n");
+		out.append(" * */\n");
+		out.append("public final class ").append(simpleName)
+			.append(" extends ssjsjs.GeneratedCodec<").append(className).append("> {\n");
+
+		out.append("\tpublic ").append(simpleName).append("() {\n");
+		out.append("\t\tsuper(").append(className).append(".class);\n");
+		out.append("\t}\n\n");
+
+		out.append("\t@Override\n");
+		out.append("\tpublic org.json.JSONObject encode(final ").append(className)
+			.append(" obj) throws ssjsjs.JSONencodeException {\n");
+		out.append("\t\tfinal org.json.JSONObject out = new org.json.JSONObject();\n");
+		for (final Param p : params) {
+			if (p.implicitKey == null) generateEncode(out, clazz, p);
+		}
+		out.append("\t\treturn out;\n");
+		out.append("\t}\n\n");
+
+		out.append("\t@Override\n");
+		out.append("\t@SuppressWarnings(\"unchecked\")\n");
+		out.append("\tpublic ").append(className).append(" decode(\n");
+		out.append("\t\tfinal org.json.JSONObject json,\n");
+		out.append("\t\tfinal java.util.Map<java.lang.String, java.lang.Object> environment\n");
+		out.append("\t) throws ssjsjs.JSONdecodeException {\n");
+		out.append("\t\ttry {\n");
+		out.append("\t\t\treturn new ").append(className).append("(");
+		for (int i = 0; i < params.size(); i++) {
+			out.append(i == 0? "\n" : ",\n").append("\t\t\t\t");
+			generateDecode(out, params.get(i));
+		}
+		out.append(");\n");
+		// The constructor may declare checked exceptions, which are reported
+		// like any other exception from the constructor.
+		if (!params.isEmpty()) {
+			out.append("\t\t} catch (final ssjsjs.JSONdecodeException e) {\n");
+			out.append("\t\t\tthrow e;\n");
+		}
+		out.append("\t\t} catch (final java.lang.Exception e) {\n");
+		out.append("\t\t\tthrow new ssjsjs.JSONdecodeException(e);\n");
+		out.append("\t\t}\n");
+		out.append("\t}\n");
+		out.append("}\n");
+
+		try {
+			final JavaFileObject file =
+				processingEnv.getFiler().createSourceFile(qualifiedName, clazz);
+			try (Writer w = file.openWriter()) {
+				w.write(out.toString());
+			}
+		} catch (final IOException e) {
+			error(clazz, "Cannot write generated codec: " + e.getMessage());
+		}
+	}
+
+	private void generateEncode(final StringBuilder out, final TypeElement clazz, final Param p) {
+		final TypeMirror type = p.field.asType();
+		final String name = quote(p.outputName);
+		final boolean readable = isReadable(p.field, clazz);
+		final String value;
+
+		if (readable) {
+			value = (p.field.getModifiers().contains(Modifier.STATIC)?
+				clazz.getQualifiedName().toString() : "obj") + "." + p.field.getSimpleName();
+		} else if (type.getKind().isPrimitive()) {
+			value = "((" + type + ") (" + boxedOrSelf(type) + ") fieldValue(" + p.index + ", obj))";
+		} else {
+			value = "fieldValue(" + p.index + ", obj)";
+		}
+
+		switch (type.getKind()) {
+			case BOOLEAN: case INT: case LONG: case FLOAT: case DOUBLE:
+				out.append("\t\tout.put(").append(name).append(", ").append(value).append(");\n");
+				return;
+
+			case BYTE: case SHORT:
+				out.append("\t\tout.put(").append(name).append(", (int) ").append(value).append(");\n");
+				return;
+
+			case CHAR:
+				out.append("\t\tout.put(").append(name)
+					.append(", java.lang.String.valueOf(").append(value).append("));\n");
+				return;
+
+			default:
+				break;
+		}
+
+		final String boxed = boxedName(type);
+		final String local;
+		final String encoded;
+
+		if (boxed != null) {
+			local = boxed;
+			encoded = boxed.equals("java.lang.Character")? "v.toString()" : "v";
+		} else if (isEnum(type)) {
+			local = "java.lang.Enum<?>";
+			encoded = "v.toString()";
+		} else if (isJSONable(type)) {
+			local = JSONABLE;
+			encoded = "encodeObject(v, " + name + ")";
+		} else {
+			out.append("\t\t{\n");
+			out.append("\t\t\tfinal java.lang.Object v = encodeField(")
+				.append(p.index).append(", ").append(value).append(");\n");
+			out.append("\t\t\tif (v != null) out.put(").append(name).append(", v);\n");
+			out.append("\t\t}\n");
+			return;
+		}
+
+		out.append("\t\t{\n");
+		out.append("\t\t\tfinal ").append(local).append(" v = ")
+			.append(readable? "" : "(" + local + ") ").append(value).append(";\n");
+		out.append("\t\t\tif (v != null) out.put(").append(name).append(", ").append(encoded).append(");\n");
+		if (!p.nullable) {
+			out.append("\t\t\telse throw nullField(").append(name).append(");\n");
+		}
+		out.append("\t\t}\n");
+	}
+
+	private void generateDecode(final StringBuilder out, final Param p) {
+		final TypeMirror type = p.parameter.asType();
+
+		if (p.implicitKey != null) {
+			out.append("(").append(boxedOrSelf(type)).append(") implicit(environment, ")
+				.append(quote(p.implicitKey)).append(", ")
+				.append(processingEnv.getTypeUtils().erasure(type)).append(".class)");
+			return;
+		}
+
+		final String name = quote(p.outputName);
+		final String value = "json.opt(" + name + ")";
+		final String nullable = p.nullable? "true" : "false";
+
+		switch (type.getKind()) {
+			case BOOLEAN:
+				out.append("asBoolean(").append(value).append(", ").append(name).append(")"); return;
+			case CHAR:
+				out.append("asChar(").append(value).append(", ").append(name).append(")"); return;
+			case BYTE:
+				out.append("asByte(").append(value).append(", ").append(name).append(")"); return;
+			case SHORT:
+				out.append("asShort(").append(value).append(", ").append(name).append(")"); return;
+			case INT:
+				out.append("asInt(").append(value).append(", ").append(name).append(")"); return;
+			case LONG:
+				out.append("asLong(").append(value).append(", ").append(name).append(")"); return;
+			case FLOAT:
+				out.append("asFloat(").append(value).append(", ").append(name).append(")"); return;
+			case DOUBLE:
+				out.append("asDouble(").append(value).append(", ").append(name).append(")"); return;
+			default:
+				break;
+		}
+
+		final String boxed = boxedName(type);
+		if (boxed != null) {
+			final String method;
+			switch (boxed) {
+				case "java.lang.String": method = "asString"; break;
+				case "java.lang.Boolean": method = "asBoxedBoolean"; break;
+				case "java.lang.Character": method = "asBoxedChar"; break;
+				case "java.lang.Byte": method = "asBoxedByte"; break;
+				case "java.lang.Short": method = "asBoxedShort"; break;
+				case "java.lang.Integer": method = "asBoxedInt"; break;
+				case "java.lang.Long": method = "asBoxedLong"; break;
+				case "java.lang.Float": method = "asBoxedFloat"; break;
+				default: method = "asBoxedDouble"; break;
+			}
+			out.append(method).append("(").append(value).append(", ")
+				.append(name).append(", ").append(nullable).append(")");
+
+		} else if (isEnum(type)) {
+			out.append("asEnum(").append(type).append(".class, ").append(value).append(", ")
+				.append(name).append(", ").append(nullable).append(")");
+
+		} else if (isJSONable(type) && ((DeclaredType) type).getTypeArguments().isEmpty()) {
+			out.append("asObject(").append(type).append(".class, ").append(value).append(", ")
+				.append(name).append(", environment, ").append(nullable).append(")");
+
+		} else {
+			out.append("(").append(type).append(") decodeField(")
+				.append(p.index).append(", json, environment)");
+		}
+	}
+
+	/**
+	 * Get the name of a type that has a direct JSON representation, or null if
+	 * the type is not one of these types.
+	 * */
+	private static String boxedName(final TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED) return null;
+		final String name =
+			((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+
+		switch (name) {
+			case "java.lang.String": case "java.lang.Boolean": case "java.lang.Character":
+			case "java.lang.Byte": case "java.lang.Short": case "java.lang.Integer":
+			case "java.lang.Long": case "java.lang.Float": case "java.lang.Double":
+				return name;
+			default:
+				return null;
+		}
+	}
+
+	private String boxedOrSelf(final TypeMirror type) {
+		if (type.getKind().isPrimitive()) {
+			return processingEnv.getTypeUtils()
+				.boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()))
+				.getQualifiedName().toString();
+		} else {
+			return type.toString();
+		}
+	}
+
+	private static boolean isEnum(final TypeMirror type) {
+		return type.getKind() == TypeKind.DECLARED &&
+			((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+	}
+
+	/**
+	 * Determine if a type is JSONable, and not one of the container types that
+	 * the runtime gives precedence to.
+	 * */
+	private boolean isJSONable(final TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED) return false;
+
+		return isSubtype(type, JSONABLE) &&
+			!isSubtype(type, "java.util.Collection") &&
+			!isSubtype(type, "java.util.Map") &&
+			!isSubtype(type, "java.util.Optional");
+	}
+
+	private boolean isSubtype(final TypeMirror type, final String name) {
+		final TypeElement e = processingEnv.getElementUtils().getTypeElement(name);
+		return e != null && processingEnv.getTypeUtils().isAssignable(
+			processingEnv.getTypeUtils().erasure(type),
+			processingEnv.getTypeUtils().erasure(e.asType()));
+	}
+
+	private static VariableElement findField(final TypeElement clazz, final String name) {
+		for (TypeElement t = clazz; t != null; t = superclassOf(t)) {
+			for (final VariableElement f : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+				if (f.getSimpleName().contentEquals(name)) return f;
+			}
+		}
+
+		return null;
+	}
+
+	private static TypeElement superclassOf(final TypeElement clazz) {
+		final TypeMirror s = clazz.getSuperclass();
+		if (s.getKind() != TypeKind.DECLARED) return null;
+		return (TypeElement) ((DeclaredType) s).asElement();
+	}
+
+	private static String packageOf(final Element e) {
+		Element p = e;
+		while (!(p instanceof PackageElement)) p = p.getEnclosingElement();
+		return ((PackageElement) p).getQualifiedName().toString();
+	}
+
+	private static boolean hasAnnotation(final Element e, final String annotation) {
+		return findAnnotation(e, annotation) != null;
+	}
+
+	private static String annotationValue(final Element e, final String annotation) {
+		final AnnotationMirror a = findAnnotation(e, annotation);
+		if (a == null) return null;
+
+		for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> v :
+			a.getElementValues().entrySet())
+		{
+			if (v.getKey().getSimpleName().contentEquals("value"))
+				return v.getValue().getValue().toString();
+		}
+
+		return null;
+	}
+
+	private static AnnotationMirror findAnnotation(final Element e, final String annotation) {
+		for (final AnnotationMirror a : e.getAnnotationMirrors()) {
+			final TypeElement t = (TypeElement) a.getAnnotationType().asElement();
+			if (t.getQualifiedName().contentEquals(annotation)) return a;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Quote a string as a Java string literal.
+	 * */
+	private static String quote(final String s) {
+		final StringBuilder out = new StringBuilder(s.length() + 2);
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == '"' || c == '\\') out.append('\\').append(c);
+			else if (c < 0x20 || c > 0x7e) out.append(String.format("\\u%04x", (int) c));
+			else out.append(c);
+		}
+		out.append('"');
+		return out.toString();
+	}
+
+	private void error(final Element e, final String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+}
@@ -0,0 +1,416 @@
+package ssjsjs.processor.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.json.JSONObject;
+import org.junit.Test;
+import ssjsjs.JSONable;
+import ssjsjs.JSONdecodeException;
+import ssjsjs.JSONencodeException;
+import ssjsjs.SSJSJS;
+import ssjsjs.processor.CodecProcessor;
+import static org.junit.Assert.*;
+
+public class CodecProcessorTest {
+	private static final String VALID =
+		"package fixture;\n" +
+		"import java.util.List;\n" +
+		"import java.util.Optional;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class Valid implements JSONable {\n" +
+		"	public enum Colour { RED, GREEN }\n" +
+		"	final int a;\n" +
+		"	final char b;\n" +
+		"	final String c;\n" +
+		"	final Integer d;\n" +
+		"	final Colour e;\n" +
+		"	final List<String> f;\n" +
+		"	final Optional<Valid> g;\n" +
+		"	final Object h;\n" +
+		"	@JSON\n" +
+		"	public Valid(\n" +
+		"		@Field(\"a\") final int a,\n" +
+		"		@Field(\"b\")@As(\"bee\") final char b,\n" +
+		"		@Field(\"c\")@Nullable final String c,\n" +
+		"		@Field(\"d\") final Integer d,\n" +
+		"		@Field(\"e\") final Colour e,\n" +
+		"		@Field(\"f\") final List<String> f,\n" +
+		"		@Field(\"g\") final Optional<Valid> g,\n" +
+		"		@Implicit(\"h\") final Object h\n" +
+		"	) {\n" +
+		"		this.a = a; this.b = b; this.c = c; this.d = d;\n" +
+		"		this.e = e; this.f = f; this.g = g; this.h = h;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String PRIVATE_FIELDS =
+		"package fixture;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class PrivateFields implements JSONable {\n" +
+		"	private final int a;\n" +
+		"	@JSON\n" +
+		"	public PrivateFields(@Field(\"a\") final int a) {\n" +
+		"		this.a = a;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String DUPLICATE_ALIASES =
+		"package fixture;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class DuplicateAliases implements JSONable {\n" +
+		"	final String a;\n" +
+		"	final String b;\n" +
+		"	@JSON\n" +
+		"	public DuplicateAliases(\n" +
+		"		@Field(\"a\")@As(\"a\") final String a,\n" +
+		"		@Field(\"b\")@As(\"a\") final String b\n" +
+		"	) {\n" +
+		"		this.a = a; this.b = b;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String MISSING_FIELD =
+		"package fixture;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class MissingField implements JSONable {\n" +
+		"	final String a;\n" +
+		"	@JSON\n" +
+		"	public MissingField(@Field(\"b\") final String a, final String c) {\n" +
+		"		this.a = a;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String RENAMED =
+		"package fixture;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class Renamed implements JSONable {\n" +
+		"	private final int a;\n" +
+		"	private final String b;\n" +
+		"	private final Integer c;\n" +
+		"	private final Renamed d;\n" +
+		"	@JSON\n" +
+		"	public Renamed(\n" +
+		"		@Field(\"a\") final int a,\n" +
+		"		@Field(\"b\")@As(\"bee\") final String b,\n" +
+		"		@Field(\"c\")@As(\"sea\") final Integer c,\n" +
+		"		@Field(\"d\")@As(\"dee\")@Nullable final Renamed d\n" +
+		"	) {\n" +
+		"		this.a = a; this.b = b; this.c = c; this.d = d;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String THROWING =
+		"package fixture;\n" +
+		"import java.io.IOException;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class Throwing implements JSONable {\n" +
+		"	final int a;\n" +
+		"	@JSON\n" +
+		"	public Throwing(@Field(\"a\") final int a) throws IOException {\n" +
+		"		if (a < 0) throw new IOException(\"negative\");\n" +
+		"		this.a = a;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String GENERIC =
+		"package fixture;\n" +
+		"import ssjsjs.JSONable;\n" +
+		"import ssjsjs.annotations.*;\n" +
+		"public class Generic<T> implements JSONable {\n" +
+		"	final int a;\n" +
+		"	@JSON\n" +
+		"	public Generic(@Field(\"a\") final int a) {\n" +
+		"		this.a = a;\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final class Result {
+		final Path outputDir;
+		final List<Diagnostic<? extends JavaFileObject>> errors;
+		final List<Diagnostic<? extends JavaFileObject>> notes;
+
+		Result(
+			final Path outputDir,
+			final List<Diagnostic<? extends JavaFileObject>> errors,
+			final List<Diagnostic<? extends JavaFileObject>> notes
+		) {
+			this.outputDir = outputDir;
+			this.errors = errors;
+			this.notes = notes;
+		}
+	}
+
+	private static Result compile(final String className, final String source)
+		throws IOException
+	{
+		return compile(className, source, true);
+	}
+
+	private static Result compile(
+		final String className, final String source, final boolean process
+	) throws IOException
+	{
+		final Path dir = Files.createTempDirectory("ssjsjs-processor-test");
+		final Path src = dir.resolve("src").resolve("fixture");
+		final Path out = dir.resolve("out");
+		Files.createDirectories(src);
+		Files.createDirectories(out);
+
+		final Path file = src.resolve(className + ".java");
+		Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+
+		final List<String> classpath = new ArrayList<>();
+		for (final String p : Arrays.asList(
+			System.getProperty("jdk.module.path"), System.getProperty("java.class.path")))
+		{
+			if (p != null && !p.isEmpty()) classpath.add(p);
+		}
+
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+		try (StandardJavaFileManager files =
+			compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8))
+		{
+			final List<String> options = new ArrayList<>(Arrays.asList(
+				"-classpath", String.join(File.pathSeparator, classpath),
+				"-d", out.toString(),
+				"-s", out.toString(),
+				"-Xlint:unchecked", "-Werror"));
+			if (!process) options.add("-proc:none");
+
+			final JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+				options, null, files.getJavaFileObjects(file.toFile()));
+
+			if (process) task.setProcessors(Collections.singletonList(new CodecProcessor()));
+			task.call();
+		}
+
+		final List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+		final List<Diagnostic<? extends JavaFileObject>> notes = new ArrayList<>();
+		for (final Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+			if (d.getKind() == Diagnostic.Kind.ERROR || d.getKind() == Diagnostic.Kind.WARNING)
+				errors.add(d);
+			else if (d.getKind() == Diagnostic.Kind.NOTE)
+				notes.add(d);
+		}
+
+		return new Result(out, errors, notes);
+	}
+
+	private static URLClassLoader load(final Result r) throws IOException {
+		return new URLClassLoader(new URL[] {r.outputDir.toUri().toURL()},
+			CodecProcessorTest.class.getClassLoader());
+	}
+
+	@Test
+	public void generatesCodec() throws Exception {
+		final Result r = compile("Valid", VALID);
+		assertEquals(r.errors.toString(), 0, r.errors.size());
+		assertTrue(Files.exists(r.outputDir.resolve("fixture/Valid_JSONcodec.java")));
+		assertTrue(Files.exists(r.outputDir.resolve("fixture/Valid_JSONcodec.class")));
+	}
+
+	/**
+	 * Encode an object with SSJSJS.
+	 * @return the JSON, or the message of the exception
+	 * */
+	private static Object encode(final Constructor<?> c, final Object... args) throws Exception {
+		try {
+			return SSJSJS.encode((JSONable) c.newInstance(args));
+		} catch (final JSONencodeException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Decode and re-encode an object with SSJSJS.
+	 * @return the JSON, or the message of the exception
+	 * */
+	private static Object roundTrip(final Class<? extends JSONable> c, final String json)
+		throws Exception
+	{
+		try {
+			return SSJSJS.encode(SSJSJS.decode(new JSONObject(json), c));
+		} catch (final JSONdecodeException e) {
+			return e.getMessage();
+		}
+	}
+
+	private static void assertSameResult(final Object expected, final Object actual) {
+		if (expected instanceof JSONObject && actual instanceof JSONObject) {
+			assertTrue(expected + " " + actual, ((JSONObject) expected).similar(actual));
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void generatedCodecMatchesReflection() throws Exception {
+		final Result generated = compile("Renamed", RENAMED, true);
+		final Result reflective = compile("Renamed", RENAMED, false);
+		assertEquals(generated.errors.toString(), 0, generated.errors.size());
+		assertEquals(reflective.errors.toString(), 0, reflective.errors.size());
+		assertTrue(Files.exists(generated.outputDir.resolve("fixture/Renamed_JSONcodec.class")));
+		assertFalse(Files.exists(reflective.outputDir.resolve("fixture/Renamed_JSONcodec.class")));
+
+		final Path recordingFile = Files.createTempFile("ssjsjs", ".jfr");
+		try (
+			URLClassLoader g = load(generated);
+			URLClassLoader r = load(reflective);
+			jdk.jfr.Recording recording = new jdk.jfr.Recording()
+		) {
+			recording.enable("ssjsjs.CodecBuilt");
+			recording.start();
+
+			final Class<? extends JSONable> gc = g.loadClass("fixture.Renamed").asSubclass(JSONable.class);
+			final Class<? extends JSONable> rc = r.loadClass("fixture.Renamed").asSubclass(JSONable.class);
+			final Constructor<?> gcon = gc.getConstructors()[0];
+			final Constructor<?> rcon = rc.getConstructors()[0];
+
+			final Object ok = encode(gcon, 1, "b", 2, gcon.newInstance(3, "bb", 4, null));
+			assertTrue(ok instanceof JSONObject);
+			assertSameResult(encode(rcon, 1, "b", 2, rcon.newInstance(3, "bb", 4, null)), ok);
+
+			assertEquals("bee: Cannot serialize null in non-nullable field 'bee'",
+				encode(gcon, 1, null, 2, null));
+			assertSameResult(encode(rcon, 1, null, 2, null), encode(gcon, 1, null, 2, null));
+			assertSameResult(
+				encode(rcon, 1, "b", 2, rcon.newInstance(3, "bb", null, null)),
+				encode(gcon, 1, "b", 2, gcon.newInstance(3, "bb", null, null)));
+
+			for (final String json : Arrays.asList(
+				"{\"a\": 1, \"bee\": \"b\", \"sea\": 2}",
+				"{\"a\": 1, \"bee\": \"b\", \"sea\": 2, \"dee\": {\"a\": 3, \"bee\": \"bb\", \"sea\": 4}}",
+				"{\"a\": 1, \"sea\": 2}",
+				"{\"a\": 1, \"bee\": null, \"sea\": 2}",
+				"{\"a\": 1, \"bee\": \"b\", \"sea\": \"2\"}",
+				"{\"a\": 1, \"bee\": \"b\", \"sea\": 2, \"dee\": {\"a\": 3, \"bee\": \"bb\"}}"))
+			{
+				assertSameResult(roundTrip(rc, json), roundTrip(gc, json));
+			}
+
+			recording.stop();
+			recording.dump(recordingFile);
+
+			// one codec for each class loader, but only one of them is generated
+			final List<Boolean> isGenerated = new ArrayList<>();
+			for (final jdk.jfr.consumer.RecordedEvent e :
+				jdk.jfr.consumer.RecordingFile.readAllEvents(recordingFile))
+			{
+				if (e.getEventType().getName().equals("ssjsjs.CodecBuilt") &&
+					e.getClass("type").getName().equals("fixture.Renamed"))
+					isGenerated.add(e.getBoolean("generated"));
+			}
+			Collections.sort(isGenerated);
+			assertEquals(Arrays.asList(false, true), isGenerated);
+		} finally {
+			Files.delete(recordingFile);
+		}
+	}
+
+	@Test
+	public void generatedCodecHandlesCheckedExceptions() throws Exception {
+		final Result generated = compile("Throwing", THROWING, true);
+		final Result reflective = compile("Throwing", THROWING, false);
+		assertEquals(generated.errors.toString(), 0, generated.errors.size());
+		assertTrue(Files.exists(generated.outputDir.resolve("fixture/Throwing_JSONcodec.class")));
+
+		try (URLClassLoader g = load(generated); URLClassLoader r = load(reflective)) {
+			final Class<? extends JSONable> gc = g.loadClass("fixture.Throwing").asSubclass(JSONable.class);
+			final Class<? extends JSONable> rc = r.loadClass("fixture.Throwing").asSubclass(JSONable.class);
+
+			assertSameResult(roundTrip(rc, "{\"a\": 1}"), roundTrip(gc, "{\"a\": 1}"));
+			assertSameResult(roundTrip(rc, "{\"a\": -1}"), roundTrip(gc, "{\"a\": -1}"));
+			assertSameResult(roundTrip(rc, "{\"a\": \"x\"}"), roundTrip(gc, "{\"a\": \"x\"}"));
+
+			try {
+				SSJSJS.decode(new JSONObject("{\"a\": -1}"), gc);
+				fail("Expected a JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+	}
+
+	@Test
+	public void generatedCodecUsesStringPool() throws Exception {
+		final Result r = compile("Renamed", RENAMED);
+		assertEquals(r.errors.toString(), 0, r.errors.size());
+
+		final String json = "{\"a\": 1, \"bee\": \"b\", \"sea\": 2}";
+		try (URLClassLoader loader = load(r)) {
+			final Class<? extends JSONable> c = loader.loadClass("fixture.Renamed").asSubclass(JSONable.class);
+			assertNotSame(roundTripString(c, json, "bee"), roundTripString(c, json, "bee"));
+
+			SSJSJS.setStringPool(1024, 16);
+			try {
+				assertSame(roundTripString(c, json, "bee"), roundTripString(c, json, "bee"));
+			} finally {
+				SSJSJS.setStringPool(0, 0);
+			}
+		}
+	}
+
+	private static String roundTripString(
+		final Class<? extends JSONable> c, final String json, final String field
+	) throws Exception
+	{
+		return SSJSJS.encode(SSJSJS.decode(new JSONObject(json), c)).getString(field);
+	}
+
+	@Test
+	public void generatesCodecForPrivateFields() throws Exception {
+		final Result r = compile("PrivateFields", PRIVATE_FIELDS);
+		assertEquals(r.errors.toString(), 0, r.errors.size());
+		assertTrue(Files.exists(r.outputDir.resolve("fixture/PrivateFields_JSONcodec.class")));
+
+		try (URLClassLoader loader = load(r)) {
+			final Constructor<?> c = loader.loadClass("fixture.PrivateFields").getConstructors()[0];
+			assertSameResult(new JSONObject("{\"a\": 42}"), encode(c, 42));
+		}
+	}
+
+	@Test
+	public void reportsWhyNoCodecIsGenerated() throws Exception {
+		final Result r = compile("Generic", GENERIC);
+		assertEquals(r.errors.toString(), 0, r.errors.size());
+		assertFalse(Files.exists(r.outputDir.resolve("fixture/Generic_JSONcodec.java")));
+		assertEquals(r.notes.toString(), 1, r.notes.size());
+		assertTrue(r.notes.get(0).getMessage(null).contains("it is generic"));
+	}
+
+	@Test
+	public void reportsDuplicateAliases() throws Exception {
+		final Result r = compile("DuplicateAliases", DUPLICATE_ALIASES);
+		assertEquals(1, r.errors.size());
+	}
+
+	@Test
+	public void reportsMissingFields() throws Exception {
+		final Result r = compile("MissingField", MISSING_FIELD);
+		assertEquals(2, r.errors.size());
+	}
+}
@@ -2,5 +2,7 @@ module ssjsjs {
 	exports ssjsjs;
 	exports ssjsjs.annotations;
 
+	requires java.management;
+	requires jdk.jfr;
 	requires org.json;
 }
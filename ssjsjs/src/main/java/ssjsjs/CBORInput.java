@@ -0,0 +1,620 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static ssjsjs.CBOROutput.*;
+
+/**
+ * A pull parser for CBOR (RFC 8949), reading from an InputStream or a byte
+ * array.
+ *
+ * CBOR maps are presented as JSON objects and CBOR arrays as JSON arrays.
+ * Both definite and indefinite length items are accepted.  Map keys must be
+ * text strings.  Byte strings are returned as BYTES tokens, bignums (tags 2
+ * and 3) and decimal fractions (tag 4) as numbers, and any other tags are
+ * ignored.
+ * */
+final class CBORInput extends JSONInput {
+	private static final int NONE = -1;
+
+	private static final int DOCUMENT = 0;
+	private static final int IN_ARRAY = 1;
+	private static final int MAP_KEY = 2;
+	private static final int MAP_VALUE = 3;
+
+	private static final int LONG = 0;
+	private static final int FLOAT = 1;
+	private static final int BIG = 2;
+
+	/**
+	 * The stream to read from, or null if reading from an array.
+	 * */
+	private final InputStream in;
+
+	private byte[] buffer;
+	private int position;
+	private int limit;
+
+	/**
+	 * The number of bytes that have been discarded from the start of the
+	 * buffer.
+	 * */
+	private long offset = 0;
+
+	/**
+	 * For each open container (and the document itself), its state and the
+	 * number of elements (or map entries) that remain, or -1 if it has
+	 * indefinite length.
+	 * */
+	private int[] stack = new int[32];
+	private long[] remaining = new long[32];
+	private int depth = 1;
+
+	/**
+	 * The token that has been peeked at but not consumed, or NONE.  The head
+	 * of the data item has been consumed, and the details are in the fields
+	 * below.
+	 * */
+	private int peeked = NONE;
+	private long peekedOffset;
+	private boolean peekedBoolean;
+
+	/**
+	 * The length of a peeked string, byte string, array or map, or -1 if it
+	 * has indefinite length.
+	 * */
+	private long peekedLength;
+
+	/**
+	 * The value of a peeked number, in peekedLong, peekedDouble or peekedBig
+	 * according to numberKind.
+	 * */
+	private int numberKind;
+	private long peekedLong;
+	private double peekedDouble;
+	private Number peekedBig;
+
+	CBORInput(final InputStream in) {
+		this.in = in;
+		this.buffer = new byte[8192];
+		this.position = 0;
+		this.limit = 0;
+	}
+
+	CBORInput(final byte[] bytes, final int start, final int end) {
+		this.in = null;
+		this.buffer = bytes;
+		this.position = start;
+		this.limit = end;
+		this.offset = -start;
+	}
+
+	@Override
+	int peek() throws IOException, JSONdecodeException {
+		if (peeked != NONE) return peeked;
+		peekedOffset = offset + position;
+
+		final int state = stack[depth - 1];
+		switch (state) {
+			case DOCUMENT:
+				if (position == limit && !fill(1)) return peeked = END_OF_INPUT;
+				return peeked = peekValue();
+
+			case IN_ARRAY:
+				if (atEnd()) return peeked = END_ARRAY;
+				if (remaining[depth - 1] > 0) remaining[depth - 1] -= 1;
+				return peeked = peekValue();
+
+			case MAP_KEY:
+				if (atEnd()) return peeked = END_OBJECT;
+				if (remaining[depth - 1] > 0) remaining[depth - 1] -= 1;
+				final int head = readByte();
+				if (head >>> 5 != MAJOR_TEXT) throw syntaxError("Expected a text string key");
+				peekedLength = length(head);
+				stack[depth - 1] = MAP_VALUE;
+				return peeked = NAME;
+
+			case MAP_VALUE:
+				stack[depth - 1] = MAP_KEY;
+				return peeked = peekValue();
+
+			default:
+				throw new IllegalStateException("Invalid parser state " + state);
+		}
+	}
+
+	/**
+	 * Determine if the current array or map has ended, consuming the break
+	 * code of an indefinite length item.
+	 * */
+	private boolean atEnd() throws IOException, JSONdecodeException {
+		final long r = remaining[depth - 1];
+		if (r >= 0) return r == 0;
+
+		if (position == limit && !fill(1)) throw syntaxError("Unexpected end of input");
+		if ((buffer[position] & 0xff) != BREAK) return false;
+		position += 1;
+		return true;
+	}
+
+	/**
+	 * Read the head of a data item (and the content, for numbers), skipping
+	 * any tags that aren't understood.
+	 * */
+	private int peekValue() throws IOException, JSONdecodeException {
+		while (true) {
+			final int head = readByte();
+			final int info = head & 0x1f;
+
+			switch (head >>> 5) {
+				case MAJOR_UNSIGNED:
+				case MAJOR_NEGATIVE:
+					setInteger(head, argument(info));
+					return NUMBER;
+
+				case MAJOR_BYTES:
+					peekedLength = length(head);
+					return BYTES;
+
+				case MAJOR_TEXT:
+					peekedLength = length(head);
+					return STRING;
+
+				case MAJOR_ARRAY:
+					peekedLength = length(head);
+					return BEGIN_ARRAY;
+
+				case MAJOR_MAP:
+					peekedLength = length(head);
+					return BEGIN_OBJECT;
+
+				case MAJOR_TAG:
+					final long tag = argument(info);
+					if (tag == TAG_POSITIVE_BIGNUM || tag == TAG_NEGATIVE_BIGNUM) {
+						final BigInteger n = new BigInteger(1, readByteString());
+						setBig(tag == TAG_POSITIVE_BIGNUM? n : n.not());
+						return NUMBER;
+					} else if (tag == TAG_DECIMAL_FRACTION) {
+						final int array = readByte();
+						if (array != ((MAJOR_ARRAY << 5) | 2)) throw syntaxError("Invalid decimal fraction");
+						final BigInteger exponent = readInteger();
+						final BigInteger mantissa = readInteger();
+						if (exponent.bitLength() >= 32) throw syntaxError("Decimal fraction out of range");
+						setBig(new BigDecimal(mantissa, -exponent.intValue()));
+						return NUMBER;
+					}
+					continue;
+
+				default:
+					switch (head) {
+						case SIMPLE_FALSE: peekedBoolean = false; return BOOLEAN;
+						case SIMPLE_TRUE: peekedBoolean = true; return BOOLEAN;
+						case SIMPLE_NULL: return NULL;
+						case SIMPLE_UNDEFINED: return NULL;
+						case FLOAT16: setFloat(halfToDouble(readBytes(2))); return NUMBER;
+						case FLOAT32: setFloat(Float.intBitsToFloat((int) readBytes(4))); return NUMBER;
+						case FLOAT64: setFloat(Double.longBitsToDouble(readBytes(8))); return NUMBER;
+						case BREAK: throw syntaxError("Unexpected break");
+						default: throw syntaxError("Unsupported simple value " + info);
+					}
+			}
+		}
+	}
+
+	private void setInteger(final int head, final long argument) {
+		final boolean negative = head >>> 5 == MAJOR_NEGATIVE;
+		if (argument >= 0) {
+			numberKind = LONG;
+			peekedLong = negative? -1 - argument : argument;
+		} else {
+			// the argument is an unsigned number that doesn't fit in a long
+			final BigInteger n = new BigInteger(Long.toUnsignedString(argument));
+			setBig(negative? n.not() : n);
+		}
+	}
+
+	private void setFloat(final double value) {
+		numberKind = FLOAT;
+		peekedDouble = value;
+	}
+
+	private void setBig(final Number value) {
+		numberKind = BIG;
+		peekedBig = value;
+	}
+
+	/**
+	 * Read an integer inside a decimal fraction.
+	 * */
+	private BigInteger readInteger() throws IOException, JSONdecodeException {
+		final int head = readByte();
+		switch (head >>> 5) {
+			case MAJOR_UNSIGNED:
+			case MAJOR_NEGATIVE:
+				setInteger(head, argument(head & 0x1f));
+				return numberKind == LONG? BigInteger.valueOf(peekedLong) : (BigInteger) peekedBig;
+
+			case MAJOR_TAG:
+				final long tag = argument(head & 0x1f);
+				if (tag != TAG_POSITIVE_BIGNUM && tag != TAG_NEGATIVE_BIGNUM) break;
+				final BigInteger n = new BigInteger(1, readByteString());
+				return tag == TAG_POSITIVE_BIGNUM? n : n.not();
+
+			default:
+				break;
+		}
+
+		throw syntaxError("Expected an integer");
+	}
+
+	/**
+	 * Read the argument of a head.
+	 * @param info the additional information from the head
+	 * @return the argument, as an unsigned number
+	 * */
+	private long argument(final int info) throws IOException, JSONdecodeException {
+		if (info < 24) return info;
+		switch (info) {
+			case 24: return readBytes(1);
+			case 25: return readBytes(2);
+			case 26: return readBytes(4);
+			case 27: return readBytes(8);
+			default: throw syntaxError("Invalid additional information " + info);
+		}
+	}
+
+	/**
+	 * Read the length of a string, array or map.
+	 * @return the length, or -1 for indefinite length
+	 * */
+	private long length(final int head) throws IOException, JSONdecodeException {
+		final int info = head & 0x1f;
+		if (info == INDEFINITE) return -1;
+		final long n = argument(info);
+		if (n < 0) throw syntaxError("Length out of range");
+		return n;
+	}
+
+	@Override
+	void beginObject() throws IOException, JSONdecodeException {
+		expect(BEGIN_OBJECT, "Expected a map");
+		push(MAP_KEY, peekedLength);
+	}
+
+	@Override
+	void endObject() throws IOException, JSONdecodeException {
+		expect(END_OBJECT, "Expected the end of a map");
+		depth -= 1;
+	}
+
+	@Override
+	void beginArray() throws IOException, JSONdecodeException {
+		expect(BEGIN_ARRAY, "Expected an array");
+		push(IN_ARRAY, peekedLength);
+	}
+
+	@Override
+	void endArray() throws IOException, JSONdecodeException {
+		expect(END_ARRAY, "Expected the end of an array");
+		depth -= 1;
+	}
+
+	private void push(final int state, final long length) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+			remaining = Arrays.copyOf(remaining, depth * 2);
+		}
+		stack[depth] = state;
+		remaining[depth] = length;
+		depth += 1;
+	}
+
+	@Override
+	String nextName() throws IOException, JSONdecodeException {
+		expect(NAME, "Expected a name");
+		return readText();
+	}
+
+	@Override
+	int nextName(final String[] names) throws IOException, JSONdecodeException {
+		expect(NAME, "Expected a name");
+		if (peekedLength < 0 || peekedLength > buffer.length) return indexOf(names, readText());
+
+		final int length = (int) peekedLength;
+		require(length);
+		final int start = position;
+		position += length;
+
+		for (int i = start; i < start + length; i++) {
+			if (buffer[i] < 0) {
+				// not ASCII, so decode it properly
+				return indexOf(names, new String(buffer, start, length, StandardCharsets.UTF_8));
+			}
+		}
+
+		search: for (int i = 0; i < names.length; i++) {
+			final String name = names[i];
+			if (name.length() != length) continue;
+			for (int j = 0; j < length; j++) {
+				if (name.charAt(j) != buffer[start + j]) continue search;
+			}
+			return i;
+		}
+
+		return -1;
+	}
+
+	private static int indexOf(final String[] names, final String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	@Override
+	String nextString() throws IOException, JSONdecodeException {
+		expect(STRING, "Expected a string");
+		return readText();
+	}
+
+	@Override
+	void skipString() throws IOException, JSONdecodeException {
+		expect(STRING, "Expected a string");
+		skipChunks(MAJOR_TEXT);
+	}
+
+	@Override
+	byte[] nextBytes() throws IOException, JSONdecodeException {
+		expect(BYTES, "Expected a byte string");
+		return readChunks(MAJOR_BYTES);
+	}
+
+	@Override
+	void skipBytes() throws IOException, JSONdecodeException {
+		expect(BYTES, "Expected a byte string");
+		skipChunks(MAJOR_BYTES);
+	}
+
+	@Override
+	boolean nextBoolean() throws IOException, JSONdecodeException {
+		expect(BOOLEAN, "Expected a boolean");
+		return peekedBoolean;
+	}
+
+	@Override
+	void nextNull() throws IOException, JSONdecodeException {
+		expect(NULL, "Expected null");
+	}
+
+	@Override
+	boolean isLong() {
+		return peeked == NUMBER && numberKind == LONG;
+	}
+
+	@Override
+	boolean isDouble() {
+		return peeked == NUMBER && numberKind != LONG;
+	}
+
+	@Override
+	long nextLong() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+		if (numberKind != LONG) throw syntaxError("Expected an integer");
+		return peekedLong;
+	}
+
+	@Override
+	double nextDouble() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+		switch (numberKind) {
+			case LONG: return (double) peekedLong;
+			case FLOAT: return peekedDouble;
+			default: return peekedBig.doubleValue();
+		}
+	}
+
+	/**
+	 * Read a number.  Integers are returned as Integer, Long or BigInteger,
+	 * floats as Double and decimal fractions as BigDecimal.
+	 * */
+	@Override
+	Object nextNumber() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+		switch (numberKind) {
+			case LONG:
+				final long n = peekedLong;
+				if (n == (int) n) return Integer.valueOf((int) n);
+				return Long.valueOf(n);
+			case FLOAT: return Double.valueOf(peekedDouble);
+			default: return peekedBig;
+		}
+	}
+
+	@Override
+	void skipNumber() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+	}
+
+	/**
+	 * @return the number of bytes that have been consumed so far, not
+	 * counting the token that has been peeked at
+	 * */
+	@Override
+	long offset() {
+		return peeked == NONE? offset + position : peekedOffset;
+	}
+
+	private void expect(final int token, final String message)
+		throws IOException, JSONdecodeException
+	{
+		if (peek() != token) throw syntaxError(message);
+		peeked = NONE;
+	}
+
+	/**
+	 * Read the content of a text string whose head has been consumed.
+	 * */
+	private String readText() throws IOException, JSONdecodeException {
+		if (peekedLength >= 0 && peekedLength <= buffer.length) {
+			final int length = (int) peekedLength;
+			require(length);
+			final String r = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return r;
+		}
+
+		return new String(readChunks(MAJOR_TEXT), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read the content of a string of the given major type whose head has
+	 * been consumed, concatenating the chunks of an indefinite length string.
+	 * */
+	private byte[] readChunks(final int major) throws IOException, JSONdecodeException {
+		if (peekedLength >= 0) return readContent(peekedLength);
+
+		byte[] r = new byte[0];
+		while (true) {
+			final int head = readByte();
+			if (head == BREAK) return r;
+			if (head >>> 5 != major || (head & 0x1f) == INDEFINITE) throw syntaxError(
+				"Invalid chunk in indefinite length string");
+			final byte[] chunk = readContent(length(head));
+			final int n = r.length;
+			r = Arrays.copyOf(r, n + chunk.length);
+			System.arraycopy(chunk, 0, r, n, chunk.length);
+		}
+	}
+
+	private void skipChunks(final int major) throws IOException, JSONdecodeException {
+		if (peekedLength >= 0) {
+			skip(peekedLength);
+			return;
+		}
+
+		while (true) {
+			final int head = readByte();
+			if (head == BREAK) return;
+			if (head >>> 5 != major || (head & 0x1f) == INDEFINITE) throw syntaxError(
+				"Invalid chunk in indefinite length string");
+			skip(length(head));
+		}
+	}
+
+	/**
+	 * Read a definite length byte string, including its head.
+	 * */
+	private byte[] readByteString() throws IOException, JSONdecodeException {
+		final int head = readByte();
+		if (head >>> 5 != MAJOR_BYTES) throw syntaxError("Expected a byte string");
+		peekedLength = length(head);
+		return readChunks(MAJOR_BYTES);
+	}
+
+	/**
+	 * Read the content of a string.  Strings that are not already in the
+	 * buffer are read straight from the stream into the result, which grows
+	 * as the data arrives, so that a bogus length in the head can't make us
+	 * allocate much more memory than the input really contains.
+	 * */
+	private byte[] readContent(final long length) throws IOException, JSONdecodeException {
+		if (length > Integer.MAX_VALUE - 8) throw syntaxError("String too long");
+		final int n = (int) length;
+
+		final int buffered = Math.min(n, limit - position);
+		if (buffered < n && in == null) throw syntaxError("Unexpected end of input");
+
+		byte[] r = Arrays.copyOfRange(buffer, position, position + buffered);
+		position += buffered;
+
+		int have = buffered;
+		while (have < n) {
+			if (have == r.length) r = Arrays.copyOf(r, (int) Math.min(n, Math.max(8192L, 2L * have)));
+			final int read = in.read(r, have, r.length - have);
+			if (read == -1) throw syntaxError("Unexpected end of input");
+			have += read;
+			offset += read;
+		}
+
+		return r;
+	}
+
+	private void skip(final long length) throws IOException, JSONdecodeException {
+		long n = length;
+		while (n > 0) {
+			if (position == limit && !fill(1)) throw syntaxError("Unexpected end of input");
+			final int step = (int) Math.min(n, limit - position);
+			position += step;
+			n -= step;
+		}
+	}
+
+	private int readByte() throws IOException, JSONdecodeException {
+		if (position == limit && !fill(1)) throw syntaxError("Unexpected end of input");
+		return buffer[position++] & 0xff;
+	}
+
+	/**
+	 * Read a big endian unsigned number.
+	 * @param n the number of bytes, at most 8
+	 * */
+	private long readBytes(final int n) throws IOException, JSONdecodeException {
+		require(n);
+		long r = 0;
+		for (int i = 0; i < n; i++) r = (r << 8) | (buffer[position++] & 0xff);
+		return r;
+	}
+
+	/**
+	 * Make sure there are at least n bytes in the buffer.
+	 * */
+	private void require(final int n) throws IOException, JSONdecodeException {
+		if (limit - position < n && !fill(n)) throw syntaxError("Unexpected end of input");
+	}
+
+	/**
+	 * Read more input, until there are at least n bytes in the buffer.
+	 * @return false if the input ended first
+	 * */
+	private boolean fill(final int n) throws IOException {
+		if (limit - position >= n) return true;
+		if (in == null) return false;
+
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			offset += position;
+			limit -= position;
+			position = 0;
+		}
+		if (n > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(n, buffer.length * 2));
+
+		while (limit < n) {
+			final int read = in.read(buffer, limit, buffer.length - limit);
+			if (read == -1) return false;
+			limit += read;
+		}
+		return true;
+	}
+
+	/**
+	 * Convert an IEEE 754 half precision float to a double.
+	 * */
+	private static double halfToDouble(final long bits) {
+		final int exponent = (int) (bits >> 10) & 0x1f;
+		final int mantissa = (int) bits & 0x3ff;
+		final double value;
+		if (exponent == 0) value = Math.scalb((double) mantissa, -24);
+		else if (exponent != 31) value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+		else value = mantissa == 0? Double.POSITIVE_INFINITY : Double.NaN;
+		return (bits & 0x8000) == 0? value : -value;
+	}
+
+	private JSONdecodeException syntaxError(final String message) {
+		return JSONdecodeException.stackless(message + " at byte " + (offset + position));
+	}
+}
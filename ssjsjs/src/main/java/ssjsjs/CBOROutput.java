@@ -0,0 +1,388 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CBOR (RFC 8949) to an OutputStream.
+ *
+ * Objects and arrays are written as indefinite length maps and arrays, so
+ * that they can be streamed without knowing how many elements they have in
+ * advance (fields with absent values are left out).  Integers, floats and
+ * byte arrays use the native CBOR encodings, and numbers that don't fit in a
+ * long or a double are written as bignums and decimal fractions.  Output is
+ * buffered, so flush must be called when the last value has been written.
+ * */
+final class CBOROutput extends JSONOutput {
+	static final int MAJOR_UNSIGNED = 0;
+	static final int MAJOR_NEGATIVE = 1;
+	static final int MAJOR_BYTES = 2;
+	static final int MAJOR_TEXT = 3;
+	static final int MAJOR_ARRAY = 4;
+	static final int MAJOR_MAP = 5;
+	static final int MAJOR_TAG = 6;
+	static final int MAJOR_SIMPLE = 7;
+
+	static final int SIMPLE_FALSE = 0xf4;
+	static final int SIMPLE_TRUE = 0xf5;
+	static final int SIMPLE_NULL = 0xf6;
+	static final int SIMPLE_UNDEFINED = 0xf7;
+	static final int FLOAT16 = 0xf9;
+	static final int FLOAT32 = 0xfa;
+	static final int FLOAT64 = 0xfb;
+	static final int BREAK = 0xff;
+
+	/**
+	 * The additional information that marks an indefinite length item.
+	 * */
+	static final int INDEFINITE = 31;
+
+	static final int TAG_POSITIVE_BIGNUM = 2;
+	static final int TAG_NEGATIVE_BIGNUM = 3;
+	static final int TAG_DECIMAL_FRACTION = 4;
+
+	/**
+	 * The longest sequence of bytes that is written with a single call to
+	 * require.  A head is at most 9 bytes.
+	 * */
+	private static final int MAX_TOKEN = 9;
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[8192];
+	private int position = 0;
+
+	/**
+	 * The number of bytes that have been flushed to out.
+	 * */
+	private long flushed = 0;
+
+	/**
+	 * The pending name, either pre-encoded (pendingBytes) or not (pendingName).
+	 * */
+	private byte[] pendingBytes = null;
+	private String pendingName = null;
+
+	CBOROutput(final OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Encode a name as a CBOR text string.
+	 * @param name the name to encode
+	 * @return the encoded name, including its head
+	 * */
+	static byte[] encodeName(final String name) {
+		final byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+		final byte[] head = new byte[MAX_TOKEN];
+		final int n = head(head, 0, MAJOR_TEXT, utf8.length);
+		final byte[] r = new byte[n + utf8.length];
+		System.arraycopy(head, 0, r, 0, n);
+		System.arraycopy(utf8, 0, r, n, utf8.length);
+		return r;
+	}
+
+	@Override
+	void beginObject() throws IOException {
+		beforeValue();
+		write((MAJOR_MAP << 5) | INDEFINITE);
+	}
+
+	@Override
+	void endObject() throws IOException {
+		pendingBytes = null;
+		pendingName = null;
+		write(BREAK);
+	}
+
+	@Override
+	void beginArray() throws IOException {
+		beforeValue();
+		write((MAJOR_ARRAY << 5) | INDEFINITE);
+	}
+
+	@Override
+	void endArray() throws IOException {
+		write(BREAK);
+	}
+
+	@Override
+	void name(final String name) {
+		pendingName = name;
+		pendingBytes = null;
+	}
+
+	@Override
+	void name(final Codec.Slot slot) {
+		pendingBytes = slot.cborName;
+		pendingName = null;
+	}
+
+	@Override
+	void nullValue() throws IOException {
+		beforeValue();
+		write(SIMPLE_NULL);
+	}
+
+	@Override
+	void value(final String value) throws IOException {
+		beforeValue();
+		writeText(value);
+	}
+
+	@Override
+	void value(final char value) throws IOException {
+		value(String.valueOf(value));
+	}
+
+	@Override
+	void value(final boolean value) throws IOException {
+		beforeValue();
+		write(value? SIMPLE_TRUE : SIMPLE_FALSE);
+	}
+
+	@Override
+	void value(final long value) throws IOException {
+		beforeValue();
+		writeInteger(value);
+	}
+
+	@Override
+	void value(final float value) throws IOException, JSONencodeException {
+		// CBOR can represent these, but JSON can't, so reject them for
+		// consistency with the JSON outputs.
+		if (Float.isNaN(value) || Float.isInfinite(value)) throw new JSONencodeException(
+			"JSON does not allow non-finite numbers");
+		beforeValue();
+		require(5);
+		buffer[position++] = (byte) FLOAT32;
+		writeInt(Float.floatToIntBits(value));
+	}
+
+	@Override
+	void value(final double value) throws IOException, JSONencodeException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) throw new JSONencodeException(
+			"JSON does not allow non-finite numbers");
+
+		// Use a single precision float if it loses nothing, as recommended by
+		// the "preferred serialization" of RFC 8949.
+		if ((double) (float) value == value) {
+			value((float) value);
+			return;
+		}
+
+		beforeValue();
+		require(9);
+		buffer[position++] = (byte) FLOAT64;
+		final long bits = Double.doubleToLongBits(value);
+		writeInt((int) (bits >>> 32));
+		writeInt((int) bits);
+	}
+
+	@Override
+	void value(final Number value) throws IOException, JSONencodeException {
+		if (value instanceof BigInteger) {
+			beforeValue();
+			writeBigInteger((BigInteger) value);
+		} else if (value instanceof BigDecimal) {
+			final BigDecimal d = (BigDecimal) value;
+			beforeValue();
+			require(MAX_TOKEN * 2);
+			position = head(buffer, position, MAJOR_TAG, TAG_DECIMAL_FRACTION);
+			position = head(buffer, position, MAJOR_ARRAY, 2);
+			writeInteger(-(long) d.scale());
+			writeBigInteger(d.unscaledValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			value(value.doubleValue());
+		} else {
+			// Integer, Long, AtomicLong, etc.
+			value(value.longValue());
+		}
+	}
+
+	/**
+	 * Write a byte array as a CBOR byte string, rather than an array of
+	 * numbers.
+	 * */
+	@Override
+	void value(final byte[] value) throws IOException {
+		beforeValue();
+		require(MAX_TOKEN);
+		position = head(buffer, position, MAJOR_BYTES, value.length);
+		writeBytes(value, 0, value.length);
+	}
+
+	@Override
+	void flush() throws IOException {
+		if (position > 0) flushBuffer();
+	}
+
+	@Override
+	long size() {
+		return flushed + position;
+	}
+
+	private void beforeValue() throws IOException {
+		if (pendingBytes != null) {
+			writeBytes(pendingBytes, 0, pendingBytes.length);
+			pendingBytes = null;
+		} else if (pendingName != null) {
+			writeText(pendingName);
+			pendingName = null;
+		}
+	}
+
+	private void writeInteger(final long value) throws IOException {
+		require(MAX_TOKEN);
+		if (value >= 0) {
+			position = head(buffer, position, MAJOR_UNSIGNED, value);
+		} else {
+			position = head(buffer, position, MAJOR_NEGATIVE, -1 - value);
+		}
+	}
+
+	private void writeBigInteger(final BigInteger value) throws IOException {
+		if (value.bitLength() < 64) {
+			writeInteger(value.longValue());
+			return;
+		}
+
+		final boolean negative = value.signum() < 0;
+		final byte[] magnitude = (negative? value.not() : value).toByteArray();
+		// toByteArray includes a sign bit, which may need a whole byte
+		final int start = magnitude[0] == 0? 1 : 0;
+
+		require(MAX_TOKEN * 2);
+		position = head(buffer, position, MAJOR_TAG, negative? TAG_NEGATIVE_BIGNUM : TAG_POSITIVE_BIGNUM);
+		position = head(buffer, position, MAJOR_BYTES, magnitude.length - start);
+		writeBytes(magnitude, start, magnitude.length - start);
+	}
+
+	/**
+	 * Write a text string, encoding it as UTF-8 directly into the buffer.
+	 * Unpaired surrogates are replaced with '?', as String.getBytes does.
+	 * */
+	private void writeText(final String value) throws IOException {
+		final int length = value.length();
+		int utf8Length = length;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c < 0x80) continue;
+			else if (c < 0x800) utf8Length += 1;
+			else if (Character.isHighSurrogate(c) && i + 1 < length &&
+				Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				utf8Length += 2;
+				i += 1;
+			} else if (Character.isSurrogate(c)) {
+				continue;
+			} else {
+				utf8Length += 2;
+			}
+		}
+
+		require(MAX_TOKEN);
+		position = head(buffer, position, MAJOR_TEXT, utf8Length);
+
+		for (int i = 0; i < length; i++) {
+			if (position + 4 > buffer.length) flushBuffer();
+
+			final char c = value.charAt(i);
+			if (c < 0x80) {
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xc0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length &&
+				Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				final int cp = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xf0 | (cp >> 18));
+				buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buffer[position++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				buffer[position++] = (byte) '?';
+			} else {
+				buffer[position++] = (byte) (0xe0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[position++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Write the head of a data item.
+	 * @param buffer where to write the head, which must have room for
+	 * MAX_TOKEN bytes
+	 * @param position where to write the head
+	 * @param major the major type
+	 * @param argument the argument, as an unsigned number
+	 * @return the position after the head
+	 * */
+	private static int head(
+		final byte[] buffer, final int position, final int major, final long argument
+	) {
+		final int type = major << 5;
+		int p = position;
+		if (argument >= 0 && argument < 24) {
+			buffer[p++] = (byte) (type | argument);
+		} else if (argument >= 0 && argument < 0x100) {
+			buffer[p++] = (byte) (type | 24);
+			buffer[p++] = (byte) argument;
+		} else if (argument >= 0 && argument < 0x10000) {
+			buffer[p++] = (byte) (type | 25);
+			buffer[p++] = (byte) (argument >> 8);
+			buffer[p++] = (byte) argument;
+		} else if (argument >= 0 && argument < 0x100000000L) {
+			buffer[p++] = (byte) (type | 26);
+			for (int shift = 24; shift >= 0; shift -= 8) buffer[p++] = (byte) (argument >> shift);
+		} else {
+			buffer[p++] = (byte) (type | 27);
+			for (int shift = 56; shift >= 0; shift -= 8) buffer[p++] = (byte) (argument >> shift);
+		}
+		return p;
+	}
+
+	private void writeInt(final int value) {
+		buffer[position++] = (byte) (value >> 24);
+		buffer[position++] = (byte) (value >> 16);
+		buffer[position++] = (byte) (value >> 8);
+		buffer[position++] = (byte) value;
+	}
+
+	private void write(final int b) throws IOException {
+		require(1);
+		buffer[position++] = (byte) b;
+	}
+
+	private void writeBytes(final byte[] bytes, final int offset, final int length)
+		throws IOException
+	{
+		if (length > buffer.length - position) {
+			flushBuffer();
+			if (length > buffer.length) {
+				out.write(bytes, offset, length);
+				flushed += length;
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+	}
+
+	/**
+	 * Make sure there is room for n more bytes in the buffer.
+	 * */
+	private void require(final int n) throws IOException {
+		if (position + n > buffer.length) flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		flushed += position;
+		position = 0;
+	}
+}
@@ -0,0 +1,272 @@
+package ssjsjs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The live metrics for one JSONable class.  The counters are LongAdders and
+ * the latencies go into a StripedHistogram, so threads that encode and decode
+ * the same class at the same time don't contend with each other.
+ *
+ * Metrics are disabled by default.  When they are disabled, of() returns
+ * null, and the only cost to the encoder and decoder is reading one volatile
+ * field.  See SSJSJS.enableMetrics.
+ * */
+final class ClassMetrics implements MetricsMXBean {
+	/**
+	 * The metrics that are being recorded, or null if metrics are disabled.
+	 * */
+	private static volatile Registry current = null;
+
+	private final Class<? extends JSONable> type;
+	private final Counters encode = new Counters();
+	private final Counters decode = new Counters();
+
+	private ClassMetrics(final Class<? extends JSONable> type) {
+		this.type = type;
+	}
+
+	/**
+	 * Start recording metrics, discarding any that were recorded before.
+	 * @param jmx true to register an MBean for each class
+	 * */
+	static synchronized void enable(final boolean jmx) {
+		disable();
+		current = new Registry(jmx);
+	}
+
+	/**
+	 * Stop recording metrics, and unregister any MBeans.
+	 * */
+	static synchronized void disable() {
+		final Registry r = current;
+		current = null;
+		if (r != null) r.close();
+	}
+
+	/**
+	 * Get the metrics for a class.
+	 * @param clazz the class
+	 * @return the metrics, or null if metrics are disabled
+	 * */
+	static ClassMetrics of(final Class<?> clazz) {
+		final Registry r = current;
+		if (r == null) return null;
+		final ClassMetrics m = r.classes.get(clazz);
+		return m != null? m : r.add(clazz.asSubclass(JSONable.class));
+	}
+
+	/**
+	 * @return a snapshot of the metrics of every class that has been encoded
+	 * or decoded since metrics were enabled
+	 * */
+	static Map<Class<? extends JSONable>, Metrics> snapshot() {
+		final Registry r = current;
+		if (r == null) return Collections.emptyMap();
+
+		final Map<Class<? extends JSONable>, Metrics> out = new HashMap<>();
+		for (final ClassMetrics m : r.classes.values()) out.put(m.type, m.metrics());
+		return Collections.unmodifiableMap(out);
+	}
+
+	/**
+	 * Record an encode operation.
+	 * @param start the value of System.nanoTime() when the operation started
+	 * @param ok true if the operation succeeded
+	 * @param size the number of chars or bytes written, or -1 if unknown
+	 * */
+	void encoded(final long start, final boolean ok, final long size) {
+		encode.record(start, ok, size);
+	}
+
+	/**
+	 * Record a decode operation.
+	 * @param start the value of System.nanoTime() when the operation started
+	 * @param ok true if the operation succeeded
+	 * @param size the number of chars or bytes read, or -1 if unknown
+	 * */
+	void decoded(final long start, final boolean ok, final long size) {
+		decode.record(start, ok, size);
+	}
+
+	/**
+	 * @return a snapshot of these metrics
+	 * */
+	Metrics metrics() {
+		return new Metrics(type, encode.snapshot(), decode.snapshot());
+	}
+
+	@Override
+	public String getType() {
+		return type.getName();
+	}
+
+	@Override
+	public long getEncodeCount() {
+		return encode.count.sum();
+	}
+
+	@Override
+	public long getEncodeFailures() {
+		return encode.failures.sum();
+	}
+
+	@Override
+	public double getEncodeMeanMicros() {
+		return encode.snapshot().getMeanNanos() / 1000.0;
+	}
+
+	@Override
+	public double getEncodeP50Micros() {
+		return encode.percentileMicros(0.5);
+	}
+
+	@Override
+	public double getEncodeP99Micros() {
+		return encode.percentileMicros(0.99);
+	}
+
+	@Override
+	public double getEncodeP999Micros() {
+		return encode.percentileMicros(0.999);
+	}
+
+	@Override
+	public long getEncodeTotalSize() {
+		return encode.size.sum();
+	}
+
+	@Override
+	public long getDecodeCount() {
+		return decode.count.sum();
+	}
+
+	@Override
+	public long getDecodeFailures() {
+		return decode.failures.sum();
+	}
+
+	@Override
+	public double getDecodeMeanMicros() {
+		return decode.snapshot().getMeanNanos() / 1000.0;
+	}
+
+	@Override
+	public double getDecodeP50Micros() {
+		return decode.percentileMicros(0.5);
+	}
+
+	@Override
+	public double getDecodeP99Micros() {
+		return decode.percentileMicros(0.99);
+	}
+
+	@Override
+	public double getDecodeP999Micros() {
+		return decode.percentileMicros(0.999);
+	}
+
+	@Override
+	public long getDecodeTotalSize() {
+		return decode.size.sum();
+	}
+
+	/**
+	 * The counters for one kind of operation.
+	 * */
+	private static final class Counters {
+		final LongAdder count = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder sized = new LongAdder();
+		final LongAdder size = new LongAdder();
+		final StripedHistogram latency = new StripedHistogram();
+
+		void record(final long start, final boolean ok, final long size) {
+			count.increment();
+			if (!ok) {
+				failures.increment();
+				return;
+			}
+
+			final long t = System.nanoTime() - start;
+			nanos.add(t);
+			latency.record(t);
+
+			if (size >= 0) {
+				sized.increment();
+				this.size.add(size);
+			}
+		}
+
+		Metrics.Operation snapshot() {
+			return new Metrics.Operation(count.sum(), failures.sum(), nanos.sum(),
+				sized.sum(), size.sum(), latency.snapshot());
+		}
+
+		double percentileMicros(final double p) {
+			return snapshot().getPercentileNanos(p) / 1000.0;
+		}
+	}
+
+	/**
+	 * The metrics for all classes, from when metrics were last enabled.
+	 * */
+	private static final class Registry {
+		final Map<Class<?>, ClassMetrics> classes = new ConcurrentHashMap<>();
+		private final boolean jmx;
+
+		/**
+		 * The MBeans that have been registered.  Guarded by this.
+		 * */
+		private final List<ObjectName> registered = new ArrayList<>();
+		private boolean closed = false;
+
+		Registry(final boolean jmx) {
+			this.jmx = jmx;
+		}
+
+		ClassMetrics add(final Class<? extends JSONable> clazz) {
+			return classes.computeIfAbsent(clazz, c -> {
+				final ClassMetrics m = new ClassMetrics(clazz);
+				if (jmx) register(m);
+				return m;
+			});
+		}
+
+		private synchronized void register(final ClassMetrics m) {
+			if (closed) return;
+			try {
+				final ObjectName name = new ObjectName(
+					"ssjsjs:type=Metrics,class=" + ObjectName.quote(m.type.getName()));
+				ManagementFactory.getPlatformMBeanServer().registerMBean(m, name);
+				registered.add(name);
+			} catch (final JMException e) {
+				// e.g. another class with the same name in a different class
+				// loader.  The metrics are still available from SSJSJS.getMetrics.
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (final ObjectName name : registered) {
+				try {
+					server.unregisterMBean(name);
+				} catch (final JMException e) {
+					// already unregistered
+				}
+			}
+			registered.clear();
+		}
+	}
+}
@@ -0,0 +1,486 @@
+package ssjsjs;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import ssjsjs.annotations.As;
+import ssjsjs.annotations.Implicit;
+import ssjsjs.annotations.JSON;
+import ssjsjs.annotations.Nullable;
+
+/**
+ * The compiled form of a JSONable class.  All of the reflection and annotation
+ * processing required to encode and decode a class is done once, the first
+ * time the class is used, and the result is cached for the lifetime of the
+ * class.
+ * */
+final class Codec<T> {
+	/**
+	 * The suffix appended to the name of a class to get the name of its
+	 * generated codec.
+	 * */
+	static final String GENERATED_SUFFIX = "_JSONcodec";
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	private static final ClassValue<Codec<?>> codecs = new ClassValue<Codec<?>>() {
+		@Override
+		protected Codec<?> computeValue(final Class<?> clazz) {
+			final CodecEvent event = new CodecEvent();
+			event.begin();
+			final Codec<?> codec = new Codec<>(clazz);
+			event.end();
+			if (event.shouldCommit()) {
+				event.type = clazz;
+				event.fields = codec.fields.length;
+				event.generated = codec.generated != null;
+				event.commit();
+			}
+			return codec;
+		}
+	};
+
+	/**
+	 * Get the codec for a class.
+	 * @param clazz the class to get the codec for
+	 * @return the cached codec, which is created if it does not exist yet
+	 * */
+	static <T> Codec<T> of(final Class<T> clazz) {
+		@SuppressWarnings("unchecked") final Codec<T> codec = (Codec<T>) codecs.get(clazz);
+		return codec;
+	}
+
+	/**
+	 * A single parameter of the JSON constructor.
+	 * */
+	static final class Slot {
+		final int index;
+		final Class<?> clazz;
+		final Type type;
+		final boolean nullable;
+
+		/**
+		 * The name of the Java field that supplies the value, or null if this is
+		 * an implicit parameter.
+		 * */
+		final String fieldName;
+
+		/**
+		 * The name of the element in the JSON object, or null if this is an
+		 * implicit parameter.
+		 * */
+		final String outputName;
+
+		/**
+		 * The key of an implicit parameter, or null if this is not an implicit
+		 * parameter.
+		 * */
+		final String implicitKey;
+
+		/**
+		 * The Java field that supplies the value.  Null if this is an implicit
+		 * parameter, or if the field does not exist (in which case the class
+		 * cannot be encoded).
+		 * */
+		final Field field;
+
+		/**
+		 * The type of the Java field.  If this is a primitive type, then the
+		 * getter returns the unboxed primitive, otherwise it returns an Object.
+		 * */
+		final Class<?> fieldClass;
+
+		/**
+		 * Reads the Java field.  The type is (Object)fieldClass for primitive
+		 * fields and (Object)Object for all other fields.  Null if the field is
+		 * not accessible.
+		 * */
+		private final MethodHandle getter;
+
+		/**
+		 * Encodes and decodes values of this field.  Null if this is an implicit
+		 * parameter.
+		 * */
+		final TypeCodec codec;
+
+		/**
+		 * The name of the element in the JSON object, quoted and followed by a
+		 * colon, ready to be written into JSON text.  Null if this is an
+		 * implicit parameter.
+		 * */
+		final String quotedName;
+
+		/**
+		 * quotedName encoded as UTF-8.  Null if this is an implicit parameter.
+		 * */
+		final byte[] utf8Name;
+
+		/**
+		 * The name of the element encoded as a CBOR text string.  Null if this
+		 * is an implicit parameter.
+		 * */
+		final byte[] cborName;
+
+		Slot(
+			final int index,
+			final Parameter p,
+			final String fieldName,
+			final String outputName,
+			final String implicitKey,
+			final Field field,
+			final MethodHandle getter
+		) {
+			this.index = index;
+			this.clazz = p.getType();
+			this.type = p.getParameterizedType();
+			this.nullable = p.isAnnotationPresent(Nullable.class);
+			this.fieldName = fieldName;
+			this.outputName = outputName;
+			this.implicitKey = implicitKey;
+			this.field = field;
+			this.fieldClass = field == null? null : field.getType();
+			this.getter = getter;
+			this.codec = outputName == null? null :
+				TypeCodec.compile(type, clazz, nullable, outputName);
+			this.quotedName = outputName == null? null : TextOutput.quoteName(outputName);
+			this.utf8Name = quotedName == null? null : quotedName.getBytes(StandardCharsets.UTF_8);
+			this.cborName = outputName == null? null : CBOROutput.encodeName(outputName);
+		}
+
+		boolean isImplicit() {
+			return implicitKey != null;
+		}
+
+		boolean isPrimitive() {
+			return fieldClass != null && fieldClass.isPrimitive();
+		}
+
+		Object get(final Object obj) {
+			try {
+				return (Object) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		boolean getBoolean(final Object obj) {
+			try {
+				return (boolean) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		char getChar(final Object obj) {
+			try {
+				return (char) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		byte getByte(final Object obj) {
+			try {
+				return (byte) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		short getShort(final Object obj) {
+			try {
+				return (short) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		int getInt(final Object obj) {
+			try {
+				return (int) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		long getLong(final Object obj) {
+			try {
+				return (long) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		float getFloat(final Object obj) {
+			try {
+				return (float) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+
+		double getDouble(final Object obj) {
+			try {
+				return (double) getter.invokeExact(obj);
+			} catch (final Throwable e) {
+				throw rethrow(e);
+			}
+		}
+	}
+
+	final Class<T> clazz;
+
+	/**
+	 * The constructor annotated with @JSON.
+	 * */
+	final Constructor<T> constructor;
+
+	/**
+	 * Invokes the @JSON constructor.  The type is (Object[])Object, the array
+	 * being spread over the constructor parameters.
+	 * */
+	private final MethodHandle construct;
+
+	/**
+	 * One slot for each parameter of the constructor.
+	 * */
+	final Slot[] parameters;
+
+	/**
+	 * The slots that correspond to elements of the JSON object, in declaration
+	 * order.
+	 * */
+	final Slot[] fields;
+
+	/**
+	 * The output names of the fields, in the same order as fields.
+	 * */
+	final String[] names;
+
+	/**
+	 * The codec generated at compile time for this class, or null if there is
+	 * no generated codec.
+	 * */
+	final GeneratedCodec<?> generated;
+
+	private final String encodeError;
+	private final Throwable encodeErrorCause;
+	private final String decodeError;
+
+	private Codec(final Class<T> clazz) {
+		this.clazz = clazz;
+		this.generated = findGenerated(clazz);
+
+		String encodeError = null;
+		Throwable encodeErrorCause = null;
+		String decodeError = null;
+
+		Constructor<T> constructor = null;
+		MethodHandle construct = null;
+		final List<Slot> parameters = new ArrayList<>();
+		final List<Slot> fields = new ArrayList<>();
+
+		try {
+			constructor = getJSON(clazz);
+		} catch (final SecurityException e) {
+			encodeErrorCause = e;
+		}
+
+		if (constructor == null) {
+			encodeError = "No constructor found with the JSON annotation";
+			decodeError = encodeError;
+
+		} else {
+			final Set<String> seen = new HashSet<>();
+			final Parameter[] ps = constructor.getParameters();
+
+			try {
+				construct = lookup.unreflectConstructor(constructor)
+					.asSpreader(Object[].class, ps.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+			} catch (final IllegalAccessException e) {
+				decodeError = e.toString();
+			}
+
+			for (int i = 0; i < ps.length; i++) {
+				final Parameter p = ps[i];
+
+				final ssjsjs.annotations.Field alias =
+					p.getAnnotation(ssjsjs.annotations.Field.class);
+
+				if (alias == null) {
+					final Implicit implicit = p.getAnnotation(Implicit.class);
+					if (implicit == null) {
+						if (encodeError == null) encodeError =
+							"Missing required @Field  or @Implicit annotation for field " + p.getName();
+						if (decodeError == null) decodeError =
+							"Missing required @Field  or @Implicit annotation for parameter " + p.getName();
+						parameters.add(null);
+					} else {
+						parameters.add(new Slot(i, p, null, null, implicit.value(), null, null));
+					}
+
+					continue;
+				}
+
+				final String fieldName = alias.value();
+				final As as = p.getAnnotation(As.class);
+				final String outputName = as == null? fieldName : as.value();
+
+				if (!seen.add(outputName)) {
+					if (encodeError == null) encodeError =
+						"Duplicate field name: " + outputName;
+					if (decodeError == null) decodeError =
+						"Duplicate field '" + outputName + "' in class '" + clazz + "'";
+				}
+
+				Field field = null;
+				MethodHandle getter = null;
+				try {
+					field = getAnyField(clazz, fieldName);
+					field.setAccessible(true);
+					getter = lookup.unreflectGetter(field);
+					if (Modifier.isStatic(field.getModifiers()))
+						getter = MethodHandles.dropArguments(getter, 0, Object.class);
+					if (!field.getType().isPrimitive()) getter = getter.asType(
+						MethodType.methodType(Object.class, Object.class));
+					else getter = getter.asType(
+						MethodType.methodType(field.getType(), Object.class));
+				} catch (final NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+					getter = null;
+					if (encodeError == null) {
+						encodeError = e.toString();
+						encodeErrorCause = e;
+					}
+				}
+
+				final Slot slot = new Slot(i, p, fieldName, outputName, null, field, getter);
+				parameters.add(slot);
+				fields.add(slot);
+			}
+		}
+
+		this.constructor = constructor;
+		this.construct = construct;
+		this.parameters = parameters.toArray(new Slot[0]);
+		this.fields = fields.toArray(new Slot[0]);
+		this.names = new String[this.fields.length];
+		for (int i = 0; i < this.fields.length; i++) this.names[i] = this.fields[i].outputName;
+		this.encodeError = encodeError;
+		this.encodeErrorCause = encodeErrorCause;
+		this.decodeError = decodeError;
+	}
+
+	/**
+	 * Check that the class can be encoded.
+	 * @throws JSONencodeException if the class is not correctly annotated
+	 * */
+	void checkEncodable() throws JSONencodeException {
+		if (encodeError != null) throw new JSONencodeException(encodeError, encodeErrorCause);
+	}
+
+	/**
+	 * Determine if the class can be encoded without the generated codec.
+	 * */
+	boolean isEncodable() {
+		return encodeError == null;
+	}
+
+	/**
+	 * Determine if the class can be decoded without the generated codec.
+	 * */
+	boolean isDecodable() {
+		return decodeError == null;
+	}
+
+	/**
+	 * Check that the class can be decoded.
+	 * @throws JSONdecodeException if the class is not correctly annotated
+	 * */
+	void checkDecodable() throws JSONdecodeException {
+		if (decodeError != null) throw new JSONdecodeException(decodeError);
+	}
+
+	/**
+	 * Invoke the @JSON constructor.
+	 * @param values the values for each of the constructor parameters
+	 * @return the new object
+	 * @throws JSONdecodeException if the values do not match the parameters,
+	 * or the constructor throws an exception
+	 * */
+	T newInstance(final Object[] values) throws JSONdecodeException {
+		try {
+			return clazz.cast((Object) construct.invokeExact(values));
+		} catch (final Throwable e) {
+			throw new JSONdecodeException(e);
+		}
+	}
+
+	/**
+	 * Find the codec generated for a class by the annotation processor.
+	 * @param clazz the class to find the generated codec for
+	 * @return the generated codec, or null if there isn't one
+	 * */
+	private static GeneratedCodec<?> findGenerated(final Class<?> clazz) {
+		final ClassLoader loader = clazz.getClassLoader();
+		if (loader == null || !JSONable.class.isAssignableFrom(clazz)) return null;
+
+		try {
+			final Class<?> generated =
+				Class.forName(clazz.getName() + GENERATED_SUFFIX, true, loader);
+			if (!GeneratedCodec.class.isAssignableFrom(generated)) return null;
+
+			final GeneratedCodec<?> codec =
+				(GeneratedCodec<?>) generated.getConstructor().newInstance();
+			return codec.getType() == clazz? codec : null;
+
+		} catch (final ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static RuntimeException rethrow(final Throwable e) {
+		if (e instanceof RuntimeException) throw (RuntimeException) e;
+		else if (e instanceof Error) throw (Error) e;
+		else throw new UndeclaredThrowableException(e);
+	}
+
+	private static <T> Constructor<T> getJSON(final Class<T> clazz)
+		throws SecurityException
+	{
+		final Constructor<?>[] constructors = clazz.getConstructors();
+
+		for (int i = 0; i < constructors.length; i++) {
+			final Constructor<?> c = constructors[i];
+			if (c.getAnnotation(JSON.class) != null) {
+				@SuppressWarnings("unchecked") final Constructor<T> constructor =
+					(Constructor<T>) c;
+				return constructor;
+			}
+		}
+
+		return null;
+	}
+
+	private static Field getAnyField(final Class<?> clazz, final String name)
+		throws SecurityException, NoSuchFieldException
+	{
+		try {
+			return clazz.getDeclaredField(name);
+		} catch (final NoSuchFieldException e) {
+			final Class<?> spr = clazz.getSuperclass();
+			if (spr == null) throw e; else return getAnyField(spr, name);
+		}
+	}
+}
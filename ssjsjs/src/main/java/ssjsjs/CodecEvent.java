@@ -0,0 +1,30 @@
+package ssjsjs;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A flight recorder event for building the codec of a class, which happens
+ * once, the first time the class is encoded or decoded (or registered).  Its
+ * duration is the cost of the reflection and annotation processing.
+ * */
+@Name("ssjsjs.CodecBuilt")
+@Label("JSON Codec Built")
+@Description("Building the codec for a JSONable class")
+@Category({"SSJSJS"})
+final class CodecEvent extends Event {
+	@Label("Class")
+	@Description("The class that the codec is for")
+	Class<?> type;
+
+	@Label("Fields")
+	@Description("The number of fields in the JSON representation of the class")
+	int fields;
+
+	@Label("Generated")
+	@Description("True if the class has a codec generated at compile time")
+	boolean generated;
+}
@@ -0,0 +1,49 @@
+package ssjsjs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A flight recorder event for encoding or decoding one document.  Like the
+ * metrics, only whole documents are recorded, not the objects nested inside
+ * them.  The events are enabled, and given a threshold, with the usual flight
+ * recorder settings, e.g. ssjsjs.Decode#threshold=1 ms.
+ * */
+@Category({"SSJSJS"})
+abstract class DocumentEvent extends Event {
+	@Label("Class")
+	@Description("The class of the object")
+	Class<?> type;
+
+	@Label("Fields")
+	@Description("The number of fields in the JSON representation of the class")
+	int fields;
+
+	@Label("Size")
+	@Description("The number of chars or bytes of JSON text, or -1 if there was no text")
+	@DataAmount
+	long size;
+
+	@Label("Failure")
+	@Description("Why the operation failed, or null if it succeeded")
+	String failure;
+
+	@Name("ssjsjs.Encode")
+	@Label("JSON Encode")
+	@Description("Encoding an object to JSON")
+	static final class Encode extends DocumentEvent {
+		static final EventType TYPE = EventType.getEventType(Encode.class);
+	}
+
+	@Name("ssjsjs.Decode")
+	@Label("JSON Decode")
+	@Description("Decoding an object from JSON")
+	static final class Decode extends DocumentEvent {
+		static final EventType TYPE = EventType.getEventType(Decode.class);
+	}
+}
@@ -0,0 +1,273 @@
+package ssjsjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A reusable buffer for encoding objects as JSON text.  Buffers are leased
+ * from a shared pool, and returned to the pool when they are closed, so that
+ * once the pool is warmed up, encoding allocates nothing except the final
+ * output (and nothing at all when writing the result to a stream) and a small
+ * handle for each lease.
+ *
+ * The pool is a fixed number of slots that are claimed and released with
+ * atomic operations.  It does not use ThreadLocals, so it works just as well
+ * with many short lived (or virtual) threads as with a few long lived ones.
+ * If every slot is empty, lease allocates a new buffer.  If every slot is
+ * full when a buffer is closed, the buffer is discarded.
+ *
+ * A buffer holds the JSON of the last object that was encoded into it, either
+ * as text or as UTF-8 encoded bytes.  It must only be used by one thread at a
+ * time, and must not be used after it is closed.  Each lease gets its own
+ * EncodeBuffer, which only refers to the pooled buffers until it is closed, so
+ * closing it again can't affect a later lease of the same buffers:
+ *
+ * <pre>
+ * try (EncodeBuffer buffer = EncodeBuffer.lease()) {
+ *     buffer.encodeUTF8(response);
+ *     buffer.writeTo(out);
+ * }
+ * </pre>
+ * */
+public final class EncodeBuffer implements AutoCloseable {
+	/**
+	 * Buffers that have grown beyond this many chars or bytes are not returned
+	 * to the pool, so that one very large object doesn't pin a lot of memory.
+	 * */
+	private static final int MAX_RETAINED = 1 << 20;
+
+	private static final AtomicReferenceArray<Buffers> POOL;
+	private static final int POOL_MASK;
+	static {
+		int size = 1;
+		while (size < 4 * Runtime.getRuntime().availableProcessors()) size <<= 1;
+		POOL = new AtomicReferenceArray<>(size);
+		POOL_MASK = size - 1;
+	}
+
+	/**
+	 * The pooled buffers, or null if this lease has been closed.
+	 * */
+	private Buffers buffers;
+
+	private EncodeBuffer(final Buffers buffers) {
+		this.buffers = buffers;
+	}
+
+	/**
+	 * Get a buffer from the pool, or a new buffer if the pool is empty.  The
+	 * buffer is empty.
+	 * @return the buffer.  Close it to return it to the pool.
+	 * */
+	public static EncodeBuffer lease() {
+		final int start = probe();
+		for (int i = 0; i <= POOL_MASK; i++) {
+			final Buffers b = POOL.getAndSet((start + i) & POOL_MASK, null);
+			if (b != null) return new EncodeBuffer(b);
+		}
+
+		return new EncodeBuffer(new Buffers());
+	}
+
+	/**
+	 * Return this buffer to the pool.  The buffer must not be used again.
+	 * Closing a buffer more than once has no effect.
+	 * */
+	@Override
+	public void close() {
+		final Buffers b = buffers;
+		if (b == null) return;
+		buffers = null;
+		b.clear();
+
+		if (b.chars.capacity() > MAX_RETAINED || b.bytes.capacity() > MAX_RETAINED) return;
+
+		final int start = probe();
+		for (int i = 0; i <= POOL_MASK; i++) {
+			if (POOL.compareAndSet((start + i) & POOL_MASK, null, b)) return;
+		}
+	}
+
+	/**
+	 * Spread threads over the pool, so that they don't all contend for the
+	 * first slot.
+	 * */
+	private static int probe() {
+		final long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 32)) * 0x9E3779B9 >>> 16;
+	}
+
+	/**
+	 * Replace the contents of this buffer with the JSON text of an object.
+	 * @param obj the object to serialize
+	 * @throws JSONencodeException if obj cannot be converted to JSON.  The
+	 * buffer is left empty.
+	 * */
+	public void encode(final JSONable obj) throws JSONencodeException {
+		final Buffers b = checkLeased();
+		b.clear();
+		b.isUTF8 = false;
+		try {
+			SSJSJS.encode(obj, b.text);
+			b.text.flush();
+		} catch (final JSONencodeException e) {
+			b.clear();
+			throw e;
+		} catch (final IOException e) {
+			// not possible when writing to memory
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Replace the contents of this buffer with the UTF-8 encoded JSON text of
+	 * an object.
+	 * @param obj the object to serialize
+	 * @throws JSONencodeException if obj cannot be converted to JSON.  The
+	 * buffer is left empty.
+	 * */
+	public void encodeUTF8(final JSONable obj) throws JSONencodeException {
+		final Buffers b = checkLeased();
+		b.clear();
+		b.isUTF8 = true;
+		try {
+			SSJSJS.encode(obj, b.utf8);
+			b.utf8.flush();
+		} catch (final JSONencodeException e) {
+			b.clear();
+			throw e;
+		} catch (final IOException e) {
+			// not possible when writing to memory
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the number of chars (after encode) or bytes (after encodeUTF8)
+	 * in this buffer
+	 * */
+	public int size() {
+		final Buffers b = checkLeased();
+		return b.isUTF8? b.bytes.size() : b.chars.size();
+	}
+
+	/**
+	 * @return the contents of this buffer as a String
+	 * */
+	@Override
+	public String toString() {
+		final Buffers b = checkLeased();
+		return b.isUTF8? b.bytes.decode() : b.chars.toString();
+	}
+
+	/**
+	 * @return the contents of this buffer as UTF-8 encoded bytes
+	 * */
+	public byte[] toByteArray() {
+		final Buffers b = checkLeased();
+		return b.isUTF8? b.bytes.toByteArray() : b.chars.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write the contents of this buffer to a Writer.
+	 * @param out where to write the text
+	 * @throws IOException if out throws an IOException
+	 * */
+	public void writeTo(final Writer out) throws IOException {
+		final Buffers b = checkLeased();
+		if (b.isUTF8) out.write(b.bytes.decode()); else b.chars.writeTo(out);
+	}
+
+	/**
+	 * Write the contents of this buffer to an OutputStream as UTF-8 encoded
+	 * text.
+	 * @param out where to write the text
+	 * @throws IOException if out throws an IOException
+	 * */
+	public void writeTo(final OutputStream out) throws IOException {
+		final Buffers b = checkLeased();
+		if (b.isUTF8) b.bytes.writeTo(out); else out.write(toByteArray());
+	}
+
+	/**
+	 * Write the contents of this buffer to a channel as UTF-8 encoded text.
+	 * @param out where to write the text
+	 * @throws IOException if out throws an IOException
+	 * */
+	public void writeTo(final WritableByteChannel out) throws IOException {
+		final Buffers b = checkLeased();
+		final ByteBuffer bb = b.isUTF8? b.bytes.asByteBuffer() : ByteBuffer.wrap(toByteArray());
+		while (bb.hasRemaining()) out.write(bb);
+	}
+
+	private Buffers checkLeased() {
+		final Buffers b = buffers;
+		if (b == null) throw new IllegalStateException("EncodeBuffer used after it was closed");
+		return b;
+	}
+
+	/**
+	 * The buffers that are kept in the pool.
+	 * */
+	private static final class Buffers {
+		final Chars chars = new Chars();
+		final Bytes bytes = new Bytes();
+		final TextOutput text = new TextOutput(chars);
+		final UTF8Output utf8 = new UTF8Output(bytes);
+
+		/**
+		 * True if the buffers hold bytes, false if they hold chars.
+		 * */
+		boolean isUTF8 = false;
+
+		void clear() {
+			chars.reset();
+			bytes.reset();
+			text.reset();
+			utf8.reset();
+		}
+	}
+
+	/**
+	 * A CharArrayWriter that reports its capacity.
+	 * */
+	private static final class Chars extends CharArrayWriter {
+		Chars() {
+			super(4096);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+
+	/**
+	 * A ByteArrayOutputStream that reports its capacity, and can be written
+	 * to a channel without copying.
+	 * */
+	private static final class Bytes extends ByteArrayOutputStream {
+		Bytes() {
+			super(4096);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+
+		String decode() {
+			return new String(buf, 0, count, StandardCharsets.UTF_8);
+		}
+
+		ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
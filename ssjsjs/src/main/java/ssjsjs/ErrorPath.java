@@ -0,0 +1,73 @@
+package ssjsjs;
+
+import java.io.Serializable;
+
+/**
+ * The location of an error in a JSON document, e.g. orders[17].items{sku}.
+ * Paths are built from the innermost element outwards as an exception
+ * propagates out of nested fields, so nothing is allocated unless there is
+ * an error, and the path is only rendered as text when it is asked for.
+ * */
+final class ErrorPath implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private static final int FIELD = 0;
+	private static final int INDEX = 1;
+	private static final int KEY = 2;
+
+	private final int kind;
+	private final String name;
+	private final int index;
+	private final ErrorPath next;
+
+	private ErrorPath(final int kind, final String name, final int index, final ErrorPath next) {
+		this.kind = kind;
+		this.name = name;
+		this.index = index;
+		this.next = next;
+	}
+
+	/**
+	 * @param name the name of a field of a JSON object
+	 * @param next the rest of the path (may be null)
+	 * */
+	static ErrorPath field(final String name, final ErrorPath next) {
+		return new ErrorPath(FIELD, name, 0, next);
+	}
+
+	/**
+	 * @param index an index into a JSON array
+	 * @param next the rest of the path (may be null)
+	 * */
+	static ErrorPath index(final int index, final ErrorPath next) {
+		return new ErrorPath(INDEX, null, index, next);
+	}
+
+	/**
+	 * @param key a key of a map
+	 * @param next the rest of the path (may be null)
+	 * */
+	static ErrorPath key(final String key, final ErrorPath next) {
+		return new ErrorPath(KEY, key, 0, next);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder r = new StringBuilder();
+		for (ErrorPath p = this; p != null; p = p.next) {
+			switch (p.kind) {
+				case FIELD:
+					if (r.length() > 0) r.append('.');
+					r.append(p.name);
+					break;
+				case INDEX:
+					r.append('[').append(p.index).append(']');
+					break;
+				default:
+					r.append('{').append(p.name).append('}');
+					break;
+			}
+		}
+		return r.toString();
+	}
+}
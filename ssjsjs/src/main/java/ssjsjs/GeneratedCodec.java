@@ -0,0 +1,337 @@
+package ssjsjs;
+
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * Base class for encoders/decoders generated at compile time by the
+ * ssjsjs.processor annotation processor.  This class is not intended to be
+ * extended by hand.
+ *
+ * A generated codec for a class Foo is called Foo_JSONcodec, and lives in the
+ * same package as Foo.  When a generated codec is present, SSJSJS uses it in
+ * preference to reflection.  Fields with types that have no straight-line
+ * encoding (collections, maps, optionals, arrays) are delegated back to the
+ * runtime.
+ * */
+public abstract class GeneratedCodec<T extends JSONable> {
+	private final Class<T> type;
+
+	protected GeneratedCodec(final Class<T> type) {
+		this.type = type;
+	}
+
+	/**
+	 * Get the class that this codec encodes and decodes.
+	 * @return the class of T
+	 * */
+	public final Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Serialize an object to JSON.
+	 * @param obj the object to serialize
+	 * @return a JSONObject
+	 * @throws JSONencodeException if obj cannot be converted to a JSONObject
+	 * */
+	public abstract JSONObject encode(T obj) throws JSONencodeException;
+
+	/**
+	 * Deserialize an object from JSON.
+	 * @param json the JSONObject to deserialize
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if json cannot be safely deserialized
+	 * */
+	public abstract T decode(JSONObject json, Map<String, Object> environment)
+		throws JSONdecodeException;
+
+	/**
+	 * Encode the value of a field using the runtime rules.
+	 * @param index the index of the @JSON constructor parameter for the field
+	 * @param value the value of the field
+	 * @return the encoded value, or null if nothing should be output
+	 * @throws JSONencodeException if the value cannot be encoded
+	 * */
+	protected final Object encodeField(final int index, final Object value)
+		throws JSONencodeException
+	{
+		return SSJSJS.encodeSlot(Codec.of(type).parameters[index], value);
+	}
+
+	/**
+	 * Decode the value of a field using the runtime rules.
+	 * @param index the index of the @JSON constructor parameter for the field
+	 * @param json the JSON object that contains the field
+	 * @param environment the environment for implicit fields (may be null)
+	 * @return the decoded value
+	 * @throws JSONdecodeException if the field cannot be decoded
+	 * */
+	protected final Object decodeField(
+		final int index, final JSONObject json, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		return SSJSJS.decodeSlot(Codec.of(type).parameters[index], json, environment);
+	}
+
+	/**
+	 * Read a field that is not accessible to the generated code, such as a
+	 * private field, using the runtime's accessor.
+	 * @param index the index of the @JSON constructor parameter for the field
+	 * @param obj the object to read the field from
+	 * @return the value of the field, boxed if it is a primitive
+	 * */
+	protected final Object fieldValue(final int index, final T obj) {
+		final Codec.Slot slot = Codec.of(type).parameters[index];
+		if (!slot.isPrimitive()) return slot.get(obj);
+
+		final Class<?> clazz = slot.fieldClass;
+		if (clazz == int.class) return slot.getInt(obj);
+		else if (clazz == long.class) return slot.getLong(obj);
+		else if (clazz == double.class) return slot.getDouble(obj);
+		else if (clazz == float.class) return slot.getFloat(obj);
+		else if (clazz == boolean.class) return slot.getBoolean(obj);
+		else if (clazz == char.class) return slot.getChar(obj);
+		else if (clazz == byte.class) return slot.getByte(obj);
+		else return slot.getShort(obj);
+	}
+
+	/**
+	 * Report a null value in a non-nullable field.
+	 * @param field the name of the field in the JSON
+	 * @return the exception to throw
+	 * */
+	protected static JSONencodeException nullField(final String field) {
+		return JSONencodeException.stackless(
+			"Cannot serialize null in non-nullable field '" + field + "'").atField(field);
+	}
+
+	/**
+	 * Encode the value of a field that holds a JSONable object.
+	 * @param value the value of the field, which must not be null
+	 * @param field the name of the field in the JSON, to report where an error
+	 * occurred
+	 * @return the encoded object
+	 * @throws JSONencodeException if the value cannot be encoded
+	 * */
+	protected static JSONObject encodeObject(final JSONable value, final String field)
+		throws JSONencodeException
+	{
+		try {
+			return SSJSJS.encodeObject(value);
+		} catch (final JSONencodeException e) {
+			throw e.atField(field);
+		}
+	}
+
+	/**
+	 * Look up the value of an implicit field.
+	 * @param environment the environment (may be null)
+	 * @param key the key of the implicit field
+	 * @param type the type of the constructor parameter
+	 * @return the value of the implicit field
+	 * @throws JSONdecodeException if the value is missing or of the wrong type
+	 * */
+	protected static Object implicit(
+		final Map<String, Object> environment, final String key, final Class<?> type
+	) throws JSONdecodeException
+	{
+		return SSJSJS.lookupImplicit(environment, key, type);
+	}
+
+	protected static boolean asBoolean(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Boolean) return (Boolean) value;
+		else throw wrongType(value, field, boolean.class);
+	}
+
+	protected static char asChar(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof String && ((String) value).length() == 1)
+			return ((String) value).charAt(0);
+		else throw wrongType(value, field, char.class);
+	}
+
+	protected static byte asByte(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Number) return ((Number) value).byteValue();
+		else throw wrongType(value, field, byte.class);
+	}
+
+	protected static short asShort(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Number) return ((Number) value).shortValue();
+		else throw wrongType(value, field, short.class);
+	}
+
+	protected static int asInt(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Number) return ((Number) value).intValue();
+		else throw wrongType(value, field, int.class);
+	}
+
+	protected static long asLong(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Number) return ((Number) value).longValue();
+		else throw wrongType(value, field, long.class);
+	}
+
+	protected static float asFloat(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Number) return ((Number) value).floatValue();
+		else throw wrongType(value, field, float.class);
+	}
+
+	protected static double asDouble(final Object value, final String field)
+		throws JSONdecodeException
+	{
+		if (value instanceof Number) return ((Number) value).doubleValue();
+		else throw wrongType(value, field, double.class);
+	}
+
+	protected static Boolean asBoxedBoolean(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Boolean.class, nullable)) return null;
+		else if (value instanceof Boolean) return (Boolean) value;
+		else throw wrongType(value, field, Boolean.class);
+	}
+
+	protected static Character asBoxedChar(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Character.class, nullable)) return null;
+		else if (value instanceof String && ((String) value).length() == 1) return ((String) value).charAt(0);
+		else throw wrongType(value, field, Character.class);
+	}
+
+	protected static Byte asBoxedByte(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Byte.class, nullable)) return null;
+		else if (value instanceof Number) return ((Number) value).byteValue();
+		else throw wrongType(value, field, Byte.class);
+	}
+
+	protected static Short asBoxedShort(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Short.class, nullable)) return null;
+		else if (value instanceof Number) return ((Number) value).shortValue();
+		else throw wrongType(value, field, Short.class);
+	}
+
+	protected static Integer asBoxedInt(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Integer.class, nullable)) return null;
+		else if (value instanceof Number) return ((Number) value).intValue();
+		else throw wrongType(value, field, Integer.class);
+	}
+
+	protected static Long asBoxedLong(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Long.class, nullable)) return null;
+		else if (value instanceof Number) return ((Number) value).longValue();
+		else throw wrongType(value, field, Long.class);
+	}
+
+	protected static Float asBoxedFloat(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Float.class, nullable)) return null;
+		else if (value instanceof Number) return ((Number) value).floatValue();
+		else throw wrongType(value, field, Float.class);
+	}
+
+	protected static Double asBoxedDouble(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, Double.class, nullable)) return null;
+		else if (value instanceof Number) return ((Number) value).doubleValue();
+		else throw wrongType(value, field, Double.class);
+	}
+
+	protected static String asString(
+		final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, String.class, nullable)) return null;
+		else if (value instanceof String) return TypeCodec.pooled((String) value);
+		else throw wrongType(value, field, String.class);
+	}
+
+	protected static <E extends Enum<E>> E asEnum(
+		final Class<E> type, final Object value, final String field, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, type, nullable)) return null;
+		else if (value instanceof String) {
+			try {
+				return Enum.valueOf(type, (String) value);
+			} catch (final IllegalArgumentException e) {
+				throw new JSONdecodeException(e).atField(field);
+			}
+		} else throw wrongType(value, field, type);
+	}
+
+	protected static <U extends JSONable> U asObject(
+		final Class<U> type,
+		final Object value,
+		final String field,
+		final Map<String, Object> environment,
+		final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (isNull(value, field, type, nullable)) return null;
+		else if (!(value instanceof JSONObject)) throw wrongType(value, field, type);
+
+		try {
+			return SSJSJS.decodeObject((JSONObject) value, type, environment);
+		} catch (final JSONdecodeException e) {
+			throw e.atField(field);
+		}
+	}
+
+	private static boolean isNull(
+		final Object value, final String field, final Class<?> type, final boolean nullable
+	) throws JSONdecodeException
+	{
+		if (value != null && value != JSONObject.NULL) return false;
+		else if (nullable) return true;
+		else throw JSONdecodeException.stackless(
+			"Cannot deserialize non-nullable field '" + field + "' of type '"
+			+ type + "'. Input JSON has no value for this field.").atField(field);
+	}
+
+	private static JSONdecodeException wrongType(
+		final Object value, final String field, final Class<?> type
+	) {
+		if (value == null || value == JSONObject.NULL) {
+			return JSONdecodeException.stackless(
+				"Cannot deserialize non-nullable field '" + field + "' of type '"
+				+ type + "'. Input JSON has no value for this field.").atField(field);
+		} else {
+			return JSONdecodeException.stackless("Expected a '" + type +
+				"' for field '" + field + "', but got a " + value.getClass().getSimpleName())
+				.atField(field);
+		}
+	}
+}
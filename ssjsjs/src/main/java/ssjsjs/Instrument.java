@@ -0,0 +1,91 @@
+package ssjsjs;
+
+/**
+ * Records the metrics and the flight recorder event for encoding or decoding
+ * one document.  encoding and decoding return null when neither metrics nor
+ * events are enabled, so the caller can skip instrumentation entirely.
+ * */
+final class Instrument {
+	private final Codec<?> codec;
+	private final ClassMetrics metrics;
+	private final DocumentEvent event;
+	private final boolean encode;
+	private final long position;
+	private final long start;
+
+	private Instrument(
+		final Codec<?> codec,
+		final ClassMetrics metrics,
+		final DocumentEvent event,
+		final boolean encode,
+		final long position
+	) {
+		this.codec = codec;
+		this.metrics = metrics;
+		this.event = event;
+		this.encode = encode;
+		this.position = position;
+		this.start = System.nanoTime();
+		if (event != null) event.begin();
+	}
+
+	/**
+	 * Start instrumenting an encode operation.
+	 * @param codec the codec of the object being encoded
+	 * @param position the number of chars or bytes already written, or -1 if
+	 * the output doesn't count them
+	 * @return the instrument, or null if metrics and events are disabled
+	 * */
+	static Instrument encoding(final Codec<?> codec, final long position) {
+		final ClassMetrics metrics = ClassMetrics.of(codec.clazz);
+		final DocumentEvent event =
+			DocumentEvent.Encode.TYPE.isEnabled()? new DocumentEvent.Encode() : null;
+		if (metrics == null && event == null) return null;
+		return new Instrument(codec, metrics, event, true, position);
+	}
+
+	/**
+	 * Start instrumenting a decode operation.
+	 * @param codec the codec of the object being decoded
+	 * @param position the number of chars or bytes already read, or -1 if the
+	 * input doesn't count them
+	 * @return the instrument, or null if metrics and events are disabled
+	 * */
+	static Instrument decoding(final Codec<?> codec, final long position) {
+		final ClassMetrics metrics = ClassMetrics.of(codec.clazz);
+		final DocumentEvent event =
+			DocumentEvent.Decode.TYPE.isEnabled()? new DocumentEvent.Decode() : null;
+		if (metrics == null && event == null) return null;
+		return new Instrument(codec, metrics, event, false, position);
+	}
+
+	/**
+	 * Finish instrumenting the operation.
+	 * @param position the number of chars or bytes written or read so far, or
+	 * -1 if they aren't counted
+	 * @param failure the exception that the operation failed with, or null if
+	 * it succeeded
+	 * */
+	void end(final long position, final Throwable failure) {
+		final long size = this.position < 0 || position < 0? -1 : position - this.position;
+
+		if (metrics != null) {
+			if (encode) {
+				metrics.encoded(start, failure == null, size);
+			} else {
+				metrics.decoded(start, failure == null, size);
+			}
+		}
+
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.type = codec.clazz;
+				event.fields = codec.fields.length;
+				event.size = size;
+				event.failure = failure == null? null : failure.toString();
+				event.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package ssjsjs;
+
+import java.io.IOException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A source of a stream of JSON values.  This is a pull parser: the caller
+ * peeks at the next token and then consumes it with the matching method.
+ * */
+abstract class JSONInput {
+	static final int END_OF_INPUT = 0;
+	static final int BEGIN_OBJECT = 1;
+	static final int END_OBJECT = 2;
+	static final int BEGIN_ARRAY = 3;
+	static final int END_ARRAY = 4;
+	static final int NAME = 5;
+	static final int STRING = 6;
+	static final int NUMBER = 7;
+	static final int BOOLEAN = 8;
+	static final int NULL = 9;
+	static final int BYTES = 10;
+
+	private static final String[] NO_NAMES = new String[0];
+
+	/**
+	 * Get the type of the next token without consuming it.
+	 * */
+	abstract int peek() throws IOException, JSONdecodeException;
+
+	abstract void beginObject() throws IOException, JSONdecodeException;
+
+	abstract void endObject() throws IOException, JSONdecodeException;
+
+	abstract void beginArray() throws IOException, JSONdecodeException;
+
+	abstract void endArray() throws IOException, JSONdecodeException;
+
+	/**
+	 * Determine if there are more elements in the current object or array.
+	 * */
+	boolean hasNext() throws IOException, JSONdecodeException {
+		final int token = peek();
+		return token != END_OBJECT && token != END_ARRAY && token != END_OF_INPUT;
+	}
+
+	abstract String nextName() throws IOException, JSONdecodeException;
+
+	/**
+	 * Read the next name and find it in a table of names, without allocating
+	 * a String for it.
+	 * @param names the names to look for
+	 * @return the index of the name in names, or -1 if it is not there
+	 * */
+	abstract int nextName(String[] names) throws IOException, JSONdecodeException;
+
+	abstract String nextString() throws IOException, JSONdecodeException;
+
+	/**
+	 * Read the next name, taking it from a string pool if possible.
+	 * Implementations may override this method to look up the name without
+	 * allocating a String.
+	 * @param pool the pool, or null to not use a pool
+	 * */
+	String nextName(final StringPool pool) throws IOException, JSONdecodeException {
+		final String name = nextName();
+		return pool == null? name : pool.intern(name);
+	}
+
+	/**
+	 * Read the next string, taking it from a string pool if possible.
+	 * Implementations may override this method to look up the string without
+	 * allocating a String.
+	 * @param pool the pool, or null to not use a pool
+	 * */
+	String nextString(final StringPool pool) throws IOException, JSONdecodeException {
+		final String value = nextString();
+		return pool == null? value : pool.intern(value);
+	}
+
+	abstract boolean nextBoolean() throws IOException, JSONdecodeException;
+
+	abstract void nextNull() throws IOException, JSONdecodeException;
+
+	/**
+	 * Read a byte string.  JSON has no binary type, so only binary inputs
+	 * return BYTES from peek and override this method.
+	 * */
+	byte[] nextBytes() throws IOException, JSONdecodeException {
+		throw JSONdecodeException.stackless("Expected a byte string");
+	}
+
+	/**
+	 * Determine if the next token is an integer that fits in a long.  Returns
+	 * false if the next token has not been peeked at, or is not a number.
+	 * */
+	abstract boolean isLong();
+
+	/**
+	 * Determine if the next token is a number in decimal or exponential
+	 * notation.  Returns false if the next token has not been peeked at, or is
+	 * not a number.
+	 * */
+	abstract boolean isDouble();
+
+	/**
+	 * Read a number.  Only valid if isLong() returns true.
+	 * */
+	abstract long nextLong() throws IOException, JSONdecodeException;
+
+	/**
+	 * Read a number as a double.
+	 * */
+	abstract double nextDouble() throws IOException, JSONdecodeException;
+
+	/**
+	 * Read a number, represented in the same way as org.json would represent
+	 * it when parsing JSON text.
+	 * */
+	abstract Object nextNumber() throws IOException, JSONdecodeException;
+
+	/**
+	 * Skip the next value, including any nested values.
+	 * */
+	void skipValue() throws IOException, JSONdecodeException {
+		int depth = 0;
+		do {
+			switch (peek()) {
+				case BEGIN_OBJECT: beginObject(); depth += 1; break;
+				case BEGIN_ARRAY: beginArray(); depth += 1; break;
+				case END_OBJECT: endObject(); depth -= 1; break;
+				case END_ARRAY: endArray(); depth -= 1; break;
+				case NAME: nextName(NO_NAMES); break;
+				case STRING: skipString(); break;
+				case NUMBER: skipNumber(); break;
+				case BOOLEAN: nextBoolean(); break;
+				case NULL: nextNull(); break;
+				case BYTES: skipBytes(); break;
+				default: throw JSONdecodeException.stackless("Unexpected end of input");
+			}
+		} while (depth > 0);
+	}
+
+	/**
+	 * Skip the next number.  Implementations should override this to avoid
+	 * converting the number.
+	 * */
+	void skipNumber() throws IOException, JSONdecodeException {
+		nextNumber();
+	}
+
+	/**
+	 * Skip the next string value.  Implementations should override this to
+	 * avoid constructing the string.
+	 * */
+	void skipString() throws IOException, JSONdecodeException {
+		nextString();
+	}
+
+	/**
+	 * Skip the next byte string.  Implementations should override this to
+	 * avoid reading the bytes into memory.
+	 * */
+	void skipBytes() throws IOException, JSONdecodeException {
+		nextBytes();
+	}
+
+	/**
+	 * Read the next value as a tree of org.json objects, as would be produced
+	 * by parsing the same JSON with org.json.  Like org.json, this rejects
+	 * objects with duplicate keys.
+	 * @return the value.  null values are represented by JSONObject.NULL
+	 * */
+	Object readTree() throws IOException, JSONdecodeException {
+		switch (peek()) {
+			case BEGIN_OBJECT:
+				final JSONObject obj = new JSONObject();
+				beginObject();
+				while (hasNext()) {
+					final String name = nextName();
+					if (obj.has(name)) throw duplicateKey(name);
+					obj.put(name, readTree());
+				}
+				endObject();
+				return obj;
+
+			case BEGIN_ARRAY:
+				final JSONArray array = new JSONArray();
+				beginArray();
+				while (hasNext()) array.put(readTree());
+				endArray();
+				return array;
+
+			case STRING: return nextString();
+			case NUMBER: return nextNumber();
+			case BOOLEAN: return nextBoolean();
+			case NULL: nextNull(); return JSONObject.NULL;
+
+			case BYTES:
+				// the same as a byte[] field encoded as JSON
+				final JSONArray bytes = new JSONArray();
+				for (final byte b : nextBytes()) bytes.put(b);
+				return bytes;
+
+			default: throw JSONdecodeException.stackless("Expected a JSON value");
+		}
+	}
+
+	/**
+	 * Report an object that has the same key more than once, with the same
+	 * message as org.json.
+	 * @param name the key
+	 * @return the exception to throw
+	 * */
+	static JSONdecodeException duplicateKey(final String name) {
+		return JSONdecodeException.stackless("Duplicate key \"" + name + "\"");
+	}
+
+	/**
+	 * @return the number of chars or bytes that have been consumed so far,
+	 * or -1 if this input doesn't count them
+	 * */
+	long offset() {
+		return -1;
+	}
+
+	/**
+	 * Read the next value as JSON text, without decoding it.  The default
+	 * implementation reads the value into a tree and converts it back to text,
+	 * so subclasses override this method to copy the text directly.
+	 * @return the JSON text of the value
+	 * */
+	char[] readRaw() throws IOException, JSONdecodeException {
+		return JSONObject.valueToString(readTree()).toCharArray();
+	}
+}
@@ -0,0 +1,122 @@
+package ssjsjs;
+
+import java.io.IOException;
+
+/**
+ * A sink for a stream of JSON values.
+ *
+ * Names are pending until the value that follows them is written.  If no
+ * value follows a name (because the value is absent, e.g. an empty Optional),
+ * then the name is discarded when the next name is written or the object is
+ * closed.
+ * */
+abstract class JSONOutput {
+	abstract void beginObject() throws IOException;
+
+	abstract void endObject() throws IOException;
+
+	abstract void beginArray() throws IOException;
+
+	abstract void endArray() throws IOException;
+
+	/**
+	 * Set the name of the next value in the current object.
+	 * */
+	abstract void name(String name) throws IOException;
+
+	/**
+	 * Set the name of the next value in the current object.  Implementations
+	 * may override this method to use a pre-encoded name.
+	 * */
+	void name(final Codec.Slot slot) throws IOException {
+		name(slot.outputName);
+	}
+
+	abstract void nullValue() throws IOException;
+
+	abstract void value(String value) throws IOException;
+
+	abstract void value(char value) throws IOException;
+
+	abstract void value(boolean value) throws IOException;
+
+	abstract void value(long value) throws IOException;
+
+	abstract void value(float value) throws IOException, JSONencodeException;
+
+	abstract void value(double value) throws IOException, JSONencodeException;
+
+	/**
+	 * Write a number of a type that does not correspond to a Java primitive,
+	 * e.g. BigDecimal.
+	 * */
+	abstract void value(Number value) throws IOException, JSONencodeException;
+
+	/**
+	 * Write a byte array.  JSON has no binary type, so the default
+	 * implementation writes an array of numbers.  Binary formats override
+	 * this method to write the bytes directly.
+	 * */
+	void value(final byte[] value) throws IOException {
+		beginArray();
+		for (int i = 0; i < value.length; i++) value(value[i]);
+		endArray();
+	}
+
+	/**
+	 * Write a value that is already encoded as JSON text.  The default
+	 * implementation parses the text and writes the resulting tree, so
+	 * subclasses that write JSON text override this method to copy the text
+	 * directly.
+	 * @param json the JSON text of a single value, which must be valid
+	 * */
+	void rawValue(final char[] json) throws IOException, JSONencodeException {
+		final Object tree;
+		try {
+			tree = new TextInput(json, 0, json.length).readTree();
+		} catch (final JSONdecodeException e) {
+			throw new JSONencodeException(e);
+		}
+		SSJSJS.writeTree(tree, this);
+	}
+
+	/**
+	 * Write any buffered output to the underlying sink.
+	 * */
+	abstract void flush() throws IOException;
+
+	/**
+	 * @return the number of chars or bytes written so far, including any
+	 * that are still buffered, or -1 if this output doesn't count them
+	 * */
+	long size() {
+		return -1;
+	}
+
+	/**
+	 * @return true if this output supports fork and join
+	 * */
+	boolean canFork() {
+		return false;
+	}
+
+	/**
+	 * Create an output that buffers in memory, so that some of the elements of
+	 * an array or object can be written on another thread, then spliced into
+	 * this output with join.  The fork starts as if it were inside an array or
+	 * object that has no elements yet.  This may be called from any thread.
+	 * @return the new output
+	 * */
+	JSONOutput fork() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Splice the elements written to a fork into this output, as if they had
+	 * been written here directly.
+	 * @param fork an output returned by fork(), which has been flushed
+	 * */
+	void join(final JSONOutput fork) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -4,6 +4,11 @@ package ssjsjs;
  * An error occurred when attempting to deserialize JSON.
  * */
 public class JSONdecodeException extends Exception {
+	/**
+	 * The location of the error, or null if it is not inside any field.
+	 * */
+	private ErrorPath path = null;
+
 	public JSONdecodeException() {
 		super();
 	}
@@ -19,5 +24,69 @@ public class JSONdecodeException extends Exception {
 	public JSONdecodeException(final Throwable cause) {
 		super(cause);
 	}
+
+	/**
+	 * Create an exception that may not have a stack trace.  Exceptions that
+	 * describe invalid input are created without stack traces, because they
+	 * can be common and the stack trace would not say anything useful.
+	 * */
+	protected JSONdecodeException(
+		final String message, final Throwable cause, final boolean writableStackTrace
+	) {
+		super(message, cause, true, writableStackTrace);
+	}
+
+	static JSONdecodeException stackless(final String message) {
+		return new JSONdecodeException(message, null, false);
+	}
+
+	/**
+	 * Get the location of the value that could not be deserialized, e.g.
+	 * orders[17].items{sku} for the value of key 'sku' in the map in field
+	 * 'items' of element 17 of the array in field 'orders'.  Field names are
+	 * the names used in the JSON.
+	 * @return the location, or an empty string if the error is not inside any
+	 * field
+	 * */
+	public String getPath() {
+		return path == null? "" : path.toString();
+	}
+
+	/**
+	 * @return the message, prefixed with the location of the error if it is
+	 * inside a field
+	 * */
+	@Override
+	public String getMessage() {
+		final String message = super.getMessage();
+		return path == null? message : path + ": " + message;
+	}
+
+	/**
+	 * Record that the error is inside a field of an object.
+	 * @return this exception
+	 * */
+	JSONdecodeException atField(final String name) {
+		path = ErrorPath.field(name, path);
+		return this;
+	}
+
+	/**
+	 * Record that the error is inside an element of an array.
+	 * @return this exception
+	 * */
+	JSONdecodeException atIndex(final int index) {
+		path = ErrorPath.index(index, path);
+		return this;
+	}
+
+	/**
+	 * Record that the error is inside an element of a map.
+	 * @return this exception
+	 * */
+	JSONdecodeException atKey(final String key) {
+		path = ErrorPath.key(key, path);
+		return this;
+	}
 }
 
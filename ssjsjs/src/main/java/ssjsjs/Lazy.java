@@ -0,0 +1,116 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import org.json.JSONObject;
+
+/**
+ * A JSONable value that is only decoded when it is first needed.  A field of
+ * type Lazy&lt;T&gt; is encoded exactly like a field of type T, but when it
+ * is decoded the JSON object is kept as it is, and T is only decoded the first
+ * time get() is called.  This saves time and memory when large objects are
+ * decoded but only a few of their nested objects are ever used.
+ *
+ * When decoding from a JSONObject, the nested JSONObject is kept.  When
+ * decoding from JSON text, only the text of the nested object is kept.  If
+ * the value has not been decoded yet when it is encoded again, the original
+ * JSON is encoded, including any elements that T would ignore.
+ *
+ * Lazy values are safe to share between threads.  The value is decoded at
+ * most once, unless decoding fails.
+ * */
+public final class Lazy<T extends JSONable> {
+	private final Class<T> clazz;
+	private final Map<String, Object> environment;
+
+	/**
+	 * The decoded value, or null if it hasn't been decoded yet.
+	 * */
+	private volatile T value;
+
+	/**
+	 * The JSON of the value, either a JSONObject or the text of the object as
+	 * a char[].  This is discarded once the value has been decoded.
+	 * */
+	private Object json;
+
+	private Lazy(
+		final Class<T> clazz, final T value, final Object json, final Map<String, Object> environment
+	) {
+		this.clazz = clazz;
+		this.value = value;
+		this.json = json;
+		this.environment = environment;
+	}
+
+	/**
+	 * Wrap a value that has already been decoded, or constructed.
+	 * @param value the value
+	 * @return a Lazy that holds value
+	 * */
+	public static <T extends JSONable> Lazy<T> of(final T value) {
+		return new Lazy<>(null, Objects.requireNonNull(value), null, null);
+	}
+
+	/**
+	 * Create a Lazy that will decode a value from JSON.
+	 * @param clazz the class to decode as
+	 * @param json a JSONObject, or the text of a JSON object as a char[]
+	 * @param environment the environment for implicit fields (may be null)
+	 * */
+	static <T extends JSONable> Lazy<T> decodeLater(
+		final Class<T> clazz, final Object json, final Map<String, Object> environment
+	) {
+		return new Lazy<>(clazz, null, json, environment);
+	}
+
+	/**
+	 * Get the value, decoding it if it hasn't been decoded yet.
+	 * @return the value
+	 * @throws JSONdecodeException if the value cannot be decoded.  In that
+	 * case, later calls to get will try again and fail in the same way.
+	 * */
+	public T get() throws JSONdecodeException {
+		final T r = value;
+		if (r != null) return r;
+
+		synchronized (this) {
+			if (value == null) {
+				value = decode();
+				json = null;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * @return true if the value has been decoded
+	 * */
+	public boolean isDecoded() {
+		return value != null;
+	}
+
+	/**
+	 * Get the value if it has been decoded, otherwise the JSON that it will be
+	 * decoded from.
+	 * @return a JSONable, a JSONObject, or the text of a JSON object as a char[]
+	 * */
+	synchronized Object current() {
+		return value != null? value : json;
+	}
+
+	private T decode() throws JSONdecodeException {
+		if (json instanceof JSONObject) {
+			return SSJSJS.decode((JSONObject) json, clazz, environment);
+		} else {
+			final char[] text = (char[]) json;
+			try {
+				return SSJSJS.readDocument(Codec.of(clazz), new TextInput(text, 0, text.length), environment);
+			} catch (final IOException e) {
+				// not possible when reading from an array
+				throw new JSONdecodeException(e);
+			}
+		}
+	}
+}
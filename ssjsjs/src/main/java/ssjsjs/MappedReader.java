@@ -0,0 +1,121 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a UTF-8 encoded file by mapping it into memory, so that the file is
+ * decoded directly from the page cache without copying it into a heap
+ * buffer first.
+ *
+ * A single mapping is limited to 2GB, so larger files are mapped one window
+ * at a time.  Mappings are released when they are garbage collected.
+ * */
+final class MappedReader extends Reader {
+	/**
+	 * The size of each window onto the file.
+	 * */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	/**
+	 * A good size for the buffer of a TextInput that reads from a
+	 * MappedReader.  Larger reads mean fewer calls into the decoder.
+	 * */
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final long size;
+	private final long windowSize;
+
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPORT)
+		.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+	/**
+	 * The position in the file of the start of the current window.
+	 * */
+	private long windowStart;
+	private MappedByteBuffer window;
+
+	/**
+	 * Chars that have been decoded but not returned yet.  This is only used
+	 * when a read has room for just one char, but the next character is a
+	 * surrogate pair.
+	 * */
+	private final CharBuffer pending = CharBuffer.allocate(2).flip();
+
+	MappedReader(final Path path) throws IOException {
+		this(path, WINDOW_SIZE);
+	}
+
+	MappedReader(final Path path, final long windowSize) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.windowSize = windowSize;
+
+		try {
+			this.size = channel.size();
+			map(0);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void map(final long start) throws IOException {
+		windowStart = start;
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+	}
+
+	@Override
+	public int read(final char[] cbuf, final int off, final int len) throws IOException {
+		if (len == 0) return 0;
+		if (pending.hasRemaining()) return readPending(cbuf, off, len);
+
+		final CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		while (true) {
+			final boolean last = windowStart + window.limit() == size;
+			final CoderResult r = decoder.decode(window, out, last);
+			if (r.isError()) r.throwException();
+
+			if (out.position() > off) {
+				return out.position() - off;
+			} else if (r.isOverflow()) {
+				// There is no room in out for the next character, so decode it
+				// into pending and return it one char at a time.
+				pending.clear();
+				final CoderResult p = decoder.decode(window, pending, last);
+				pending.flip();
+				if (p.isError()) p.throwException();
+				if (pending.hasRemaining()) return readPending(cbuf, off, len);
+			}
+
+			if (last) {
+				return -1;
+			} else {
+				// Any bytes left over are the start of a character that is split
+				// across windows, so they are included in the next window.
+				map(windowStart + window.position());
+			}
+		}
+	}
+
+	private int readPending(final char[] cbuf, final int off, final int len) {
+		final int n = Math.min(len, pending.remaining());
+		pending.get(cbuf, off, n);
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
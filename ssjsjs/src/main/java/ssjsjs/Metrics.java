@@ -0,0 +1,157 @@
+package ssjsjs;
+
+/**
+ * A snapshot of the metrics for one JSONable class.  See
+ * SSJSJS.enableMetrics.
+ *
+ * Each time an object is encoded or decoded as a whole document (including
+ * each element of encodeAll and decodeAll, each line of newline delimited
+ * JSON, and each Lazy value when it is decoded), one operation is counted
+ * for its class.  Objects nested inside other objects are not counted
+ * separately; their cost is included in the cost of the outer object.
+ * */
+public final class Metrics {
+	private final Class<? extends JSONable> type;
+	private final Operation encode;
+	private final Operation decode;
+
+	Metrics(
+		final Class<? extends JSONable> type, final Operation encode, final Operation decode
+	) {
+		this.type = type;
+		this.encode = encode;
+		this.decode = decode;
+	}
+
+	/**
+	 * @return the class that these metrics are for
+	 * */
+	public Class<? extends JSONable> getType() {
+		return type;
+	}
+
+	/**
+	 * @return the metrics for encoding objects of this class
+	 * */
+	public Operation getEncode() {
+		return encode;
+	}
+
+	/**
+	 * @return the metrics for decoding objects of this class
+	 * */
+	public Operation getDecode() {
+		return decode;
+	}
+
+	@Override
+	public String toString() {
+		return type.getName() + ": encode " + encode + ", decode " + decode;
+	}
+
+	/**
+	 * The metrics for one kind of operation (encoding or decoding) on one
+	 * class.
+	 * */
+	public static final class Operation {
+		private final long count;
+		private final long failures;
+		private final long totalNanos;
+		private final long sizedCount;
+		private final long totalSize;
+		private final long[] latency;
+
+		Operation(
+			final long count,
+			final long failures,
+			final long totalNanos,
+			final long sizedCount,
+			final long totalSize,
+			final long[] latency
+		) {
+			this.count = count;
+			this.failures = failures;
+			this.totalNanos = totalNanos;
+			this.sizedCount = sizedCount;
+			this.totalSize = totalSize;
+			this.latency = latency;
+		}
+
+		/**
+		 * @return the number of operations, including those that failed
+		 * */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the number of operations that failed with an exception
+		 * */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the total time taken by the operations that succeeded, in
+		 * nanoseconds
+		 * */
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * @return the mean time taken by the operations that succeeded, in
+		 * nanoseconds, or 0 if none succeeded
+		 * */
+		public double getMeanNanos() {
+			final long succeeded = count - failures;
+			return succeeded <= 0? 0 : (double) totalNanos / succeeded;
+		}
+
+		/**
+		 * Get a percentile of the time taken by the operations that
+		 * succeeded.  The result is accurate to within 12.5%.
+		 * @param p the percentile, between 0 and 1 (e.g. 0.99 for the 99th
+		 * percentile)
+		 * @return the time in nanoseconds, or 0 if no operations succeeded
+		 * */
+		public long getPercentileNanos(final double p) {
+			long total = 0;
+			for (final long n : latency) total += n;
+			if (total == 0) return 0;
+
+			final long rank = Math.max(1, (long) Math.ceil(p * total));
+			long seen = 0;
+			for (int i = 0; i < latency.length; i++) {
+				seen += latency[i];
+				if (seen >= rank) return StripedHistogram.midpoint(i);
+			}
+			return StripedHistogram.midpoint(latency.length - 1);
+		}
+
+		/**
+		 * @return the total size of the JSON text that was written or read by
+		 * the operations that succeeded, in chars or (for UTF-8) bytes.  Only
+		 * operations on JSON text are included, since the size of a JSONObject
+		 * isn't known without converting it to text.
+		 * */
+		public long getTotalSize() {
+			return totalSize;
+		}
+
+		/**
+		 * @return the mean size of the JSON text that was written or read, or
+		 * 0 if no operations on JSON text succeeded
+		 * */
+		public double getMeanSize() {
+			return sizedCount == 0? 0 : (double) totalSize / sizedCount;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d ops, %d failed, mean %.0fns, p50 %dns, p99 %dns, mean size %.0f",
+				count, failures, getMeanNanos(),
+				getPercentileNanos(0.5), getPercentileNanos(0.99), getMeanSize());
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package ssjsjs;
+
+/**
+ * The JMX view of the metrics for one JSONable class.  One of these is
+ * registered for each class, with an ObjectName like
+ * ssjsjs:type=Metrics,class="com.example.Example".  Times are in
+ * microseconds, and sizes are in chars or bytes of JSON text.  See Metrics.
+ * */
+public interface MetricsMXBean {
+	String getType();
+
+	long getEncodeCount();
+	long getEncodeFailures();
+	double getEncodeMeanMicros();
+	double getEncodeP50Micros();
+	double getEncodeP99Micros();
+	double getEncodeP999Micros();
+	long getEncodeTotalSize();
+
+	long getDecodeCount();
+	long getDecodeFailures();
+	double getDecodeMeanMicros();
+	double getDecodeP50Micros();
+	double getDecodeP99Micros();
+	double getDecodeP999Micros();
+	long getDecodeTotalSize();
+}
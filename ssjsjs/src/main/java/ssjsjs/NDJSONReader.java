@@ -0,0 +1,338 @@
+package ssjsjs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads newline delimited JSON (JSON Lines), where each line is a JSON object
+ * of the same JSONable class.  Blank lines are ignored.
+ *
+ * The input is read in batches of whole lines, and the batches are decoded in
+ * parallel on an Executor.  Objects are returned in the order that they
+ * appear in the input.  At most maxBatches batches are read ahead of the
+ * object that was last returned, so memory use is bounded no matter how large
+ * the input is.
+ *
+ * An NDJSONReader should only be used by one thread at a time.
+ * */
+public final class NDJSONReader<T extends JSONable> implements Closeable {
+	/**
+	 * The default approximate size of a batch, in characters.
+	 * */
+	public static final int DEFAULT_BATCH_SIZE = 1 << 16;
+
+	private final Reader in;
+	private final Codec<T> codec;
+	private final Map<String, Object> environment;
+	private final Executor executor;
+	private final int batchSize;
+	private final int maxBatches;
+
+	/**
+	 * Batches that have been submitted to the executor, in input order.
+	 * */
+	private final ArrayDeque<CompletableFuture<Batch<T>>> pending = new ArrayDeque<>();
+
+	/**
+	 * Characters after the last complete line of the previous batch.
+	 * */
+	private char[] carry = new char[0];
+	private int carryLength = 0;
+	private boolean endOfInput = false;
+
+	/**
+	 * The batch that objects are currently being returned from.
+	 * */
+	private Batch<T> current = null;
+	private int next = 0;
+
+	/**
+	 * The number of lines in the batches before current, for error messages.
+	 * */
+	private long linesBefore = 0;
+
+	/**
+	 * Read NDJSON using the common ForkJoinPool.
+	 * @param in the NDJSON text
+	 * @param clazz the class of the objects on each line
+	 * @throws JSONdecodeException if clazz is not JSONable
+	 * */
+	public NDJSONReader(final Reader in, final Class<T> clazz) throws JSONdecodeException {
+		this(in, clazz, null);
+	}
+
+	/**
+	 * Read NDJSON using the common ForkJoinPool.
+	 * @param in the NDJSON text
+	 * @param clazz the class of the objects on each line
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @throws JSONdecodeException if clazz is not JSONable
+	 * */
+	public NDJSONReader(
+		final Reader in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		this(in, clazz, environment, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE,
+			2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Read NDJSON.
+	 * @param in the NDJSON text
+	 * @param clazz the class of the objects on each line
+	 * @param environment a global environment that supplies the values of implicit fields (may be null).
+	 * It is shared between the threads of the executor, so it must not be modified while reading.
+	 * @param executor the executor that decodes batches of lines
+	 * @param batchSize the approximate number of characters in each batch.
+	 * Batches always contain at least one whole line, so may be larger than this.
+	 * @param maxBatches the maximum number of batches to read ahead
+	 * @throws JSONdecodeException if clazz is not JSONable
+	 * */
+	public NDJSONReader(
+		final Reader in,
+		final Class<T> clazz,
+		final Map<String, Object> environment,
+		final Executor executor,
+		final int batchSize,
+		final int maxBatches
+	) throws JSONdecodeException
+	{
+		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
+			"Cannot deserialize object of type " + clazz);
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive");
+		if (maxBatches < 1) throw new IllegalArgumentException("maxBatches must be positive");
+
+		this.in = in;
+		this.codec = Codec.of(clazz);
+		this.environment = environment;
+		this.executor = executor;
+		this.batchSize = batchSize;
+		this.maxBatches = maxBatches;
+	}
+
+	/**
+	 * Read the next object.
+	 * @return the next object, or null if there are no more objects
+	 * @throws JSONdecodeException if a line is not valid JSON, or cannot be
+	 * safely deserialized.  The message includes the line number.
+	 * @throws IOException if the underlying reader throws an IOException
+	 * */
+	public T read() throws JSONdecodeException, IOException {
+		while (current == null || next == current.values.size()) {
+			if (current != null) {
+				if (current.error != null) throw current.error(linesBefore);
+				linesBefore += current.lines;
+				current = null;
+			}
+
+			while (pending.size() < maxBatches) {
+				if (!submit()) break;
+			}
+
+			final CompletableFuture<Batch<T>> head = pending.poll();
+			if (head == null) return null;
+			current = await(head);
+			next = 0;
+		}
+
+		return current.values.get(next++);
+	}
+
+	/**
+	 * Get an iterator over the remaining objects.  JSONdecodeExceptions are
+	 * wrapped in UncheckedJSONdecodeException, and IOExceptions in
+	 * UncheckedIOException.
+	 * @return an iterator that consumes this reader
+	 * */
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			private T lookahead = null;
+
+			@Override
+			public boolean hasNext() {
+				if (lookahead == null) {
+					try {
+						lookahead = read();
+					} catch (final JSONdecodeException e) {
+						throw new UncheckedJSONdecodeException(e);
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return lookahead != null;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				final T r = lookahead;
+				lookahead = null;
+				return r;
+			}
+		};
+	}
+
+	/**
+	 * Get a sequential, ordered stream of the remaining objects.  Closing the
+	 * stream closes this reader.  Exceptions are wrapped as for iterator().
+	 * @return a stream that consumes this reader
+	 * */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+			Spliterator.ORDERED | Spliterator.NONNULL), false)
+			.onClose(() -> {
+				try {
+					close();
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+	}
+
+	/**
+	 * Close the underlying reader.  Batches that have not been decoded yet are
+	 * cancelled if possible.
+	 * */
+	@Override
+	public void close() throws IOException {
+		for (final CompletableFuture<Batch<T>> f : pending) f.cancel(false);
+		pending.clear();
+		current = null;
+		endOfInput = true;
+		carryLength = 0;
+		in.close();
+	}
+
+	/**
+	 * Read the next batch of lines and submit it for decoding.
+	 * @return false if there is no more input
+	 * */
+	private boolean submit() throws IOException {
+		if (endOfInput && carryLength == 0) return false;
+
+		char[] chunk = new char[Math.max(batchSize, carryLength + 1)];
+		System.arraycopy(carry, 0, chunk, 0, carryLength);
+		int length = carryLength;
+		int searchFrom = 0;
+		int end = -1;
+
+		while (end == -1) {
+			while (!endOfInput && length < chunk.length) {
+				final int r = in.read(chunk, length, chunk.length - length);
+				if (r == -1) endOfInput = true; else length += r;
+			}
+
+			if (endOfInput) {
+				end = length;
+			} else {
+				for (int i = length - 1; i >= searchFrom; i--) {
+					if (chunk[i] == '\n') {
+						end = i + 1;
+						break;
+					}
+				}
+
+				if (end == -1) {
+					// a line that is longer than the batch size
+					searchFrom = length;
+					chunk = Arrays.copyOf(chunk, chunk.length * 2);
+				}
+			}
+		}
+
+		carryLength = length - end;
+		if (carryLength > carry.length) carry = new char[Math.max(carryLength, batchSize)];
+		System.arraycopy(chunk, end, carry, 0, carryLength);
+
+		if (end == 0) return false;
+
+		final char[] text = chunk;
+		final int textEnd = end;
+		pending.add(CompletableFuture.supplyAsync(() -> decode(text, textEnd), executor));
+		return true;
+	}
+
+	/**
+	 * Decode a batch of lines.  This runs on the executor.
+	 * @param text the lines
+	 * @param end the index after the last character of the last line
+	 * */
+	private Batch<T> decode(final char[] text, final int end) {
+		final Batch<T> batch = new Batch<>();
+		final TextInput line = new TextInput(text, 0, 0);
+
+		int start = 0;
+		while (start < end) {
+			int stop = start;
+			while (stop < end && text[stop] != '\n') stop += 1;
+			batch.lines += 1;
+
+			try {
+				line.reset(start, stop);
+				if (line.peek() != JSONInput.END_OF_INPUT) {
+					batch.values.add(SSJSJS.readDocument(codec, line, environment));
+					if (line.peek() != JSONInput.END_OF_INPUT) throw new JSONdecodeException(
+						"Unexpected data after the end of the JSON object");
+				}
+			} catch (final JSONdecodeException e) {
+				batch.error = e;
+				return batch;
+			} catch (final IOException e) {
+				// not possible when reading from an array
+				throw new UncheckedIOException(e);
+			}
+
+			start = stop + 1;
+		}
+
+		return batch;
+	}
+
+	private Batch<T> await(final CompletableFuture<Batch<T>> f) throws IOException {
+		try {
+			return f.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decoding NDJSON");
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * The result of decoding a batch of lines.  If decoding fails, values
+	 * contains the objects before the line that failed, and lines counts the
+	 * lines up to and including the line that failed.
+	 * */
+	private static final class Batch<T> {
+		final List<T> values = new ArrayList<>();
+		int lines = 0;
+		JSONdecodeException error = null;
+
+		JSONdecodeException error(final long linesBefore) {
+			return new JSONdecodeException("Error on line " + (linesBefore + lines) +
+				": " + error.getMessage(), error);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package ssjsjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Writes newline delimited JSON (JSON Lines), one JSON object per line.
+ *
+ * Objects are collected into batches, and the batches are encoded in parallel
+ * on an Executor while earlier batches are being written.  Lines are always
+ * written in the order that the objects were given.  At most maxBatches
+ * batches are encoded ahead of the output, so memory use is bounded no matter
+ * how many objects are written.
+ *
+ * Objects must not be modified after they are passed to write, until the
+ * writer has been flushed.  An NDJSONWriter should only be used by one thread
+ * at a time.
+ * */
+public final class NDJSONWriter implements AutoCloseable {
+	/**
+	 * The default number of objects in a batch.
+	 * */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * Exactly one of these is the target.
+	 * */
+	private final Writer writer;
+	private final OutputStream stream;
+	private final WritableByteChannel channel;
+
+	private final Executor executor;
+	private final int batchSize;
+	private final int maxBatches;
+
+	/**
+	 * Batches that have been submitted to the executor, in output order.
+	 * */
+	private final ArrayDeque<CompletableFuture<Batch>> pending = new ArrayDeque<>();
+
+	/**
+	 * The objects that have not been submitted yet.
+	 * */
+	private List<JSONable> objs;
+
+	/**
+	 * The first error, which is reported again by all later calls.
+	 * */
+	private Exception failure = null;
+
+	/**
+	 * Write NDJSON text, using the common ForkJoinPool.
+	 * @param out where to write the text
+	 * */
+	public NDJSONWriter(final Writer out) {
+		this(out, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE,
+			2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Write UTF-8 encoded NDJSON, using the common ForkJoinPool.
+	 * @param out where to write the text
+	 * */
+	public NDJSONWriter(final OutputStream out) {
+		this(out, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE,
+			2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Write UTF-8 encoded NDJSON, using the common ForkJoinPool.
+	 * @param out where to write the text
+	 * */
+	public NDJSONWriter(final WritableByteChannel out) {
+		this(out, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE,
+			2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Write NDJSON text.
+	 * @param out where to write the text
+	 * @param executor the executor that encodes batches of objects
+	 * @param batchSize the number of objects in each batch
+	 * @param maxBatches the maximum number of batches that may be waiting to
+	 * be written
+	 * */
+	public NDJSONWriter(
+		final Writer out, final Executor executor, final int batchSize, final int maxBatches
+	) {
+		this(out, null, null, executor, batchSize, maxBatches);
+	}
+
+	/**
+	 * Write UTF-8 encoded NDJSON.
+	 * @param out where to write the text
+	 * @param executor the executor that encodes batches of objects
+	 * @param batchSize the number of objects in each batch
+	 * @param maxBatches the maximum number of batches that may be waiting to
+	 * be written
+	 * */
+	public NDJSONWriter(
+		final OutputStream out, final Executor executor, final int batchSize, final int maxBatches
+	) {
+		this(null, out, null, executor, batchSize, maxBatches);
+	}
+
+	/**
+	 * Write UTF-8 encoded NDJSON.
+	 * @param out where to write the text
+	 * @param executor the executor that encodes batches of objects
+	 * @param batchSize the number of objects in each batch
+	 * @param maxBatches the maximum number of batches that may be waiting to
+	 * be written
+	 * */
+	public NDJSONWriter(
+		final WritableByteChannel out, final Executor executor, final int batchSize, final int maxBatches
+	) {
+		this(null, null, out, executor, batchSize, maxBatches);
+	}
+
+	private NDJSONWriter(
+		final Writer writer,
+		final OutputStream stream,
+		final WritableByteChannel channel,
+		final Executor executor,
+		final int batchSize,
+		final int maxBatches
+	) {
+		if (writer == null && stream == null && channel == null)
+			throw new NullPointerException("out is null");
+		if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive");
+		if (maxBatches < 1) throw new IllegalArgumentException("maxBatches must be positive");
+
+		this.writer = writer;
+		this.stream = stream;
+		this.channel = channel;
+		this.executor = executor;
+		this.batchSize = batchSize;
+		this.maxBatches = maxBatches;
+		this.objs = new ArrayList<>(batchSize);
+	}
+
+	/**
+	 * Write an object as a line of JSON.  The object may not be written
+	 * immediately.
+	 * @param obj the object to write
+	 * @throws JSONencodeException if this or an earlier object cannot be
+	 * converted to JSON.  All the objects before the one that failed have been
+	 * written.
+	 * @throws IOException if the target throws an IOException
+	 * */
+	public void write(final JSONable obj) throws JSONencodeException, IOException {
+		checkFailure();
+		objs.add(obj);
+		if (objs.size() == batchSize) submit();
+	}
+
+	/**
+	 * Write a sequence of objects, one per line.
+	 * @param objs the objects to write
+	 * @throws JSONencodeException if any of the objects cannot be converted to JSON
+	 * @throws IOException if the target throws an IOException
+	 * */
+	public void writeAll(final Iterable<? extends JSONable> objs)
+		throws JSONencodeException, IOException
+	{
+		writeAll(objs.iterator());
+	}
+
+	/**
+	 * Write a stream of objects, one per line.  The stream is consumed on the
+	 * calling thread.
+	 * @param objs the objects to write
+	 * @throws JSONencodeException if any of the objects cannot be converted to JSON
+	 * @throws IOException if the target throws an IOException
+	 * */
+	public void writeAll(final Stream<? extends JSONable> objs)
+		throws JSONencodeException, IOException
+	{
+		writeAll(objs.iterator());
+	}
+
+	private void writeAll(final Iterator<? extends JSONable> objs)
+		throws JSONencodeException, IOException
+	{
+		while (objs.hasNext()) write(objs.next());
+	}
+
+	/**
+	 * Wait for all the objects to be encoded, write them, and flush the
+	 * target.
+	 * @throws JSONencodeException if an object cannot be converted to JSON
+	 * @throws IOException if the target throws an IOException
+	 * */
+	public void flush() throws JSONencodeException, IOException {
+		checkFailure();
+		if (!objs.isEmpty()) submit();
+		while (!pending.isEmpty()) writeHead();
+		if (writer != null) writer.flush(); else if (stream != null) stream.flush();
+	}
+
+	/**
+	 * Flush all the objects, then close the target.  The target is closed even
+	 * if flushing fails.
+	 * @throws JSONencodeException if an object cannot be converted to JSON
+	 * @throws IOException if the target throws an IOException
+	 * */
+	@Override
+	public void close() throws JSONencodeException, IOException {
+		try {
+			if (failure == null) flush();
+		} finally {
+			for (final CompletableFuture<Batch> f : pending) f.cancel(false);
+			pending.clear();
+			if (writer != null) writer.close();
+			else if (stream != null) stream.close();
+			else channel.close();
+		}
+	}
+
+	/**
+	 * Submit the current batch of objects, first writing the oldest batch if
+	 * there are already too many waiting.
+	 * */
+	private void submit() throws JSONencodeException, IOException {
+		while (pending.size() >= maxBatches) writeHead();
+
+		final List<JSONable> batch = objs;
+		final boolean utf8 = writer == null;
+		objs = new ArrayList<>(batchSize);
+		pending.add(CompletableFuture.supplyAsync(() -> encode(batch, utf8), executor));
+	}
+
+	/**
+	 * Wait for the oldest batch to be encoded, and write it.
+	 * */
+	private void writeHead() throws JSONencodeException, IOException {
+		final Batch batch = await(pending.poll());
+
+		try {
+			if (writer != null) {
+				writer.append(batch.text);
+			} else if (stream != null) {
+				batch.bytes.writeTo(stream);
+			} else {
+				batch.bytes.writeTo(channel);
+			}
+		} catch (final IOException e) {
+			failure = e;
+			throw e;
+		}
+
+		if (batch.error != null) {
+			failure = batch.error;
+			throw batch.error;
+		}
+	}
+
+	/**
+	 * Encode a batch of objects.  This runs on the executor.
+	 * @param batch the objects to encode
+	 * @param utf8 true to encode as UTF-8, otherwise as text
+	 * */
+	private static Batch encode(final List<JSONable> batch, final boolean utf8) {
+		final Batch r = new Batch();
+		final JSONOutput out;
+
+		if (utf8) {
+			r.bytes = new Bytes();
+			out = new UTF8Output(r.bytes);
+		} else {
+			r.text = new StringBuilder();
+			out = new TextOutput(r.text);
+		}
+
+		int complete = 0;
+		try {
+			for (final JSONable obj : batch) {
+				SSJSJS.encode(obj, out);
+				if (utf8) {
+					((UTF8Output) out).endLine();
+					out.flush();
+					complete = r.bytes.size();
+				} else {
+					((TextOutput) out).endLine();
+					out.flush();
+					complete = r.text.length();
+				}
+			}
+		} catch (final JSONencodeException e) {
+			r.error = e;
+			if (utf8) r.bytes.truncate(complete); else r.text.setLength(complete);
+		} catch (final IOException e) {
+			// not possible when writing to memory
+			throw new UncheckedIOException(e);
+		}
+
+		return r;
+	}
+
+	private Batch await(final CompletableFuture<Batch> f) throws IOException {
+		try {
+			return f.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while encoding NDJSON");
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private void checkFailure() throws JSONencodeException, IOException {
+		if (failure instanceof JSONencodeException) throw (JSONencodeException) failure;
+		if (failure instanceof IOException) throw (IOException) failure;
+	}
+
+	/**
+	 * The result of encoding a batch.  If encoding fails, the output contains
+	 * the lines before the object that failed.
+	 * */
+	private static final class Batch {
+		StringBuilder text = null;
+		Bytes bytes = null;
+		JSONencodeException error = null;
+	}
+
+	/**
+	 * A ByteArrayOutputStream that can be truncated, and written to a channel
+	 * without copying.
+	 * */
+	private static final class Bytes extends ByteArrayOutputStream {
+		Bytes() {
+			super(8192);
+		}
+
+		void truncate(final int size) {
+			count = size;
+		}
+
+		void writeTo(final WritableByteChannel channel) throws IOException {
+			final ByteBuffer b = ByteBuffer.wrap(buf, 0, count);
+			while (b.hasRemaining()) channel.write(b);
+		}
+	}
+}
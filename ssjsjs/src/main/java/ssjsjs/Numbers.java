@@ -0,0 +1,401 @@
+package ssjsjs;
+
+import java.math.BigInteger;
+
+/**
+ * Formats numbers as ASCII text without allocating.
+ *
+ * Floating point numbers are formatted with the shortest decimal that rounds
+ * to the same value, using Raffaello Giulietti's Schubfach algorithm ("The
+ * Schubfach way to render doubles", 2020).  The layout follows the
+ * specification of Double.toString and Float.toString, so the output is
+ * always valid JSON.
+ * */
+final class Numbers {
+	private Numbers() {
+	}
+
+	/**
+	 * Enough space for any long, double or float.
+	 * */
+	static final int MAX_LENGTH = 32;
+
+	private static final int DOUBLE_P = 53;
+	private static final int DOUBLE_Q_MIN = -1074;
+	private static final long DOUBLE_C_MIN = 1L << (DOUBLE_P - 1);
+	private static final int DOUBLE_C_TINY = 3;
+
+	private static final int FLOAT_P = 24;
+	private static final int FLOAT_Q_MIN = -149;
+	private static final int FLOAT_C_MIN = 1 << (FLOAT_P - 1);
+	private static final int FLOAT_C_TINY = 8;
+
+	private static final long MASK_63 = 0x7FFFFFFFFFFFFFFFL;
+	private static final long MASK_32 = 0xFFFFFFFFL;
+
+	/**
+	 * The range of decimal exponents that need a power of ten.
+	 * */
+	private static final int K_MIN = -324;
+	private static final int K_MAX = 292;
+
+	/**
+	 * For each k, g = G1[k - K_MIN] 2^63 + G0[k - K_MIN] is floor(b) + 1, where
+	 * 10^(-k) = b 2^r and 2^125 <= b < 2^126.
+	 * */
+	private static final long[] G1 = new long[K_MAX - K_MIN + 1];
+	private static final long[] G0 = new long[K_MAX - K_MIN + 1];
+
+	static {
+		final BigInteger mask63 = BigInteger.valueOf(MASK_63);
+		for (int k = K_MIN; k <= K_MAX; k++) {
+			final int r = flog2pow10(-k) - 125;
+
+			BigInteger g;
+			if (k <= 0) {
+				final BigInteger p = BigInteger.TEN.pow(-k);
+				g = r <= 0? p.shiftLeft(-r) : p.shiftRight(r);
+			} else {
+				g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+			}
+			g = g.add(BigInteger.ONE);
+
+			G1[k - K_MIN] = g.shiftRight(63).longValue();
+			G0[k - K_MIN] = g.and(mask63).longValue();
+		}
+	}
+
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+		1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+		100000000000000L, 1000000000000000L, 10000000000000000L,
+		100000000000000000L, 1000000000000000000L
+	};
+
+	private static final byte[] DIGIT_PAIRS = new byte[200];
+	static {
+		for (int i = 0; i < 100; i++) {
+			DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+			DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+		}
+	}
+
+	/**
+	 * floor(e log10(2)), for |e| <= 5456721.
+	 * */
+	private static int flog10pow2(final int e) {
+		return (int) (e * 661971961083L >> 41);
+	}
+
+	/**
+	 * floor(log10(3/4 2^e)), for |e| <= 5456721.
+	 * */
+	private static int flog10threeQuartersPow2(final int e) {
+		return (int) (e * 661971961083L - 274743187321L >> 41);
+	}
+
+	/**
+	 * floor(e log2(10)), for |e| <= 1838394.
+	 * */
+	private static int flog2pow10(final int e) {
+		return (int) (e * 913124641741L >> 38);
+	}
+
+	/**
+	 * Format a long.
+	 * @param v the value to format
+	 * @param out the buffer to format into, with at least MAX_LENGTH bytes
+	 * available from position
+	 * @param position where to start writing
+	 * @return the position after the last character written
+	 * */
+	static int formatLong(final long v, final byte[] out, int position) {
+		if (v == Long.MIN_VALUE) {
+			out[position++] = '-';
+			out[position++] = '9';
+			return formatPositive(223372036854775808L, out, position);
+		} else if (v < 0) {
+			out[position++] = '-';
+			return formatPositive(-v, out, position);
+		} else {
+			return formatPositive(v, out, position);
+		}
+	}
+
+	private static int formatPositive(long v, final byte[] out, final int position) {
+		final int length = digits(v);
+		int p = position + length;
+
+		while (v >= 100) {
+			final int r = (int) (v % 100);
+			v /= 100;
+			out[--p] = DIGIT_PAIRS[2 * r + 1];
+			out[--p] = DIGIT_PAIRS[2 * r];
+		}
+		if (v >= 10) {
+			out[--p] = DIGIT_PAIRS[2 * (int) v + 1];
+			out[--p] = DIGIT_PAIRS[2 * (int) v];
+		} else {
+			out[--p] = (byte) ('0' + v);
+		}
+
+		return position + length;
+	}
+
+	/**
+	 * The number of decimal digits in a non-negative long.
+	 * */
+	private static int digits(final long v) {
+		int n = 1;
+		while (n < POWERS_OF_TEN.length && v >= POWERS_OF_TEN[n]) n += 1;
+		return n;
+	}
+
+	/**
+	 * Format a finite double.
+	 * @param v the value to format
+	 * @param out the buffer to format into, with at least MAX_LENGTH bytes
+	 * available from position
+	 * @param position where to start writing
+	 * @return the position after the last character written
+	 * */
+	static int formatDouble(final double v, final byte[] out, int position) {
+		final long bits = Double.doubleToRawLongBits(v);
+		final long t = bits & (DOUBLE_C_MIN - 1);
+		final int bq = (int) (bits >>> (DOUBLE_P - 1)) & 0x7FF;
+
+		if (bits < 0) out[position++] = '-';
+
+		if (bq != 0) {
+			// normal value
+			final int mq = -DOUBLE_Q_MIN + 1 - bq;
+			final long c = DOUBLE_C_MIN | t;
+
+			// integers are formatted exactly
+			if (0 < mq && mq < DOUBLE_P) {
+				final long f = c >> mq;
+				if (f << mq == c) return layout(f, 0, out, position);
+			}
+
+			return toDecimal(-mq, c, 0, out, position);
+
+		} else if (t != 0) {
+			// subnormal value
+			return t < DOUBLE_C_TINY?
+				toDecimal(DOUBLE_Q_MIN, 10 * t, -1, out, position) :
+				toDecimal(DOUBLE_Q_MIN, t, 0, out, position);
+
+		} else {
+			out[position++] = '0';
+			out[position++] = '.';
+			out[position++] = '0';
+			return position;
+		}
+	}
+
+	private static int toDecimal(
+		final int q, final long c, final int dk, final byte[] out, final int position
+	) {
+		final int parity = (int) c & 0x1;
+		final long cb = c << 2;
+		final long cbr = cb + 2;
+		final long cbl;
+		final int k;
+
+		if (c != DOUBLE_C_MIN || q == DOUBLE_Q_MIN) {
+			// regular spacing
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			// irregular spacing
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		final int h = q + flog2pow10(-k) + 2;
+
+		final long g1 = G1[k - K_MIN];
+		final long g0 = G0[k - K_MIN];
+
+		final long vb = rop(g1, g0, cb << h);
+		final long vbl = rop(g1, g0, cbl << h);
+		final long vbr = rop(g1, g0, cbr << h);
+
+		final long s = vb >> 2;
+		if (s >= 100) {
+			// s' = floor(s / 10)
+			final long sp10 = 10 * Math.multiplyHigh(s, 115292150460684698L << 4);
+			final long tp10 = sp10 + 10;
+			final boolean upin = vbl + parity <= sp10 << 2;
+			final boolean wpin = (tp10 << 2) + parity <= vbr;
+			if (upin != wpin) return layout(upin? sp10 : tp10, k, out, position);
+		}
+
+		final long t = s + 1;
+		final boolean uin = vbl + parity <= s << 2;
+		final boolean win = (t << 2) + parity <= vbr;
+		if (uin != win) return layout(uin? s : t, k + dk, out, position);
+
+		final long cmp = vb - (s + t << 1);
+		return layout(cmp < 0 || cmp == 0 && (s & 0x1) == 0? s : t, k + dk, out, position);
+	}
+
+	/**
+	 * Compute round-to-odd of cp g 2^(-127), where g = g1 2^63 + g0.
+	 * */
+	private static long rop(final long g1, final long g0, final long cp) {
+		final long x1 = Math.multiplyHigh(g0, cp);
+		final long y0 = g1 * cp;
+		final long y1 = Math.multiplyHigh(g1, cp);
+		final long z = (y0 >>> 1) + x1;
+		final long vbp = y1 + (z >>> 63);
+		return vbp | (z & MASK_63) + MASK_63 >>> 63;
+	}
+
+	/**
+	 * Format a finite float.
+	 * @param v the value to format
+	 * @param out the buffer to format into, with at least MAX_LENGTH bytes
+	 * available from position
+	 * @param position where to start writing
+	 * @return the position after the last character written
+	 * */
+	static int formatFloat(final float v, final byte[] out, int position) {
+		final int bits = Float.floatToRawIntBits(v);
+		final int t = bits & (FLOAT_C_MIN - 1);
+		final int bq = (bits >>> (FLOAT_P - 1)) & 0xFF;
+
+		if (bits < 0) out[position++] = '-';
+
+		if (bq != 0) {
+			// normal value
+			final int mq = -FLOAT_Q_MIN + 1 - bq;
+			final int c = FLOAT_C_MIN | t;
+
+			// integers are formatted exactly
+			if (0 < mq && mq < FLOAT_P) {
+				final int f = c >> mq;
+				if (f << mq == c) return layout(f, 0, out, position);
+			}
+
+			return toDecimal(-mq, c, 0, out, position);
+
+		} else if (t != 0) {
+			// subnormal value
+			return t < FLOAT_C_TINY?
+				toDecimal(FLOAT_Q_MIN, 10 * t, -1, out, position) :
+				toDecimal(FLOAT_Q_MIN, t, 0, out, position);
+
+		} else {
+			out[position++] = '0';
+			out[position++] = '.';
+			out[position++] = '0';
+			return position;
+		}
+	}
+
+	private static int toDecimal(
+		final int q, final int c, final int dk, final byte[] out, final int position
+	) {
+		final int parity = c & 0x1;
+		final long cb = ((long) c) << 2;
+		final long cbr = cb + 2;
+		final long cbl;
+		final int k;
+
+		if (c != FLOAT_C_MIN || q == FLOAT_Q_MIN) {
+			// regular spacing
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			// irregular spacing
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		final int h = q + flog2pow10(-k) + 33;
+
+		final long g = G1[k - K_MIN] + 1;
+
+		final int vb = rop(g, cb << h);
+		final int vbl = rop(g, cbl << h);
+		final int vbr = rop(g, cbr << h);
+
+		final int s = vb >> 2;
+		if (s >= 100) {
+			// s' = floor(s / 10)
+			final int sp10 = 10 * (int) (s * 1717986919L >>> 34);
+			final int tp10 = sp10 + 10;
+			final boolean upin = vbl + parity <= sp10 << 2;
+			final boolean wpin = (tp10 << 2) + parity <= vbr;
+			if (upin != wpin) return layout(upin? sp10 : tp10, k, out, position);
+		}
+
+		final int t = s + 1;
+		final boolean uin = vbl + parity <= s << 2;
+		final boolean win = (t << 2) + parity <= vbr;
+		if (uin != win) return layout(uin? s : t, k + dk, out, position);
+
+		final int cmp = vb - (s + t << 1);
+		return layout(cmp < 0 || cmp == 0 && (s & 0x1) == 0? s : t, k + dk, out, position);
+	}
+
+	/**
+	 * Compute round-to-odd of cp g 2^(-95).
+	 * */
+	private static int rop(final long g, final long cp) {
+		final long x1 = Math.multiplyHigh(g, cp);
+		final long vbp = x1 >>> 31;
+		return (int) (vbp | (x1 & MASK_32) + MASK_32 >>> 32);
+	}
+
+	/**
+	 * Lay out the decimal f 10^e in the style of Double.toString.
+	 * */
+	private static int layout(long f, int e, final byte[] out, int position) {
+		while (f % 10 == 0) {
+			f /= 10;
+			e += 1;
+		}
+
+		final int n = digits(f);
+
+		// the value is d.ddd 10^exponent
+		final int exponent = n - 1 + e;
+
+		if (exponent >= 0 && exponent < 7) {
+			if (n <= exponent + 1) {
+				position = formatPositive(f, out, position);
+				for (int i = n; i <= exponent; i++) out[position++] = '0';
+				out[position++] = '.';
+				out[position++] = '0';
+			} else {
+				final int end = formatPositive(f, out, position + 1);
+				// shift the integer digits left to make room for the point
+				final int integerDigits = exponent + 1;
+				System.arraycopy(out, position + 1, out, position, integerDigits);
+				out[position + integerDigits] = '.';
+				position = end;
+			}
+
+		} else if (exponent < 0 && exponent >= -3) {
+			out[position++] = '0';
+			out[position++] = '.';
+			for (int i = exponent + 1; i < 0; i++) out[position++] = '0';
+			position = formatPositive(f, out, position);
+
+		} else {
+			final int end = formatPositive(f, out, position + 1);
+			out[position] = out[position + 1];
+			out[position + 1] = '.';
+			if (n == 1) {
+				out[position + 2] = '0';
+				position += 3;
+			} else {
+				position = end;
+			}
+			out[position++] = 'E';
+			position = formatLong(exponent, out, position);
+		}
+
+		return position;
+	}
+}
@@ -0,0 +1,240 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * Splits the elements of very large collections, maps and arrays into chunks
+ * that are encoded or decoded on a ForkJoinPool.  The results of the chunks
+ * are always combined in order, so the output is the same as when the
+ * elements are processed one at a time.
+ *
+ * This is disabled by default.  See SSJSJS.setParallelThreshold.
+ * */
+final class Parallel {
+	private Parallel() {
+	}
+
+	/**
+	 * The smallest number of elements that is worth processing on another
+	 * thread.
+	 * */
+	private static final int MIN_CHUNK = 256;
+
+	/**
+	 * The number of elements at which to start splitting, or 0 if splitting is
+	 * disabled.
+	 * */
+	private static volatile int threshold = 0;
+
+	/**
+	 * The pool to run chunks on, or null for the common pool.
+	 * */
+	private static volatile ForkJoinPool pool = null;
+
+	static void setThreshold(final int threshold) {
+		if (threshold < 0) throw new IllegalArgumentException("threshold must not be negative");
+		Parallel.threshold = threshold;
+	}
+
+	static void setPool(final ForkJoinPool pool) {
+		Parallel.pool = pool;
+	}
+
+	/**
+	 * Determine if a collection is large enough to split.
+	 * @param size the number of elements
+	 * @return true if the elements should be processed in parallel
+	 * */
+	static boolean isWorthSplitting(final int size) {
+		final int t = threshold;
+		return t > 0 && size >= t && size >= 2 * MIN_CHUNK;
+	}
+
+	/**
+	 * Processes the elements from start (inclusive) to end (exclusive).
+	 * */
+	interface Chunk<R, E extends Exception> {
+		R apply(int start, int end) throws E;
+	}
+
+	/**
+	 * Writes one element to a stream of JSON.
+	 * */
+	interface ElementWriter {
+		void write(Object element, JSONOutput out) throws JSONencodeException, IOException;
+	}
+
+	/**
+	 * Split a range of elements into chunks, and process them in parallel.
+	 * @param size the number of elements
+	 * @param chunk processes a chunk of elements
+	 * @param failure the type of checked exception that chunk may throw
+	 * @return the results of each chunk, in order
+	 * @throws E the exception thrown by the first chunk that failed, in order
+	 * */
+	static <R, E extends Exception> List<R> run(
+		final int size, final Chunk<R, E> chunk, final Class<E> failure
+	) throws E
+	{
+		final ForkJoinPool p = pool == null? ForkJoinPool.commonPool() : pool;
+		final boolean inPool = ForkJoinTask.getPool() == p;
+		final int chunks = Math.max(1, Math.min(4 * p.getParallelism(), size / MIN_CHUNK));
+
+		final List<ChunkTask<R>> tasks = new ArrayList<>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			final ChunkTask<R> task = new ChunkTask<>(chunk,
+				(int) ((long) size * i / chunks), (int) ((long) size * (i + 1) / chunks));
+			tasks.add(task);
+			if (inPool) task.fork(); else p.execute(task);
+		}
+
+		final List<R> results = new ArrayList<>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			final ChunkTask<R> task = tasks.get(i);
+			final R r = task.join();
+
+			if (task.failure != null) {
+				for (int j = i + 1; j < chunks; j++) tasks.get(j).cancel(false);
+				if (failure.isInstance(task.failure)) throw failure.cast(task.failure);
+				else if (task.failure instanceof RuntimeException) throw (RuntimeException) task.failure;
+				else throw new RuntimeException(task.failure);
+			}
+
+			results.add(r);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Encode the elements of an array in parallel.
+	 * @param element the codec for the elements
+	 * @param items the elements to encode
+	 * @param keys the map keys of the elements, or null if they are array
+	 * elements.  These are used to report where an error occurred.
+	 * @return the encoded elements, in the same order as items
+	 * @throws JSONencodeException if any element cannot be encoded
+	 * */
+	static Object[] encode(final TypeCodec element, final Object[] items, final String[] keys)
+		throws JSONencodeException
+	{
+		final Object[] out = new Object[items.length];
+		run(items.length, (start, end) -> {
+			for (int i = start; i < end; i++) {
+				try {
+					out[i] = element.encode(items[i]);
+				} catch (final JSONencodeException e) {
+					throw keys == null? e.atIndex(i) : e.atKey(keys[i]);
+				}
+			}
+			return null;
+		}, JSONencodeException.class);
+		return out;
+	}
+
+	/**
+	 * Decode elements in parallel.
+	 * @param element the codec for the elements
+	 * @param source gets the JSON value of each element by index
+	 * @param out where to store the decoded elements.  Its length is the number
+	 * of elements.
+	 * @param keys the map keys of the elements, or null if they are array
+	 * elements.  These are used to report where an error occurred.
+	 * @param environment the environment for implicit fields (may be null)
+	 * @throws JSONdecodeException if any element cannot be decoded.  If more
+	 * than one fails, this is the error for the first one.
+	 * */
+	static void decode(
+		final TypeCodec element,
+		final IntFunction<Object> source,
+		final Object[] out,
+		final String[] keys,
+		final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		run(out.length, (start, end) -> {
+			for (int i = start; i < end; i++) {
+				try {
+					out[i] = element.decode(source.apply(i), environment);
+				} catch (final JSONdecodeException e) {
+					throw keys == null? e.atIndex(i) : e.atKey(keys[i]);
+				}
+			}
+			return null;
+		}, JSONdecodeException.class);
+	}
+
+	/**
+	 * Write the elements of an array to a stream of JSON in parallel.  Each
+	 * chunk is written to a fork of out, and the forks are joined in order.
+	 * out must support forking.
+	 * @param items the elements to write
+	 * @param keys the map keys of the elements, or null if they are array
+	 * elements.  These are used to report where an error occurred.
+	 * @param out where to write the elements
+	 * @param writer writes each element
+	 * @throws JSONencodeException if any element cannot be encoded
+	 * @throws IOException if the output cannot be written
+	 * */
+	static void write(
+		final Object[] items, final String[] keys, final JSONOutput out, final ElementWriter writer
+	) throws JSONencodeException, IOException
+	{
+		final List<JSONOutput> parts = run(items.length, (start, end) -> {
+			final JSONOutput part = out.fork();
+			try {
+				for (int i = start; i < end; i++) {
+					try {
+						writer.write(items[i], part);
+					} catch (final JSONencodeException e) {
+						throw keys == null? e.atIndex(i) : e.atKey(keys[i]);
+					}
+				}
+				part.flush();
+			} catch (final IOException e) {
+				// not possible when writing to memory
+				throw new UncheckedIOException(e);
+			}
+			return part;
+		}, JSONencodeException.class);
+
+		for (final JSONOutput part : parts) out.join(part);
+	}
+
+	private static final class ChunkTask<R> extends RecursiveTask<R> {
+		private static final long serialVersionUID = 1L;
+
+		private final transient Chunk<R, ?> chunk;
+		private final int start;
+		private final int end;
+
+		/**
+		 * The exception thrown by the chunk, if it failed.
+		 * */
+		transient Exception failure = null;
+
+		ChunkTask(final Chunk<R, ?> chunk, final int start, final int end) {
+			this.chunk = chunk;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected R compute() {
+			try {
+				return chunk.apply(start, end);
+			} catch (final Exception e) {
+				failure = e;
+				return null;
+			}
+		}
+	}
+}
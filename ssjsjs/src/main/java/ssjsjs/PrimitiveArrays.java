@@ -0,0 +1,225 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Decodes arrays of primitives in a single pass, without boxing the
+ * elements or dispatching on the type of each element.
+ *
+ * Elements are converted following the same rules as the element codecs,
+ * i.e. any Number may be converted to any numeric type, and chars may be
+ * given as Strings of length 1.
+ * */
+final class PrimitiveArrays {
+	private PrimitiveArrays() {
+	}
+
+	/**
+	 * Decode an array of primitives from a JSONArray.
+	 * @param array the JSON array
+	 * @param componentClass the primitive component type
+	 * @param fieldName the name of the field, for error messages
+	 * @return the decoded array
+	 * @throws JSONdecodeException if an element is null or of the wrong type
+	 * */
+	static Object decode(
+		final JSONArray array, final Class<?> componentClass, final String fieldName
+	) throws JSONdecodeException
+	{
+		final int length = array.length();
+
+		if (componentClass == int.class) {
+			final int[] r = new int[length];
+			for (int i = 0; i < length; i++) r[i] = number(array.opt(i), componentClass, fieldName).intValue();
+			return r;
+		} else if (componentClass == long.class) {
+			final long[] r = new long[length];
+			for (int i = 0; i < length; i++) r[i] = number(array.opt(i), componentClass, fieldName).longValue();
+			return r;
+		} else if (componentClass == double.class) {
+			final double[] r = new double[length];
+			for (int i = 0; i < length; i++) r[i] = number(array.opt(i), componentClass, fieldName).doubleValue();
+			return r;
+		} else if (componentClass == float.class) {
+			final float[] r = new float[length];
+			for (int i = 0; i < length; i++) r[i] = number(array.opt(i), componentClass, fieldName).floatValue();
+			return r;
+		} else if (componentClass == short.class) {
+			final short[] r = new short[length];
+			for (int i = 0; i < length; i++) r[i] = number(array.opt(i), componentClass, fieldName).shortValue();
+			return r;
+		} else if (componentClass == byte.class) {
+			final byte[] r = new byte[length];
+			for (int i = 0; i < length; i++) r[i] = number(array.opt(i), componentClass, fieldName).byteValue();
+			return r;
+		} else if (componentClass == boolean.class) {
+			final boolean[] r = new boolean[length];
+			for (int i = 0; i < length; i++) r[i] = bool(array.opt(i), fieldName);
+			return r;
+		} else if (componentClass == char.class) {
+			final char[] r = new char[length];
+			for (int i = 0; i < length; i++) r[i] = character(array.opt(i), fieldName);
+			return r;
+		} else {
+			throw new IllegalArgumentException("Not a primitive type: " + componentClass);
+		}
+	}
+
+	/**
+	 * Read an array of primitives from a stream of JSON.  The stream must be
+	 * positioned at the start of an array.
+	 * @param in the stream to read from
+	 * @param componentClass the primitive component type
+	 * @param element the codec for the elements, used for elements that are not
+	 * simple numbers
+	 * @param fieldName the name of the field, for error messages
+	 * @return the decoded array
+	 * @throws JSONdecodeException if an element is null or of the wrong type
+	 * @throws IOException if the input cannot be read
+	 * */
+	static Object read(
+		final JSONInput in,
+		final Class<?> componentClass,
+		final TypeCodec element,
+		final String fieldName
+	) throws JSONdecodeException, IOException
+	{
+		int n = 0;
+		in.beginArray();
+
+		if (componentClass == int.class) {
+			int[] r = new int[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.isLong()? (int) in.nextLong() : readNumber(in, element, fieldName).intValue();
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == long.class) {
+			long[] r = new long[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.isLong()? in.nextLong() : readNumber(in, element, fieldName).longValue();
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == double.class) {
+			double[] r = new double[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.isLong()? (double) in.nextLong() :
+					readNumber(in, element, fieldName).doubleValue();
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == float.class) {
+			float[] r = new float[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.isLong()? (float) in.nextLong() :
+					readNumber(in, element, fieldName).floatValue();
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == short.class) {
+			short[] r = new short[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.isLong()? (short) in.nextLong() :
+					readNumber(in, element, fieldName).shortValue();
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == byte.class) {
+			byte[] r = new byte[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.isLong()? (byte) in.nextLong() :
+					readNumber(in, element, fieldName).byteValue();
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == boolean.class) {
+			boolean[] r = new boolean[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = in.peek() == JSONInput.BOOLEAN? in.nextBoolean() :
+					bool(element.read(in, null), fieldName);
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else if (componentClass == char.class) {
+			char[] r = new char[16];
+			while (in.hasNext()) {
+				if (n == r.length) r = Arrays.copyOf(r, n * 2);
+				r[n++] = character(element.read(in, null), fieldName);
+			}
+			in.endArray();
+			return n == r.length? r : Arrays.copyOf(r, n);
+
+		} else {
+			throw new IllegalArgumentException("Not a primitive type: " + componentClass);
+		}
+	}
+
+	private static Number readNumber(
+		final JSONInput in, final TypeCodec element, final String fieldName
+	) throws JSONdecodeException, IOException
+	{
+		final Object value = element.read(in, null);
+		if (value == null) throw nullElement(fieldName);
+		return (Number) value;
+	}
+
+	private static Number number(
+		final Object value, final Class<?> componentClass, final String fieldName
+	) throws JSONdecodeException
+	{
+		if (value instanceof Number) return (Number) value;
+		else if (value == null || value == JSONObject.NULL) throw nullElement(fieldName);
+		else throw JSONdecodeException.stackless("Expected a '" + componentClass +
+			"' for field '" + fieldName + "[]', but got a " + value.getClass().getSimpleName());
+	}
+
+	private static boolean bool(final Object value, final String fieldName)
+		throws JSONdecodeException
+	{
+		if (value instanceof Boolean) return (Boolean) value;
+		else if (value == null || value == JSONObject.NULL) throw nullElement(fieldName);
+		else throw wrongType(value, boolean.class, fieldName);
+	}
+
+	private static char character(final Object value, final String fieldName)
+		throws JSONdecodeException
+	{
+		if (value instanceof Character) return (Character) value;
+		else if (value instanceof String && ((String) value).length() == 1)
+			return ((String) value).charAt(0);
+		else if (value == null || value == JSONObject.NULL) throw nullElement(fieldName);
+		else throw wrongType(value, char.class, fieldName);
+	}
+
+	private static JSONdecodeException nullElement(final String fieldName) {
+		return JSONdecodeException.stackless(
+			"Null element in array of primitives in field '" + fieldName + "'");
+	}
+
+	private static JSONdecodeException wrongType(
+		final Object value, final Class<?> componentClass, final String fieldName
+	) {
+		return JSONdecodeException.stackless("Cannot deserialize field '" +
+			fieldName + "[]' of type '" + componentClass.getTypeName() +
+			"' from object of type '" + value.getClass() + "'");
+	}
+}
@@ -0,0 +1,415 @@
+package ssjsjs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.module.ModuleReader;
+import java.lang.module.ModuleReference;
+import java.lang.module.ResolvedModule;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Builds codecs ahead of time, so that the first object of each class to be
+ * encoded or decoded doesn't pay for reflection, annotation processing and
+ * class initialization.
+ *
+ * Registering a class registers every JSONable class that can be reached
+ * from its fields (through nested objects, collections, maps, optionals,
+ * arrays and lazy fields), and checks the annotations of all of them, so
+ * that mistakes are reported at startup instead of on the first request.
+ *
+ * Warming up a class decodes and encodes a synthetic instance of it many
+ * times, so that the JIT has compiled the codec before real traffic
+ * arrives.  See SSJSJS.register and SSJSJS.warmUp.
+ * */
+final class Registry {
+	private Registry() {
+	}
+
+	/**
+	 * Register classes and everything reachable from them.
+	 * @param classes the classes to register
+	 * @return every class that was registered, in the order they were reached
+	 * @throws IllegalArgumentException if any class is invalid
+	 * */
+	static Set<Class<? extends JSONable>> register(final Class<?>[] classes) {
+		final Set<Class<? extends JSONable>> seen = new LinkedHashSet<>();
+		for (final Class<?> clazz : classes) {
+			if (!JSONable.class.isAssignableFrom(clazz)) throw new IllegalArgumentException(
+				"Cannot register " + clazz.getName() + " because it is not JSONable");
+			visit(clazz.asSubclass(JSONable.class), null, seen);
+		}
+		return Collections.unmodifiableSet(seen);
+	}
+
+	/**
+	 * Register every concrete JSONable class in a named module.
+	 * @param module the module to scan
+	 * @return every class that was registered
+	 * @throws IllegalArgumentException if the module is not a named module in
+	 * a module layer, or any class is invalid
+	 * */
+	static Set<Class<? extends JSONable>> register(final Module module) {
+		if (!module.isNamed() || module.getLayer() == null) throw new IllegalArgumentException(
+			"Cannot scan " + module + " because it is not a named module in a module layer");
+
+		final ModuleReference reference = module.getLayer().configuration()
+			.findModule(module.getName())
+			.map(ResolvedModule::reference)
+			.orElseThrow(() -> new IllegalArgumentException("Cannot find " + module));
+
+		final List<String> resources;
+		try (
+			ModuleReader reader = reference.open();
+			Stream<String> list = reader.list()
+		) {
+			resources = list.collect(Collectors.toList());
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return register(candidates(resources, module.getClassLoader()));
+	}
+
+	/**
+	 * Register every concrete JSONable class in a package and its
+	 * subpackages.  Packages in directories and jar files are supported.
+	 * @param packageName the package to scan
+	 * @param loader the class loader to find the package with
+	 * @return every class that was registered
+	 * @throws IllegalArgumentException if any class is invalid
+	 * */
+	static Set<Class<? extends JSONable>> register(
+		final String packageName, final ClassLoader loader
+	) {
+		final String path = packageName.replace('.', '/');
+		final List<String> resources = new ArrayList<>();
+
+		try {
+			final Enumeration<URL> urls = loader.getResources(path);
+			while (urls.hasMoreElements()) {
+				final URL url = urls.nextElement();
+				if (url.getProtocol().equals("file")) {
+					listDirectory(Paths.get(url.toURI()), path, resources);
+				} else if (url.getProtocol().equals("jar")) {
+					listJar(url, path, resources);
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (final URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		return register(candidates(resources, loader));
+	}
+
+	private static void listDirectory(
+		final Path dir, final String path, final List<String> out
+	) throws IOException
+	{
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.filter(Files::isRegularFile).forEach(f -> out.add(path + "/" +
+				dir.relativize(f).toString().replace(File.separatorChar, '/')));
+		}
+	}
+
+	private static void listJar(
+		final URL url, final String path, final List<String> out
+	) throws IOException
+	{
+		final JarURLConnection connection = (JarURLConnection) url.openConnection();
+		connection.setUseCaches(false);
+		try (JarFile jar = connection.getJarFile()) {
+			final Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				final String name = entries.nextElement().getName();
+				if (name.startsWith(path + "/")) out.add(name);
+			}
+		}
+	}
+
+	/**
+	 * Find the concrete JSONable classes in a list of resources.  Classes
+	 * that cannot be loaded are ignored.
+	 * @param resources resource names, such as "a/b/C.class"
+	 * @param loader the class loader to load the classes with
+	 * @return the classes, sorted by name
+	 * */
+	private static Class<?>[] candidates(
+		final List<String> resources, final ClassLoader loader
+	) {
+		final List<Class<?>> out = new ArrayList<>();
+
+		resources.stream()
+			.filter(r -> r.endsWith(".class") &&
+				!r.endsWith("module-info.class") && !r.endsWith("package-info.class"))
+			.map(r -> r.substring(0, r.length() - ".class".length()).replace('/', '.'))
+			.sorted()
+			.forEach(name -> {
+				final Class<?> c;
+				try {
+					c = Class.forName(name, false, loader);
+				} catch (final ClassNotFoundException | LinkageError e) {
+					return;
+				}
+
+				if (JSONable.class.isAssignableFrom(c) &&
+					!c.isInterface() &&
+					!Modifier.isAbstract(c.getModifiers()) &&
+					!c.isAnonymousClass() &&
+					!Collection.class.isAssignableFrom(c) &&
+					!Map.class.isAssignableFrom(c)) out.add(c);
+			});
+
+		return out.toArray(new Class<?>[0]);
+	}
+
+	/**
+	 * Register a class, then everything reachable from its fields.
+	 * @param clazz the class to register
+	 * @param via where the class was reached from, for error messages, or
+	 * null if it was registered directly
+	 * @param seen the classes registered so far
+	 * */
+	private static void visit(
+		final Class<? extends JSONable> clazz,
+		final String via,
+		final Set<Class<? extends JSONable>> seen
+	) {
+		if (!seen.add(clazz)) return;
+
+		final Codec<?> codec;
+		try {
+			initialize(clazz);
+			codec = Codec.of(clazz);
+			if (codec.generated == null) {
+				codec.checkEncodable();
+				codec.checkDecodable();
+			}
+		} catch (final JSONencodeException | JSONdecodeException e) {
+			throw invalid(clazz, via, e.getMessage(), e);
+		} catch (final RuntimeException | LinkageError e) {
+			throw invalid(clazz, via, e.toString(), e);
+		}
+
+		for (final Codec.Slot slot : codec.fields) {
+			visit(slot.type, clazz, slot, seen);
+		}
+	}
+
+	/**
+	 * Register everything reachable from the type of a field.
+	 * */
+	private static void visit(
+		final Type type,
+		final Class<?> owner,
+		final Codec.Slot slot,
+		final Set<Class<? extends JSONable>> seen
+	) {
+		if (type instanceof Class) {
+			final Class<?> c = (Class<?>) type;
+
+			if (c.isArray()) {
+				visit(c.getComponentType(), owner, slot, seen);
+			} else if (c.isEnum()) {
+				try {
+					initialize(c);
+				} catch (final LinkageError e) {
+					throw invalid(owner, null, "Cannot initialize " + c.getName() +
+						" for field '" + slot.outputName + "'", e);
+				}
+			} else if (JSONable.class.isAssignableFrom(c) &&
+				!Collection.class.isAssignableFrom(c) &&
+				!Map.class.isAssignableFrom(c))
+			{
+				visit(c.asSubclass(JSONable.class), owner.getName() + "." + slot.outputName, seen);
+			} else if (!SSJSJS.isJSONPrimitive(c) && Modifier.isFinal(c.getModifiers())) {
+				// A final class can't hold any value that can be encoded.
+				throw invalid(owner, null, "Cannot encode field '" + slot.outputName +
+					"' of type '" + slot.type.getTypeName() + "'", null);
+			}
+
+		} else if (type instanceof ParameterizedType) {
+			final ParameterizedType p = (ParameterizedType) type;
+			final Type[] args = p.getActualTypeArguments();
+
+			if (p.getRawType() == Map.class && args.length == 2 && args[0] != String.class) {
+				throw invalid(owner, null, "Cannot encode field '" + slot.outputName +
+					"' of type '" + slot.type.getTypeName() + "' because map keys must be Strings",
+					null);
+			}
+
+			for (final Type arg : args) visit(arg, owner, slot, seen);
+
+		} else if (type instanceof GenericArrayType) {
+			visit(((GenericArrayType) type).getGenericComponentType(), owner, slot, seen);
+		}
+	}
+
+	private static void initialize(final Class<?> clazz) {
+		try {
+			Class.forName(clazz.getName(), true, clazz.getClassLoader());
+		} catch (final ClassNotFoundException e) {
+			throw new NoClassDefFoundError(clazz.getName());
+		}
+	}
+
+	private static IllegalArgumentException invalid(
+		final Class<?> clazz, final String via, final String message, final Throwable cause
+	) {
+		return new IllegalArgumentException("Invalid JSONable class " + clazz.getName() +
+			(via == null? "" : " (reached from " + via + ")") + ": " + message, cause);
+	}
+
+	/**
+	 * Register classes, then decode and encode a synthetic instance of each
+	 * registered class.  Classes for which no synthetic instance can be made
+	 * (e.g. because the constructor rejects the synthetic values, or an
+	 * implicit field is missing from the environment) are registered but not
+	 * warmed up.
+	 * @param rounds the number of times to decode and encode each instance
+	 * @param environment the environment for implicit fields (may be null)
+	 * @param classes the classes to warm up
+	 * @throws IllegalArgumentException if any class is invalid
+	 * */
+	static void warmUp(
+		final int rounds, final Map<String, Object> environment, final Class<?>[] classes
+	) {
+		if (rounds < 0) throw new IllegalArgumentException("rounds must not be negative");
+
+		for (final Class<? extends JSONable> clazz : register(classes)) {
+			final JSONObject json = sampleObject(clazz, new HashSet<>());
+			if (json == null) continue;
+
+			try {
+				for (int i = 0; i < rounds; i++) roundTrip(clazz, json, environment);
+			} catch (final JSONencodeException | JSONdecodeException | IOException e) {
+				// this class can't be warmed up with synthetic values
+			}
+		}
+	}
+
+	private static <T extends JSONable> void roundTrip(
+		final Class<T> clazz, final JSONObject json, final Map<String, Object> environment
+	) throws JSONencodeException, JSONdecodeException, IOException
+	{
+		final T obj = SSJSJS.decode(json, clazz, environment);
+		SSJSJS.encode(obj);
+		SSJSJS.decode(new StringReader(SSJSJS.encodeToString(obj)), clazz, environment);
+		SSJSJS.decode(new ByteArrayInputStream(SSJSJS.encodeToBytes(obj)), clazz, environment);
+	}
+
+	/**
+	 * Make synthetic JSON for a class, with every field present and every
+	 * collection, array and map holding one element.
+	 * @param clazz the class
+	 * @param visiting the classes that are being made further up, to stop
+	 * recursive classes from recursing forever
+	 * @return the JSON, or null if it cannot be made
+	 * */
+	private static JSONObject sampleObject(
+		final Class<? extends JSONable> clazz, final Set<Class<?>> visiting
+	) {
+		if (!visiting.add(clazz)) return null;
+
+		try {
+			final JSONObject out = new JSONObject();
+			for (final Codec.Slot slot : Codec.of(clazz).fields) {
+				final Object value = sample(slot.type, visiting);
+				if (value != null) {
+					out.put(slot.outputName, value);
+				} else if (!slot.nullable && slot.clazz != Optional.class) {
+					return null;
+				}
+			}
+			return out;
+		} finally {
+			visiting.remove(clazz);
+		}
+	}
+
+	/**
+	 * Make a synthetic JSON value for a type.
+	 * @return the value, or null if no value can be made
+	 * */
+	private static Object sample(final Type type, final Set<Class<?>> visiting) {
+		if (type instanceof Class) {
+			final Class<?> c = (Class<?>) type;
+
+			if (c == String.class) {
+				return "warm-up";
+			} else if (c == boolean.class || c == Boolean.class) {
+				return true;
+			} else if (c == char.class || c == Character.class) {
+				return "x";
+			} else if (TypeCodec.NumberCodec.kindOf(c) != TypeCodec.NumberCodec.NONE) {
+				return 1;
+			} else if (c.isEnum()) {
+				final Object[] constants = c.getEnumConstants();
+				return constants.length == 0? null : constants[0].toString();
+			} else if (c.isArray()) {
+				return sampleArray(c.getComponentType(), visiting);
+			} else if (JSONable.class.isAssignableFrom(c)) {
+				return sampleObject(c.asSubclass(JSONable.class), visiting);
+			}
+
+		} else if (type instanceof ParameterizedType) {
+			final ParameterizedType p = (ParameterizedType) type;
+			final Type raw = p.getRawType();
+			final Type[] args = p.getActualTypeArguments();
+
+			if ((raw == Optional.class || raw == Lazy.class) && args.length == 1) {
+				return sample(args[0], visiting);
+			} else if ((raw == List.class || raw == Set.class || raw == Collection.class) &&
+				args.length == 1)
+			{
+				return sampleArray(args[0], visiting);
+			} else if (raw == Map.class && args.length == 2) {
+				final JSONObject out = new JSONObject();
+				final Object value = sample(args[1], visiting);
+				if (value != null) out.put("key", value);
+				return out;
+			}
+
+		} else if (type instanceof GenericArrayType) {
+			return sampleArray(((GenericArrayType) type).getGenericComponentType(), visiting);
+		}
+
+		return null;
+	}
+
+	private static JSONArray sampleArray(final Type element, final Set<Class<?>> visiting) {
+		final JSONArray out = new JSONArray();
+		final Object value = sample(element, visiting);
+		if (value != null) out.put(value);
+		return out;
+	}
+}
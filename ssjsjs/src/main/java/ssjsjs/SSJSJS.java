@@ -1,13 +1,21 @@
 package ssjsjs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.lang.reflect.Array;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
-import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -17,17 +25,173 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import ssjsjs.annotations.As;
-import ssjsjs.annotations.Implicit;
-import ssjsjs.annotations.JSON;
-import ssjsjs.annotations.Nullable;
 
 /**
  * Contains routines for serializing to JSON, and deserializing from JSON.
  * */
 public class SSJSJS {
+	/**
+	 * Encode and decode the elements of collection, map and array fields in
+	 * parallel when there are at least threshold of them.  The elements are
+	 * split into chunks which are processed on a ForkJoinPool, and the results
+	 * are combined in order, so the result is the same as when processing them
+	 * sequentially.  If more than one element cannot be encoded or decoded,
+	 * the error is reported for the first one.  Decoding is only done in
+	 * parallel when decoding from a JSONObject.  This is disabled by default,
+	 * and only helps with very large fields.
+	 * @param threshold the minimum number of elements to process in parallel,
+	 * or 0 to disable parallel processing
+	 * */
+	public static void setParallelThreshold(final int threshold) {
+		Parallel.setThreshold(threshold);
+	}
+
+	/**
+	 * Set the pool used for parallel encoding and decoding.
+	 * @param pool the pool, or null to use the common ForkJoinPool
+	 * */
+	public static void setParallelPool(final ForkJoinPool pool) {
+		Parallel.setPool(pool);
+	}
+
+	/**
+	 * Share one String instance between equal strings that are decoded from
+	 * String fields (including the elements of collections, arrays and maps)
+	 * and from the keys of maps.  This saves memory when the same short
+	 * strings are decoded many times and the decoded objects are kept.  When
+	 * decoding JSON text, a string that is already in the pool is not even
+	 * allocated.  The pool is bounded, and older strings are evicted to make
+	 * room for new ones.  This is disabled by default.
+	 * @param capacity the maximum number of strings in the pool (rounded up to
+	 * a power of two), or 0 to disable pooling
+	 * @param maxLength the longest string to add to the pool
+	 * */
+	public static void setStringPool(final int capacity, final int maxLength) {
+		StringPool.configure(capacity, maxLength);
+	}
+
+	/**
+	 * Build the codecs for some classes ahead of time, so that the first
+	 * object of each class to be encoded or decoded doesn't pay for
+	 * reflection, annotation processing and class initialization.  Every
+	 * JSONable class that can be reached from the fields of these classes
+	 * (including through collections, maps, optionals, arrays and lazy fields)
+	 * is registered too, and enum types are initialized.  The annotations of
+	 * every registered class are checked, so that mistakes are reported at
+	 * startup rather than the first time the class is used.
+	 * @param classes the JSONable classes to register
+	 * @return every class that was registered
+	 * @throws IllegalArgumentException if any of the classes is not JSONable,
+	 * or any registered class is not correctly annotated or has a field that
+	 * can never be encoded
+	 * */
+	public static Set<Class<? extends JSONable>> register(final Class<?>... classes) {
+		return Registry.register(classes);
+	}
+
+	/**
+	 * Register every concrete JSONable class in a named module.  See
+	 * register(Class...).
+	 * @param module the module to scan
+	 * @return every class that was registered
+	 * @throws IllegalArgumentException if module is not a named module, or
+	 * any registered class is not correctly annotated or has a field that can
+	 * never be encoded
+	 * @throws UncheckedIOException if the contents of the module cannot be
+	 * read
+	 * */
+	public static Set<Class<? extends JSONable>> register(final Module module) {
+		return Registry.register(module);
+	}
+
+	/**
+	 * Register every concrete JSONable class in a package and its
+	 * subpackages, for code that is not in a named module.  The package may
+	 * be in a directory or a jar file.  See register(Class...).
+	 * @param packageName the name of the package to scan
+	 * @param loader the class loader that loads the package
+	 * @return every class that was registered
+	 * @throws IllegalArgumentException if any registered class is not
+	 * correctly annotated or has a field that can never be encoded
+	 * @throws UncheckedIOException if the contents of the package cannot be
+	 * read
+	 * */
+	public static Set<Class<? extends JSONable>> registerPackage(
+		final String packageName, final ClassLoader loader
+	) {
+		return Registry.register(packageName, loader);
+	}
+
+	/**
+	 * Register some classes, then decode and encode a synthetic instance of
+	 * each registered class a number of times, as a tree, as text and as
+	 * UTF-8, so that the JIT compiler has compiled the hot paths before real
+	 * traffic arrives.  The synthetic instances have every field present,
+	 * and one element in every collection, array and map.  Classes whose
+	 * constructors reject the synthetic values are not warmed up.
+	 * @param rounds how many times to decode and encode each instance.  A
+	 * few thousand is usually enough for the JIT to compile the hot paths.
+	 * @param classes the JSONable classes to warm up
+	 * @throws IllegalArgumentException if register(classes) would throw
+	 * IllegalArgumentException, or rounds is negative
+	 * */
+	public static void warmUp(final int rounds, final Class<?>... classes) {
+		Registry.warmUp(rounds, null, classes);
+	}
+
+	/**
+	 * Like warmUp(int, Class...), but with an environment that supplies the
+	 * values of implicit fields.  Classes with implicit fields that are not
+	 * in the environment are not warmed up.
+	 * @param rounds how many times to decode and encode each instance
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @param classes the JSONable classes to warm up
+	 * @throws IllegalArgumentException if register(classes) would throw
+	 * IllegalArgumentException, or rounds is negative
+	 * */
+	public static void warmUp(
+		final int rounds, final Map<String, Object> environment, final Class<?>... classes
+	) {
+		Registry.warmUp(rounds, environment, classes);
+	}
+
+	/**
+	 * Start recording metrics for every JSONable class that is encoded or
+	 * decoded: how many objects, how many failures, how long they took, and
+	 * how many chars or bytes of JSON text they used.  Only whole documents
+	 * are counted (including each element of encodeAll, decodeAll and
+	 * NDJSON), not the objects nested inside them.  Any metrics that were
+	 * recorded before are discarded.  This is disabled by default.
+	 * @param registerMBeans true to also register an MXBean for each class,
+	 * named ssjsjs:type=Metrics,class=&lt;class name&gt;, with the platform MBean
+	 * server
+	 * */
+	public static void enableMetrics(final boolean registerMBeans) {
+		ClassMetrics.enable(registerMBeans);
+	}
+
+	/**
+	 * Stop recording metrics, discard the metrics that were recorded, and
+	 * unregister any MXBeans.
+	 * */
+	public static void disableMetrics() {
+		ClassMetrics.disable();
+	}
+
+	/**
+	 * Get the metrics that have been recorded since enableMetrics was called.
+	 * @return a snapshot of the metrics for each class that has been encoded
+	 * or decoded, or an empty map if metrics are disabled
+	 * */
+	public static Map<Class<? extends JSONable>, Metrics> getMetrics() {
+		return ClassMetrics.snapshot();
+	}
+
 	/**
 	 * Serialize an object to JSON.
 	 * @param obj the object to serialize
@@ -35,251 +199,1386 @@ public class SSJSJS {
 	 * @throws JSONencodeException if obj cannot be converted to a JSONObject
 	 * */
 	public static JSONObject encode(final JSONable obj) throws JSONencodeException {
+		try {
+			return encodeDocument(Codec.of(obj.getClass()), obj);
+		} catch (final IllegalArgumentException
+			| SecurityException
+			| NullPointerException
+			| ClassCastException
+			| ExceptionInInitializerError e) {
+			throw new JSONencodeException(e);
+		}
+	}
+
+	/**
+	 * Serialize an object that is nested inside another object.  This is the
+	 * same as encode(obj), except that it is not counted in the metrics.
+	 * */
+	static JSONObject encodeObject(final JSONable obj) throws JSONencodeException {
+		try {
+			return encode(Codec.of(obj.getClass()), obj);
+		} catch (final IllegalArgumentException
+			| SecurityException
+			| NullPointerException
+			| ClassCastException
+			| ExceptionInInitializerError e) {
+			throw new JSONencodeException(e);
+		}
+	}
+
+	/**
+	 * Serialize a collection of objects to a JSON array.  The codec for each
+	 * class is only looked up once, so this is faster than encoding the
+	 * objects one at a time.
+	 * @param objs the objects to serialize
+	 * @return a JSONArray with one JSONObject for each element of objs, in
+	 * iteration order
+	 * @throws JSONencodeException if any of the objects cannot be converted to
+	 * a JSONObject
+	 * */
+	public static JSONArray encodeAll(final Collection<? extends JSONable> objs)
+		throws JSONencodeException
+	{
+		final List<JSONObject> out = new ArrayList<>(objs.size());
+
+		try {
+			Codec<?> codec = null;
+			int i = 0;
+			for (final JSONable obj : objs) {
+				if (codec == null || codec.clazz != obj.getClass()) codec = Codec.of(obj.getClass());
+				try {
+					out.add(encodeDocument(codec, obj));
+				} catch (final JSONencodeException e) {
+					throw e.atIndex(i);
+				}
+				i += 1;
+			}
+		} catch (final IllegalArgumentException
+			| SecurityException
+			| NullPointerException
+			| ClassCastException
+			| ExceptionInInitializerError e) {
+			throw new JSONencodeException(e);
+		}
+
+		return new JSONArray(out);
+	}
+
+	/**
+	 * Serialize an object to JSON using a codec that has already been looked
+	 * up.
+	 * @param codec the codec for the class of obj
+	 * @param obj the object to serialize
+	 * @return a JSONObject
+	 * @throws JSONencodeException if obj cannot be converted to a JSONObject
+	 * */
+	private static JSONObject encode(final Codec<?> codec, final JSONable obj)
+		throws JSONencodeException
+	{
+		if (codec.generated != null) return encodeGenerated(codec.generated, obj);
+		codec.checkEncodable();
+
 		final JSONObject out = new JSONObject();
 
+		for (final Codec.Slot slot : codec.fields) {
+			if (slot.isPrimitive()) {
+				putPrimitive(out, slot, obj);
+				continue;
+			}
+
+			final Object sval = encodeSlot(slot, slot.get(obj));
+			if (sval != null) out.put(slot.outputName, sval);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Serialize an object to JSON as a whole document, recording metrics and
+	 * flight recorder events if they are enabled.
+	 * */
+	private static JSONObject encodeDocument(final Codec<?> codec, final JSONable obj)
+		throws JSONencodeException
+	{
+		final Instrument instrument = Instrument.encoding(codec, -1);
+		if (instrument == null) return encode(codec, obj);
+
 		try {
-			final Class<?> clazz = obj.getClass();
-			final Constructor<?> constructor = getJSON(clazz);
-			final Parameter[] parameters = constructor.getParameters();
+			final JSONObject out = encode(codec, obj);
+			instrument.end(-1, null);
+			return out;
+		} catch (final Throwable e) {
+			instrument.end(-1, e);
+			throw e;
+		}
+	}
 
-			for (int i = 0; i < parameters.length; i++) {
-				final Parameter p = parameters[i];
-				final Type type = p.getParameterizedType();
+	/**
+	 * Serialize an object to JSON text, without building an intermediate
+	 * JSONObject.
+	 * @param obj the object to serialize
+	 * @param out where to write the JSON text
+	 * @throws JSONencodeException if obj cannot be converted to JSON.  Some
+	 * output may already have been written to out.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encode(final JSONable obj, final Appendable out)
+		throws JSONencodeException, IOException
+	{
+		final TextOutput text = new TextOutput(out);
+		encode(obj, text);
+		text.flush();
+	}
+
+	/**
+	 * Serialize an object to a String of JSON text.  The result is equivalent
+	 * JSON to encode(obj).toString(), but not necessarily the same text (for
+	 * example, fields may be in a different order and numbers may be formatted
+	 * differently).  No intermediate JSONObject is constructed, and the working
+	 * buffers are taken from the EncodeBuffer pool.
+	 * @param obj the object to serialize
+	 * @return the JSON text
+	 * @throws JSONencodeException if obj cannot be converted to JSON
+	 * */
+	public static String encodeToString(final JSONable obj) throws JSONencodeException {
+		try (EncodeBuffer out = EncodeBuffer.lease()) {
+			out.encode(obj);
+			return out.toString();
+		}
+	}
+
+	/**
+	 * Serialize an object to UTF-8 encoded JSON text.
+	 * @param obj the object to serialize
+	 * @param out where to write the JSON text.  The stream is not flushed.
+	 * @throws JSONencodeException if obj cannot be converted to JSON.  Some
+	 * output may already have been written to out.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encodeUTF8(final JSONable obj, final OutputStream out)
+		throws JSONencodeException, IOException
+	{
+		final UTF8Output utf8 = new UTF8Output(out);
+		encode(obj, utf8);
+		utf8.flush();
+	}
 
-				final ssjsjs.annotations.Field alias = p.getAnnotation(ssjsjs.annotations.Field.class);
-				if (alias == null) {
-					if (p.isAnnotationPresent(Implicit.class)) continue;
+	/**
+	 * Serialize an object to UTF-8 encoded JSON text.  The text is written
+	 * at the current position of the buffer, and the position is advanced to
+	 * the end of the text.
+	 * @param obj the object to serialize
+	 * @param out where to write the JSON text.  This may be a heap or a direct
+	 * buffer.
+	 * @throws JSONencodeException if obj cannot be converted to JSON
+	 * @throws java.nio.BufferOverflowException if there is not enough space
+	 * remaining in out.  The contents of out after the current position are
+	 * undefined.
+	 * */
+	public static void encodeUTF8(final JSONable obj, final ByteBuffer out)
+		throws JSONencodeException
+	{
+		final UTF8Output utf8 = new UTF8Output(out);
+		try {
+			encode(obj, utf8);
+			utf8.flush();
+		} catch (final IOException e) {
+			// ByteBuffers don't throw IOException
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Serialize an object to UTF-8 encoded JSON text.
+	 * @param obj the object to serialize
+	 * @return the JSON text
+	 * @throws JSONencodeException if obj cannot be converted to JSON
+	 * */
+	public static byte[] encodeToBytes(final JSONable obj) throws JSONencodeException {
+		try (EncodeBuffer out = EncodeBuffer.lease()) {
+			out.encodeUTF8(obj);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Serialize an object to CBOR (RFC 8949) instead of JSON text.  The
+	 * object is encoded as a map, with the same names and values as it would
+	 * have in JSON, except that integers and floats are binary, and byte
+	 * arrays are byte strings.
+	 * @param obj the object to serialize
+	 * @param out where to write the CBOR.  The stream is not flushed.
+	 * @throws JSONencodeException if obj cannot be converted to JSON.  Some
+	 * output may already have been written to out.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encodeCBOR(final JSONable obj, final OutputStream out)
+		throws JSONencodeException, IOException
+	{
+		final CBOROutput cbor = new CBOROutput(out);
+		encode(obj, cbor);
+		cbor.flush();
+	}
+
+	/**
+	 * Serialize an object to CBOR (RFC 8949).  See encodeCBOR.
+	 * @param obj the object to serialize
+	 * @return the CBOR
+	 * @throws JSONencodeException if obj cannot be converted to JSON
+	 * */
+	public static byte[] encodeToCBOR(final JSONable obj) throws JSONencodeException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			encodeCBOR(obj, out);
+		} catch (final IOException e) {
+			// ByteArrayOutputStreams don't throw IOException
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Serialize a collection of objects to JSON text as a single JSON array,
+	 * without building an intermediate JSONArray.
+	 * @param objs the objects to serialize
+	 * @param out where to write the JSON text
+	 * @throws JSONencodeException if any of the objects cannot be converted to
+	 * JSON.  Some output may already have been written to out.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encodeAll(
+		final Collection<? extends JSONable> objs, final Appendable out
+	) throws JSONencodeException, IOException
+	{
+		final TextOutput text = new TextOutput(out);
+		encodeAll(objs, text);
+		text.flush();
+	}
+
+	/**
+	 * Serialize a collection of objects to UTF-8 encoded JSON text as a single
+	 * JSON array.
+	 * @param objs the objects to serialize
+	 * @param out where to write the JSON text.  The stream is not flushed.
+	 * @throws JSONencodeException if any of the objects cannot be converted to
+	 * JSON.  Some output may already have been written to out.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encodeAllUTF8(
+		final Collection<? extends JSONable> objs, final OutputStream out
+	) throws JSONencodeException, IOException
+	{
+		final UTF8Output utf8 = new UTF8Output(out);
+		encodeAll(objs, utf8);
+		utf8.flush();
+	}
+
+	/**
+	 * Serialize a sequence of objects to newline delimited JSON (JSON Lines),
+	 * one object per line.  Batches of objects are encoded in parallel on the
+	 * common ForkJoinPool, and the lines are written in order.  See
+	 * NDJSONWriter for more control over how the objects are encoded.
+	 * @param objs the objects to serialize
+	 * @param out where to write the text.  It is flushed but not closed.
+	 * @throws JSONencodeException if any of the objects cannot be converted to
+	 * JSON.  The lines before the object that failed have been written.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encodeLines(
+		final Iterable<? extends JSONable> objs, final Writer out
+	) throws JSONencodeException, IOException
+	{
+		final NDJSONWriter lines = new NDJSONWriter(out);
+		lines.writeAll(objs);
+		lines.flush();
+	}
+
+	/**
+	 * Serialize a sequence of objects to UTF-8 encoded newline delimited JSON
+	 * (JSON Lines).  See encodeLines(Iterable, Writer).
+	 * @param objs the objects to serialize
+	 * @param out where to write the text.  It is flushed but not closed.
+	 * @throws JSONencodeException if any of the objects cannot be converted to
+	 * JSON.  The lines before the object that failed have been written.
+	 * @throws IOException if out throws an IOException
+	 * */
+	public static void encodeLines(
+		final Iterable<? extends JSONable> objs, final OutputStream out
+	) throws JSONencodeException, IOException
+	{
+		final NDJSONWriter lines = new NDJSONWriter(out);
+		lines.writeAll(objs);
+		lines.flush();
+	}
+
+	/**
+	 * Serialize an object to a stream of JSON, translating runtime exceptions
+	 * into JSONencodeExceptions in the same way as encode(obj).
+	 * */
+	static void encode(final JSONable obj, final JSONOutput out)
+		throws JSONencodeException, IOException
+	{
+		try {
+			writeDocument(Codec.of(obj.getClass()), obj, out);
+		} catch (final IllegalArgumentException
+			| SecurityException
+			| NullPointerException
+			| ClassCastException
+			| ExceptionInInitializerError e) {
+			throw new JSONencodeException(e);
+		}
+	}
 
-					throw new JSONencodeException(
-						"Missing required @Field  or @Implicit annotation for field " + p.getName());
+	/**
+	 * Serialize a collection of objects to a stream of JSON as a single JSON
+	 * array, translating runtime exceptions into JSONencodeExceptions in the
+	 * same way as encode(obj).
+	 * */
+	static void encodeAll(final Collection<? extends JSONable> objs, final JSONOutput out)
+		throws JSONencodeException, IOException
+	{
+		try {
+			Codec<?> codec = null;
+			int i = 0;
+			out.beginArray();
+			for (final JSONable obj : objs) {
+				if (codec == null || codec.clazz != obj.getClass()) codec = Codec.of(obj.getClass());
+				try {
+					writeDocument(codec, obj, out);
+				} catch (final JSONencodeException e) {
+					throw e.atIndex(i);
 				}
+				i += 1;
+			}
+			out.endArray();
+		} catch (final IllegalArgumentException
+			| SecurityException
+			| NullPointerException
+			| ClassCastException
+			| ExceptionInInitializerError e) {
+			throw new JSONencodeException(e);
+		}
+	}
 
-				final String fieldName = alias.value();
+	/**
+	 * Write an object to a stream of JSON as a whole document, recording
+	 * metrics and flight recorder events if they are enabled.
+	 * */
+	private static void writeDocument(
+		final Codec<?> codec, final JSONable obj, final JSONOutput out
+	) throws JSONencodeException, IOException
+	{
+		final Instrument instrument = Instrument.encoding(codec, out.size());
+		if (instrument == null) {
+			write(codec, obj, out);
+			return;
+		}
 
-				final As as  = p.getAnnotation(As.class);
-				final String outputFieldName = as == null? fieldName : as.value();
+		try {
+			write(codec, obj, out);
+			instrument.end(out.size(), null);
+		} catch (final Throwable e) {
+			instrument.end(out.size(), e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write an object to a stream of JSON.
+	 * @param obj the object to write
+	 * @param out where to write the object
+	 * @throws JSONencodeException if the object cannot be encoded
+	 * @throws IOException if the output cannot be written
+	 * */
+	static void write(final JSONable obj, final JSONOutput out)
+		throws JSONencodeException, IOException
+	{
+		write(Codec.of(obj.getClass()), obj, out);
+	}
+
+	/**
+	 * Write an object to a stream of JSON using a codec that has already been
+	 * looked up.
+	 * @param codec the codec for the class of obj
+	 * @param obj the object to write
+	 * @param out where to write the object
+	 * @throws JSONencodeException if the object cannot be encoded
+	 * @throws IOException if the output cannot be written
+	 * */
+	static void write(final Codec<?> codec, final JSONable obj, final JSONOutput out)
+		throws JSONencodeException, IOException
+	{
+		if (!codec.isEncodable()) {
+			// The runtime codec may be unusable even though there is a generated
+			// codec, e.g. for inaccessible constructors.
+			if (codec.generated != null) {
+				writeTree(encodeGenerated(codec.generated, obj), out);
+				return;
+			}
+			codec.checkEncodable();
+		}
+
+		out.beginObject();
+
+		for (final Codec.Slot slot : codec.fields) {
+			out.name(slot);
+			if (slot.isPrimitive()) {
+				writePrimitive(out, slot, obj);
+				continue;
+			}
 
-				if (out.has(outputFieldName)) throw new JSONencodeException(
-					"Duplicate field name: " + outputFieldName);
+			try {
+				slot.codec.write(slot.get(obj), out);
+			} catch (final JSONencodeException e) {
+				throw e.atField(slot.outputName);
+			}
+		}
 
-				final boolean nullable = p.getAnnotation(Nullable.class) != null;
+		out.endObject();
+	}
 
-				final Field f = getAnyField(clazz, fieldName);
-				f.setAccessible(true);
+	private static void writePrimitive(
+		final JSONOutput out, final Codec.Slot slot, final Object obj
+	) throws JSONencodeException, IOException {
+		final Class<?> clazz = slot.fieldClass;
+
+		if (clazz == int.class) out.value(slot.getInt(obj));
+		else if (clazz == long.class) out.value(slot.getLong(obj));
+		else if (clazz == double.class) out.value(slot.getDouble(obj));
+		else if (clazz == float.class) out.value(slot.getFloat(obj));
+		else if (clazz == boolean.class) out.value(slot.getBoolean(obj));
+		else if (clazz == short.class) out.value(slot.getShort(obj));
+		else if (clazz == byte.class) out.value(slot.getByte(obj));
+		else if (clazz == char.class) out.value(slot.getChar(obj));
+	}
+
+	/**
+	 * Write a JSON tree (as produced by serializeField) to a stream of JSON.
+	 * @param value the tree to write
+	 * @param out where to write the tree
+	 * */
+	static void writeTree(final Object value, final JSONOutput out)
+		throws JSONencodeException, IOException
+	{
+		if (value == null || value == JSONObject.NULL) {
+			out.nullValue();
+		} else if (value instanceof String) {
+			out.value((String) value);
+		} else if (value instanceof Boolean) {
+			out.value(((Boolean) value).booleanValue());
+		} else if (value instanceof Character) {
+			out.value(((Character) value).charValue());
+		} else if (value instanceof Integer || value instanceof Long ||
+			value instanceof Short || value instanceof Byte)
+		{
+			out.value(((Number) value).longValue());
+		} else if (value instanceof Float) {
+			out.value(((Float) value).floatValue());
+		} else if (value instanceof Double) {
+			out.value(((Double) value).doubleValue());
+		} else if (value instanceof Number) {
+			out.value((Number) value);
+		} else if (value instanceof JSONObject) {
+			final JSONObject obj = (JSONObject) value;
+			out.beginObject();
+			for (final String key : obj.keySet()) {
+				out.name(key);
+				writeTree(obj.opt(key), out);
+			}
+			out.endObject();
+		} else if (value instanceof JSONArray) {
+			final JSONArray array = (JSONArray) value;
+			out.beginArray();
+			for (int i = 0; i < array.length(); i++) writeTree(array.opt(i), out);
+			out.endArray();
+		} else {
+			out.value(value.toString());
+		}
+	}
+
+	private static <T extends JSONable> JSONObject encodeGenerated(
+		final GeneratedCodec<T> generated, final JSONable obj
+	) throws JSONencodeException
+	{
+		return generated.encode(generated.getType().cast(obj));
+	}
+
+	/**
+	 * Encode the value of a field.
+	 * @param slot the field to encode
+	 * @param value the value of the field
+	 * @return the encoded value, or null if nothing should be output
+	 * @throws JSONencodeException if the value cannot be encoded
+	 * */
+	static Object encodeSlot(final Codec.Slot slot, final Object value)
+		throws JSONencodeException
+	{
+		try {
+			return slot.codec.encode(value);
+		} catch (final JSONencodeException e) {
+			throw e.atField(slot.outputName);
+		}
+	}
+
+	private static void putPrimitive(
+		final JSONObject out, final Codec.Slot slot, final Object obj
+	) {
+		final Class<?> clazz = slot.fieldClass;
+		final String name = slot.outputName;
+
+		if (clazz == int.class) out.put(name, slot.getInt(obj));
+		else if (clazz == long.class) out.put(name, slot.getLong(obj));
+		else if (clazz == double.class) out.put(name, slot.getDouble(obj));
+		else if (clazz == float.class) out.put(name, slot.getFloat(obj));
+		else if (clazz == boolean.class) out.put(name, slot.getBoolean(obj));
+		else if (clazz == short.class) out.put(name, slot.getShort(obj));
+		else if (clazz == byte.class) out.put(name, slot.getByte(obj));
+		else if (clazz == char.class) out.put(name, String.valueOf(slot.getChar(obj)));
+	}
+
+	private static boolean isCollection(final Object value) {
+		return
+			value instanceof Collection ||
+			value instanceof List ||
+			value instanceof Set;
+	}
+
+	static boolean isJSONPrimitive(final Class<?> clazz) {
+		return 
+			(Number.class.isAssignableFrom(clazz)) ||
+			(Character.class.isAssignableFrom(clazz)) ||
+			(Boolean.class.isAssignableFrom(clazz)) ||
+			(String.class.isAssignableFrom(clazz)) ||
+			clazz == byte.class ||
+			clazz == char.class ||
+			clazz == short.class ||
+			clazz == int.class ||
+			clazz == long.class ||
+			clazz == float.class ||
+			clazz == double.class ||
+			clazz == boolean.class;
+	}
+
+	private static Object makeJSONPrimitive(final Object obj) {
+		if (obj instanceof Byte) return obj;
+		else if (obj instanceof Character) return Character.toString(((Character) obj).charValue());
+		else if (obj instanceof Short) return obj;
+		else if (obj instanceof Integer) return obj;
+		else if (obj instanceof Long) return obj;
+		else if (obj instanceof Float) return obj;
+		else if (obj instanceof Double) return obj;
+		else if (obj instanceof Boolean) return obj;
+		else if (obj instanceof String) return obj;
+		else return null;
+	}
+
+	static Object serializeField(
+		final Object value, final Type type, final boolean nullable
+	) throws JSONencodeException
+	{
+		if (value == null || value == JSONObject.NULL) {
+			if (!nullable) throw JSONencodeException.stackless(
+				"Cannot serialize null in a non-nullable field");
+			return null;
+
+		} else if (isCollection(value)) {
+			if (!(type instanceof ParameterizedType))
+				throw new JSONencodeException("Cannot serialize non-generic collections");
+			return serializeCollection((ParameterizedType) type, (Collection<?>) value);
+
+		} else if (value instanceof Map) {
+			if (!(type instanceof ParameterizedType))
+				throw new JSONencodeException("Cannot serialize non-generic maps");
+
+			return serializeMap((ParameterizedType) type, (Map) value);
+
+		} else if (value instanceof Optional) {
+			if (!(type instanceof ParameterizedType))
+				throw new JSONencodeException("Cannot serialize non-generic optionals");
+
+				final Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+				if (args.length != 1) throw
+					new JSONencodeException("Expect one type argument for optional types");
+
+				@SuppressWarnings("unchecked")
+				final Object innerValue = ((Optional<Object>) value).orElse(null);
+				final Type elementType = args[0];
+
+				return serializeField(innerValue, elementType, true);
+
+		} else if (value instanceof JSONable) {
+			return encodeObject((JSONable) value);
+
+		} else if (isJSONPrimitive(value.getClass())) {
+			return makeJSONPrimitive(value);
+
+		} else if (value.getClass().isEnum()) {
+			return value.toString();
+
+		} else if (value.getClass().isArray()) {
+			final Class<?> elementType = value.getClass().getComponentType();
+			return serializeArray(value, elementType);
+
+		} else {
+			throw new JSONencodeException("Cannot serialize fields of type '" +
+				value.getClass().getTypeName() + "'");
+		}
+	}
+
+	/**
+	 * Deserialize an object from JSON
+	 * @param json the JSONObject to deserialize
+	 * @param class the class to deserialize as
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if json cannot be safely deserialized
+	 * */
+	public static <T extends JSONable> T decode(
+		final JSONObject json, final Class<T> clazz
+	) throws JSONdecodeException {
+		return decode(json, clazz, null);
+	}
+
+	/**
+	 * Deserialize an object from JSON
+	 * @param json the JSONObject to deserialize
+	 * @param class the class to deserialize as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if json cannot be safely deserialized
+	 * */
+	public static <T extends JSONable> T decode(
+		final JSONObject json, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
+			"Cannot deserialize object of type " + clazz);
+
+		return decodeDocument(Codec.of(clazz), json, environment);
+	}
+
+	/**
+	 * Deserialize an object that is nested inside another object.  This is
+	 * the same as decode(json, clazz, environment), except that it is not
+	 * counted in the metrics.
+	 * */
+	static <T extends JSONable> T decodeObject(
+		final JSONObject json, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
+			"Cannot deserialize object of type " + clazz);
+
+		return decode(Codec.of(clazz), json, environment);
+	}
+
+	/**
+	 * Deserialize a JSON array of objects.  The codec is only looked up once,
+	 * so this is faster than decoding the objects one at a time.
+	 * @param json the JSONArray to deserialize.  Every element must be a
+	 * JSONObject.
+	 * @param clazz the class to deserialize each element as
+	 * @return the deserialized objects, in the same order as json
+	 * @throws JSONdecodeException if any element cannot be safely deserialized
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final JSONArray json, final Class<T> clazz
+	) throws JSONdecodeException {
+		return decodeAll(json, clazz, null);
+	}
+
+	/**
+	 * Deserialize a JSON array of objects.  The codec is only looked up once,
+	 * so this is faster than decoding the objects one at a time.
+	 * @param json the JSONArray to deserialize.  Every element must be a
+	 * JSONObject.
+	 * @param clazz the class to deserialize each element as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized objects, in the same order as json
+	 * @throws JSONdecodeException if any element cannot be safely deserialized
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final JSONArray json, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
+			"Cannot deserialize object of type " + clazz);
+
+		final Codec<T> codec = Codec.of(clazz);
+		final int length = json.length();
+		final List<T> out = new ArrayList<>(length);
+
+		for (int i = 0; i < length; i++) {
+			final Object element = json.opt(i);
+			try {
+				if (!(element instanceof JSONObject)) throw JSONdecodeException.stackless(
+					"Expected a JSON object for " + clazz);
+				out.add(decodeDocument(codec, (JSONObject) element, environment));
+			} catch (final JSONdecodeException e) {
+				throw e.atIndex(i);
+			}
+		}
+
+		return out;
+	}
+
+	/**
+	 * Deserialize an object from JSON as a whole document, recording metrics
+	 * and flight recorder events if they are enabled.
+	 * */
+	private static <T extends JSONable> T decodeDocument(
+		final Codec<T> codec, final JSONObject json, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		final Instrument instrument = Instrument.decoding(codec, -1);
+		if (instrument == null) return decode(codec, json, environment);
+
+		try {
+			final T out = decode(codec, json, environment);
+			instrument.end(-1, null);
+			return out;
+		} catch (final Throwable e) {
+			instrument.end(-1, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Deserialize an object from JSON using a codec that has already been
+	 * looked up.
+	 * @param codec the codec for the class to deserialize as
+	 * @param json the JSONObject to deserialize
+	 * @param environment the environment for implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if json cannot be safely deserialized
+	 * */
+	private static <T extends JSONable> T decode(
+		final Codec<T> codec, final JSONObject json, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		try {
+			if (codec.generated != null) return codec.clazz.cast(codec.generated.decode(json, environment));
+			codec.checkDecodable();
+
+			final Codec.Slot[] parameters = codec.parameters;
+			final Object[] values = new Object[parameters.length];
+
+			for (int i = 0; i < parameters.length; i++) {
+				final Codec.Slot p = parameters[i];
+
+				if (p.isImplicit()) {
+					values[i] = lookupImplicit(environment, p.implicitKey, p.clazz);
+				} else {
+					values[i] = decodeSlot(p, json, environment);
+				}
+			}
+
+			return codec.newInstance(values);
+
+		} catch (final SecurityException
+			| IllegalArgumentException
+			| ClassCastException e) {
+			throw new JSONdecodeException(e);
+		}
+	}
+
+	/**
+	 * Deserialize an object from JSON text, without building an intermediate
+	 * JSONObject.
+	 * @param in the JSON text.  The text must contain exactly one JSON object.
+	 * @param clazz the class to deserialize as
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the text is not valid JSON, or cannot be
+	 * safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> T decode(
+		final Reader in, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decode(in, clazz, null);
+	}
+
+	/**
+	 * Deserialize an object from JSON text, without building an intermediate
+	 * JSONObject.
+	 * @param in the JSON text.  The text must contain exactly one JSON object.
+	 * @param clazz the class to deserialize as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the text is not valid JSON, or cannot be
+	 * safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> T decode(
+		final Reader in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		return decode(new TextInput(in), clazz, environment);
+	}
+
+	private static <T extends JSONable> T decode(
+		final JSONInput in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
+			"Cannot deserialize object of type " + clazz);
+
+		final T r = readDocument(Codec.of(clazz), in, environment);
+		if (in.peek() != JSONInput.END_OF_INPUT) throw JSONdecodeException.stackless(
+			"Unexpected data after the end of the JSON object");
+		return r;
+	}
+
+	/**
+	 * Deserialize an object from UTF-8 encoded JSON text.
+	 * @param in the JSON text.  The text must contain exactly one JSON object.
+	 * @param clazz the class to deserialize as
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the text is not valid JSON, or cannot be
+	 * safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> T decode(
+		final InputStream in, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decode(in, clazz, null);
+	}
+
+	/**
+	 * Deserialize an object from UTF-8 encoded JSON text.
+	 * @param in the JSON text.  The text must contain exactly one JSON object.
+	 * @param clazz the class to deserialize as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the text is not valid JSON, or cannot be
+	 * safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> T decode(
+		final InputStream in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		return decode(new InputStreamReader(in, StandardCharsets.UTF_8), clazz, environment);
+	}
 
-				try {
-					final Object sval = serializeField(f.get(obj), type, nullable);
-					if (sval != null) out.put(outputFieldName, sval);
+	/**
+	 * Deserialize an object from CBOR (RFC 8949), as written by encodeCBOR.
+	 * @param in the CBOR.  The stream must contain exactly one CBOR map.
+	 * @param clazz the class to deserialize as
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the input is not valid CBOR, or cannot be
+	 * safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> T decodeCBOR(
+		final InputStream in, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decodeCBOR(in, clazz, null);
+	}
 
-				} catch (final JSONencodeException e) {
-					throw new JSONencodeException(
-						"Cannot serialize field '" + fieldName +
-						"' of type " + f.getGenericType().getTypeName() +
-						" because " + e.getMessage());
-				}
-			}
+	/**
+	 * Deserialize an object from CBOR (RFC 8949), as written by encodeCBOR.
+	 * Maps may have definite or indefinite length, but their keys must be
+	 * text strings.  Numeric fields accept any CBOR integer or float,
+	 * including bignums and decimal fractions, and byte array fields accept
+	 * byte strings as well as arrays of numbers.
+	 * @param in the CBOR.  The stream must contain exactly one CBOR map.
+	 * @param clazz the class to deserialize as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the input is not valid CBOR, or cannot be
+	 * safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> T decodeCBOR(
+		final InputStream in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		return decode(new CBORInput(in), clazz, environment);
+	}
 
-			return out;
-		} catch (final IllegalAccessException
-			| IllegalArgumentException
-			| SecurityException
-			| NoSuchFieldException
-			| NullPointerException
-			| ClassCastException
-			| ExceptionInInitializerError e) {
-			throw new JSONencodeException(e);
-		}
+	/**
+	 * Deserialize an object from CBOR (RFC 8949), as written by encodeCBOR.
+	 * @param in the CBOR.  It must contain exactly one CBOR map.
+	 * @param clazz the class to deserialize as
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the input is not valid CBOR, or cannot be
+	 * safely deserialized
+	 * */
+	public static <T extends JSONable> T decodeCBOR(
+		final byte[] in, final Class<T> clazz
+	) throws JSONdecodeException {
+		return decodeCBOR(in, clazz, null);
 	}
 
-	private static Field getAnyField(final Class<?> clazz, final String name)
-		throws SecurityException, NoSuchFieldException, NullPointerException
+	/**
+	 * Deserialize an object from CBOR (RFC 8949), as written by encodeCBOR.
+	 * @param in the CBOR.  It must contain exactly one CBOR map.
+	 * @param clazz the class to deserialize as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the input is not valid CBOR, or cannot be
+	 * safely deserialized
+	 * */
+	public static <T extends JSONable> T decodeCBOR(
+		final byte[] in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException
 	{
 		try {
-			return clazz.getDeclaredField(name);
-		} catch (final NoSuchFieldException e) {
-			final Class<?> spr = clazz.getSuperclass();
-			if (spr == null) throw e; else return getAnyField(spr, name);
+			return decode(new CBORInput(in, 0, in.length), clazz, environment);
+		} catch (final IOException e) {
+			// arrays don't throw IOException
+			throw new UncheckedIOException(e);
 		}
 	}
 
-	private static boolean isCollection(final Object value) {
-		return
-			value instanceof Collection ||
-			value instanceof List ||
-			value instanceof Set;
+	/**
+	 * Deserialize a JSON array of objects from JSON text, without building an
+	 * intermediate JSONArray.
+	 * @param in the JSON text.  The text must contain exactly one JSON array,
+	 * and every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @return the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the text is not valid JSON, or any element
+	 * cannot be safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final Reader in, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decodeAll(in, clazz, null);
 	}
 
-	private static boolean isJSONPrimitive(final Class<?> clazz) {
-		return 
-			(Number.class.isAssignableFrom(clazz)) ||
-			(Character.class.isAssignableFrom(clazz)) ||
-			(Boolean.class.isAssignableFrom(clazz)) ||
-			(String.class.isAssignableFrom(clazz)) ||
-			clazz == byte.class ||
-			clazz == char.class ||
-			clazz == short.class ||
-			clazz == int.class ||
-			clazz == long.class ||
-			clazz == float.class ||
-			clazz == double.class ||
-			clazz == boolean.class;
+	/**
+	 * Deserialize a JSON array of objects from JSON text, without building an
+	 * intermediate JSONArray.
+	 * @param in the JSON text.  The text must contain exactly one JSON array,
+	 * and every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the text is not valid JSON, or any element
+	 * cannot be safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final Reader in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		final List<T> out = new ArrayList<>();
+		decodeAll(in, clazz, environment, out::add);
+		return out;
 	}
 
-	private static Object makeJSONPrimitive(final Object obj) {
-		if (obj instanceof Byte) return obj;
-		else if (obj instanceof Character) return Character.toString(((Character) obj).charValue());
-		else if (obj instanceof Short) return obj;
-		else if (obj instanceof Integer) return obj;
-		else if (obj instanceof Long) return obj;
-		else if (obj instanceof Float) return obj;
-		else if (obj instanceof Double) return obj;
-		else if (obj instanceof Boolean) return obj;
-		else if (obj instanceof String) return obj;
-		else return null;
+	/**
+	 * Deserialize a JSON array of objects from JSON text, passing each object
+	 * to action as soon as it has been decoded.  Unlike decodeAll(in, clazz),
+	 * the objects are never all held in memory at once, unless action keeps
+	 * them.
+	 * @param in the JSON text.  The text must contain exactly one JSON array,
+	 * and every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @param action receives the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the text is not valid JSON, or any element
+	 * cannot be safely deserialized.  The objects before the element that
+	 * failed have already been passed to action.
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> void decodeAll(
+		final Reader in,
+		final Class<T> clazz,
+		final Map<String, Object> environment,
+		final Consumer<? super T> action
+	) throws JSONdecodeException, IOException
+	{
+		decodeAll(new TextInput(in), clazz, environment, action);
 	}
 
-	private static Object serializeField(
-		final Object value, final Type type, final boolean nullable
-	) throws JSONencodeException
+	private static <T extends JSONable> void decodeAll(
+		final TextInput text,
+		final Class<T> clazz,
+		final Map<String, Object> environment,
+		final Consumer<? super T> action
+	) throws JSONdecodeException, IOException
 	{
-		if (value == null || value == JSONObject.NULL) {
-			if (!nullable) throw new NullPointerException();
-			return null;
-
-		} else if (isCollection(value)) {
-			if (!(type instanceof ParameterizedType))
-				throw new JSONencodeException("Cannot serialize non-generic collections");
-			return serializeCollection((ParameterizedType) type, (Collection<?>) value);
+		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
+			"Cannot deserialize object of type " + clazz);
 
-		} else if (value instanceof Map) {
-			if (!(type instanceof ParameterizedType))
-				throw new JSONencodeException("Cannot serialize non-generic maps");
+		final Codec<T> codec = Codec.of(clazz);
 
-			return serializeMap((ParameterizedType) type, (Map) value);
+		if (text.peek() != JSONInput.BEGIN_ARRAY) throw JSONdecodeException.stackless(
+			"Expected a JSON array of " + clazz);
 
-		} else if (value instanceof Optional) {
-			if (!(type instanceof ParameterizedType))
-				throw new JSONencodeException("Cannot serialize non-generic optionals");
+		text.beginArray();
+		for (int i = 0; text.hasNext(); i++) {
+			final T obj;
+			try {
+				obj = readDocument(codec, text, environment);
+			} catch (final JSONdecodeException e) {
+				throw e.atIndex(i);
+			}
+			action.accept(obj);
+		}
+		text.endArray();
 
-				final Type[] args = ((ParameterizedType) type).getActualTypeArguments();
-				if (args.length != 1) throw
-					new JSONencodeException("Expect one type argument for optional types");
+		if (text.peek() != JSONInput.END_OF_INPUT) throw JSONdecodeException.stackless(
+			"Unexpected data after the end of the JSON array");
+	}
 
-				@SuppressWarnings("unchecked")
-				final Object innerValue = ((Optional<Object>) value).orElse(null);
-				final Type elementType = args[0];
+	/**
+	 * Deserialize a JSON array of objects from UTF-8 encoded JSON text.
+	 * @param in the JSON text.  The text must contain exactly one JSON array,
+	 * and every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @return the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the text is not valid JSON, or any element
+	 * cannot be safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final InputStream in, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decodeAll(in, clazz, null);
+	}
 
-				return serializeField(innerValue, elementType, true);
+	/**
+	 * Deserialize a JSON array of objects from UTF-8 encoded JSON text.
+	 * @param in the JSON text.  The text must contain exactly one JSON array,
+	 * and every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the text is not valid JSON, or any element
+	 * cannot be safely deserialized
+	 * @throws IOException if in throws an IOException
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final InputStream in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		return decodeAll(new InputStreamReader(in, StandardCharsets.UTF_8), clazz, environment);
+	}
 
-		} else if (value instanceof JSONable) {
-			return encode((JSONable) value);
+	/**
+	 * Deserialize an object from a UTF-8 encoded JSON file.  The file is mapped
+	 * into memory and decoded in place, so it is never read into a String or
+	 * JSONObject.  Files larger than 2GB are mapped a piece at a time.
+	 * @param path the JSON file.  It must contain exactly one JSON object.
+	 * @param clazz the class to deserialize as
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the file is not valid JSON, or cannot be
+	 * safely deserialized
+	 * @throws IOException if the file cannot be read
+	 * */
+	public static <T extends JSONable> T decode(
+		final Path path, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decode(path, clazz, null);
+	}
 
-		} else if (isJSONPrimitive(value.getClass())) {
-			return makeJSONPrimitive(value);
+	/**
+	 * Deserialize an object from a UTF-8 encoded JSON file.  See
+	 * decode(Path, Class).
+	 * @param path the JSON file.  It must contain exactly one JSON object.
+	 * @param clazz the class to deserialize as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the file is not valid JSON, or cannot be
+	 * safely deserialized
+	 * @throws IOException if the file cannot be read
+	 * */
+	public static <T extends JSONable> T decode(
+		final Path path, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		try (Reader in = new MappedReader(path)) {
+			return decode(new TextInput(in, MappedReader.BUFFER_SIZE), clazz, environment);
+		}
+	}
 
-		} else if (value.getClass().isEnum()) {
-			return value.toString();
+	/**
+	 * Deserialize a JSON array of objects from a UTF-8 encoded JSON file.  The
+	 * file is mapped into memory and the objects are decoded directly from it,
+	 * without building a String or JSONArray of the whole file.
+	 * @param path the JSON file.  It must contain exactly one JSON array, and
+	 * every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @return the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the file is not valid JSON, or any element
+	 * cannot be safely deserialized
+	 * @throws IOException if the file cannot be read
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final Path path, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		return decodeAll(path, clazz, null);
+	}
 
-		} else if (value.getClass().isArray()) {
-			final Class<?> elementType = value.getClass().getComponentType();
-			return serializeArray(value, elementType);
+	/**
+	 * Deserialize a JSON array of objects from a UTF-8 encoded JSON file.  See
+	 * decodeAll(Path, Class).
+	 * @param path the JSON file.  It must contain exactly one JSON array, and
+	 * every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @return the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the file is not valid JSON, or any element
+	 * cannot be safely deserialized
+	 * @throws IOException if the file cannot be read
+	 * */
+	public static <T extends JSONable> List<T> decodeAll(
+		final Path path, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		final List<T> out = new ArrayList<>();
+		decodeAll(path, clazz, environment, out::add);
+		return out;
+	}
 
-		} else {
-			throw new JSONencodeException("Cannot serialize fields of type '" +
-				value.getClass().getTypeName() + "'");
+	/**
+	 * Deserialize a JSON array of objects from a UTF-8 encoded JSON file,
+	 * passing each object to action as soon as it has been decoded.  This
+	 * processes files of any size in a small, constant amount of heap (apart
+	 * from whatever action keeps).
+	 * @param path the JSON file.  It must contain exactly one JSON array, and
+	 * every element of the array must be a JSON object.
+	 * @param clazz the class to deserialize each element as
+	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * @param action receives the deserialized objects, in the same order as the array
+	 * @throws JSONdecodeException if the file is not valid JSON, or any element
+	 * cannot be safely deserialized.  The objects before the element that
+	 * failed have already been passed to action.
+	 * @throws IOException if the file cannot be read
+	 * */
+	public static <T extends JSONable> void decodeAll(
+		final Path path,
+		final Class<T> clazz,
+		final Map<String, Object> environment,
+		final Consumer<? super T> action
+	) throws JSONdecodeException, IOException
+	{
+		try (Reader in = new MappedReader(path)) {
+			decodeAll(new TextInput(in, MappedReader.BUFFER_SIZE), clazz, environment, action);
 		}
 	}
 
 	/**
-	 * Deserialize an object from JSON
-	 * @param json the JSONObject to deserialize
-	 * @param class the class to deserialize as
-	 * @return the deserialized object
-	 * @throws JSONdecodeException if json cannot be safely deserialized
+	 * Deserialize newline delimited JSON (JSON Lines), where each line is a
+	 * JSON object.  Batches of lines are decoded in parallel on the common
+	 * ForkJoinPool, and the objects are returned in order.  See NDJSONReader
+	 * for more control over how the lines are decoded.
+	 * @param in the NDJSON text
+	 * @param clazz the class of the objects on each line
+	 * @return a sequential stream of the decoded objects.  Closing the stream
+	 * closes in.  Errors are reported as UncheckedJSONdecodeException or
+	 * UncheckedIOException.
+	 * @throws JSONdecodeException if clazz is not JSONable
 	 * */
-	public static <T extends JSONable> T decode(
-		final JSONObject json, final Class<T> clazz
+	public static <T extends JSONable> Stream<T> decodeLines(
+		final Reader in, final Class<T> clazz
 	) throws JSONdecodeException {
-		return decode(json, clazz, null);
+		return new NDJSONReader<>(in, clazz).stream();
 	}
 
 	/**
-	 * Deserialize an object from JSON
-	 * @param json the JSONObject to deserialize
-	 * @param class the class to deserialize as
-	 * @param environment a global environment that supplies the values of implicit fields (may be null)
+	 * Deserialize UTF-8 encoded newline delimited JSON (JSON Lines), where each
+	 * line is a JSON object.  See decodeLines(Reader, Class).
+	 * @param in the NDJSON text
+	 * @param clazz the class of the objects on each line
+	 * @return a sequential stream of the decoded objects.  Closing the stream
+	 * closes in.
+	 * @throws JSONdecodeException if clazz is not JSONable
+	 * */
+	public static <T extends JSONable> Stream<T> decodeLines(
+		final InputStream in, final Class<T> clazz
+	) throws JSONdecodeException {
+		return decodeLines(new InputStreamReader(in, StandardCharsets.UTF_8), clazz);
+	}
+
+	/**
+	 * Deserialize a UTF-8 encoded newline delimited JSON (JSON Lines) file,
+	 * where each line is a JSON object.  The file is mapped into memory.  See
+	 * decodeLines(Reader, Class).
+	 * @param path the NDJSON file
+	 * @param clazz the class of the objects on each line
+	 * @return a sequential stream of the decoded objects.  Close the stream to
+	 * close the file.
+	 * @throws JSONdecodeException if clazz is not JSONable
+	 * @throws IOException if the file cannot be opened
+	 * */
+	public static <T extends JSONable> Stream<T> decodeLines(
+		final Path path, final Class<T> clazz
+	) throws JSONdecodeException, IOException {
+		final Reader in = new MappedReader(path);
+		try {
+			return decodeLines(in, clazz);
+		} catch (final JSONdecodeException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read an object from a stream of JSON as a whole document, recording
+	 * metrics and flight recorder events if they are enabled.
+	 * */
+	static <T extends JSONable> T readDocument(
+		final Codec<T> codec, final JSONInput in, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		final Instrument instrument = Instrument.decoding(codec, in.offset());
+		if (instrument == null) return read(codec, in, environment);
+
+		try {
+			final T out = read(codec, in, environment);
+			instrument.end(in.offset(), null);
+			return out;
+		} catch (final Throwable e) {
+			instrument.end(in.offset(), e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Read an object from a stream of JSON.  Elements of the JSON object are
+	 * matched to constructor parameters as they are read, and elements that do
+	 * not correspond to any parameter are skipped.
+	 * @param in the stream to read from
+	 * @param clazz the class to deserialize as
+	 * @param environment the environment for implicit fields (may be null)
 	 * @return the deserialized object
-	 * @throws JSONdecodeException if json cannot be safely deserialized
+	 * @throws JSONdecodeException if the object cannot be decoded
+	 * @throws IOException if the input cannot be read
 	 * */
-	public static <T extends JSONable> T decode(
-		final JSONObject json, final Class<T> clazz, final Map<String, Object> environment
-	) throws JSONdecodeException
+	static <T extends JSONable> T read(
+		final JSONInput in, final Class<T> clazz, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
 	{
 		if (!JSONable.class.isAssignableFrom(clazz)) throw new JSONdecodeException(
 			"Cannot deserialize object of type " + clazz);
 
-		final Set<String> seen = new HashSet<>();
+		return read(Codec.of(clazz), in, environment);
+	}
 
-		try {
-			final Constructor<T> constructor = getJSON(clazz);
-			final Parameter[] parameters = constructor.getParameters();
-			final Object[] values = new Object[parameters.length];
+	/**
+	 * Read an object from a stream of JSON using a codec that has already been
+	 * looked up.
+	 * @param codec the codec for the class to deserialize as
+	 * @param in the stream to read from
+	 * @param environment the environment for implicit fields (may be null)
+	 * @return the deserialized object
+	 * @throws JSONdecodeException if the object cannot be decoded
+	 * @throws IOException if the input cannot be read
+	 * */
+	static <T extends JSONable> T read(
+		final Codec<T> codec, final JSONInput in, final Map<String, Object> environment
+	) throws JSONdecodeException, IOException
+	{
+		final Class<T> clazz = codec.clazz;
 
-			for (int i = 0; i < parameters.length; i++) {
-				final Parameter p = parameters[i];
-
-				final ssjsjs.annotations.Field alias = p.getAnnotation(ssjsjs.annotations.Field.class);
-				if (alias == null) {
-					final Implicit envVariable = p.getAnnotation(Implicit.class);
-					if (envVariable != null) {
-						values[i] = environment == null? null : environment.get(envVariable.value());
-						if (values[i] == null) {
-							throw new JSONdecodeException(
-								"Missing value for implicit field '" + envVariable.value() + "'");
-						} else if (!autoUnboxTypeMatch(p.getType(), values[i].getClass())) {
-							throw new JSONdecodeException(
-								"Wrong type for implicit field '" + envVariable.value() +
-								"', expected a " + p.getType().getTypeName() +
-								" but got a " + values[i].getClass().getTypeName());
-						} else {
-							continue;
-						}
-					} else {
-						throw new JSONdecodeException(
-							"Missing required @Field  or @Implicit annotation for parameter " + p.getName());
-					}
+		try {
+			if (!codec.isDecodable()) {
+				if (codec.generated != null && in.peek() == JSONInput.BEGIN_OBJECT) {
+					return clazz.cast(codec.generated.decode(
+						(JSONObject) in.readTree(), environment));
 				}
+				codec.checkDecodable();
+			}
 
-				final As as = p.getAnnotation(As.class);
-				final String fieldName = as == null? alias.value() : as.value();
+			if (in.peek() != JSONInput.BEGIN_OBJECT) throw JSONdecodeException.stackless(
+				"Expected a JSON object for " + clazz);
 
-				final boolean nullable = p.getAnnotation(Nullable.class) != null;
+			final Codec.Slot[] fields = codec.fields;
+			final Object[] values = new Object[codec.parameters.length];
+			final boolean[] present = new boolean[fields.length];
 
-				if (seen.contains(fieldName)) throw new JSONdecodeException(
-					"Duplicate field '" + fieldName + "' in class '" + clazz + "'");
-				seen.add(fieldName);
+			in.beginObject();
+			while (in.hasNext()) {
+				final int i = in.nextName(codec.names);
+				if (i == -1) {
+					in.skipValue();
+				} else {
+					final Codec.Slot slot = fields[i];
+					if (present[i]) throw JSONInput.duplicateKey(slot.outputName);
+					try {
+						values[slot.index] = slot.codec.read(in, environment);
+					} catch (final JSONdecodeException e) {
+						throw e.atField(slot.outputName);
+					}
+					present[i] = true;
+				}
+			}
+			in.endObject();
 
-				values[i] = deserializeField(
-					fieldName,
-					(Class<?>) p.getType(),
-					p.getParameterizedType(),
-					json.opt(fieldName),
-					environment,
-					nullable);
+			for (int i = 0; i < fields.length; i++) {
+				if (!present[i]) {
+					final Codec.Slot slot = fields[i];
+					try {
+						values[slot.index] = slot.codec.decode(null, environment);
+					} catch (final JSONdecodeException e) {
+						throw e.atField(slot.outputName);
+					}
+				}
+			}
+
+			for (final Codec.Slot p : codec.parameters) {
+				if (p.isImplicit()) values[p.index] = lookupImplicit(environment, p.implicitKey, p.clazz);
 			}
 
-			return constructor.newInstance(values);
+			return codec.newInstance(values);
 
 		} catch (final SecurityException
-			| InstantiationException
-			| IllegalAccessException
 			| IllegalArgumentException
-			| InvocationTargetException
-			| JSONencodeException e) {
+			| ClassCastException e) {
 			throw new JSONdecodeException(e);
 		}
 	}
 
+	/**
+	 * Decode the value of a field.
+	 * @param slot the field to decode
+	 * @param json the JSON object that contains the field
+	 * @param environment the environment for implicit fields (may be null)
+	 * @return the decoded value
+	 * @throws JSONdecodeException if the field cannot be decoded
+	 * */
+	static Object decodeSlot(
+		final Codec.Slot slot, final JSONObject json, final Map<String, Object> environment
+	) throws JSONdecodeException
+	{
+		try {
+			return slot.codec.decode(json.opt(slot.outputName), environment);
+		} catch (final JSONdecodeException e) {
+			throw e.atField(slot.outputName);
+		}
+	}
+
+	/**
+	 * Look up the value of an implicit field.
+	 * @param environment the environment (may be null)
+	 * @param key the key of the implicit field
+	 * @param type the type of the constructor parameter
+	 * @return the value of the implicit field
+	 * @throws JSONdecodeException if the value is missing or of the wrong type
+	 * */
+	static Object lookupImplicit(
+		final Map<String, Object> environment, final String key, final Class<?> type
+	) throws JSONdecodeException
+	{
+		final Object value = environment == null? null : environment.get(key);
+		if (value == null) {
+			throw new JSONdecodeException(
+				"Missing value for implicit field '" + key + "'");
+		} else if (!autoUnboxTypeMatch(type, value.getClass())) {
+			throw new JSONdecodeException(
+				"Wrong type for implicit field '" + key +
+				"', expected a " + type.getTypeName() +
+				" but got a " + value.getClass().getTypeName());
+		} else {
+			return value;
+		}
+	}
+
 	private static boolean autoUnboxTypeMatch(final Class<?> intended, final Class<?> actual) {
 		return 
 			intended.isAssignableFrom(actual) ||
@@ -301,28 +1600,6 @@ public class SSJSJS {
 		return Modifier.isStatic(f.getModifiers());
 	}
 
-	private static <T> Constructor<T> getJSON(final Class<T> clazz)
-		throws JSONencodeException, SecurityException
-	{
-			final Constructor<?>[] constructors = clazz.getConstructors();
-
-			Constructor<?> cOut = null;
-			for (int i = 0; i < constructors.length; i++) {
-				final Constructor<?> c = constructors[i];
-				if (c.getAnnotation(JSON.class) != null) {
-					cOut = c;
-					break;
-				}
-			}
-
-			if (cOut == null) throw new JSONencodeException(
-				"No constructor found with the JSON annotation");
-			@SuppressWarnings("unchecked") final Constructor<T> constructor =
-				(Constructor<T>) cOut;
-
-			return constructor;
-	}
-
 	private static JSONArray serializeArray(
 		final Object array, final Class<?> elementClass
 	) throws JSONencodeException, ClassCastException {
@@ -360,7 +1637,13 @@ public class SSJSJS {
 			} else if (elementClass.isEnum()) {
 				for (int i = 0; i < a.length; i++) out.put(a[i].toString());
 			} else if (JSONable.class.isAssignableFrom(elementClass)) {
-				for (int i = 0; i < a.length; i++) out.put(encode((JSONable) a[i]));
+				for (int i = 0; i < a.length; i++) {
+					try {
+						out.put(encodeObject((JSONable) a[i]));
+					} catch (final JSONencodeException e) {
+						throw e.atIndex(i);
+					}
+				}
 			} else {
 				throw new JSONencodeException(
 					"Cannot serialize array element type: " + elementClass);
@@ -382,12 +1665,14 @@ public class SSJSJS {
 
 		final Type elementType = args[0];
 
-		try {
-			for (final Object element : collection)
+		int i = 0;
+		for (final Object element : collection) {
+			try {
 				out2.put(serializeField(element, elementType, true));
-		} catch (final JSONencodeException e) {
-			throw new JSONencodeException(
-				"Cannot serialize collection element type: " + elementType);
+			} catch (final JSONencodeException e) {
+				throw e.atIndex(i);
+			}
+			i += 1;
 		}
 
 		return out2;
@@ -415,12 +1700,12 @@ public class SSJSJS {
 
 		@SuppressWarnings("unchecked") final Map<String, ?> map = (Map<String, ?>) map0;
 
-		try {
-			for (final String key : map.keySet())
+		for (final String key : map.keySet()) {
+			try {
 				out2.put(key, serializeField(map.get(key), elementType, true));
-		} catch (final JSONencodeException e) {
-			throw new JSONencodeException(
-				"Cannot serialize map element type: " + elementType);
+			} catch (final JSONencodeException e) {
+				throw e.atKey(key);
+			}
 		}
 
 		return out2;
@@ -434,7 +1719,7 @@ public class SSJSJS {
 		}
 	}
 
-	private static Object deserializeField(
+	static Object deserializeField(
 		final String fieldName,
 		final Class<?> intendedClass,
 		final Type intendedType,
@@ -452,7 +1737,7 @@ public class SSJSJS {
 
 				try {
 				return Optional.of(deserializeField(
-					fieldName + "___OptionalValue__",
+					fieldName,
 					typeToClass(innerType),
 					innerType,
 					value, environment, true));
@@ -462,7 +1747,7 @@ public class SSJSJS {
 			}
 			
 		} else if (value == null || value == JSONObject.NULL) {
-			if (!nullable) throw new JSONdecodeException(
+			if (!nullable) throw JSONdecodeException.stackless(
 				"Cannot deserialize non-nullable field '" + fieldName + "' of type '"
 				+ intendedClass + "'. Input JSON has no value for this field.");
 
@@ -525,7 +1810,7 @@ public class SSJSJS {
 			} else if (intendedClass.isAssignableFrom(Short.class) || intendedClass.isAssignableFrom(short.class)) {
 				return ((Number) value).shortValue();
 			} else {
-				throw new JSONdecodeException("Expected a '" +
+				throw JSONdecodeException.stackless("Expected a '" +
 					intendedClass + "' for field '" + fieldName + "', but got a Number");
 			}
 
@@ -534,7 +1819,7 @@ public class SSJSJS {
 		) {
 			@SuppressWarnings("unchecked") final Class<JSONable> deserializeAs =
 				(Class<JSONable>) intendedClass;
-			return (Object) decode((JSONObject) value, deserializeAs, environment);
+			return (Object) decodeObject((JSONObject) value, deserializeAs, environment);
 
 		} else if (value instanceof JSONArray &&
 			(intendedClass.isAssignableFrom(List.class) ||
@@ -548,16 +1833,19 @@ public class SSJSJS {
 
 				final Type innerType = typeArgs[0];
 
-				final List<Object> array = new ArrayList<>();
-				for (final Object innerValue : (JSONArray) value) {
+				final JSONArray values = (JSONArray) value;
+				final List<Object> array = new ArrayList<>(values.length());
+				for (int i = 0; i < values.length(); i++) {
 					try {
 						array.add(deserializeField(
-							fieldName + "[]",
+							fieldName,
 							typeToClass(innerType),
 							innerType,
-							innerValue, environment, true));
+							values.opt(i), environment, true));
 					} catch (final ClassCastException e) {
 						throw new JSONdecodeException("Java reflection error", e);
+					} catch (final JSONdecodeException e) {
+						throw e.atIndex(i);
 					}
 				}
 
@@ -568,62 +1856,37 @@ public class SSJSJS {
 				}
 
 			} else if (((Class<?>) intendedType).isArray()) {
-				final List<Object> array = new ArrayList<>();
 				final Class<?> elementClass = ((Class<?>) intendedType).getComponentType();
 
-				for (final Object innerValue : (JSONArray) value) {
-					array.add(deserializeField(
-						fieldName + "[]",
-						elementClass,
-						elementClass,
-						innerValue, environment, true));
+				if (elementClass.isPrimitive()) {
+					return PrimitiveArrays.decode((JSONArray) value, elementClass, fieldName);
 				}
 
-				if (elementClass.isAssignableFrom(byte.class)) {
-					final byte[] r = new byte[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Byte) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(char.class)) {
-					final char[] r = new char[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Character) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(short.class)) {
-					final short[] r = new short[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Short) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(int.class)) {
-					final int[] r = new int[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Integer) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(long.class)) {
-					final long[] r = new long[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Long) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(float.class)) {
-					final float[] r = new float[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Float) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(double.class)) {
-					final double[] r = new double[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Double) array.get(i);
-					return r;
-				} else if (elementClass.isAssignableFrom(boolean.class)) {
-					final boolean[] r = new boolean[array.size()];
-					for (int i = 0; i < r.length; i++) r[i] = (Boolean) array.get(i);
-					return r;
-				} else {
+				final JSONArray values = (JSONArray) value;
+				final List<Object> array = new ArrayList<>(values.length());
+				for (int i = 0; i < values.length(); i++) {
 					try {
-						final Object[] outArray = (Object[]) Array.newInstance(elementClass, array.size());
-						for (int i = 0; i < outArray.length; i++) outArray[i] = array.get(i);
-						return outArray;
-
-					} catch (final IllegalArgumentException e) {
-						throw new JSONdecodeException(
-							"Cannot create array of type '" + intendedType.getTypeName() +
-							"' for field '" + fieldName + "'");
+						array.add(deserializeField(
+							fieldName,
+							elementClass,
+							elementClass,
+							values.opt(i), environment, true));
+					} catch (final JSONdecodeException e) {
+						throw e.atIndex(i);
 					}
 				}
 
+				try {
+					final Object[] outArray = (Object[]) Array.newInstance(elementClass, array.size());
+					for (int i = 0; i < outArray.length; i++) outArray[i] = array.get(i);
+					return outArray;
+
+				} catch (final IllegalArgumentException e) {
+					throw new JSONdecodeException(
+						"Cannot create array of type '" + intendedType.getTypeName() +
+						"' for field '" + fieldName + "'");
+				}
+
 			} else {
 				throw new JSONdecodeException(
 					"Required generic type for '" + fieldName + "' field");
@@ -649,13 +1912,15 @@ public class SSJSJS {
 				for (final String key : object.keySet()) {
 					try {
 						map.put(key, deserializeField(
-							fieldName + "{}",
+							fieldName,
 							typeToClass(innerType),
 							innerType,
 							object.get(key),
 							environment, true));
 					} catch (final ClassCastException e) {
 						throw new JSONdecodeException("Java reflection error", e);
+					} catch (final JSONdecodeException e) {
+						throw e.atKey(key);
 					}
 				}
 
@@ -667,7 +1932,7 @@ public class SSJSJS {
 			}
 
 		} else {
-			throw new JSONdecodeException("Cannot deserialize field '" +
+			throw JSONdecodeException.stackless("Cannot deserialize field '" +
 				fieldName + "' of type '" + intendedType.getTypeName() + "' from object of type '" +
 				value.getClass() + "' (did you forget to make it JSONable?)");
 		}
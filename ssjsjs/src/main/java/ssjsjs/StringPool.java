@@ -0,0 +1,112 @@
+package ssjsjs;
+
+/**
+ * A bounded pool of decoded strings, so that equal strings that are decoded
+ * many times (e.g. status codes, tags, map keys) can share one instance.
+ *
+ * The pool is a two-way set associative cache.  Each string hashes to a pair
+ * of entries.  A new string goes into the first entry of its pair, and the
+ * string that was there moves to the second entry, evicting whatever was in
+ * the second entry.  So the pool never holds more than its capacity, and the
+ * most recently added strings are kept.
+ *
+ * The table is read and written without locks.  This is safe because Strings
+ * are immutable, and the worst that can happen in a race is that an entry is
+ * lost, so that an equal string is added again later.
+ *
+ * This is disabled by default.  See SSJSJS.setStringPool.
+ * */
+final class StringPool {
+	/**
+	 * The pool used by all decoders, or null if pooling is disabled.
+	 * */
+	private static volatile StringPool current = null;
+
+	private final String[] table;
+	private final int mask;
+	private final int maxLength;
+
+	private StringPool(final int capacity, final int maxLength) {
+		int size = 2;
+		while (size < capacity && size < (1 << 30)) size <<= 1;
+
+		this.table = new String[size];
+		this.mask = size - 2;
+		this.maxLength = maxLength;
+	}
+
+	static void configure(final int capacity, final int maxLength) {
+		if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+		if (maxLength < 0) throw new IllegalArgumentException("maxLength must not be negative");
+		current = capacity == 0? null : new StringPool(capacity, maxLength);
+	}
+
+	/**
+	 * @return the current pool, or null if pooling is disabled
+	 * */
+	static StringPool current() {
+		return current;
+	}
+
+	/**
+	 * Get the pooled instance of a string.
+	 * @param s the string
+	 * @return a string equal to s, which is s itself if s was not in the pool
+	 * */
+	String intern(final String s) {
+		if (s.length() > maxLength) return s;
+
+		final int i = index(s.hashCode());
+		final String a = table[i];
+		if (s.equals(a)) return a;
+		final String b = table[i + 1];
+		if (s.equals(b)) return b;
+
+		add(i, a, s);
+		return s;
+	}
+
+	/**
+	 * Get the pooled instance of a string from a range of characters.  If the
+	 * string is already in the pool, no String is allocated.
+	 * @param chars the characters
+	 * @param start the index of the first character
+	 * @param length the number of characters
+	 * @return the string
+	 * */
+	String intern(final char[] chars, final int start, final int length) {
+		if (length > maxLength) return new String(chars, start, length);
+
+		int hash = 0;
+		for (int j = 0; j < length; j++) hash = 31 * hash + chars[start + j];
+
+		final int i = index(hash);
+		final String a = table[i];
+		if (matches(a, hash, chars, start, length)) return a;
+		final String b = table[i + 1];
+		if (matches(b, hash, chars, start, length)) return b;
+
+		final String s = new String(chars, start, length);
+		add(i, a, s);
+		return s;
+	}
+
+	private int index(final int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private void add(final int i, final String first, final String s) {
+		if (first != null) table[i + 1] = first;
+		table[i] = s;
+	}
+
+	private static boolean matches(
+		final String s, final int hash, final char[] chars, final int start, final int length
+	) {
+		if (s == null || s.length() != length || s.hashCode() != hash) return false;
+		for (int j = 0; j < length; j++) {
+			if (s.charAt(j) != chars[start + j]) return false;
+		}
+		return true;
+	}
+}
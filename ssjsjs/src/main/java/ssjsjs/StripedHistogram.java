@@ -0,0 +1,66 @@
+package ssjsjs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (latencies in nanoseconds) that many
+ * threads can record into at once without contending with each other.
+ *
+ * Each power of two is divided into four equal buckets, so values are
+ * recorded with a relative error of at most 12.5% (reporting the middle of
+ * each bucket).  The buckets are repeated in several stripes, and each
+ * thread records into the stripe chosen by its thread id, so threads on
+ * different cores rarely write to the same cache line.  Reading the
+ * histogram adds the stripes together.
+ * */
+final class StripedHistogram {
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * The number of buckets in each stripe.
+	 * */
+	static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private static final int STRIPES;
+	static {
+		int size = 1;
+		while (size < Runtime.getRuntime().availableProcessors() && size < 8) size <<= 1;
+		STRIPES = size;
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+	void record(final long value) {
+		final long id = Thread.currentThread().getId();
+		final int stripe = (int) (id ^ (id >>> 32)) * 0x9E3779B9 >>> 16 & (STRIPES - 1);
+		counts.getAndIncrement(stripe * BUCKETS + index(Math.max(value, 0)));
+	}
+
+	/**
+	 * @return the number of values in each bucket, over all the stripes
+	 * */
+	long[] snapshot() {
+		final long[] out = new long[BUCKETS];
+		for (int i = 0; i < counts.length(); i++) out[i % BUCKETS] += counts.get(i);
+		return out;
+	}
+
+	private static int index(final long v) {
+		if (v < SUB_BUCKETS) return (int) v;
+		final int exp = 63 - Long.numberOfLeadingZeros(v);
+		final int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	/**
+	 * @param i the index of a bucket
+	 * @return the value in the middle of the bucket
+	 * */
+	static long midpoint(final int i) {
+		if (i < SUB_BUCKETS) return i;
+		final int exp = (i >>> SUB_BITS) + SUB_BITS - 1;
+		final long width = 1L << (exp - SUB_BITS);
+		return (1L << exp) + (i & (SUB_BUCKETS - 1)) * width + width / 2;
+	}
+}
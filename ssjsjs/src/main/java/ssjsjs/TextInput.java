@@ -0,0 +1,695 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import org.json.JSONObject;
+
+/**
+ * Tokenizes JSON text read from a Reader, or from a region of a char array.
+ * Input from a Reader is buffered, so the reader may be left positioned after
+ * the end of the last value read.
+ *
+ * Strings are only converted to Java Strings when they are actually
+ * requested, and names can be matched against a table of expected names
+ * without converting them at all.  Numbers are scanned and classified when
+ * they are peeked at, so that integers and short decimals can be converted to
+ * primitives directly.
+ * */
+final class TextInput extends JSONInput {
+	// Parser states
+	private static final int DOCUMENT = 0;
+	private static final int EMPTY_ARRAY = 1;
+	private static final int NONEMPTY_ARRAY = 2;
+	private static final int EMPTY_OBJECT = 3;
+	private static final int NONEMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+
+	private static final int NONE = -1;
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/**
+	 * The reader, or null if reading from an array.
+	 * */
+	private final Reader in;
+	private final char[] buffer;
+	private int position = 0;
+	private int limit = 0;
+
+	/**
+	 * The number of characters read before the start of the buffer, for error
+	 * messages.
+	 * */
+	private long offset = 0;
+
+	/**
+	 * When capturing the text of a value with readRaw, the text that has
+	 * already been discarded from the buffer, and the start of the rest of the
+	 * text in the buffer.
+	 * */
+	private StringBuilder capture = null;
+	private int captureStart;
+
+	private int[] stack = new int[32];
+	private int depth = 1;
+
+	/**
+	 * The token that has been peeked at but not consumed, or NONE.
+	 * */
+	private int peeked = NONE;
+
+	/**
+	 * The value of a peeked boolean.
+	 * */
+	private boolean peekedBoolean;
+
+	/**
+	 * The text of a peeked number.
+	 * */
+	private char[] number = new char[32];
+	private int numberLength;
+
+	/**
+	 * Classification of a peeked number.
+	 * */
+	private boolean numberIsLong;
+	private boolean numberIsDouble;
+	private long numberLong;
+
+	/**
+	 * The sign, significant digits and decimal exponent of a peeked number.
+	 * numberExact is true if the mantissa holds all the significant digits and
+	 * is exactly representable as a double.
+	 * */
+	private boolean numberNegative;
+	private long numberMantissa;
+	private int numberExponent;
+	private boolean numberExact;
+
+	/**
+	 * Holds the contents of strings that span more than one buffer, or that
+	 * contain escape sequences.
+	 * */
+	private char[] scratch = new char[64];
+
+	/**
+	 * The location of the characters of the last string read, either in buffer
+	 * or in scratch.
+	 * */
+	private char[] stringChars;
+	private int stringStart;
+	private int stringLength;
+
+	TextInput(final Reader in) {
+		this(in, 8192);
+	}
+
+	TextInput(final Reader in, final int bufferSize) {
+		this.in = in;
+		this.buffer = new char[bufferSize];
+		this.stack[0] = DOCUMENT;
+	}
+
+	/**
+	 * Tokenize text that is already in memory.  The array is not copied, and
+	 * must not be modified while it is being read.
+	 * @param text the array that contains the text
+	 * @param start the index of the first character of the text
+	 * @param end the index after the last character of the text
+	 * */
+	TextInput(final char[] text, final int start, final int end) {
+		this.in = null;
+		this.buffer = text;
+		this.stack[0] = DOCUMENT;
+		reset(start, end);
+	}
+
+	/**
+	 * Start reading a new document from another region of the array that was
+	 * passed to the constructor.  Character positions in error messages are
+	 * relative to start.
+	 * @param start the index of the first character of the text
+	 * @param end the index after the last character of the text
+	 * */
+	void reset(final int start, final int end) {
+		position = start;
+		limit = end;
+		offset = -start;
+		depth = 1;
+		peeked = NONE;
+	}
+
+	@Override
+	int peek() throws IOException, JSONdecodeException {
+		if (peeked != NONE) return peeked;
+
+		final int state = stack[depth - 1];
+		switch (state) {
+			case DOCUMENT:
+				if (skipWhitespace() == -1) return peeked = END_OF_INPUT;
+				return peeked = peekValue();
+
+			case EMPTY_ARRAY:
+				if (nextNonWhitespace() == ']') {
+					position += 1;
+					return peeked = END_ARRAY;
+				}
+				stack[depth - 1] = NONEMPTY_ARRAY;
+				return peeked = peekValue();
+
+			case NONEMPTY_ARRAY:
+				switch (nextNonWhitespace()) {
+					case ']': position += 1; return peeked = END_ARRAY;
+					case ',': position += 1; break;
+					default: throw syntaxError("Expected ',' or ']'");
+				}
+				nextNonWhitespace();
+				return peeked = peekValue();
+
+			case EMPTY_OBJECT:
+				if (nextNonWhitespace() == '}') {
+					position += 1;
+					return peeked = END_OBJECT;
+				}
+				return peeked = peekName();
+
+			case NONEMPTY_OBJECT:
+				switch (nextNonWhitespace()) {
+					case '}': position += 1; return peeked = END_OBJECT;
+					case ',': position += 1; break;
+					default: throw syntaxError("Expected ',' or '}'");
+				}
+				nextNonWhitespace();
+				return peeked = peekName();
+
+			case DANGLING_NAME:
+				if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+				position += 1;
+				stack[depth - 1] = NONEMPTY_OBJECT;
+				nextNonWhitespace();
+				return peeked = peekValue();
+
+			default:
+				throw new IllegalStateException("Invalid parser state " + state);
+		}
+	}
+
+	private int peekName() throws JSONdecodeException {
+		if (buffer[position] != '"') throw syntaxError("Expected a name");
+		position += 1;
+		return NAME;
+	}
+
+	/**
+	 * Peek at a value.  There must be at least one character in the buffer.
+	 * */
+	private int peekValue() throws IOException, JSONdecodeException {
+		final char c = buffer[position];
+		switch (c) {
+			case '{': position += 1; return BEGIN_OBJECT;
+			case '[': position += 1; return BEGIN_ARRAY;
+			case '"': position += 1; return STRING;
+			case 't': expectLiteral("true"); peekedBoolean = true; return BOOLEAN;
+			case 'f': expectLiteral("false"); peekedBoolean = false; return BOOLEAN;
+			case 'n': expectLiteral("null"); return NULL;
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					scanNumber();
+					return NUMBER;
+				} else {
+					throw syntaxError("Unexpected character '" + c + "'");
+				}
+		}
+	}
+
+	private void expectLiteral(final String literal) throws IOException, JSONdecodeException {
+		for (int i = 0; i < literal.length(); i++) {
+			if (!fill(1) || buffer[position] != literal.charAt(i))
+				throw syntaxError("Expected '" + literal + "'");
+			position += 1;
+		}
+
+		if (fill(1) && isLiteralChar(buffer[position]))
+			throw syntaxError("Expected '" + literal + "'");
+	}
+
+	private static boolean isLiteralChar(final char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+			c == '_' || c == '-' || c == '+' || c == '.';
+	}
+
+	/**
+	 * Scan a number into the number buffer, checking that it conforms to the
+	 * JSON grammar and classifying it.
+	 * */
+	private void scanNumber() throws IOException, JSONdecodeException {
+		numberLength = 0;
+
+		boolean negative = false;
+		boolean integral = true;
+		int digits = 0;
+		long mantissa = 0;
+		int exponent = 0;
+		boolean exact = true;
+
+		if (peekChar() == '-') {
+			negative = true;
+			appendNumber();
+		}
+
+		// integer part
+		char c = peekChar();
+		if (c == '0') {
+			appendNumber();
+		} else if (c >= '1' && c <= '9') {
+			while (c >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					digits += 1;
+				} else {
+					exponent += 1;
+					if (c != '0') exact = false;
+				}
+				appendNumber();
+				c = peekChar();
+			}
+		} else {
+			throw syntaxError("Invalid number");
+		}
+
+		// fraction part
+		if (peekChar() == '.') {
+			integral = false;
+			appendNumber();
+			c = peekChar();
+			if (c < '0' || c > '9') throw syntaxError("Invalid number");
+			while (c >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) digits += 1;
+					exponent -= 1;
+				} else if (c != '0') {
+					exact = false;
+				}
+				appendNumber();
+				c = peekChar();
+			}
+		}
+
+		// exponent part
+		c = peekChar();
+		if (c == 'e' || c == 'E') {
+			integral = false;
+			appendNumber();
+			boolean negativeExponent = false;
+			c = peekChar();
+			if (c == '+' || c == '-') {
+				negativeExponent = c == '-';
+				appendNumber();
+				c = peekChar();
+			}
+			if (c < '0' || c > '9') throw syntaxError("Invalid number");
+			int e = 0;
+			while (c >= '0' && c <= '9') {
+				if (e < 100000) e = e * 10 + (c - '0');
+				appendNumber();
+				c = peekChar();
+			}
+			exponent += negativeExponent? -e : e;
+		}
+
+		if (isLiteralChar(c)) throw syntaxError("Invalid number");
+
+		// org.json treats -0 as a double
+		if (integral && negative && mantissa == 0) integral = false;
+
+		numberIsDouble = !integral;
+		numberIsLong = false;
+		if (integral) {
+			if (exponent == 0) {
+				numberIsLong = true;
+				numberLong = negative? -mantissa : mantissa;
+			} else if (digits + exponent == 19) {
+				try {
+					numberLong = Long.parseLong(new String(number, 0, numberLength));
+					numberIsLong = true;
+				} catch (final NumberFormatException e) {
+					// too big for a long
+				}
+			}
+		}
+
+		numberNegative = negative;
+		numberMantissa = mantissa;
+		numberExponent = exponent;
+		numberExact = exact && mantissa < (1L << 53);
+	}
+
+	private char peekChar() throws IOException {
+		return fill(1)? buffer[position] : '\0';
+	}
+
+	private void appendNumber() {
+		if (numberLength == number.length) number = Arrays.copyOf(number, numberLength * 2);
+		number[numberLength++] = buffer[position++];
+	}
+
+	@Override
+	void beginObject() throws IOException, JSONdecodeException {
+		expect(BEGIN_OBJECT, "Expected '{'");
+		push(EMPTY_OBJECT);
+	}
+
+	@Override
+	void endObject() throws IOException, JSONdecodeException {
+		expect(END_OBJECT, "Expected '}'");
+		depth -= 1;
+	}
+
+	@Override
+	void beginArray() throws IOException, JSONdecodeException {
+		expect(BEGIN_ARRAY, "Expected '['");
+		push(EMPTY_ARRAY);
+	}
+
+	@Override
+	void endArray() throws IOException, JSONdecodeException {
+		expect(END_ARRAY, "Expected ']'");
+		depth -= 1;
+	}
+
+	private void push(final int state) {
+		if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+		stack[depth++] = state;
+	}
+
+	@Override
+	String nextName() throws IOException, JSONdecodeException {
+		expect(NAME, "Expected a name");
+		readString();
+		stack[depth - 1] = DANGLING_NAME;
+		return new String(stringChars, stringStart, stringLength);
+	}
+
+	@Override
+	int nextName(final String[] names) throws IOException, JSONdecodeException {
+		expect(NAME, "Expected a name");
+		readString();
+		stack[depth - 1] = DANGLING_NAME;
+
+		final char[] chars = stringChars;
+		final int start = stringStart;
+		final int length = stringLength;
+
+		int hash = 0;
+		for (int i = 0; i < length; i++) hash = 31 * hash + chars[start + i];
+
+		search: for (int i = 0; i < names.length; i++) {
+			final String name = names[i];
+			if (name.length() != length || name.hashCode() != hash) continue;
+			for (int j = 0; j < length; j++) {
+				if (name.charAt(j) != chars[start + j]) continue search;
+			}
+			return i;
+		}
+
+		return -1;
+	}
+
+	@Override
+	String nextString() throws IOException, JSONdecodeException {
+		expect(STRING, "Expected a string");
+		readString();
+		return new String(stringChars, stringStart, stringLength);
+	}
+
+	@Override
+	String nextName(final StringPool pool) throws IOException, JSONdecodeException {
+		if (pool == null) return nextName();
+		expect(NAME, "Expected a name");
+		readString();
+		stack[depth - 1] = DANGLING_NAME;
+		return pool.intern(stringChars, stringStart, stringLength);
+	}
+
+	@Override
+	String nextString(final StringPool pool) throws IOException, JSONdecodeException {
+		if (pool == null) return nextString();
+		expect(STRING, "Expected a string");
+		readString();
+		return pool.intern(stringChars, stringStart, stringLength);
+	}
+
+	@Override
+	void skipString() throws IOException, JSONdecodeException {
+		expect(STRING, "Expected a string");
+		readString();
+	}
+
+	@Override
+	boolean nextBoolean() throws IOException, JSONdecodeException {
+		expect(BOOLEAN, "Expected a boolean");
+		return peekedBoolean;
+	}
+
+	@Override
+	void nextNull() throws IOException, JSONdecodeException {
+		expect(NULL, "Expected null");
+	}
+
+	@Override
+	boolean isLong() {
+		return peeked == NUMBER && numberIsLong;
+	}
+
+	@Override
+	boolean isDouble() {
+		return peeked == NUMBER && numberIsDouble;
+	}
+
+	@Override
+	long nextLong() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+		if (!numberIsLong) throw syntaxError("Expected an integer");
+		return numberLong;
+	}
+
+	@Override
+	double nextDouble() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+
+		if (numberExact && numberExponent >= -22 && numberExponent <= 22) {
+			// Both the mantissa and the power of ten are exactly representable,
+			// so a single multiplication or division is correctly rounded.
+			final double m = (double) numberMantissa;
+			final double r = numberExponent < 0?
+				m / POWERS_OF_TEN[-numberExponent] : m * POWERS_OF_TEN[numberExponent];
+			return numberNegative? -r : r;
+		}
+
+		return Double.parseDouble(new String(number, 0, numberLength));
+	}
+
+	@Override
+	Object nextNumber() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+		return JSONObject.stringToValue(new String(number, 0, numberLength));
+	}
+
+	@Override
+	char[] readRaw() throws IOException, JSONdecodeException {
+		final int token = peek();
+		if (token != BEGIN_OBJECT && token != BEGIN_ARRAY) return super.readRaw();
+
+		// The opening bracket has been consumed, but it is still in the buffer.
+		if (in == null) {
+			final int start = position - 1;
+			skipValue();
+			return Arrays.copyOfRange(buffer, start, position);
+		}
+
+		capture = new StringBuilder();
+		captureStart = position - 1;
+		try {
+			skipValue();
+			capture.append(buffer, captureStart, position - captureStart);
+			final char[] r = new char[capture.length()];
+			capture.getChars(0, r.length, r, 0);
+			return r;
+		} finally {
+			capture = null;
+		}
+	}
+
+	@Override
+	void skipNumber() throws IOException, JSONdecodeException {
+		expect(NUMBER, "Expected a number");
+	}
+
+	private void expect(final int token, final String message)
+		throws IOException, JSONdecodeException
+	{
+		if (peek() != token) throw syntaxError(message);
+		peeked = NONE;
+	}
+
+	/**
+	 * Read the contents of a string, up to and including the closing quote.
+	 * The opening quote must already have been consumed.  On return,
+	 * stringChars, stringStart and stringLength locate the contents.
+	 * */
+	private void readString() throws IOException, JSONdecodeException {
+		int length = 0;
+		boolean inScratch = false;
+
+		while (true) {
+			final int start = position;
+			int p = position;
+			final int l = limit;
+			final char[] b = buffer;
+
+			while (p < l) {
+				final char c = b[p];
+				if (c == '"') {
+					if (inScratch) {
+						appendScratch(length, b, start, p - start);
+						stringChars = scratch;
+						stringStart = 0;
+						stringLength = length + (p - start);
+					} else {
+						stringChars = b;
+						stringStart = start;
+						stringLength = p - start;
+					}
+					position = p + 1;
+					return;
+				} else if (c == '\\' || c == '\n' || c == '\r') {
+					break;
+				}
+				p += 1;
+			}
+
+			// Escape sequence, or end of buffer.  Either way the string can no
+			// longer be read directly from the buffer.
+			appendScratch(length, b, start, p - start);
+			length += p - start;
+			inScratch = true;
+			position = p;
+
+			if (p == l) {
+				if (!fill(1)) throw syntaxError("Unterminated string");
+			} else if (b[p] == '\\') {
+				position += 1;
+				appendScratch(length, readEscape());
+				length += 1;
+			} else {
+				throw syntaxError("Unterminated string");
+			}
+		}
+	}
+
+	private char readEscape() throws IOException, JSONdecodeException {
+		if (!fill(1)) throw syntaxError("Unterminated string");
+		final char c = buffer[position++];
+		switch (c) {
+			case '"': case '\\': case '/': return c;
+			case 'b': return '\b';
+			case 'f': return '\f';
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 't': return '\t';
+			case 'u':
+				if (!fill(4)) throw syntaxError("Unterminated string");
+				int r = 0;
+				for (int i = 0; i < 4; i++) {
+					final int d = Character.digit(buffer[position++], 16);
+					if (d == -1) throw syntaxError("Illegal escape");
+					r = (r << 4) | d;
+				}
+				return (char) r;
+			default:
+				throw syntaxError("Illegal escape");
+		}
+	}
+
+	private void appendScratch(final int at, final char[] src, final int start, final int length) {
+		if (at + length > scratch.length)
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, at + length));
+		System.arraycopy(src, start, scratch, at, length);
+	}
+
+	private void appendScratch(final int at, final char c) {
+		if (at == scratch.length) scratch = Arrays.copyOf(scratch, scratch.length * 2);
+		scratch[at] = c;
+	}
+
+	/**
+	 * Skip whitespace.
+	 * @return the next character, or -1 at the end of the input
+	 * */
+	private int skipWhitespace() throws IOException {
+		while (fill(1)) {
+			final char c = buffer[position];
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+				position += 1;
+			} else {
+				return c;
+			}
+		}
+
+		return -1;
+	}
+
+	private int nextNonWhitespace() throws IOException, JSONdecodeException {
+		final int c = skipWhitespace();
+		if (c == -1) throw syntaxError("Unexpected end of input");
+		return c;
+	}
+
+	/**
+	 * Ensure that there are at least n characters in the buffer.  Only the
+	 * characters from position onwards are retained.
+	 * @return false if the end of the input was reached first
+	 * */
+	private boolean fill(final int n) throws IOException {
+		if (limit - position >= n) return true;
+		if (in == null) return false;
+
+		final int remaining = limit - position;
+		if (capture != null) {
+			capture.append(buffer, captureStart, position - captureStart);
+			captureStart = 0;
+		}
+		System.arraycopy(buffer, position, buffer, 0, remaining);
+		offset += position;
+		position = 0;
+		limit = remaining;
+
+		while (limit < n) {
+			final int r = in.read(buffer, limit, buffer.length - limit);
+			if (r == -1) return false;
+			limit += r;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the number of chars that have been consumed so far, not
+	 * counting the '{' or '[' of an object or array that has been peeked at
+	 * but not yet begun
+	 * */
+	@Override
+	long offset() {
+		final boolean open = peeked == BEGIN_OBJECT || peeked == BEGIN_ARRAY;
+		return offset + position - (open? 1 : 0);
+	}
+
+	private JSONdecodeException syntaxError(final String message) {
+		return JSONdecodeException.stackless(message + " at character " + (offset + position));
+	}
+}
@@ -0,0 +1,320 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes JSON text to an Appendable.  Output is buffered, so flush must be
+ * called when the last value has been written.
+ * */
+final class TextOutput extends JSONOutput {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Appendable out;
+	private final char[] buffer;
+	private int position = 0;
+
+	/**
+	 * The number of chars that have been flushed to out.
+	 * */
+	private long flushed = 0;
+
+	/**
+	 * Space to format numbers.
+	 * */
+	private final byte[] number = new byte[Numbers.MAX_LENGTH];
+
+	/**
+	 * True if a comma must be written before the next name or value.
+	 * */
+	private boolean comma = false;
+
+	/**
+	 * The pending name, already quoted and followed by a colon.
+	 * */
+	private String pendingName = null;
+
+	TextOutput(final Appendable out) {
+		this(out, 4096);
+	}
+
+	TextOutput(final Appendable out, final int bufferSize) {
+		this.out = out;
+		this.buffer = new char[Math.max(bufferSize, Numbers.MAX_LENGTH)];
+	}
+
+	/**
+	 * Quote an object key and append a colon, so it can be written directly
+	 * into the output.
+	 * @param name the name to quote
+	 * @return the quoted name
+	 * */
+	static String quoteName(final String name) {
+		final StringBuilder r = new StringBuilder(name.length() + 3);
+		r.append('"');
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			final String escape = escape(c);
+			if (escape == null) r.append(c); else r.append(escape);
+		}
+		r.append("\":");
+		return r.toString();
+	}
+
+	static String escape(final char c) {
+		switch (c) {
+			case '"': return "\\\"";
+			case '\\': return "\\\\";
+			case '\b': return "\\b";
+			case '\f': return "\\f";
+			case '\n': return "\\n";
+			case '\r': return "\\r";
+			case '\t': return "\\t";
+			default:
+				if (c < 0x20) {
+					return "\\u00" + HEX[c >> 4] + HEX[c & 0xF];
+				} else {
+					return null;
+				}
+		}
+	}
+
+	@Override
+	void beginObject() throws IOException {
+		beforeValue();
+		write('{');
+		comma = false;
+	}
+
+	@Override
+	void endObject() throws IOException {
+		pendingName = null;
+		write('}');
+		comma = true;
+	}
+
+	@Override
+	void beginArray() throws IOException {
+		beforeValue();
+		write('[');
+		comma = false;
+	}
+
+	@Override
+	void endArray() throws IOException {
+		write(']');
+		comma = true;
+	}
+
+	@Override
+	void name(final String name) {
+		pendingName = quoteName(name);
+	}
+
+	@Override
+	void name(final Codec.Slot slot) {
+		pendingName = slot.quotedName;
+	}
+
+	@Override
+	void nullValue() throws IOException {
+		beforeValue();
+		write("null");
+		comma = true;
+	}
+
+	@Override
+	void value(final String value) throws IOException {
+		beforeValue();
+		writeString(value);
+		comma = true;
+	}
+
+	@Override
+	void value(final char value) throws IOException {
+		beforeValue();
+		write('"');
+		final String escape = escape(value);
+		if (escape == null) write(value); else write(escape);
+		write('"');
+		comma = true;
+	}
+
+	@Override
+	void value(final boolean value) throws IOException {
+		beforeValue();
+		write(value? "true" : "false");
+		comma = true;
+	}
+
+	@Override
+	void value(final long value) throws IOException {
+		beforeValue();
+		writeNumber(Numbers.formatLong(value, number, 0));
+		comma = true;
+	}
+
+	@Override
+	void value(final float value) throws IOException, JSONencodeException {
+		if (Float.isNaN(value) || Float.isInfinite(value)) throw new JSONencodeException(
+			"JSON does not allow non-finite numbers");
+		beforeValue();
+		writeNumber(Numbers.formatFloat(value, number, 0));
+		comma = true;
+	}
+
+	@Override
+	void value(final double value) throws IOException, JSONencodeException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) throw new JSONencodeException(
+			"JSON does not allow non-finite numbers");
+		beforeValue();
+		writeNumber(Numbers.formatDouble(value, number, 0));
+		comma = true;
+	}
+
+	@Override
+	void value(final Number value) throws IOException, JSONencodeException {
+		final String text;
+		try {
+			text = JSONObject.numberToString(value);
+		} catch (final JSONException e) {
+			throw new JSONencodeException(e);
+		}
+		beforeValue();
+		write(text);
+		comma = true;
+	}
+
+	/**
+	 * End a line of newline delimited JSON.  The next value starts a new
+	 * top-level value, so it is not preceded by a comma.
+	 * */
+	void endLine() throws IOException {
+		write('\n');
+		comma = false;
+	}
+
+	/**
+	 * Discard any buffered output and start again, so that this output can be
+	 * reused to write another value.
+	 * */
+	void reset() {
+		position = 0;
+		flushed = 0;
+		comma = false;
+		pendingName = null;
+	}
+
+	@Override
+	void rawValue(final char[] json) throws IOException {
+		beforeValue();
+		int start = 0;
+		while (start < json.length) {
+			if (position == buffer.length) flush();
+			final int n = Math.min(json.length - start, buffer.length - position);
+			System.arraycopy(json, start, buffer, position, n);
+			position += n;
+			start += n;
+		}
+		comma = true;
+	}
+
+	@Override
+	void flush() throws IOException {
+		if (position == 0) return;
+
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(buffer, 0, position);
+		} else if (out instanceof Writer) {
+			((Writer) out).write(buffer, 0, position);
+		} else {
+			out.append(CharBuffer.wrap(buffer, 0, position));
+		}
+
+		flushed += position;
+		position = 0;
+	}
+
+	@Override
+	long size() {
+		return flushed + position;
+	}
+
+	@Override
+	boolean canFork() {
+		return true;
+	}
+
+	@Override
+	JSONOutput fork() {
+		return new TextOutput(new StringBuilder(), 1024);
+	}
+
+	@Override
+	void join(final JSONOutput fork) throws IOException {
+		final StringBuilder text = (StringBuilder) ((TextOutput) fork).out;
+		if (text.length() == 0) return;
+
+		if (comma) write(',');
+		flush();
+		out.append(text);
+		comma = true;
+	}
+
+	private void beforeValue() throws IOException {
+		if (comma) write(',');
+		if (pendingName != null) {
+			write(pendingName);
+			pendingName = null;
+		}
+	}
+
+	/**
+	 * Write the first length characters of the number buffer.
+	 * */
+	private void writeNumber(final int length) throws IOException {
+		if (buffer.length - position < length) flush();
+		for (int i = 0; i < length; i++) buffer[position + i] = (char) number[i];
+		position += length;
+	}
+
+	private void writeString(final String s) throws IOException {
+		write('"');
+
+		final int length = s.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') continue;
+
+			write(s, start, i);
+			write(escape(c));
+			start = i + 1;
+		}
+		write(s, start, length);
+
+		write('"');
+	}
+
+	private void write(final char c) throws IOException {
+		if (position == buffer.length) flush();
+		buffer[position++] = c;
+	}
+
+	private void write(final String s) throws IOException {
+		write(s, 0, s.length());
+	}
+
+	private void write(final String s, int start, final int end) throws IOException {
+		while (start < end) {
+			if (position == buffer.length) flush();
+			final int n = Math.min(end - start, buffer.length - position);
+			s.getChars(start, start + n, buffer, position);
+			position += n;
+			start += n;
+		}
+	}
+}
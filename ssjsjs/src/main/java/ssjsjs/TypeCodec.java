@@ -0,0 +1,1153 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Encoder/decoder for values of one particular declared type.  A tree of
+ * TypeCodecs is compiled once for each field of a JSONable class, with the
+ * concrete types of the field, its elements, map values and optional values
+ * resolved up front.  This follows the same rules as SSJSJS.serializeField and
+ * SSJSJS.deserializeField, but without re-examining the type of the field on
+ * every call.
+ *
+ * Types that are not recognised when the codec is compiled are handled by
+ * falling back to serializeField and deserializeField.
+ * */
+abstract class TypeCodec {
+	/**
+	 * The declared type.
+	 * */
+	final Type type;
+
+	/**
+	 * The raw class of the declared type.
+	 * */
+	final Class<?> clazz;
+
+	/**
+	 * Whether null values are permitted.
+	 * */
+	final boolean nullable;
+
+	/**
+	 * The name of the field, for error messages.
+	 * */
+	final String fieldName;
+
+	TypeCodec(
+		final Type type, final Class<?> clazz, final boolean nullable, final String fieldName
+	) {
+		this.type = type;
+		this.clazz = clazz;
+		this.nullable = nullable;
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * Encode a value.
+	 * @param value the value to encode (may be null)
+	 * @return the JSON value, or null if there is nothing to output
+	 * @throws JSONencodeException if the value cannot be encoded
+	 * @throws NullPointerException if value is null but this codec is not nullable
+	 * */
+	abstract Object encode(Object value) throws JSONencodeException;
+
+	/**
+	 * Write a value to a stream of JSON.
+	 * @param value the value to write (may be null)
+	 * @param out where to write the value
+	 * @return true if a value was written, false if the value is absent (i.e.
+	 * encode would return null)
+	 * @throws JSONencodeException if the value cannot be encoded
+	 * @throws NullPointerException if value is null but this codec is not nullable
+	 * @throws IOException if the output cannot be written
+	 * */
+	abstract boolean write(Object value, JSONOutput out) throws JSONencodeException, IOException;
+
+	/**
+	 * Decode a value.
+	 * @param value the JSON value to decode (may be null)
+	 * @param environment the environment for implicit fields (may be null)
+	 * @return the decoded value
+	 * @throws JSONdecodeException if the value cannot be decoded
+	 * */
+	abstract Object decode(Object value, Map<String, Object> environment)
+		throws JSONdecodeException;
+
+	/**
+	 * Read a value from a stream of JSON.  The default implementation reads
+	 * the value into a tree and decodes that, so subclasses override this
+	 * method to build values directly from the stream.
+	 * @param in the stream to read from
+	 * @param environment the environment for implicit fields (may be null)
+	 * @return the decoded value
+	 * @throws JSONdecodeException if the value cannot be decoded
+	 * @throws IOException if the input cannot be read
+	 * */
+	Object read(final JSONInput in, final Map<String, Object> environment)
+		throws JSONdecodeException, IOException
+	{
+		return decode(in.readTree(), environment);
+	}
+
+	/**
+	 * Compile a codec for a type.
+	 * @param type the declared type
+	 * @param clazz the raw class of the declared type
+	 * @param nullable true if the value may be null
+	 * @param fieldName the name of the field, for error messages
+	 * @return the codec
+	 * */
+	static TypeCodec compile(
+		final Type type, final Class<?> clazz, final boolean nullable, final String fieldName
+	) {
+		if (type instanceof Class) {
+			final Class<?> c = (Class<?>) type;
+
+			if (c == String.class) {
+				return new StringCodec(type, c, nullable, fieldName);
+			} else if (c == boolean.class || c == Boolean.class) {
+				return new BooleanCodec(type, c, nullable, fieldName);
+			} else if (c == char.class || c == Character.class) {
+				return new CharCodec(type, c, nullable, fieldName);
+			} else if (NumberCodec.kindOf(c) != NumberCodec.NONE) {
+				return new NumberCodec(type, c, nullable, fieldName);
+			} else if (c.isEnum()) {
+				return new EnumCodec(type, c, nullable, fieldName);
+			} else if (c.isArray()) {
+				return new ArrayCodec(type, c, nullable, fieldName);
+			} else if (JSONable.class.isAssignableFrom(c) &&
+				!Collection.class.isAssignableFrom(c) &&
+				!Map.class.isAssignableFrom(c))
+			{
+				return new ObjectCodec(type, c, nullable, fieldName);
+			}
+
+		} else if (type instanceof ParameterizedType) {
+			final ParameterizedType p = (ParameterizedType) type;
+			final Type raw = p.getRawType();
+			final Type[] args = p.getActualTypeArguments();
+
+			if (raw == Optional.class && args.length == 1) {
+				return new OptionalCodec(type, nullable, fieldName,
+					compileInner(args[0], fieldName + "___OptionalValue__"));
+			} else if ((raw == List.class || raw == Set.class || raw == Collection.class) &&
+				args.length == 1)
+			{
+				return new CollectionCodec(type, (Class<?>) raw, nullable, fieldName,
+					compileInner(args[0], fieldName + "[]"));
+			} else if (raw == Map.class && args.length == 2) {
+				return new MapCodec(type, nullable, fieldName, args[0],
+					compileInner(args[1], fieldName + "{}"));
+			} else if (raw == Lazy.class && args.length == 1 && args[0] instanceof Class &&
+				JSONable.class.isAssignableFrom((Class<?>) args[0]))
+			{
+				return new LazyCodec(type, nullable, fieldName,
+					((Class<?>) args[0]).asSubclass(JSONable.class));
+			}
+		}
+
+		return new DynamicCodec(type, clazz, nullable, fieldName);
+	}
+
+	/**
+	 * Compile a codec for an element of a collection, map, array or optional.
+	 * These values are always nullable.
+	 * */
+	private static TypeCodec compileInner(final Type type, final String fieldName) {
+		Class<?> clazz;
+		try {
+			clazz = typeToClass(type);
+		} catch (final ClassCastException e) {
+			clazz = null;
+		}
+
+		return compile(type, clazz, true, fieldName);
+	}
+
+	private static Class<?> typeToClass(final Type type) throws ClassCastException {
+		if (type instanceof ParameterizedType) {
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		} else {
+			return (Class<?>) type;
+		}
+	}
+
+	/**
+	 * Check for null values when encoding.
+	 * @param value the value to check
+	 * @return true if the value is null
+	 * @throws JSONencodeException if the value is null and this codec is not nullable
+	 * */
+	final boolean encodeNull(final Object value) throws JSONencodeException {
+		if (value == null || value == JSONObject.NULL) {
+			if (!nullable) throw JSONencodeException.stackless(
+				"Cannot serialize null in non-nullable field '" + fieldName + "'");
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Check for null values when decoding.
+	 * @param value the value to check
+	 * @return true if the value is null
+	 * @throws JSONdecodeException if the value is null and this codec is not nullable
+	 * */
+	final boolean decodeNull(final Object value) throws JSONdecodeException {
+		if (value == null || value == JSONObject.NULL) {
+			if (!nullable) throw JSONdecodeException.stackless(
+				"Cannot deserialize non-nullable field '" + fieldName + "' of type '"
+				+ clazz + "'. Input JSON has no value for this field.");
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the pooled instance of a decoded string, if string pooling is
+	 * enabled.
+	 * */
+	static String pooled(final String value) {
+		final StringPool pool = StringPool.current();
+		return pool == null? value : pool.intern(value);
+	}
+
+	final JSONdecodeException wrongType(final Object value) {
+		return JSONdecodeException.stackless("Cannot deserialize field '" +
+			fieldName + "' of type '" + type.getTypeName() + "' from object of type '" +
+			value.getClass() + "'");
+	}
+
+	static final class StringCodec extends TypeCodec {
+		StringCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return encodeNull(value)? null : value;
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			out.value((String) value);
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (value instanceof String) return pooled((String) value);
+			else throw wrongType(value);
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() == JSONInput.STRING) return in.nextString(StringPool.current());
+			else return decode(in.readTree(), environment);
+		}
+	}
+
+	static final class BooleanCodec extends TypeCodec {
+		BooleanCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return encodeNull(value)? null : value;
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			out.value(((Boolean) value).booleanValue());
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (value instanceof Boolean) return value;
+			else throw wrongType(value);
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() == JSONInput.BOOLEAN) return in.nextBoolean();
+			else return decode(in.readTree(), environment);
+		}
+	}
+
+	static final class CharCodec extends TypeCodec {
+		CharCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return encodeNull(value)? null : value.toString();
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			out.value(((Character) value).charValue());
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (value instanceof Character) return value;
+			else if (value instanceof String && ((String) value).length() == 1)
+				return ((String) value).charAt(0);
+			else throw wrongType(value);
+		}
+	}
+
+	static final class NumberCodec extends TypeCodec {
+		static final int NONE = 0;
+		static final int BYTE = 1;
+		static final int SHORT = 2;
+		static final int INT = 3;
+		static final int LONG = 4;
+		static final int FLOAT = 5;
+		static final int DOUBLE = 6;
+
+		static int kindOf(final Class<?> clazz) {
+			if (clazz == int.class || clazz == Integer.class) return INT;
+			else if (clazz == long.class || clazz == Long.class) return LONG;
+			else if (clazz == double.class || clazz == Double.class) return DOUBLE;
+			else if (clazz == float.class || clazz == Float.class) return FLOAT;
+			else if (clazz == short.class || clazz == Short.class) return SHORT;
+			else if (clazz == byte.class || clazz == Byte.class) return BYTE;
+			else return NONE;
+		}
+
+		private final int kind;
+		private final Class<?> boxed;
+
+		NumberCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+			this.kind = kindOf(clazz);
+			switch (kind) {
+				case BYTE: boxed = Byte.class; break;
+				case SHORT: boxed = Short.class; break;
+				case INT: boxed = Integer.class; break;
+				case LONG: boxed = Long.class; break;
+				case FLOAT: boxed = Float.class; break;
+				default: boxed = Double.class; break;
+			}
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return encodeNull(value)? null : value;
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			switch (kind) {
+				case FLOAT: out.value(((Number) value).floatValue()); break;
+				case DOUBLE: out.value(((Number) value).doubleValue()); break;
+				default: out.value(((Number) value).longValue()); break;
+			}
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (value.getClass() == boxed) return value;
+			else if (!(value instanceof Number)) throw JSONdecodeException.stackless("Expected a '" +
+				clazz + "' for field '" + fieldName + "', but got a " + value.getClass().getSimpleName());
+
+			final Number n = (Number) value;
+			switch (kind) {
+				case BYTE: return n.byteValue();
+				case SHORT: return n.shortValue();
+				case INT: return n.intValue();
+				case LONG: return n.longValue();
+				case FLOAT: return n.floatValue();
+				default: return n.doubleValue();
+			}
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() == JSONInput.NUMBER) {
+				if (in.isLong()) {
+					final long n = in.nextLong();
+					switch (kind) {
+						case BYTE: return (byte) n;
+						case SHORT: return (short) n;
+						case INT: return (int) n;
+						case LONG: return n;
+						case FLOAT: return (float) n;
+						default: return (double) n;
+					}
+				} else if (in.isDouble()) {
+					final double n = in.nextDouble();
+					if (!Double.isInfinite(n)) {
+						switch (kind) {
+							case BYTE: return (byte) (int) n;
+							case SHORT: return (short) (int) n;
+							case INT: return (int) n;
+							case LONG: return (long) n;
+							case FLOAT: return (float) n;
+							default: return n;
+						}
+					}
+
+					return decode(Double.toString(n), environment);
+				}
+			}
+
+			return decode(in.readTree(), environment);
+		}
+	}
+
+	static final class EnumCodec extends TypeCodec {
+		EnumCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return encodeNull(value)? null : value.toString();
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			out.value(value.toString());
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (clazz.isInstance(value)) return value;
+			else if (value instanceof String) {
+				try {
+					@SuppressWarnings("unchecked") final Object r =
+						Enum.valueOf((Class) clazz, (String) value);
+					return r;
+				} catch (final IllegalArgumentException e) {
+					throw new JSONdecodeException(e);
+				}
+			} else {
+				throw wrongType(value);
+			}
+		}
+	}
+
+	static final class ObjectCodec extends TypeCodec {
+		ObjectCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return encodeNull(value)? null : SSJSJS.encodeObject((JSONable) value);
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			SSJSJS.write((JSONable) value, out);
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (value instanceof JSONObject) {
+				@SuppressWarnings("unchecked") final Class<JSONable> deserializeAs =
+					(Class<JSONable>) clazz;
+				return SSJSJS.decodeObject((JSONObject) value, deserializeAs, environment);
+			} else {
+				throw wrongType(value);
+			}
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() == JSONInput.BEGIN_OBJECT) {
+				@SuppressWarnings("unchecked") final Class<JSONable> deserializeAs =
+					(Class<JSONable>) clazz;
+				return SSJSJS.read(in, deserializeAs, environment);
+			} else {
+				return decode(in.readTree(), environment);
+			}
+		}
+	}
+
+	static final class LazyCodec extends TypeCodec {
+		private final Class<? extends JSONable> target;
+
+		LazyCodec(
+			final Type type,
+			final boolean nullable,
+			final String fieldName,
+			final Class<? extends JSONable> target
+		) {
+			super(type, Lazy.class, nullable, fieldName);
+			this.target = target;
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			if (encodeNull(value)) return null;
+
+			// If the value hasn't been decoded, the JSON it came from is
+			// encoded as it is.
+			final Object current = ((Lazy<?>) value).current();
+			if (current instanceof JSONable) return SSJSJS.encodeObject((JSONable) current);
+			else if (current instanceof JSONObject) return current;
+			else return parse((char[]) current);
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+
+			final Object current = ((Lazy<?>) value).current();
+			if (current instanceof JSONable) SSJSJS.write((JSONable) current, out);
+			else if (current instanceof JSONObject) SSJSJS.writeTree(current, out);
+			else out.rawValue((char[]) current);
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (!(value instanceof JSONObject)) throw wrongType(value);
+			return Lazy.decodeLater(target, value, environment);
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() != JSONInput.BEGIN_OBJECT) return decode(in.readTree(), environment);
+			return Lazy.decodeLater(target, in.readRaw(), environment);
+		}
+
+		private static Object parse(final char[] text) throws JSONencodeException {
+			try {
+				return new TextInput(text, 0, text.length).readTree();
+			} catch (final IOException | JSONdecodeException e) {
+				// not possible, because the text was checked when it was read
+				throw new JSONencodeException(e);
+			}
+		}
+	}
+
+	static final class OptionalCodec extends TypeCodec {
+		private final TypeCodec inner;
+
+		OptionalCodec(
+			final Type type, final boolean nullable, final String fieldName, final TypeCodec inner
+		) {
+			super(type, Optional.class, nullable, fieldName);
+			this.inner = inner;
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			if (encodeNull(value)) return null;
+			return inner.encode(((Optional<?>) value).orElse(null));
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			return inner.write(((Optional<?>) value).orElse(null), out);
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (value == null || value == JSONObject.NULL) return Optional.empty();
+			else return Optional.of(inner.decode(value, environment));
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() == JSONInput.NULL) {
+				in.nextNull();
+				return Optional.empty();
+			} else {
+				return Optional.of(inner.read(in, environment));
+			}
+		}
+	}
+
+	static final class CollectionCodec extends TypeCodec {
+		private final TypeCodec element;
+		private final boolean isSet;
+
+		CollectionCodec(
+			final Type type,
+			final Class<?> clazz,
+			final boolean nullable,
+			final String fieldName,
+			final TypeCodec element
+		) {
+			super(type, clazz, nullable, fieldName);
+			this.element = element;
+			this.isSet = clazz.isAssignableFrom(Set.class);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			if (encodeNull(value)) return null;
+
+			final Collection<?> c = (Collection<?>) value;
+			final JSONArray out = new JSONArray();
+			if (Parallel.isWorthSplitting(c.size())) {
+				for (final Object item : Parallel.encode(element, c.toArray(), null)) out.put(item);
+			} else {
+				int i = 0;
+				for (final Object item : c) {
+					try {
+						out.put(element.encode(item));
+					} catch (final JSONencodeException e) {
+						throw e.atIndex(i);
+					}
+					i += 1;
+				}
+			}
+
+			return out;
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+
+			final Collection<?> c = (Collection<?>) value;
+			out.beginArray();
+			if (Parallel.isWorthSplitting(c.size()) && out.canFork()) {
+				Parallel.write(c.toArray(), null, out, (item, part) -> {
+					if (!element.write(item, part)) part.nullValue();
+				});
+			} else {
+				int i = 0;
+				for (final Object item : c) {
+					try {
+						if (!element.write(item, out)) out.nullValue();
+					} catch (final JSONencodeException e) {
+						throw e.atIndex(i);
+					}
+					i += 1;
+				}
+			}
+			out.endArray();
+
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (!(value instanceof JSONArray)) throw wrongType(value);
+
+			final JSONArray array = (JSONArray) value;
+			final int length = array.length();
+			final List<Object> out;
+
+			if (Parallel.isWorthSplitting(length)) {
+				final Object[] elements = new Object[length];
+				Parallel.decode(element, array::opt, elements, null, environment);
+				out = new ArrayList<>(Arrays.asList(elements));
+			} else {
+				out = new ArrayList<>(length);
+				for (int i = 0; i < length; i++) {
+					try {
+						out.add(element.decode(array.opt(i), environment));
+					} catch (final JSONdecodeException e) {
+						throw e.atIndex(i);
+					}
+				}
+			}
+
+			return isSet? new HashSet<>(out) : out;
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() != JSONInput.BEGIN_ARRAY) return decode(in.readTree(), environment);
+
+			final List<Object> out = new ArrayList<>();
+			in.beginArray();
+			for (int i = 0; in.hasNext(); i++) {
+				try {
+					out.add(element.read(in, environment));
+				} catch (final JSONdecodeException e) {
+					throw e.atIndex(i);
+				}
+			}
+			in.endArray();
+
+			return isSet? new HashSet<>(out) : out;
+		}
+	}
+
+	static final class MapCodec extends TypeCodec {
+		private final TypeCodec element;
+		private final Type keyType;
+		private final boolean canEncodeKeys;
+		private final boolean canDecodeKeys;
+
+		MapCodec(
+			final Type type,
+			final boolean nullable,
+			final String fieldName,
+			final Type keyType,
+			final TypeCodec element
+		) {
+			super(type, Map.class, nullable, fieldName);
+			this.keyType = keyType;
+			this.element = element;
+			this.canEncodeKeys = keyType == String.class;
+			this.canDecodeKeys =
+				keyType instanceof Class && ((Class<?>) keyType).isAssignableFrom(String.class);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			if (encodeNull(value)) return null;
+			if (!canEncodeKeys) throw new JSONencodeException("Map keys must be Strings");
+
+			final Map<?, ?> map = (Map<?, ?>) value;
+			final JSONObject out = new JSONObject();
+			if (Parallel.isWorthSplitting(map.size())) {
+				final Object[] entries = map.entrySet().toArray();
+				final String[] keys = new String[entries.length];
+				final Object[] values = new Object[entries.length];
+				for (int i = 0; i < entries.length; i++) {
+					keys[i] = (String) ((Map.Entry<?, ?>) entries[i]).getKey();
+					values[i] = ((Map.Entry<?, ?>) entries[i]).getValue();
+				}
+
+				final Object[] encoded = Parallel.encode(element, values, keys);
+				for (int i = 0; i < entries.length; i++) {
+					if (encoded[i] != null) out.put(keys[i], encoded[i]);
+				}
+			} else {
+				for (final Map.Entry<?, ?> entry : map.entrySet()) {
+					final String key = (String) entry.getKey();
+					try {
+						final Object v = element.encode(entry.getValue());
+						if (v != null) out.put(key, v);
+					} catch (final JSONencodeException e) {
+						throw e.atKey(key);
+					}
+				}
+			}
+
+			return out;
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+			if (!canEncodeKeys) throw new JSONencodeException("Map keys must be Strings");
+
+			final Map<?, ?> map = (Map<?, ?>) value;
+			out.beginObject();
+			if (Parallel.isWorthSplitting(map.size()) && out.canFork()) {
+				final Object[] entries = map.entrySet().toArray();
+				final String[] keys = new String[entries.length];
+				for (int i = 0; i < entries.length; i++) {
+					keys[i] = (String) ((Map.Entry<?, ?>) entries[i]).getKey();
+				}
+
+				Parallel.write(entries, keys, out, (entry, part) -> {
+					part.name((String) ((Map.Entry<?, ?>) entry).getKey());
+					element.write(((Map.Entry<?, ?>) entry).getValue(), part);
+				});
+			} else {
+				for (final Map.Entry<?, ?> entry : map.entrySet()) {
+					final String key = (String) entry.getKey();
+					out.name(key);
+					try {
+						element.write(entry.getValue(), out);
+					} catch (final JSONencodeException e) {
+						throw e.atKey(key);
+					}
+				}
+			}
+			out.endObject();
+
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (!(value instanceof JSONObject)) throw wrongType(value);
+			else if (!canDecodeKeys) throw new JSONdecodeException(
+				"Cannot deserialize maps with non-string keys in field '" + fieldName + "'");
+
+			final JSONObject object = (JSONObject) value;
+			final Map<String, Object> out = new HashMap<>();
+
+			if (Parallel.isWorthSplitting(object.length())) {
+				final String[] keys = object.keySet().toArray(new String[0]);
+				final Object[] elements = new Object[keys.length];
+				Parallel.decode(element, i -> object.get(keys[i]), elements, keys, environment);
+				for (int i = 0; i < keys.length; i++) out.put(pooled(keys[i]), elements[i]);
+			} else {
+				for (final String key : object.keySet()) {
+					try {
+						out.put(pooled(key), element.decode(object.get(key), environment));
+					} catch (final JSONdecodeException e) {
+						throw e.atKey(key);
+					}
+				}
+			}
+
+			return out;
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			if (in.peek() != JSONInput.BEGIN_OBJECT) return decode(in.readTree(), environment);
+			else if (!canDecodeKeys) throw new JSONdecodeException(
+				"Cannot deserialize maps with non-string keys in field '" + fieldName + "'");
+
+			final StringPool pool = StringPool.current();
+			final Map<String, Object> out = new HashMap<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				final String key = in.nextName(pool);
+				if (out.containsKey(key)) throw JSONInput.duplicateKey(key);
+				try {
+					out.put(key, element.read(in, environment));
+				} catch (final JSONdecodeException e) {
+					throw e.atKey(key);
+				}
+			}
+			in.endObject();
+
+			return out;
+		}
+	}
+
+	static final class ArrayCodec extends TypeCodec {
+		private final Class<?> componentClass;
+		private final TypeCodec element;
+
+		ArrayCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+			this.componentClass = clazz.getComponentType();
+			this.element = compileInner(componentClass, fieldName + "[]");
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			if (encodeNull(value)) return null;
+
+			final JSONArray out = new JSONArray();
+
+			if (value instanceof byte[]) {
+				final byte[] a = (byte[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else if (value instanceof char[]) {
+				final char[] a = (char[]) value;
+				for (int i = 0; i < a.length; i++) out.put(String.valueOf(a[i]));
+			} else if (value instanceof short[]) {
+				final short[] a = (short[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else if (value instanceof int[]) {
+				final int[] a = (int[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else if (value instanceof long[]) {
+				final long[] a = (long[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else if (value instanceof float[]) {
+				final float[] a = (float[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else if (value instanceof double[]) {
+				final double[] a = (double[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else if (value instanceof boolean[]) {
+				final boolean[] a = (boolean[]) value;
+				for (int i = 0; i < a.length; i++) out.put(a[i]);
+			} else {
+				final Object[] a = (Object[]) value;
+				if (SSJSJS.isJSONPrimitive(componentClass)) {
+					for (int i = 0; i < a.length; i++) out.put(a[i]);
+				} else if (componentClass.isEnum()) {
+					for (int i = 0; i < a.length; i++) out.put(a[i].toString());
+				} else if (JSONable.class.isAssignableFrom(componentClass)) {
+					if (Parallel.isWorthSplitting(a.length)) {
+						for (final Object[] chunk : Parallel.run(a.length, (start, end) -> {
+							final Object[] r = new Object[end - start];
+							for (int i = start; i < end; i++) r[i - start] = encodeElement(a, i);
+							return r;
+						}, JSONencodeException.class)) {
+							for (final Object item : chunk) out.put(item);
+						}
+					} else {
+						for (int i = 0; i < a.length; i++) out.put(encodeElement(a, i));
+					}
+				} else {
+					throw new JSONencodeException(
+						"Cannot serialize array element type: " + componentClass);
+				}
+			}
+
+			return out;
+		}
+
+		private static JSONObject encodeElement(final Object[] a, final int i)
+			throws JSONencodeException
+		{
+			try {
+				return SSJSJS.encodeObject((JSONable) a[i]);
+			} catch (final JSONencodeException e) {
+				throw e.atIndex(i);
+			}
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			if (encodeNull(value)) return false;
+
+			if (value instanceof byte[]) {
+				out.value((byte[]) value);
+				return true;
+			}
+
+			out.beginArray();
+
+			if (value instanceof char[]) {
+				final char[] a = (char[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else if (value instanceof short[]) {
+				final short[] a = (short[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else if (value instanceof int[]) {
+				final int[] a = (int[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else if (value instanceof long[]) {
+				final long[] a = (long[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else if (value instanceof float[]) {
+				final float[] a = (float[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else if (value instanceof double[]) {
+				final double[] a = (double[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else if (value instanceof boolean[]) {
+				final boolean[] a = (boolean[]) value;
+				for (int i = 0; i < a.length; i++) out.value(a[i]);
+			} else {
+				final Object[] a = (Object[]) value;
+				if (SSJSJS.isJSONPrimitive(componentClass)) {
+					for (int i = 0; i < a.length; i++) SSJSJS.writeTree(a[i], out);
+				} else if (componentClass.isEnum()) {
+					for (int i = 0; i < a.length; i++) out.value(a[i].toString());
+				} else if (JSONable.class.isAssignableFrom(componentClass)) {
+					if (Parallel.isWorthSplitting(a.length) && out.canFork()) {
+						Parallel.write(a, null, out, (item, part) -> SSJSJS.write((JSONable) item, part));
+					} else {
+						for (int i = 0; i < a.length; i++) {
+							try {
+								SSJSJS.write((JSONable) a[i], out);
+							} catch (final JSONencodeException e) {
+								throw e.atIndex(i);
+							}
+						}
+					}
+				} else {
+					throw new JSONencodeException(
+						"Cannot serialize array element type: " + componentClass);
+				}
+			}
+
+			out.endArray();
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (decodeNull(value)) return null;
+			else if (!(value instanceof JSONArray)) throw wrongType(value);
+
+			final JSONArray array = (JSONArray) value;
+			if (componentClass.isPrimitive()) {
+				return PrimitiveArrays.decode(array, componentClass, fieldName);
+			}
+
+			final int length = array.length();
+
+			try {
+				final Object[] out = (Object[]) Array.newInstance(componentClass, length);
+				if (Parallel.isWorthSplitting(length)) {
+					Parallel.decode(element, array::opt, out, null, environment);
+				} else {
+					for (int i = 0; i < length; i++) {
+						try {
+							out[i] = element.decode(array.opt(i), environment);
+						} catch (final JSONdecodeException e) {
+							throw e.atIndex(i);
+						}
+					}
+				}
+				return out;
+
+			} catch (final IllegalArgumentException e) {
+				throw new JSONdecodeException(
+					"Cannot create array of type '" + type.getTypeName() +
+					"' for field '" + fieldName + "'");
+			}
+		}
+
+		@Override
+		Object read(final JSONInput in, final Map<String, Object> environment)
+			throws JSONdecodeException, IOException
+		{
+			final int token = in.peek();
+			if (token == JSONInput.BYTES && componentClass == byte.class) return in.nextBytes();
+			else if (token != JSONInput.BEGIN_ARRAY) return decode(in.readTree(), environment);
+			else if (componentClass.isPrimitive()) {
+				return PrimitiveArrays.read(in, componentClass, element, fieldName);
+			}
+
+			final List<Object> elements = new ArrayList<>();
+			in.beginArray();
+			for (int i = 0; in.hasNext(); i++) {
+				try {
+					elements.add(element.read(in, environment));
+				} catch (final JSONdecodeException e) {
+					throw e.atIndex(i);
+				}
+			}
+			in.endArray();
+
+			try {
+				return elements.toArray(
+					(Object[]) Array.newInstance(componentClass, elements.size()));
+			} catch (final IllegalArgumentException e) {
+				throw new JSONdecodeException(
+					"Cannot create array of type '" + type.getTypeName() +
+					"' for field '" + fieldName + "'");
+			}
+		}
+	}
+
+	/**
+	 * Fallback codec for types that are not recognised when the codec is
+	 * compiled.  The value is examined on every call.
+	 * */
+	static final class DynamicCodec extends TypeCodec {
+		DynamicCodec(final Type type, final Class<?> clazz, final boolean nullable, final String fieldName) {
+			super(type, clazz, nullable, fieldName);
+		}
+
+		@Override
+		Object encode(final Object value) throws JSONencodeException {
+			return SSJSJS.serializeField(value, type, nullable);
+		}
+
+		@Override
+		boolean write(final Object value, final JSONOutput out)
+			throws JSONencodeException, IOException
+		{
+			final Object tree = SSJSJS.serializeField(value, type, nullable);
+			if (tree == null) return false;
+			SSJSJS.writeTree(tree, out);
+			return true;
+		}
+
+		@Override
+		Object decode(final Object value, final Map<String, Object> environment)
+			throws JSONdecodeException
+		{
+			if (clazz == null) throw new JSONdecodeException("Java reflection error");
+			return SSJSJS.deserializeField(fieldName, clazz, type, value, environment, nullable);
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package ssjsjs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes UTF-8 encoded JSON text to an OutputStream or a ByteBuffer.
+ *
+ * When writing to a ByteBuffer that is backed by an array, the text is
+ * written directly into the array.  Otherwise output is buffered, so flush
+ * must be called when the last value has been written.
+ * */
+final class UTF8Output extends JSONOutput {
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+	private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+	private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+	/**
+	 * The longest sequence of bytes that is written with a single call to
+	 * require.  Escaped characters are at most 6 bytes.
+	 * */
+	private static final int MAX_TOKEN = 6;
+
+	/**
+	 * Characters that can be copied directly into the output.
+	 * */
+	private static final boolean[] PLAIN_ASCII = new boolean[128];
+
+	/**
+	 * Characters that can be copied directly into the output when writing raw
+	 * JSON text.
+	 * */
+	private static final boolean[] ANY_ASCII = new boolean[128];
+	static {
+		for (int c = 0x20; c < 0x80; c++) PLAIN_ASCII[c] = c != '"' && c != '\\';
+		Arrays.fill(ANY_ASCII, true);
+	}
+
+	/**
+	 * The stream to write to, or null if writing to a ByteBuffer.
+	 * */
+	private final OutputStream out;
+
+	/**
+	 * The ByteBuffer to write to, or null if writing to a stream.
+	 * */
+	private final ByteBuffer target;
+
+	/**
+	 * True if writing directly into the array of target.
+	 * */
+	private final boolean inPlace;
+
+	private final byte[] buffer;
+	private int position;
+	private final int limit;
+
+	/**
+	 * The number of bytes that have been flushed.  When writing in place,
+	 * this is minus the index in buffer of the first byte of output instead,
+	 * so that size() still works.
+	 * */
+	private long flushed = 0;
+
+	/**
+	 * Space to format numbers when there might not be room in the buffer.
+	 * */
+	private final byte[] number = new byte[Numbers.MAX_LENGTH];
+
+	/**
+	 * True if a comma must be written before the next name or value.
+	 * */
+	private boolean comma = false;
+
+	/**
+	 * The pending name, either pre-encoded (pendingBytes) or not (pendingName).
+	 * */
+	private byte[] pendingBytes = null;
+	private String pendingName = null;
+
+	UTF8Output(final OutputStream out) {
+		this.out = out;
+		this.target = null;
+		this.inPlace = false;
+		this.buffer = new byte[8192];
+		this.position = 0;
+		this.limit = buffer.length;
+	}
+
+	UTF8Output(final ByteBuffer target) {
+		this.out = null;
+		this.target = target;
+		this.inPlace = target.hasArray() && !target.isReadOnly();
+
+		if (inPlace) {
+			this.buffer = target.array();
+			this.position = target.arrayOffset() + target.position();
+			this.limit = target.arrayOffset() + target.limit();
+			this.flushed = -position;
+		} else {
+			this.buffer = new byte[Math.min(8192, Math.max(target.remaining(), MAX_TOKEN))];
+			this.position = 0;
+			this.limit = buffer.length;
+		}
+	}
+
+	@Override
+	void beginObject() throws IOException {
+		beforeValue();
+		write((byte) '{');
+		comma = false;
+	}
+
+	@Override
+	void endObject() throws IOException {
+		pendingBytes = null;
+		pendingName = null;
+		write((byte) '}');
+		comma = true;
+	}
+
+	@Override
+	void beginArray() throws IOException {
+		beforeValue();
+		write((byte) '[');
+		comma = false;
+	}
+
+	@Override
+	void endArray() throws IOException {
+		write((byte) ']');
+		comma = true;
+	}
+
+	@Override
+	void name(final String name) {
+		pendingBytes = null;
+		pendingName = name;
+	}
+
+	@Override
+	void name(final Codec.Slot slot) {
+		pendingBytes = slot.utf8Name;
+		pendingName = null;
+	}
+
+	@Override
+	void nullValue() throws IOException {
+		beforeValue();
+		write(NULL);
+		comma = true;
+	}
+
+	@Override
+	void value(final String value) throws IOException {
+		beforeValue();
+		writeString(value);
+		comma = true;
+	}
+
+	@Override
+	void value(final char value) throws IOException {
+		beforeValue();
+		write((byte) '"');
+		writeChars(String.valueOf(value), true);
+		write((byte) '"');
+		comma = true;
+	}
+
+	@Override
+	void value(final boolean value) throws IOException {
+		beforeValue();
+		write(value? TRUE : FALSE);
+		comma = true;
+	}
+
+	@Override
+	void value(final long value) throws IOException {
+		beforeValue();
+		if (limit - position >= Numbers.MAX_LENGTH) {
+			position = Numbers.formatLong(value, buffer, position);
+		} else {
+			write(number, Numbers.formatLong(value, number, 0));
+		}
+		comma = true;
+	}
+
+	@Override
+	void value(final float value) throws IOException, JSONencodeException {
+		if (Float.isNaN(value) || Float.isInfinite(value)) throw new JSONencodeException(
+			"JSON does not allow non-finite numbers");
+		beforeValue();
+		if (limit - position >= Numbers.MAX_LENGTH) {
+			position = Numbers.formatFloat(value, buffer, position);
+		} else {
+			write(number, Numbers.formatFloat(value, number, 0));
+		}
+		comma = true;
+	}
+
+	@Override
+	void value(final double value) throws IOException, JSONencodeException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) throw new JSONencodeException(
+			"JSON does not allow non-finite numbers");
+		beforeValue();
+		if (limit - position >= Numbers.MAX_LENGTH) {
+			position = Numbers.formatDouble(value, buffer, position);
+		} else {
+			write(number, Numbers.formatDouble(value, number, 0));
+		}
+		comma = true;
+	}
+
+	@Override
+	void value(final Number value) throws IOException, JSONencodeException {
+		final String text;
+		try {
+			text = JSONObject.numberToString(value);
+		} catch (final JSONException e) {
+			throw new JSONencodeException(e);
+		}
+		beforeValue();
+		writeASCII(text);
+		comma = true;
+	}
+
+	/**
+	 * End a line of newline delimited JSON.  The next value starts a new
+	 * top-level value, so it is not preceded by a comma.
+	 * */
+	void endLine() throws IOException {
+		write((byte) '\n');
+		comma = false;
+	}
+
+	/**
+	 * Discard any buffered output and start again, so that this output can be
+	 * reused to write another value.  Only for outputs that write to a stream.
+	 * */
+	void reset() {
+		position = 0;
+		flushed = 0;
+		comma = false;
+		pendingBytes = null;
+		pendingName = null;
+	}
+
+	@Override
+	void rawValue(final char[] json) throws IOException {
+		beforeValue();
+		writeChars(new String(json), false);
+		comma = true;
+	}
+
+	@Override
+	void flush() throws IOException {
+		if (inPlace) {
+			target.position(position - target.arrayOffset());
+		} else if (position > 0) {
+			if (out != null) out.write(buffer, 0, position); else target.put(buffer, 0, position);
+			flushed += position;
+			position = 0;
+		}
+	}
+
+	@Override
+	long size() {
+		return flushed + position;
+	}
+
+	@Override
+	boolean canFork() {
+		return true;
+	}
+
+	@Override
+	JSONOutput fork() {
+		return new UTF8Output(new ByteArrayOutputStream());
+	}
+
+	@Override
+	void join(final JSONOutput fork) throws IOException {
+		final byte[] bytes = ((ByteArrayOutputStream) ((UTF8Output) fork).out).toByteArray();
+		if (bytes.length == 0) return;
+
+		if (comma) write((byte) ',');
+		write(bytes);
+		comma = true;
+	}
+
+	private void beforeValue() throws IOException {
+		if (comma) write((byte) ',');
+		if (pendingBytes != null) {
+			write(pendingBytes);
+			pendingBytes = null;
+		} else if (pendingName != null) {
+			writeString(pendingName);
+			write((byte) ':');
+			pendingName = null;
+		}
+	}
+
+	/**
+	 * Ensure there is space for at least n bytes in the buffer, where n is no
+	 * more than MAX_TOKEN.
+	 * @throws BufferOverflowException if writing to a ByteBuffer that is full
+	 * */
+	private void require(final int n) throws IOException {
+		if (limit - position >= n) return;
+		if (inPlace) throw new BufferOverflowException();
+		flush();
+	}
+
+	private void write(final byte b) throws IOException {
+		require(1);
+		buffer[position++] = b;
+	}
+
+	private void write(final byte[] bytes) throws IOException {
+		write(bytes, bytes.length);
+	}
+
+	/**
+	 * Write the first length bytes of an array.
+	 * */
+	private void write(final byte[] bytes, final int length) throws IOException {
+		int start = 0;
+		while (start < length) {
+			if (position == limit) require(1);
+			final int n = Math.min(length - start, limit - position);
+			System.arraycopy(bytes, start, buffer, position, n);
+			position += n;
+			start += n;
+		}
+	}
+
+	/**
+	 * Write a string that is known to contain only ASCII characters that do
+	 * not need escaping.
+	 * */
+	private void writeASCII(final String s) throws IOException {
+		final int length = s.length();
+		for (int i = 0; i < length; i++) {
+			if (position == limit) require(1);
+			buffer[position++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void writeString(final String s) throws IOException {
+		write((byte) '"');
+		writeChars(s, true);
+		write((byte) '"');
+	}
+
+	/**
+	 * Encode the characters of a string.
+	 * @param quoted true to escape the characters as the contents of a JSON
+	 * string, false to copy them as they are (i.e. they are already JSON text)
+	 * */
+	private void writeChars(final String s, final boolean quoted) throws IOException {
+		final boolean[] plain = quoted? PLAIN_ASCII : ANY_ASCII;
+		final byte[] b = buffer;
+		final int length = s.length();
+		int i = 0;
+
+		while (i < length) {
+			// ASCII fast path
+			int p = position;
+			int room = limit - p;
+			while (i < length && room > 0) {
+				final char c = s.charAt(i);
+				if (c >= 0x80 || !plain[c]) break;
+				b[p++] = (byte) c;
+				i += 1;
+				room -= 1;
+			}
+			position = p;
+			if (i == length) return;
+
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				if (plain[c]) {
+					// the buffer was full
+					require(1);
+					continue;
+				}
+				final String escape = TextOutput.escape(c);
+				require(escape.length());
+				for (int j = 0; j < escape.length(); j++) b[position++] = (byte) escape.charAt(j);
+				i += 1;
+			} else if (c < 0x800) {
+				require(2);
+				b[position++] = (byte) (0xC0 | (c >> 6));
+				b[position++] = (byte) (0x80 | (c & 0x3F));
+				i += 1;
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(s.charAt(i + 1)))
+				{
+					final int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+					require(4);
+					b[position++] = (byte) (0xF0 | (codePoint >> 18));
+					b[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					b[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					b[position++] = (byte) (0x80 | (codePoint & 0x3F));
+					i += 2;
+				} else {
+					// unpaired surrogate, replaced in the same way as String.getBytes
+					require(1);
+					b[position++] = (byte) '?';
+					i += 1;
+				}
+			} else {
+				require(3);
+				b[position++] = (byte) (0xE0 | (c >> 12));
+				b[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[position++] = (byte) (0x80 | (c & 0x3F));
+				i += 1;
+			}
+		}
+	}
+}
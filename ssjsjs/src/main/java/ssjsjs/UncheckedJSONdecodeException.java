@@ -0,0 +1,20 @@
+package ssjsjs;
+
+/**
+ * Wraps a JSONdecodeException where a checked exception cannot be thrown,
+ * e.g. from an Iterator or a Stream.
+ * */
+public class UncheckedJSONdecodeException extends RuntimeException {
+	public UncheckedJSONdecodeException(final JSONdecodeException cause) {
+		super(cause);
+	}
+
+	public UncheckedJSONdecodeException(final String message, final JSONdecodeException cause) {
+		super(message, cause);
+	}
+
+	@Override
+	public JSONdecodeException getCause() {
+		return (JSONdecodeException) super.getCause();
+	}
+}
@@ -0,0 +1,78 @@
+package ssjsjs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for MappedReader that need small windows, which can only be set from
+ * inside the package.
+ * */
+public class MappedReaderTest {
+	private static final String TEXT = "abé😀c€😁";
+
+	private static String readAll(final Path file, final long windowSize, final int len)
+		throws IOException
+	{
+		final StringBuilder r = new StringBuilder();
+		final char[] cbuf = new char[len];
+		try (MappedReader in = new MappedReader(file, windowSize)) {
+			int n;
+			while ((n = in.read(cbuf, 0, len)) != -1) {
+				assertTrue(n > 0);
+				r.append(cbuf, 0, n);
+			}
+		}
+		return r.toString();
+	}
+
+	@Test
+	public void readsAcrossWindows() throws Exception {
+		final Path file = Files.createTempFile("ssjsjs", ".txt");
+		try {
+			Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+			for (long windowSize = 4; windowSize <= 20; windowSize++) {
+				for (int len = 1; len <= 3; len++) {
+					assertEquals(windowSize + " " + len, TEXT, readAll(file, windowSize, len));
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void oneCharReadsBeforeSurrogatePairs() throws Exception {
+		final Path file = Files.createTempFile("ssjsjs", ".txt");
+		try {
+			Files.write(file, TEXT.getBytes(StandardCharsets.UTF_8));
+			final char[] cbuf = new char[2];
+
+			// the first surrogate pair is in the first window, the second is in the
+			// final window
+			try (MappedReader in = new MappedReader(file, 9)) {
+				assertEquals(2, in.read(cbuf, 0, 2));
+				assertEquals(1, in.read(cbuf, 0, 1));
+				assertEquals('é', cbuf[0]);
+				assertEquals(1, in.read(cbuf, 0, 1));
+				assertEquals('\ud83d', cbuf[0]);
+				assertEquals(1, in.read(cbuf, 0, 2));
+				assertEquals('\ude00', cbuf[0]);
+				assertEquals(1, in.read(cbuf, 0, 1));
+				assertEquals('c', cbuf[0]);
+				assertEquals(1, in.read(cbuf, 0, 1));
+				assertEquals('€', cbuf[0]);
+				assertEquals(1, in.read(cbuf, 1, 1));
+				assertEquals('\ud83d', cbuf[1]);
+				assertEquals(1, in.read(cbuf, 1, 1));
+				assertEquals('\ude01', cbuf[1]);
+				assertEquals(-1, in.read(cbuf, 0, 1));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package ssjsjs.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.JSONable;
+
+public class LargeFields implements JSONable {
+	public final List<Primitives> list;
+	public final List<String> strings;
+	public final Map<String, Optional<Integer>> map;
+	public final Primitives[] array;
+
+	public LargeFields(final int n) {
+		this.list = new ArrayList<>();
+		this.strings = new ArrayList<>();
+		this.map = new HashMap<>();
+		this.array = new Primitives[n];
+
+		for (int i = 0; i < n; i++) {
+			this.list.add(new Primitives((byte) i));
+			this.strings.add(i % 5 == 0? null : "string " + i);
+			this.map.put("key" + i, i % 3 == 0? Optional.empty() : Optional.of(i));
+			this.array[i] = new Primitives((byte) (n - i));
+		}
+	}
+
+	@JSON
+	public LargeFields(
+		@Field("list") final List<Primitives> list,
+		@Field("strings") final List<String> strings,
+		@Field("map") final Map<String, Optional<Integer>> map,
+		@Field("array") final Primitives[] array
+	) {
+		this.list = list;
+		this.strings = strings;
+		this.map = map;
+		this.array = array;
+	}
+
+	@Override public boolean equals(final Object other) {
+		if (!(other instanceof LargeFields)) return false;
+		else {
+			final LargeFields o = (LargeFields) other;
+			return
+				this.list.equals(o.list) &&
+				this.strings.equals(o.strings) &&
+				this.map.equals(o.map) &&
+				Arrays.equals(this.array, o.array);
+		}
+	}
+
+	@Override public int hashCode() {
+		return list.hashCode() + strings.hashCode() + map.hashCode() + Arrays.hashCode(array);
+	}
+}
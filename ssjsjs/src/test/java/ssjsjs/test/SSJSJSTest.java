@@ -1,15 +1,44 @@
 package ssjsjs.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
+import ssjsjs.EncodeBuffer;
 import ssjsjs.JSONable;
 import ssjsjs.JSONdecodeException;
 import ssjsjs.JSONencodeException;
+import ssjsjs.NDJSONReader;
+import ssjsjs.NDJSONWriter;
 import ssjsjs.SSJSJS;
+import ssjsjs.UncheckedJSONdecodeException;
 import static org.junit.Assert.*;
 
 public class SSJSJSTest {
@@ -309,6 +338,1374 @@ public class SSJSJSTest {
 		assertEquals(obj1, obj2);
 	}
 
+	@Test
+	public void untypedFieldsRoundtrip() throws Exception {
+		final WithUntypedField obj1 = new WithUntypedField("a string");
+		final WithUntypedField obj2 = SSJSJS.decode(
+			new JSONObject(SSJSJS.encode(obj1).toString()), WithUntypedField.class);
+		assertEquals(obj1, obj2);
+	}
+
+	@Test
+	public void concurrentRoundtrips() throws Exception {
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				results.add(pool.submit(() -> {
+					final WithCollections obj = new WithCollections(0);
+					return obj.equals(SSJSJS.decode(SSJSJS.encode(obj), WithCollections.class));
+				}));
+			}
+			for (final Future<Boolean> r : results) assertTrue(r.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void annotationErrorsAreReportedEveryTime() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			try {
+				SSJSJS.encode(new DuplicateAliases("v1", "v2"));
+				fail("Expected a JSONencodeException");
+			} catch (final JSONencodeException e) {
+			}
+		}
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void constructorExceptionsAreWrapped() throws Exception {
+		final JSONObject obj = new JSONObject();
+		obj.put("a", -1);
+		SSJSJS.decode(obj, ThrowingConstructor.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void cannotDeserializeWrongPrimitiveType() throws Exception {
+		final JSONObject obj = new JSONObject();
+		obj.put("a", "not a number");
+		SSJSJS.decode(obj, ThrowingConstructor.class);
+	}
+
+	@Test
+	public void textRoundtrips() throws Exception {
+		assertEquals("{}", SSJSJS.encodeToString(new Empty()));
+
+		final JSONable[] objs = new JSONable[] {
+			new Primitives((byte) 0),
+			new WithCollections(0),
+			new WithMaps(42),
+			new EmptyBoxes(),
+			new CustomLabels(),
+			new WithArrays(),
+			new WithCollectionTypes(),
+			new NestedCollections(),
+			new WithUntypedField("a string")
+		};
+
+		for (final JSONable obj : objs) {
+			final String text = SSJSJS.encodeToString(obj);
+			assertEquals(obj, SSJSJS.decode(new JSONObject(text), obj.getClass()));
+			assertEquals(text, SSJSJS.encode(obj).keySet(), new JSONObject(text).keySet());
+		}
+	}
+
+	@Test
+	public void cborRoundtrips() throws Exception {
+		assertArrayEquals(new byte[] {(byte) 0xbf, (byte) 0xff}, SSJSJS.encodeToCBOR(new Empty()));
+
+		final JSONable[] objs = new JSONable[] {
+			new Primitives((byte) 0),
+			new Primitives((byte) -3),
+			new WithCollections(0),
+			new WithMaps(42),
+			new EmptyBoxes(),
+			new CustomLabels(),
+			new WithArrays(),
+			new WithCollectionTypes(),
+			new WithEnums(WithEnums.SomeEnum.SOME_VALUE),
+			new WithOptionals(true),
+			new WithOptionals(false),
+			new NestedCollections(),
+			new WithUntypedField("a string")
+		};
+
+		for (final JSONable obj : objs) {
+			final byte[] cbor = SSJSJS.encodeToCBOR(obj);
+			assertEquals(obj, SSJSJS.decodeCBOR(cbor, obj.getClass()));
+			assertEquals(obj, SSJSJS.decodeCBOR(new ByteArrayInputStream(cbor), obj.getClass()));
+
+			final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			SSJSJS.encodeCBOR(obj, stream);
+			assertArrayEquals(cbor, stream.toByteArray());
+		}
+	}
+
+	@Test
+	public void cborUsesNativeTypes() throws Exception {
+		assertArrayEquals(new byte[] {
+			(byte) 0xbf,
+			0x61, 'a', 0x61, 'x',
+			0x66, 'c', 'u', 's', 't', 'o', 'm', 0x62, (byte) 0xc3, (byte) 0xa9,
+			(byte) 0xff
+		}, SSJSJS.encodeToCBOR(new CustomLabels("x", "é")));
+
+		// byte arrays are byte strings
+		final byte[] cbor = SSJSJS.encodeToCBOR(new WithArrays());
+		final byte[] byteArray = {0x69, 'b', 'y', 't', 'e', 'A', 'r', 'r', 'a', 'y', 0x43, 1, 2, 3};
+		assertTrue(Collections.indexOfSubList(bytesToList(cbor), bytesToList(byteArray)) >= 0);
+	}
+
+	private static List<Byte> bytesToList(final byte[] bytes) {
+		final List<Byte> r = new ArrayList<>();
+		for (final byte b : bytes) r.add(b);
+		return r;
+	}
+
+	@Test
+	public void cborReadsDefiniteLengthAndTags() throws Exception {
+		final byte[] cbor = {
+			(byte) 0xa3,
+			// an unknown tag on a key's value is ignored
+			0x66, 'c', 'u', 's', 't', 'o', 'm', (byte) 0xd8, 0x20, 0x61, 'y',
+			// an unknown field containing a bignum, a byte string and a half float
+			0x61, 'z', (byte) 0x83, (byte) 0xc2, 0x49, 1, 0, 0, 0, 0, 0, 0, 0, 0,
+			0x41, 7, (byte) 0xf9, 0x3c, 0x00,
+			// an indefinite length text string
+			0x61, 'a', 0x7f, 0x61, 'x', 0x62, 'y', 'z', (byte) 0xff
+		};
+		assertEquals(new CustomLabels("xyz", "y"), SSJSJS.decodeCBOR(cbor, CustomLabels.class));
+
+		final byte[] withUntyped = {
+			(byte) 0xa1, 0x65, 'v', 'a', 'l', 'u', 'e', (byte) 0x84,
+			(byte) 0xc3, 0x49, 1, 0, 0, 0, 0, 0, 0, 0, 0,
+			(byte) 0xc4, (byte) 0x82, 0x21, 0x19, 0x30, 0x39,
+			(byte) 0xf9, (byte) 0xc1, 0x00,
+			0x42, 1, 2
+		};
+		final JSONArray x = (JSONArray) SSJSJS.decodeCBOR(
+			withUntyped, WithUntypedField.class).value;
+		assertEquals(new java.math.BigInteger("-18446744073709551617"), x.get(0));
+		assertEquals(new java.math.BigDecimal("123.45"), x.get(1));
+		assertEquals(-2.5, x.getDouble(2), 0.0);
+		assertEquals("[1,2]", x.get(3).toString());
+	}
+
+	@Test
+	public void cborRejectsInvalidInput() throws Exception {
+		final byte[] valid = SSJSJS.encodeToCBOR(new CustomLabels());
+
+		final List<byte[]> invalid = Arrays.asList(
+			Arrays.copyOf(valid, valid.length - 1),
+			Arrays.copyOf(valid, valid.length + 1),
+			new byte[] {(byte) 0xa1, 0x01, 0x61, 'x'},
+			new byte[] {(byte) 0x9f, (byte) 0xff},
+			new byte[] {(byte) 0xbf, 0x61, 'a', (byte) 0xff, (byte) 0xff},
+			new byte[] {(byte) 0xbf, 0x61, 'a', 0x1c, (byte) 0xff});
+
+		for (final byte[] cbor : invalid) {
+			try {
+				SSJSJS.decodeCBOR(new ByteArrayInputStream(cbor), CustomLabels.class);
+				fail("Expected JSONdecodeException for " + Arrays.toString(cbor));
+			} catch (final JSONdecodeException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void cborFloatsFollowJSONRules() throws Exception {
+		for (final double d : new double[] {Double.MAX_VALUE, Double.MIN_VALUE, -0.0, 1.9f, 0.1}) {
+			final WithUntypedField obj = new WithUntypedField(d);
+			assertEquals(obj, SSJSJS.decodeCBOR(SSJSJS.encodeToCBOR(obj), WithUntypedField.class));
+		}
+
+		for (final Object x : new Object[] {
+			Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+			Float.NaN, Float.POSITIVE_INFINITY})
+		{
+			try {
+				SSJSJS.encodeToCBOR(new WithUntypedField(x));
+				fail("Expected JSONencodeException for " + x);
+			} catch (final JSONencodeException e) {
+				// expected, as for JSON text
+			}
+		}
+	}
+
+	@Test
+	public void cborRejectsHugeLengths() throws Exception {
+		// strings and byte strings that claim to be about 2GB long, in known
+		// and unknown fields
+		final List<byte[]> invalid = Arrays.asList(
+			new byte[] {(byte) 0xa1, 0x61, 'a', 0x7a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0},
+			new byte[] {(byte) 0xa1, 0x61, 's', 0x7a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0},
+			new byte[] {(byte) 0xa1, 0x61, 's', 0x5a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0},
+			new byte[] {(byte) 0xa1, 0x61, 's', 0x5f, 0x5a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0});
+
+		for (final byte[] cbor : invalid) {
+			try {
+				SSJSJS.decodeCBOR(cbor, CustomLabels.class);
+				fail("Expected JSONdecodeException for " + Arrays.toString(cbor));
+			} catch (final JSONdecodeException e) {
+				// expected
+			}
+
+			try {
+				SSJSJS.decodeCBOR(new ByteArrayInputStream(cbor), CustomLabels.class);
+				fail("Expected JSONdecodeException for " + Arrays.toString(cbor));
+			} catch (final JSONdecodeException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void textOutputToWriter() throws Exception {
+		final WithMaps obj = new WithMaps(42);
+		final StringWriter out = new StringWriter();
+		SSJSJS.encode(obj, out);
+		assertEquals(SSJSJS.encodeToString(obj), out.toString());
+	}
+
+	@Test(expected = JSONencodeException.class)
+	public void cannotSerializeArbitraryFieldsToText() throws Exception {
+		SSJSJS.encodeToString(new UnserializableField(new StringBuilder()));
+	}
+
+	@Test(expected = JSONencodeException.class)
+	public void cannotSerializeDuplicateAliasesToText() throws Exception {
+		SSJSJS.encodeToString(new DuplicateAliases("v1", "v2"));
+	}
+
+	@Test(expected = JSONencodeException.class)
+	public void cannotSerializeNonNullableNullFieldToText() throws Exception {
+		SSJSJS.encodeToString(new NotNullable());
+	}
+
+	@Test
+	public void readerRoundtrips() throws Exception {
+		final JSONable[] objs = new JSONable[] {
+			new Primitives((byte) 0),
+			new Primitives((byte) 42),
+			new WithCollections(0),
+			new WithMaps(42),
+			new EmptyBoxes(),
+			new CustomLabels(),
+			new WithArrays(),
+			new WithCollectionTypes(),
+			new NestedCollections(),
+			new WithUntypedField("a string")
+		};
+
+		for (final JSONable obj : objs) {
+			assertEquals(obj, SSJSJS.decode(
+				new StringReader(SSJSJS.encodeToString(obj)), obj.getClass()));
+			assertEquals(obj, SSJSJS.decode(
+				new StringReader(SSJSJS.encode(obj).toString()), obj.getClass()));
+		}
+	}
+
+	@Test
+	public void readerImplicitAndLongStrings() throws Exception {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 3000; i++) text.append("line \"").append(i).append("\"\n\u00e9\u4e2d");
+
+		final Map<String, Object> env = new HashMap<>();
+		final WierdType wt = new WierdType("example");
+		env.put("fromEnv", wt);
+		final ImplicitFields obj = new ImplicitFields(text.toString(), wt,
+			Optional.of(new ImplicitFields("whatever 2", wt, Optional.empty())));
+
+		final String json = SSJSJS.encodeToString(obj);
+		assertEquals(obj, SSJSJS.decode(new StringReader(json), ImplicitFields.class, env));
+		assertEquals(obj, SSJSJS.decode(new ByteArrayInputStream(
+			json.getBytes(StandardCharsets.UTF_8)), ImplicitFields.class, env));
+	}
+
+	@Test
+	public void readerSkipsUnknownFields() throws Exception {
+		final String json =
+			"{\"unknown1\": {\"a\": [1, 2.5e10, \"x\\\"y\", null, true, {}]}," +
+			" \"something\" : \"good\", \"unknown2\": [[], [false]]," +
+			" \"secondLayer\": null, \"unknown3\": -0.5}";
+
+		final Map<String, Object> env = new HashMap<>();
+		final WierdType wt = new WierdType("example");
+		env.put("fromEnv", wt);
+
+		final ImplicitFields obj = SSJSJS.decode(new StringReader(json), ImplicitFields.class, env);
+		assertEquals(new ImplicitFields("good", wt, Optional.empty()), obj);
+	}
+
+	@Test
+	public void readerNumbersMatchTree() throws Exception {
+		final String json =
+			"{\"byteVal\":300,\"charVal\":\"z\",\"shortVal\":1.9e2,\"intVal\":-2147483649," +
+			"\"longVal\":9223372036854775807,\"floatVal\":0.1,\"doubleVal\":1.7976931348623157e308," +
+			"\"booleanVal\":true,\"stringVal1\":\"\",\"bbyteVal\":-0,\"bcharVal\":\"\\u0041\"," +
+			"\"bshortVal\":12.75,\"bintVal\":3000000000.5,\"blongVal\":-9223372036854775808," +
+			"\"bfloatVal\":1.2345678901234567e29,\"bdoubleVal\":0.30000000000000004," +
+			"\"bbooleanVal\":false}";
+
+		final Primitives fromTree = SSJSJS.decode(new JSONObject(json), Primitives.class);
+		final Primitives fromText = SSJSJS.decode(new StringReader(json), Primitives.class);
+		assertEquals(fromTree, fromText);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void readerRejectsSyntaxErrors() throws Exception {
+		SSJSJS.decode(new StringReader("{\"something\": \"good\",}"), ImplicitFields.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void readerRejectsTrailingData() throws Exception {
+		SSJSJS.decode(new StringReader(SSJSJS.encodeToString(new CustomLabels()) + " {}"),
+			CustomLabels.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void readerRejectsNonNullableNullField() throws Exception {
+		SSJSJS.decode(new StringReader("{}"), NotNullable.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void readerRejectsWrongTypes() throws Exception {
+		SSJSJS.decode(new StringReader(
+			SSJSJS.encodeToString(new WithCollections(0)).replace('[', '{').replace(']', '}')),
+			WithCollections.class);
+	}
+
+	@Test
+	public void utf8MatchesText() throws Exception {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 3000; i++) text.append("line \"").append(i).append("\"\n\u00e9\u4e2d\ud83d\ude00");
+
+		final WierdType wt = new WierdType("example");
+		final JSONable[] objs = new JSONable[] {
+			new Primitives((byte) 0),
+			new WithMaps(42),
+			new WithArrays(),
+			new NestedCollections(),
+			new ImplicitFields(text.toString(), wt, Optional.empty())
+		};
+
+		for (final JSONable obj : objs) {
+			final byte[] expected = SSJSJS.encodeToString(obj).getBytes(StandardCharsets.UTF_8);
+			assertArrayEquals(expected, SSJSJS.encodeToBytes(obj));
+
+			final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			SSJSJS.encodeUTF8(obj, stream);
+			assertArrayEquals(expected, stream.toByteArray());
+
+			for (final ByteBuffer buffer : Arrays.asList(
+				ByteBuffer.allocate(expected.length + 10),
+				ByteBuffer.allocateDirect(expected.length + 10)))
+			{
+				buffer.put((byte) 1);
+				final ByteBuffer slice = buffer.slice();
+				SSJSJS.encodeUTF8(obj, slice);
+				assertEquals(expected.length, slice.position());
+				slice.flip();
+				final byte[] actual = new byte[slice.remaining()];
+				slice.get(actual);
+				assertArrayEquals(expected, actual);
+			}
+		}
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void utf8HeapBufferOverflow() throws Exception {
+		SSJSJS.encodeUTF8(new WithMaps(42), ByteBuffer.allocate(16));
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void utf8DirectBufferOverflow() throws Exception {
+		SSJSJS.encodeUTF8(new WithMaps(42), ByteBuffer.allocateDirect(16));
+	}
+
+	private static WithArrays largeArrays(final int n) {
+		final byte[] bytes = new byte[n];
+		final char[] chars = new char[n];
+		final short[] shorts = new short[n];
+		final int[] ints = new int[n];
+		final long[] longs = new long[n];
+		final float[] floats = new float[n];
+		final double[] doubles = new double[n];
+		final boolean[] booleans = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			bytes[i] = (byte) i;
+			chars[i] = (char) ('a' + (i % 26));
+			shorts[i] = (short) (i * 7);
+			ints[i] = i * 1000003;
+			longs[i] = (long) i * 1000000007L * 31;
+			floats[i] = i / 7.0f;
+			doubles[i] = i / 3.0;
+			booleans[i] = i % 3 == 0;
+		}
+
+		return new WithArrays(bytes, chars, shorts, ints, longs, floats, doubles, booleans,
+			new String[] {"x"}, new String[0], new Byte[0], new Character[0], new Short[0],
+			new Integer[0], new Long[0], new Float[0], new Double[0], new Boolean[0]);
+	}
+
+	@Test
+	public void largePrimitiveArraysRoundtrip() throws Exception {
+		final WithArrays obj = largeArrays(100000);
+		assertEquals(obj, SSJSJS.decode(SSJSJS.encode(obj), WithArrays.class));
+		assertEquals(obj, SSJSJS.decode(
+			new JSONObject(SSJSJS.encodeToString(obj)), WithArrays.class));
+		assertEquals(obj, SSJSJS.decode(
+			new StringReader(SSJSJS.encodeToString(obj)), WithArrays.class));
+	}
+
+	@Test
+	public void primitiveArraysFromOtherNumbers() throws Exception {
+		final JSONObject json = SSJSJS.encode(largeArrays(0));
+		json.put("intArray", new JSONArray("[1.5, 2, -3.75]"));
+		json.put("doubleArray", new JSONArray("[1, 2.5, -3]"));
+
+		for (final WithArrays obj : Arrays.asList(
+			SSJSJS.decode(json, WithArrays.class),
+			SSJSJS.decode(new StringReader(json.toString()), WithArrays.class)))
+		{
+			assertArrayEquals(new int[] {1, 2, -3}, obj.intArray);
+			assertArrayEquals(new double[] {1, 2.5, -3}, obj.doubleArray, 0);
+		}
+	}
+
+	@Test
+	public void cannotDeserializeNullInPrimitiveArray() throws Exception {
+		final JSONObject json = SSJSJS.encode(largeArrays(3));
+		json.put("longArray", new JSONArray("[1, null, 3]"));
+
+		try {
+			SSJSJS.decode(json, WithArrays.class);
+			fail("Expected JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			// expected
+		}
+
+		try {
+			SSJSJS.decode(new StringReader(json.toString()), WithArrays.class);
+			fail("Expected JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void cannotDeserializeWrongTypeInPrimitiveArray() throws Exception {
+		final JSONObject json = SSJSJS.encode(largeArrays(3));
+		json.put("booleanArray", new JSONArray("[true, 1]"));
+
+		try {
+			SSJSJS.decode(json, WithArrays.class);
+			fail("Expected JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			// expected
+		}
+
+		try {
+			SSJSJS.decode(new StringReader(json.toString()), WithArrays.class);
+			fail("Expected JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void numbersAreWrittenExactly() throws Exception {
+		final double[] doubles = {0.0, -0.0, 0.1, 1e23, 1e-7, 123456789.0, 2.5e-3,
+			Double.MIN_VALUE, Double.MAX_VALUE, Double.MIN_NORMAL, -9007199254740993.0};
+		final float[] floats = {0.0f, -0.0f, 0.1f, 1.9f, 1e23f, 1.17549435E-38f,
+			Float.MIN_VALUE, Float.MAX_VALUE};
+		final long[] longs = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1000000007};
+		final int[] ints = {0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+		final WithArrays obj = new WithArrays(new byte[] {Byte.MIN_VALUE, Byte.MAX_VALUE},
+			new char[0], new short[] {Short.MIN_VALUE, Short.MAX_VALUE}, ints, longs, floats,
+			doubles, new boolean[0], new String[0], new String[0], new Byte[0],
+			new Character[0], new Short[0], new Integer[0], new Long[0], new Float[0],
+			new Double[0], new Boolean[0]);
+
+		final String text = SSJSJS.encodeToString(obj);
+		assertTrue(text, text.contains("[0.0,-0.0,0.1,1.0E23,1.0E-7,1.23456789E8,0.0025,"));
+		assertTrue(text, text.contains("1.1754944E-38"));
+		assertTrue(text, text.contains("[0,-1,-9223372036854775808,9223372036854775807,1000000007]"));
+
+		final WithArrays obj2 = SSJSJS.decode(new StringReader(text), WithArrays.class);
+		assertEquals(obj, obj2);
+		for (int i = 0; i < doubles.length; i++) {
+			assertEquals(Double.doubleToLongBits(doubles[i]),
+				Double.doubleToLongBits(obj2.doubleArray[i]));
+		}
+
+		assertEquals(text, new String(SSJSJS.encodeToBytes(obj), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void batchRoundtrips() throws Exception {
+		final List<Primitives> objs = new ArrayList<>();
+		for (int i = 0; i < 100; i++) objs.add(new Primitives((byte) i));
+
+		final JSONArray json = SSJSJS.encodeAll(objs);
+		assertEquals(objs.size(), json.length());
+		for (int i = 0; i < objs.size(); i++) {
+			assertEquals(SSJSJS.encode(objs.get(i)).toString(), json.getJSONObject(i).toString());
+		}
+
+		final StringBuilder text = new StringBuilder();
+		SSJSJS.encodeAll(objs, text);
+		assertEquals(objs.size(), new JSONArray(text.toString()).length());
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SSJSJS.encodeAllUTF8(objs, bytes);
+		assertEquals(text.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+		assertEquals(objs, SSJSJS.decodeAll(json, Primitives.class));
+		assertEquals(objs, SSJSJS.decodeAll(new StringReader(text.toString()), Primitives.class));
+		assertEquals(objs, SSJSJS.decodeAll(
+			new ByteArrayInputStream(bytes.toByteArray()), Primitives.class));
+	}
+
+	@Test
+	public void batchMixedClasses() throws Exception {
+		final List<JSONable> objs = Arrays.asList(
+			new Primitives((byte) 1), new WithMaps(42), new Primitives((byte) 2), new Empty());
+
+		final StringBuilder text = new StringBuilder();
+		SSJSJS.encodeAll(objs, text);
+		final JSONArray fromText = new JSONArray(text.toString());
+		final JSONArray fromTree = SSJSJS.encodeAll(objs);
+
+		for (int i = 0; i < objs.size(); i++) {
+			final JSONable obj = objs.get(i);
+			if (obj instanceof Empty) {
+				assertEquals("{}", fromText.getJSONObject(i).toString());
+				assertEquals("{}", fromTree.getJSONObject(i).toString());
+			} else {
+				assertEquals(obj, SSJSJS.decode(fromText.getJSONObject(i), obj.getClass()));
+				assertEquals(obj, SSJSJS.decode(fromTree.getJSONObject(i), obj.getClass()));
+			}
+		}
+
+		assertEquals("[]", SSJSJS.encodeAll(new ArrayList<JSONable>()).toString());
+	}
+
+	@Test
+	public void batchImplicitFields() throws Exception {
+		final Map<String, Object> env = new HashMap<>();
+		final WierdType wt = new WierdType("example");
+		env.put("fromEnv", wt);
+		final List<ImplicitFields> objs = Arrays.asList(
+			new ImplicitFields("a", wt, Optional.empty()),
+			new ImplicitFields("b", wt, Optional.of(new ImplicitFields("c", wt, Optional.empty()))));
+
+		final StringBuilder text = new StringBuilder();
+		SSJSJS.encodeAll(objs, text);
+		assertEquals(objs, SSJSJS.decodeAll(new StringReader(text.toString()), ImplicitFields.class, env));
+		assertEquals(objs, SSJSJS.decodeAll(SSJSJS.encodeAll(objs), ImplicitFields.class, env));
+	}
+
+	@Test(expected = JSONencodeException.class)
+	public void cannotSerializeNullInBatch() throws Exception {
+		SSJSJS.encodeAll(Arrays.asList(new Primitives((byte) 1), null));
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void cannotDeserializeNonObjectInBatch() throws Exception {
+		SSJSJS.decodeAll(new JSONArray("[{}, 42]"), EmptyBoxes.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void cannotDeserializeNonObjectInBatchFromReader() throws Exception {
+		SSJSJS.decodeAll(new StringReader("[{}, 42]"), EmptyBoxes.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void cannotDeserializeObjectAsBatch() throws Exception {
+		SSJSJS.decodeAll(new StringReader("{}"), EmptyBoxes.class);
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void batchRejectsTrailingData() throws Exception {
+		SSJSJS.decodeAll(new StringReader("[{}] []"), EmptyBoxes.class);
+	}
+
+	@Test
+	public void ndjsonRoundtrips() throws Exception {
+		final List<Primitives> objs = new ArrayList<>();
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			final Primitives obj = new Primitives((byte) i);
+			objs.add(obj);
+			SSJSJS.encode(obj, text);
+			text.append(i % 3 == 0? "\r\n" : "\n");
+			if (i % 7 == 0) text.append("\n  \n");
+		}
+		text.setLength(text.length() - 1);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (final int batchSize : new int[] {1, 64, 4096, 1 << 20}) {
+				final List<Primitives> decoded = new ArrayList<>();
+				try (NDJSONReader<Primitives> in = new NDJSONReader<>(
+					new StringReader(text.toString()), Primitives.class, null, executor, batchSize, 3))
+				{
+					Primitives obj;
+					while ((obj = in.read()) != null) decoded.add(obj);
+				}
+				assertEquals(objs, decoded);
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		try (Stream<Primitives> stream = SSJSJS.decodeLines(new ByteArrayInputStream(
+			text.toString().getBytes(StandardCharsets.UTF_8)), Primitives.class))
+		{
+			assertEquals(objs, stream.collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void ndjsonReportsLineNumbers() throws Exception {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) text.append("{}\n");
+		text.append("\n{\"a\": 1, }\n{}\n");
+
+		final List<EmptyBoxes> decoded = new ArrayList<>();
+		try (NDJSONReader<EmptyBoxes> in = new NDJSONReader<>(
+			new StringReader(text.toString()), EmptyBoxes.class, null, ForkJoinPool.commonPool(), 16, 4))
+		{
+			EmptyBoxes obj;
+			while ((obj = in.read()) != null) decoded.add(obj);
+			fail("Expected a JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Error on line 102: "));
+		}
+		assertEquals(100, decoded.size());
+	}
+
+	@Test(expected = UncheckedJSONdecodeException.class)
+	public void ndjsonRejectsTwoObjectsOnOneLine() throws Exception {
+		SSJSJS.decodeLines(new StringReader("{}\n{} {}\n"), EmptyBoxes.class).count();
+	}
+
+	@Test
+	public void ndjsonWriterRoundtrips() throws Exception {
+		final List<Primitives> objs = new ArrayList<>();
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			final Primitives obj = new Primitives((byte) i);
+			objs.add(obj);
+			expected.append(SSJSJS.encodeToString(obj)).append('\n');
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (final int batchSize : new int[] {1, 7, 4096}) {
+				final StringWriter text = new StringWriter();
+				try (NDJSONWriter out = new NDJSONWriter(text, executor, batchSize, 3)) {
+					out.writeAll(objs);
+				}
+				assertEquals(expected.toString(), text.toString());
+
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (NDJSONWriter out = new NDJSONWriter(bytes, executor, batchSize, 3)) {
+					out.writeAll(objs.stream());
+				}
+				assertEquals(expected.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+				final ByteArrayOutputStream channel = new ByteArrayOutputStream();
+				try (NDJSONWriter out = new NDJSONWriter(
+					Channels.newChannel(channel), executor, batchSize, 3))
+				{
+					for (final Primitives obj : objs) out.write(obj);
+				}
+				assertEquals(expected.toString(), new String(channel.toByteArray(), StandardCharsets.UTF_8));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SSJSJS.encodeLines(objs, bytes);
+		try (Stream<Primitives> stream = SSJSJS.decodeLines(
+			new ByteArrayInputStream(bytes.toByteArray()), Primitives.class))
+		{
+			assertEquals(objs, stream.collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	public void ndjsonWriterWritesLinesBeforeError() throws Exception {
+		final List<JSONable> objs = new ArrayList<>();
+		for (int i = 0; i < 10; i++) objs.add(new EmptyBoxes());
+		objs.add(new NoConstructorAnnotation());
+		for (int i = 0; i < 10; i++) objs.add(new EmptyBoxes());
+
+		final StringWriter text = new StringWriter();
+		try {
+			SSJSJS.encodeLines(objs, text);
+			fail("Expected a JSONencodeException");
+		} catch (final JSONencodeException e) {
+			// expected
+		}
+		assertEquals(10, text.toString().split("\n").length);
+	}
+
+	@Test
+	public void parallelEncodingMatchesSequential() throws Exception {
+		final LargeFields obj = new LargeFields(5000);
+
+		final String text = SSJSJS.encodeToString(obj);
+		final byte[] bytes = SSJSJS.encodeToBytes(obj);
+		final String tree = SSJSJS.encode(obj).toString();
+
+		SSJSJS.setParallelThreshold(1000);
+		try {
+			assertEquals(text, SSJSJS.encodeToString(obj));
+			assertArrayEquals(bytes, SSJSJS.encodeToBytes(obj));
+			assertEquals(tree, SSJSJS.encode(obj).toString());
+
+			// below the threshold
+			final LargeFields small = new LargeFields(999);
+			assertEquals(SSJSJS.encode(small).toString(),
+				new JSONObject(SSJSJS.encodeToString(small)).toString());
+		} finally {
+			SSJSJS.setParallelThreshold(0);
+		}
+	}
+
+	@Test
+	public void parallelEncodingReportsErrors() throws Exception {
+		final LargeFields obj = new LargeFields(5000);
+		obj.array[4000] = null;
+
+		SSJSJS.setParallelThreshold(1000);
+		try {
+			try {
+				SSJSJS.encodeToString(obj);
+				fail("Expected a JSONencodeException");
+			} catch (final JSONencodeException e) {
+				// expected
+			}
+
+			try {
+				SSJSJS.encode(obj);
+				fail("Expected a JSONencodeException");
+			} catch (final JSONencodeException e) {
+				// expected
+			}
+		} finally {
+			SSJSJS.setParallelThreshold(0);
+		}
+	}
+
+	@Test
+	public void parallelDecodingMatchesSequential() throws Exception {
+		final LargeFields obj = new LargeFields(5000);
+		obj.map.replaceAll((k, v) -> v.isPresent()? v : Optional.of(-1));
+		final JSONObject json = SSJSJS.encode(obj);
+
+		SSJSJS.setParallelThreshold(1000);
+		try {
+			assertEquals(obj, SSJSJS.decode(json, LargeFields.class));
+		} finally {
+			SSJSJS.setParallelThreshold(0);
+		}
+	}
+
+	@Test
+	public void parallelDecodingReportsFirstError() throws Exception {
+		final JSONObject json = SSJSJS.encode(new LargeFields(5000));
+		json.getJSONArray("list").put(1500, "not an object");
+		json.getJSONArray("list").put(4500, 42);
+		json.getJSONArray("array").put(4500, "not an object");
+		json.getJSONObject("map").put("key1001", "not a number");
+
+		for (final String field : new String[] {"list", "array", "map"}) {
+			final JSONObject bad = new JSONObject(json, new String[] {field});
+			for (final String other : new String[] {"list", "array", "map", "strings"}) {
+				if (!bad.has(other)) bad.put(other, new JSONArray());
+			}
+			if (!field.equals("map")) bad.put("map", new JSONObject());
+
+			String expected = null;
+			try {
+				SSJSJS.decode(bad, LargeFields.class);
+				fail("Expected a JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				expected = e.getMessage();
+			}
+
+			SSJSJS.setParallelThreshold(1000);
+			try {
+				SSJSJS.decode(bad, LargeFields.class);
+				fail("Expected a JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				assertEquals(expected, e.getMessage());
+			} finally {
+				SSJSJS.setParallelThreshold(0);
+			}
+		}
+	}
+
+	@Test
+	public void lazyFieldsRoundtrip() throws Exception {
+		final StringBuilder longString = new StringBuilder();
+		for (int i = 0; i < 3000; i++) longString.append("line \"").append(i).append("\"\n");
+
+		final Map<String, Object> env = new HashMap<>();
+		final WierdType wt = new WierdType("example");
+		env.put("fromEnv", wt);
+		final WithLazyFields obj = new WithLazyFields(
+			new ImplicitFields(longString.toString(), wt, Optional.empty()));
+
+		final String text = SSJSJS.encodeToString(obj);
+		final JSONObject json = SSJSJS.encode(obj);
+
+		final WithLazyFields fromReader =
+			SSJSJS.decode(new StringReader(text), WithLazyFields.class, env);
+		final WithLazyFields fromTree = SSJSJS.decode(json, WithLazyFields.class, env);
+		assertFalse(fromReader.implicit.isDecoded());
+		assertFalse(fromTree.implicit.isDecoded());
+
+		// encoding does not force the values to be decoded
+		assertEquals(text, SSJSJS.encodeToString(fromReader));
+		assertEquals(text, new String(SSJSJS.encodeToBytes(fromReader), StandardCharsets.UTF_8));
+		assertEquals(json.toString(), SSJSJS.encode(fromTree).toString());
+		assertFalse(fromReader.maps.isDecoded());
+
+		assertEquals(obj, fromReader);
+		assertEquals(obj, fromTree);
+		assertTrue(fromReader.implicit.isDecoded());
+		assertEquals(text, SSJSJS.encodeToString(fromReader));
+
+		final WithLazyFields noImplicit = new WithLazyFields(null);
+		assertEquals(noImplicit, SSJSJS.decode(
+			new StringReader(SSJSJS.encodeToString(noImplicit)), WithLazyFields.class));
+	}
+
+	@Test
+	public void lazyFieldsKeepOriginalJSON() throws Exception {
+		final JSONObject json = SSJSJS.encode(new WithLazyFields(null));
+		json.getJSONObject("maps").put("extra", new JSONArray("[1, {\"a\": [true]}]"));
+
+		final WithLazyFields obj = SSJSJS.decode(
+			new StringReader(json.toString()), WithLazyFields.class);
+		assertTrue(SSJSJS.encodeToString(obj).contains("\"extra\":[1,{\"a\":[true]}]"));
+
+		obj.maps.get();
+		assertFalse(SSJSJS.encodeToString(obj).contains("extra"));
+	}
+
+	@Test
+	public void lazyFieldsDeferDecodeErrors() throws Exception {
+		final JSONObject json = SSJSJS.encode(new WithLazyFields(null));
+		json.getJSONObject("maps").put("numbers", "not a map");
+
+		for (final WithLazyFields obj : new WithLazyFields[] {
+			SSJSJS.decode(json, WithLazyFields.class),
+			SSJSJS.decode(new StringReader(json.toString()), WithLazyFields.class)
+		}) {
+			try {
+				obj.maps.get();
+				fail("Expected a JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				assertFalse(obj.maps.isDecoded());
+			}
+		}
+	}
+
+	@Test(expected = JSONdecodeException.class)
+	public void cannotDeserializeLazyFieldFromNonObject() throws Exception {
+		final JSONObject json = SSJSJS.encode(new WithLazyFields(null));
+		json.put("maps", 42);
+		SSJSJS.decode(new StringReader(json.toString()), WithLazyFields.class);
+	}
+
+	@Test
+	public void mappedFileRoundtrips() throws Exception {
+		final Map<String, Object> env = new HashMap<>();
+		final WierdType wt = new WierdType("example");
+		env.put("fromEnv", wt);
+
+		final List<ImplicitFields> objs = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			objs.add(new ImplicitFields("caf\u00e9 \u20ac\ud83d\ude00 " + i, wt,
+				Optional.of(new ImplicitFields("\u00fc" + i, wt, Optional.empty()))));
+		}
+
+		final Path file = Files.createTempFile("ssjsjs", ".json");
+		try {
+			try (OutputStream out = Files.newOutputStream(file)) {
+				SSJSJS.encodeAllUTF8(objs, out);
+			}
+			assertEquals(objs, SSJSJS.decodeAll(file, ImplicitFields.class, env));
+
+			final List<ImplicitFields> each = new ArrayList<>();
+			SSJSJS.decodeAll(file, ImplicitFields.class, env, each::add);
+			assertEquals(objs, each);
+
+			try (OutputStream out = Files.newOutputStream(file)) {
+				SSJSJS.encodeUTF8(objs.get(42), out);
+			}
+			assertEquals(objs.get(42), SSJSJS.decode(file, ImplicitFields.class, env));
+
+			final List<Primitives> prims = new ArrayList<>();
+			for (int i = 0; i < 1000; i++) prims.add(new Primitives((byte) i));
+			try (OutputStream out = Files.newOutputStream(file)) {
+				SSJSJS.encodeLines(prims, out);
+			}
+			try (Stream<Primitives> lines = SSJSJS.decodeLines(file, Primitives.class)) {
+				assertEquals(prims, lines.collect(Collectors.toList()));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void mappedFileHandlesSurrogatePairsAtReadBoundaries() throws Exception {
+		// TextInput can ask for a single char at the end of its buffer
+		final StringBuilder text = new StringBuilder("{\"a\":\"");
+		while (text.length() < 65535) text.append('x');
+		final String a = text.substring(6) + "\ud83d\ude00";
+		text.append("\ud83d\ude00\",\"custom\":\"b\"}\n");
+
+		final Path file = Files.createTempFile("ssjsjs", ".json");
+		try {
+			Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+			assertEquals(new CustomLabels(a, "b"), SSJSJS.decode(file, CustomLabels.class));
+
+			for (int i = 0; i < 1000; i++) text.append("{\"a\":\"" + i + "\",\"custom\":\"b\"}\n");
+			Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+			try (Stream<CustomLabels> lines = SSJSJS.decodeLines(file, CustomLabels.class)) {
+				assertEquals(1001, lines.count());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void rejectDuplicateKeys() throws Exception {
+		final Map<String, Class<? extends JSONable>> inputs = new HashMap<>();
+		inputs.put("{\"a\": \"x\", \"a\": \"y\", \"custom\": \"z\"}", CustomLabels.class);
+		inputs.put("{\"value\": {\"x\": 1, \"x\": 2}}", WithUntypedField.class);
+		inputs.put("{\"numbers\": {\"one\": 1, \"one\": 2}}", WithMaps.class);
+
+		for (final Map.Entry<String, Class<? extends JSONable>> input : inputs.entrySet()) {
+			try {
+				SSJSJS.decode(new StringReader(input.getKey()), input.getValue());
+				fail("Expected a JSONdecodeException for " + input.getKey());
+			} catch (final JSONdecodeException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Duplicate key"));
+			}
+
+			try {
+				SSJSJS.decode(new JSONObject(input.getKey()), input.getValue());
+				fail("Expected a JSONException for " + input.getKey());
+			} catch (final JSONException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Duplicate key"));
+			}
+		}
+	}
+
+	@Test
+	public void mappedFileReportsErrors() throws Exception {
+		final Path file = Files.createTempFile("ssjsjs", ".json");
+		try {
+			Files.write(file, "[{}, {}, 42]".getBytes(StandardCharsets.UTF_8));
+			final List<EmptyBoxes> decoded = new ArrayList<>();
+			try {
+				SSJSJS.decodeAll(file, EmptyBoxes.class, null, decoded::add);
+				fail("Expected a JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				assertEquals(2, decoded.size());
+			}
+
+			Files.write(file, new byte[] {'{', '}', (byte) 0xff});
+			try {
+				SSJSJS.decode(file, EmptyBoxes.class);
+				fail("Expected an IOException");
+			} catch (final IOException e) {
+				// malformed UTF-8
+			}
+
+			Files.write(file, new byte[0]);
+			try {
+				SSJSJS.decodeAll(file, EmptyBoxes.class);
+				fail("Expected a JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				// empty file
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void stringPoolSharesDecodedStrings() throws Exception {
+		final String text = SSJSJS.encodeToString(new WithMaps(0));
+		SSJSJS.setStringPool(1024, 16);
+		try {
+			final WithMaps a = SSJSJS.decode(new StringReader(text), WithMaps.class);
+			final WithMaps b = SSJSJS.decode(new StringReader(text), WithMaps.class);
+			final WithMaps c = SSJSJS.decode(new JSONObject(text), WithMaps.class);
+			assertEquals(new WithMaps(0), a);
+			assertEquals(new WithMaps(0), c);
+
+			assertSame(key(a.numbers, "three"), key(b.numbers, "three"));
+			assertSame(key(a.numbers, "three"), key(c.primitives, "three"));
+			assertSame(a.strings.get("one"), b.strings.get("one"));
+			assertSame(a.strings.get("one"), c.strings.get("one"));
+
+			SSJSJS.setStringPool(1024, 4);
+			final WithMaps d = SSJSJS.decode(new StringReader(text), WithMaps.class);
+			final WithMaps e = SSJSJS.decode(new StringReader(text), WithMaps.class);
+			assertSame(key(d.numbers, "one"), key(e.numbers, "one"));
+			assertNotSame(key(d.numbers, "three"), key(e.numbers, "three"));
+			assertNotSame(d.strings.get("one"), e.strings.get("one"));
+		} finally {
+			SSJSJS.setStringPool(0, 0);
+		}
+
+		final WithMaps f = SSJSJS.decode(new StringReader(text), WithMaps.class);
+		final WithMaps g = SSJSJS.decode(new StringReader(text), WithMaps.class);
+		assertNotSame(f.strings.get("one"), g.strings.get("one"));
+	}
+
+	@Test
+	public void stringPoolEvictsOldStrings() throws Exception {
+		SSJSJS.setStringPool(4, 16);
+		try {
+			final LargeFields obj = new LargeFields(1000);
+			final String text = SSJSJS.encodeToString(obj);
+			for (int i = 0; i < 2; i++) {
+				final LargeFields decoded = SSJSJS.decode(new StringReader(text), LargeFields.class);
+				assertEquals(obj.strings, decoded.strings);
+				assertEquals(obj.map.values().stream().filter(Optional::isPresent).count(),
+					decoded.map.size());
+				for (final Map.Entry<String, Optional<Integer>> e : decoded.map.entrySet()) {
+					assertEquals(obj.map.get(e.getKey()), e.getValue());
+				}
+			}
+		} finally {
+			SSJSJS.setStringPool(0, 0);
+		}
+	}
+
+	private static <K> K key(final Map<K, ?> map, final K key) {
+		for (final K k : map.keySet()) if (k.equals(key)) return k;
+		return null;
+	}
+
+	@Test
+	public void encodeBufferRoundtrips() throws Exception {
+		final WithMaps obj = new WithMaps(42);
+		final String expected = SSJSJS.encodeToString(obj);
+		assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), SSJSJS.encodeToBytes(obj));
+
+		try (EncodeBuffer buffer = EncodeBuffer.lease()) {
+			for (int i = 0; i < 3; i++) {
+				buffer.encode(obj);
+				assertEquals(expected, buffer.toString());
+				assertEquals(expected.length(), buffer.size());
+				final StringWriter text = new StringWriter();
+				buffer.writeTo(text);
+				assertEquals(expected, text.toString());
+
+				buffer.encodeUTF8(obj);
+				assertEquals(expected, buffer.toString());
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				buffer.writeTo(Channels.newChannel(bytes));
+				assertArrayEquals(buffer.toByteArray(), bytes.toByteArray());
+				assertEquals(obj, SSJSJS.decode(
+					new ByteArrayInputStream(bytes.toByteArray()), WithMaps.class));
+			}
+		}
+	}
+
+	@Test
+	public void encodeBufferIsEmptyAfterError() throws Exception {
+		try (EncodeBuffer buffer = EncodeBuffer.lease()) {
+			buffer.encode(new Primitives((byte) 1));
+			try {
+				buffer.encode(new NotNullable());
+				fail("Expected a JSONencodeException");
+			} catch (final JSONencodeException e) {
+				assertEquals(0, buffer.size());
+			}
+			buffer.encodeUTF8(new Empty());
+			assertEquals("{}", buffer.toString());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void cannotUseEncodeBufferAfterClose() throws Exception {
+		final EncodeBuffer buffer = EncodeBuffer.lease();
+		buffer.close();
+		buffer.close();
+		buffer.encode(new Empty());
+	}
+
+	@Test
+	public void closingEncodeBufferTwiceDoesNotAffectLaterLeases() throws Exception {
+		final EncodeBuffer a = EncodeBuffer.lease();
+		a.close();
+
+		try (EncodeBuffer b = EncodeBuffer.lease()) {
+			b.encode(new Primitives((byte) 1));
+			final String expected = b.toString();
+
+			a.close();
+			try (EncodeBuffer c = EncodeBuffer.lease()) {
+				c.encode(new Primitives((byte) 2));
+				assertEquals(expected, b.toString());
+			}
+		}
+	}
+
+	@Test
+	public void encodeBuffersAreSafeToShareBetweenThreads() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				final WithMaps obj = new WithMaps(i);
+				results.add(executor.submit(() -> {
+					for (int j = 0; j < 50; j++) {
+						if (!obj.equals(SSJSJS.decode(
+							new StringReader(SSJSJS.encodeToString(obj)), WithMaps.class))) return false;
+					}
+					return true;
+				}));
+			}
+			for (final Future<Boolean> r : results) assertTrue(r.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void decodeErrorsReportPath() throws Exception {
+		final JSONObject json = SSJSJS.encode(new WithMaps(0));
+		json.getJSONObject("primitives").getJSONObject("one").put("intVal", "oops");
+		assertDecodeErrorPath("primitives{one}.intVal", json, WithMaps.class);
+
+		final JSONObject large = SSJSJS.encode(new LargeFields(10));
+		large.getJSONArray("list").getJSONObject(3).remove("intVal");
+		assertDecodeErrorPath("list[3].intVal", large, LargeFields.class);
+
+		try {
+			SSJSJS.decodeAll(new StringReader("[{}, {}, 42]"), EmptyBoxes.class);
+			fail("Expected a JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			assertEquals("[2]", e.getPath());
+			assertEquals(0, e.getStackTrace().length);
+		}
+	}
+
+	private static void assertDecodeErrorPath(
+		final String path, final JSONObject json, final Class<? extends JSONable> clazz
+	) throws Exception {
+		try {
+			SSJSJS.decode(json, clazz);
+			fail("Expected a JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			assertEquals(path, e.getPath());
+			assertTrue(e.getMessage(), e.getMessage().startsWith(path + ": "));
+		}
+
+		try {
+			SSJSJS.decode(new StringReader(json.toString()), clazz);
+			fail("Expected a JSONdecodeException");
+		} catch (final JSONdecodeException e) {
+			assertEquals(path, e.getPath());
+		}
+	}
+
+	@Test
+	public void encodeErrorsReportPath() throws Exception {
+		try {
+			SSJSJS.encodeAll(Arrays.asList(new Empty(), new NotNullable()));
+			fail("Expected a JSONencodeException");
+		} catch (final JSONencodeException e) {
+			assertEquals("[1].notNullable", e.getPath());
+			assertEquals(0, e.getStackTrace().length);
+		}
+
+		try {
+			SSJSJS.encodeToString(new NotNullable());
+			fail("Expected a JSONencodeException");
+		} catch (final JSONencodeException e) {
+			assertEquals("notNullable", e.getPath());
+		}
+	}
+
+	@Test
+	public void registerReachesNestedClasses() throws Exception {
+		final Set<Class<? extends JSONable>> registered = SSJSJS.register(WithLazyFields.class);
+		assertEquals(new HashSet<>(Arrays.asList(
+			WithLazyFields.class, WithMaps.class, ImplicitFields.class, Primitives.class)),
+			registered);
+
+		assertEquals(1, SSJSJS.register(WithUntypedField.class).size());
+	}
+
+	@Test
+	public void registerRejectsInvalidClasses() throws Exception {
+		for (final Class<?> clazz : Arrays.asList(
+			NotSerializable.class,
+			NoConstructorAnnotation.class,
+			MissingFieldAnnotation.class,
+			DuplicateAliases.class,
+			UnserializableField.class))
+		{
+			try {
+				SSJSJS.register(clazz);
+				fail("Expected an IllegalArgumentException for " + clazz);
+			} catch (final IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains(clazz.getName()));
+			}
+		}
+	}
+
+	@Test
+	public void registerPackageScansJars() throws Exception {
+		final ClassLoader loader = SSJSJSTest.class.getClassLoader();
+		assertTrue(SSJSJS.registerPackage("org.junit.runner", loader).isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void registerPackageChecksEveryClass() throws Exception {
+		// this package contains classes that are deliberately annotated wrongly
+		SSJSJS.registerPackage("ssjsjs.test", SSJSJSTest.class.getClassLoader());
+	}
+
+	@Test
+	public void warmUpRoundtrips() throws Exception {
+		final Map<String, Object> env = new HashMap<>();
+		env.put("fromEnv", new WierdType("warm"));
+
+		SSJSJS.warmUp(10, env,
+			WithLazyFields.class, WithEnums.class, WithCollections.class,
+			WithArrays.class, WithOptionals.class, NestedCollections.class);
+		SSJSJS.warmUp(0, ThrowingConstructor.class);
+
+		final WithLazyFields obj = new WithLazyFields(null);
+		assertEquals(obj, SSJSJS.decode(SSJSJS.encode(obj), WithLazyFields.class));
+	}
+
+	@Test
+	public void metricsCountDocuments() throws Exception {
+		final WithOptionals obj = new WithOptionals(true);
+		final String text = SSJSJS.encodeToString(obj);
+
+		assertTrue(SSJSJS.getMetrics().isEmpty());
+		SSJSJS.enableMetrics(false);
+		try {
+			SSJSJS.encode(obj);
+			SSJSJS.decode(SSJSJS.encode(obj), WithOptionals.class);
+			SSJSJS.encodeToString(obj);
+			SSJSJS.decode(new StringReader(text), WithOptionals.class);
+			SSJSJS.decodeAll(new StringReader("[" + text + "," + text + "]"), WithOptionals.class);
+			try {
+				SSJSJS.decode(new StringReader("{\"integer\": \"x\"}"), WithOptionals.class);
+				fail("Expected JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				// expected
+			}
+
+			final ssjsjs.Metrics m = SSJSJS.getMetrics().get(WithOptionals.class);
+			assertEquals(WithOptionals.class, m.getType());
+			assertEquals(3, m.getEncode().getCount());
+			assertEquals(0, m.getEncode().getFailures());
+			assertEquals(text.length(), m.getEncode().getTotalSize());
+			assertEquals(5, m.getDecode().getCount());
+			assertEquals(1, m.getDecode().getFailures());
+			assertEquals(3 * text.length(), m.getDecode().getTotalSize());
+			assertTrue(m.getDecode().getPercentileNanos(0.99) > 0);
+
+			// nested objects are not counted
+			assertFalse(SSJSJS.getMetrics().containsKey(Primitives.class));
+		} finally {
+			SSJSJS.disableMetrics();
+		}
+		assertTrue(SSJSJS.getMetrics().isEmpty());
+	}
+
+	@Test
+	public void metricsRegisterMBeans() throws Exception {
+		final javax.management.MBeanServer server =
+			java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		final javax.management.ObjectName name = new javax.management.ObjectName(
+			"ssjsjs:type=Metrics,class=" +
+			javax.management.ObjectName.quote(Primitives.class.getName()));
+
+		SSJSJS.enableMetrics(true);
+		try {
+			SSJSJS.encode(new Primitives((byte) 0));
+			assertEquals(1L, server.getAttribute(name, "EncodeCount"));
+			assertEquals(0L, server.getAttribute(name, "DecodeCount"));
+		} finally {
+			SSJSJS.disableMetrics();
+		}
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void flightRecorderEvents() throws Exception {
+		final WithOptionals obj = new WithOptionals(true);
+		final String text = SSJSJS.encodeToString(obj);
+		final Path file = Files.createTempFile("ssjsjs", ".jfr");
+
+		try (final jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+			recording.enable("ssjsjs.Encode");
+			recording.enable("ssjsjs.Decode");
+			recording.start();
+
+			SSJSJS.encodeToString(obj);
+			SSJSJS.decode(new StringReader(text), WithOptionals.class);
+			try {
+				SSJSJS.decode(new StringReader("{\"integer\": \"x\"}"), WithOptionals.class);
+				fail("Expected JSONdecodeException");
+			} catch (final JSONdecodeException e) {
+				// expected
+			}
+
+			recording.stop();
+			recording.dump(file);
+		}
+
+		try {
+			final List<jdk.jfr.consumer.RecordedEvent> events =
+				jdk.jfr.consumer.RecordingFile.readAllEvents(file);
+			assertEquals(3, events.size());
+
+			final Map<String, List<jdk.jfr.consumer.RecordedEvent>> byName = events.stream()
+				.collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+			final jdk.jfr.consumer.RecordedEvent encode = byName.get("ssjsjs.Encode").get(0);
+			assertEquals(WithOptionals.class.getName(),
+				encode.getClass("type").getName());
+			assertEquals(3, encode.getInt("fields"));
+			assertEquals(text.length(), encode.getLong("size"));
+			assertNull(encode.getString("failure"));
+
+			final List<jdk.jfr.consumer.RecordedEvent> decodes = byName.get("ssjsjs.Decode");
+			assertEquals(2, decodes.size());
+			assertEquals(1, decodes.stream()
+				.filter(e -> e.getString("failure") != null).count());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
 	@Test(expected = JSONencodeException.class)
 	public void requireConstructorAnnotation() throws Exception {
 		SSJSJS.encode(new NoConstructorAnnotation());
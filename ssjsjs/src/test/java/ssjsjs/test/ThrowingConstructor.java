@@ -0,0 +1,17 @@
+package ssjsjs.test;
+
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.JSONable;
+
+public class ThrowingConstructor implements JSONable {
+	private final int a;
+
+	@JSON
+	public ThrowingConstructor(
+		@Field("a") final int a
+	) {
+		if (a < 0) throw new IllegalArgumentException("a must not be negative");
+		this.a = a;
+	}
+}
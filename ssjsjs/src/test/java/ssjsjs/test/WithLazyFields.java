@@ -0,0 +1,57 @@
+package ssjsjs.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.annotations.Nullable;
+import ssjsjs.JSONable;
+import ssjsjs.JSONdecodeException;
+import ssjsjs.Lazy;
+
+public class WithLazyFields implements JSONable {
+	public final Lazy<WithMaps> maps;
+	public final Lazy<ImplicitFields> implicit;
+	public final List<Lazy<Primitives>> list;
+
+	public WithLazyFields(final ImplicitFields implicit) {
+		this.maps = Lazy.of(new WithMaps(42));
+		this.implicit = implicit == null? null : Lazy.of(implicit);
+		this.list = new ArrayList<>();
+		for (int i = 0; i < 10; i++) this.list.add(Lazy.of(new Primitives((byte) i)));
+	}
+
+	@JSON
+	public WithLazyFields(
+		@Field("maps") final Lazy<WithMaps> maps,
+		@Field("implicit") @Nullable final Lazy<ImplicitFields> implicit,
+		@Field("list") final List<Lazy<Primitives>> list
+	) {
+		this.maps = maps;
+		this.implicit = implicit;
+		this.list = list;
+	}
+
+	@Override public boolean equals(final Object other) {
+		if (!(other instanceof WithLazyFields)) return false;
+		else {
+			final WithLazyFields o = (WithLazyFields) other;
+			try {
+				if (!this.maps.get().equals(o.maps.get())) return false;
+				if (this.implicit == null? o.implicit != null :
+					o.implicit == null || !this.implicit.get().equals(o.implicit.get())) return false;
+				if (this.list.size() != o.list.size()) return false;
+				for (int i = 0; i < this.list.size(); i++) {
+					if (!this.list.get(i).get().equals(o.list.get(i).get())) return false;
+				}
+				return true;
+			} catch (final JSONdecodeException e) {
+				return false;
+			}
+		}
+	}
+
+	@Override public int hashCode() {
+		return list.size();
+	}
+}
@@ -0,0 +1,30 @@
+package ssjsjs.test;
+
+import ssjsjs.annotations.Field;
+import ssjsjs.annotations.JSON;
+import ssjsjs.JSONable;
+
+public class WithUntypedField implements JSONable {
+	public final Object value;
+
+	@JSON
+	public WithUntypedField(
+		@Field("value") final Object value
+	) {
+		this.value = value;
+	}
+
+	@Override
+	public int hashCode() {
+		return value == null? 0 : value.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (!(other instanceof WithUntypedField)) return false;
+		else {
+			final WithUntypedField o = (WithUntypedField) other;
+			return value == null? o.value == null : value.equals(o.value);
+		}
+	}
+}